@@ -0,0 +1,211 @@
+package uk.me.hardill.weblauncher;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Album art for the current track: fetched and decoded off the main thread
+ * with {@code inSampleSize} for the requested size, kept in a memory LRU of
+ * bitmaps and in a small disk cache of downscaled JPEGs keyed by URL. Bitmaps
+ * evicted from memory are not reused as {@code inBitmap}: every cached bitmap
+ * has been handed out, and the notification may still be showing it.
+ */
+public class AlbumArtCache {
+    private static final String TAG = "DLNAAlbumArt";
+    private static final int MEMORY_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final long DISK_CACHE_BYTES = 8L * 1024 * 1024;
+    private static final int MAX_DOWNLOAD_BYTES = 4 * 1024 * 1024;
+    private static final int TIMEOUT_MS = 5000;
+
+    public interface Listener {
+        /** Called on the main thread; {@code bitmap} is null if the art could not be loaded. */
+        void onAlbumArt(String url, Bitmap bitmap);
+    }
+
+    private final File directory;
+    private final Handler mainHandler;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "AlbumArt");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<String> inFlight = new HashSet<>();
+    private final LruCache<String, Bitmap> memoryCache = new LruCache<String, Bitmap>(MEMORY_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+
+    public AlbumArtCache(File directory, Handler mainHandler) {
+        this.directory = directory;
+        this.mainHandler = mainHandler;
+    }
+
+    private static String key(String url, int width, int height) {
+        return SegmentCache.key(url) + "_" + width + "x" + height;
+    }
+
+    /** Bitmap already decoded for this URL and size, or null. */
+    public Bitmap getCached(String url, int width, int height) {
+        return memoryCache.get(key(url, width, height));
+    }
+
+    /**
+     * Loads art for {@code url} scaled to at least {@code width} x {@code height}
+     * and reports it to {@code listener} on the main thread.
+     */
+    public void load(String url, int width, int height, Listener listener) {
+        String key = key(url, width, height);
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            listener.onAlbumArt(url, cached);
+            return;
+        }
+        synchronized (inFlight) {
+            if (!inFlight.add(key)) return;
+        }
+        executor.execute(() -> {
+            Bitmap bitmap = null;
+            try {
+                bitmap = loadBlocking(url, key, width, height);
+            } catch (Exception e) {
+                Log.w(TAG, "Album art failed for " + url + ": " + e.getMessage());
+            } finally {
+                synchronized (inFlight) {
+                    inFlight.remove(key);
+                }
+            }
+            final Bitmap result = bitmap;
+            mainHandler.post(() -> listener.onAlbumArt(url, result));
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        memoryCache.evictAll();
+    }
+
+    private Bitmap loadBlocking(String url, String key, int width, int height) throws IOException {
+        File file = new File(directory, key + ".jpg");
+        Bitmap bitmap = null;
+        if (file.exists()) {
+            // Уже уменьшенная копия — декодируем как есть
+            file.setLastModified(System.currentTimeMillis());
+            bitmap = decodeFile(file);
+        }
+        if (bitmap == null) {
+            byte[] data = download(url);
+            bitmap = decodeSampled(data, width, height);
+            if (bitmap == null) {
+                return null;
+            }
+            writeDisk(file, bitmap);
+        }
+        memoryCache.put(key, bitmap);
+        return bitmap;
+    }
+
+    private Bitmap decodeFile(File file) {
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            file.delete();
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeSampled(byte[] data, int width, int height) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (bounds.outWidth / (sampleSize * 2) >= width && bounds.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private static byte[] download(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        try {
+            if (connection.getResponseCode() >= 400) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_DOWNLOAD_BYTES) {
+                    throw new IOException("Album art too large");
+                }
+            }
+            in.close();
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void writeDisk(File file, Bitmap bitmap) {
+        if (!directory.exists() && !directory.mkdirs()) return;
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache album art: " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    // Удаляем самые давно использованные файлы сверх лимита
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= DISK_CACHE_BYTES) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (total <= DISK_CACHE_BYTES) break;
+            total -= f.length();
+            f.delete();
+        }
+    }
+}
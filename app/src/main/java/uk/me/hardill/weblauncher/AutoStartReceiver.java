@@ -4,6 +4,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.preference.PreferenceManager;
 
 public class AutoStartReceiver extends BroadcastReceiver {
@@ -16,6 +17,17 @@ public class AutoStartReceiver extends BroadcastReceiver {
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
         boolean onStart = sharedPref.getBoolean("launch_on_start", false);
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()) && onStart) {
+            if ("renderer".equals(sharedPref.getString("boot_mode", "kiosk"))) {
+                // Только рендерер: без Activity и WebView, сразу foreground-сервис
+                Intent startService = new Intent(context, UpnpAudioRendererService.class)
+                    .putExtra(UpnpAudioRendererService.EXTRA_BOOT_START, true);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    context.startForegroundService(startService);
+                } else {
+                    context.startService(startService);
+                }
+                return;
+            }
             Intent startActivity = new Intent(context, FullscreenActivity.class);
             startActivity.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             context.startActivity(startActivity);
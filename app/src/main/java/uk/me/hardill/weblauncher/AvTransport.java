@@ -0,0 +1,810 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * AVTransport and RenderingControl of one renderer instance: the play queue, the
+ * transport state machine driven by a {@link PlaybackEngine}, the SOAP actions and
+ * the LastChange events. Nothing here depends on Android. The primary renderer
+ * plugs playlists, the stream proxy, the sync group and the journal in through
+ * {@link Hooks}; each {@link VirtualRenderer} and the JVM tests run the same code
+ * against their own engine. Transport methods must be called on the thread that
+ * delivers the engine callbacks; the getters and SOAP queries may be called from
+ * any thread.
+ */
+final class AvTransport implements PlaybackEngine.Listener {
+    static final String STOPPED = "STOPPED";
+    static final String PLAYING = "PLAYING";
+    static final String PAUSED_PLAYBACK = "PAUSED_PLAYBACK";
+    static final String TRANSITIONING = "TRANSITIONING";
+    static final String STATUS_OK = "OK";
+    static final String STATUS_ERROR = "ERROR_OCCURRED";
+    static final String AV_TRANSPORT = "AVTransport";
+    static final String RENDERING_CONTROL = "RenderingControl";
+
+    /**
+     * What the owner adds around the state machine. Every method has a neutral
+     * default, so a renderer overrides only the parts it has: the primary one all
+     * of them, a virtual one a few, a test whichever it checks.
+     */
+    static class Hooks {
+        /** True when the command goes elsewhere (the sync group) instead of the local transition. */
+        boolean interceptPlay(AvTransport transport) {
+            return false;
+        }
+
+        boolean interceptPause(AvTransport transport) {
+            return false;
+        }
+
+        boolean interceptStop(AvTransport transport) {
+            return false;
+        }
+
+        boolean interceptSeek(AvTransport transport, int positionMs) {
+            return false;
+        }
+
+        /** Queue entries for a SetAVTransportURI; empty or a single item means a single track. */
+        List<PlayQueue.Item> queueItems(AvTransport transport, String uri, String didl) {
+            if (didl != null && didl.trim().startsWith("<DIDL-Lite")) {
+                return PlayQueue.parseDidlItems(didl);
+            }
+            return new ArrayList<>();
+        }
+
+        /** The item with whatever is already known about its URI, e.g. from a metadata cache. */
+        PlayQueue.Item remember(PlayQueue.Item item) {
+            return item;
+        }
+
+        /** Called after a queue item became the current track. */
+        void onTrackLoaded(AvTransport transport, PlayQueue.Item item) {
+        }
+
+        /** Runs before every Play, e.g. to route the engine to an output. */
+        void beforePlay(AvTransport transport) {
+        }
+
+        /**
+         * Opens {@code uri} on the engine and starts preparing it. The owner may
+         * switch engines with {@link AvTransport#selectEngine}, play another address (a proxy,
+         * a station stream) or open it later and report a failure with {@link AvTransport#fail()}.
+         */
+        void openSource(AvTransport transport, String uri) throws IOException {
+            PlaybackEngine engine = transport.engine();
+            engine.setDataSource(uri);
+            engine.prepareAsync();
+        }
+
+        /** True to hold the start after prepare; the owner then calls {@link AvTransport#start()}. */
+        boolean deferStart(AvTransport transport) {
+            return false;
+        }
+
+        /** Playback started; {@code fresh} after a prepare, false when resumed from pause. */
+        void onStarted(AvTransport transport, boolean fresh) {
+        }
+
+        /** Last chance to recover from an engine error, e.g. with another mirror; true if it re-opened the track. */
+        boolean recover(AvTransport transport, PlaybackEngine engine, int what, int extra) {
+            return false;
+        }
+
+        /** Whether a finished track moves on to the next queue item by itself. */
+        boolean autoAdvance(AvTransport transport) {
+            return true;
+        }
+
+        /** The current track stopped for good: Stop, end of track, final error or a failed open. */
+        void onPlaybackEnded(AvTransport transport) {
+        }
+
+        /** SetNextAVTransportURI changed the item after the current one. */
+        void onNextChanged(AvTransport transport) {
+        }
+
+        /** DIDL of the current track for GetPositionInfo and LastChange. */
+        String trackMetaData(AvTransport transport) {
+            String didl = transport.getCurrentMetaData();
+            if (didl.trim().startsWith("<DIDL-Lite")) {
+                return didl;
+            }
+            PlayQueue.Item item = transport.queue().current();
+            String title = item != null && !item.title.isEmpty() ? item.title : filename(transport.getCurrentUri());
+            return fallbackDidl(title, "", "");
+        }
+
+        /** Any transport change; {@code previousState} tells a state change from a metadata one. */
+        void onTransportChanged(AvTransport transport, String previousState) {
+        }
+
+        void onVolumeChanged(AvTransport transport) {
+        }
+    }
+
+    private final PlayQueue queue = new PlayQueue();
+    private final PlaybackMetrics metrics = new PlaybackMetrics();
+    // Готовые ответы на опрашиваемые Get*-запросы; устаревают при любом изменении
+    private final SoapResponseCache responseCache = new SoapResponseCache();
+    private final Hooks hooks;
+    private volatile PlaybackEngine engine;
+    private volatile String transportState = STOPPED;
+    private volatile String transportStatus = STATUS_OK;
+    private volatile String currentUri = "";
+    private volatile String currentMetaData = "";
+    private volatile String contentType = "";
+    private volatile int volume = 50;
+    private volatile boolean prepared = false;
+    private volatile int durationMs = 0;
+    private int pendingSeekMs = -1;
+    private float speed = 1.0f;
+    private int changeCount = 0;
+
+    AvTransport(PlaybackEngine engine, Hooks hooks) {
+        this.engine = engine;
+        this.hooks = hooks != null ? hooks : new Hooks();
+        engine.setListener(this);
+        engine.setVolume(volume / 100.0f);
+    }
+
+    PlaybackEngine engine() {
+        return engine;
+    }
+
+    PlayQueue queue() {
+        return queue;
+    }
+
+    PlaybackMetrics metrics() {
+        return metrics;
+    }
+
+    String getTransportState() {
+        return transportState;
+    }
+
+    String getTransportStatus() {
+        return transportStatus;
+    }
+
+    String getCurrentUri() {
+        return currentUri;
+    }
+
+    String getCurrentMetaData() {
+        return currentMetaData;
+    }
+
+    /** MIME type of the current track, empty if neither the DIDL nor the stream said. */
+    String getContentType() {
+        return contentType;
+    }
+
+    int getVolume() {
+        return volume;
+    }
+
+    boolean isPrepared() {
+        return prepared;
+    }
+
+    int getPositionMs() {
+        return prepared ? engine.getCurrentPosition() : 0;
+    }
+
+    /** From the engine once prepared, before that (and for streams without one) from the DIDL. */
+    int getDurationMs() {
+        if (durationMs > 0) return durationMs;
+        PlayQueue.Item item = queue.current();
+        return item != null ? (int) Math.min(Integer.MAX_VALUE, item.durationMs) : 0;
+    }
+
+    /** Position a Seek before prepare or a resume asked for, -1 if none. */
+    int getPendingSeekMs() {
+        return pendingSeekMs;
+    }
+
+    float getSpeed() {
+        return speed;
+    }
+
+    /** Switches to another engine (e.g. AudioTrack for PCM); the old one is reset. */
+    void selectEngine(PlaybackEngine newEngine) {
+        if (newEngine == engine) return;
+        engine.reset();
+        engine = newEngine;
+        newEngine.setListener(this);
+        newEngine.setVolume(volume / 100.0f);
+    }
+
+    /** Content type learnt after the track was queued, e.g. from the stream's response; follow with {@link #changed()}. */
+    void setContentType(String type) {
+        if (type != null) {
+            contentType = type;
+        }
+    }
+
+    /** SetAVTransportURI: stops what plays and replaces the queue with the new track or list. */
+    void setUri(String uri, String metaData) {
+        metrics.onTransportUriSet();
+        if (!STOPPED.equals(transportState)) {
+            requestStop();
+        }
+        // Без DIDL метаданные возьмутся из кеша по URI, если трек уже встречался
+        String didl = metaData != null && metaData.trim().startsWith("<DIDL-Lite") ? metaData : "";
+        List<PlayQueue.Item> items = hooks.queueItems(this, uri, didl);
+        if (items.size() <= 1) {
+            List<PlayQueue.Item> single = new ArrayList<>();
+            single.add(items.isEmpty() ? hooks.remember(new PlayQueue.Item(uri, didl)) : items.get(0));
+            items = single;
+        }
+        setQueue(items, 0);
+    }
+
+    /** Replaces the queue without stopping, e.g. when a playlist being opened turns out to list tracks. */
+    void setQueue(List<PlayQueue.Item> items, int startIndex) {
+        queue.replace(items, startIndex);
+        load(queue.current());
+        changed();
+    }
+
+    /** SetNextAVTransportURI; an empty URI clears the next item. */
+    void setNext(String uri, String metaData) {
+        if (uri == null || uri.trim().isEmpty()) {
+            queue.setNext(null);
+        } else {
+            List<PlayQueue.Item> items = hooks.queueItems(this, uri, metaData);
+            queue.setNext(!items.isEmpty() ? items.get(0) : hooks.remember(new PlayQueue.Item(uri, metaData)));
+        }
+        changed();
+        hooks.onNextChanged(this);
+    }
+
+    private void load(PlayQueue.Item item) {
+        if (item == null) return;
+        item = hooks.remember(item);
+        currentUri = item.uri;
+        currentMetaData = item.metaData;
+        contentType = item.contentType;
+        durationMs = 0;
+        pendingSeekMs = -1;
+        hooks.onTrackLoaded(this, item);
+    }
+
+    void requestPlay() {
+        if (!hooks.interceptPlay(this)) {
+            play();
+        }
+    }
+
+    void requestPause() {
+        if (!hooks.interceptPause(this)) {
+            pause();
+        }
+    }
+
+    void requestStop() {
+        if (!hooks.interceptStop(this)) {
+            stop();
+        }
+    }
+
+    void requestSeek(int positionMs) {
+        if (!hooks.interceptSeek(this, positionMs)) {
+            seek(positionMs);
+        }
+    }
+
+    /** Resumes from pause or opens the current track; a Play while preparing or playing is ignored. */
+    void play() {
+        if (currentUri.isEmpty()) return;
+        String previous = transportState;
+        if (PLAYING.equals(previous) || TRANSITIONING.equals(previous)) return;
+        hooks.beforePlay(this);
+        if (PAUSED_PLAYBACK.equals(previous) && prepared) {
+            engine.start();
+            transportState = PLAYING;
+            hooks.onStarted(this, false);
+            changed(previous);
+            return;
+        }
+        try {
+            engine.reset();
+            prepared = false;
+            durationMs = 0;
+            speed = 1.0f;
+            transportStatus = STATUS_OK;
+            transportState = TRANSITIONING;
+            metrics.onPrepareStarted(currentUri, contentType);
+            hooks.openSource(this, currentUri);
+            changed(previous);
+        } catch (IOException | RuntimeException e) {
+            failed(previous);
+        }
+    }
+
+    /** Starts the prepared engine; used by owners whose {@link Hooks#deferStart} held the start back. */
+    void start() {
+        String previous = transportState;
+        engine.start();
+        transportState = PLAYING;
+        hooks.onStarted(this, TRANSITIONING.equals(previous));
+        changed(previous);
+    }
+
+    void pause() {
+        String previous = transportState;
+        if (!PLAYING.equals(previous)) return;
+        // Группа могла задержать общий старт — тогда плеер уже стоит
+        if (engine.isPlaying()) {
+            resetSpeed();
+            engine.pause();
+        }
+        transportState = PAUSED_PLAYBACK;
+        changed(previous);
+    }
+
+    void stop() {
+        String previous = transportState;
+        pendingSeekMs = -1;
+        if (STOPPED.equals(previous)) {
+            hooks.onPlaybackEnded(this);
+            return;
+        }
+        // reset() допустим в любом состоянии, в том числе во время подготовки
+        engine.reset();
+        prepared = false;
+        durationMs = 0;
+        speed = 1.0f;
+        metrics.onPlaybackEnded();
+        transportState = STOPPED;
+        hooks.onPlaybackEnded(this);
+        changed(previous);
+    }
+
+    /** Seek within the track; before prepare the position is applied on start. */
+    void seek(int positionMs) {
+        if (prepared) {
+            engine.seekTo(positionMs);
+        } else {
+            pendingSeekMs = positionMs;
+        }
+        changed();
+    }
+
+    /** Next in the queue; false at its end. */
+    boolean next() {
+        PlayQueue.Item item = queue.advance();
+        if (item == null) return false;
+        skipTo(item);
+        return true;
+    }
+
+    /** Previous in the queue; false at its start. */
+    boolean previous() {
+        PlayQueue.Item item = queue.previous();
+        if (item == null) return false;
+        skipTo(item);
+        return true;
+    }
+
+    /** Seek with Unit TRACK_NR: 1-based track number; false if out of range. */
+    boolean jumpTo(int trackNumber) {
+        PlayQueue.Item item = queue.jumpTo(trackNumber);
+        if (item == null) return false;
+        skipTo(item);
+        return true;
+    }
+
+    private void skipTo(PlayQueue.Item item) {
+        boolean resume = PLAYING.equals(transportState) || TRANSITIONING.equals(transportState);
+        if (!STOPPED.equals(transportState)) {
+            requestStop();
+        }
+        load(item);
+        int mark = changeCount;
+        if (resume) {
+            requestPlay();
+        }
+        // Play мог уйти в группу, тогда о новом треке сообщаем сами
+        if (changeCount == mark) {
+            changed();
+        }
+    }
+
+    void setVolume(int newVolume) {
+        volume = Math.max(0, Math.min(100, newVolume));
+        engine.setVolume(volume / 100.0f);
+        responseCache.invalidate();
+        hooks.onVolumeChanged(this);
+    }
+
+    /** Playback rate for drift correction or catching up; only while playing. False if the engine can't. */
+    boolean setSpeed(float newSpeed) {
+        if (newSpeed == speed) return true;
+        if (!engine.setPlaybackSpeed(newSpeed)) return false;
+        speed = newSpeed;
+        return true;
+    }
+
+    // Только пока плеер играет: на паузе смена скорости может снова запустить MediaPlayer
+    private void resetSpeed() {
+        if (speed != 1.0f) {
+            engine.setPlaybackSpeed(1.0f);
+            speed = 1.0f;
+        }
+    }
+
+    /** The owner could not open the track it was asked to (see {@link Hooks#openSource}). */
+    void fail() {
+        failed(transportState);
+    }
+
+    private void failed(String previous) {
+        engine.reset();
+        prepared = false;
+        durationMs = 0;
+        transportStatus = STATUS_ERROR;
+        transportState = STOPPED;
+        hooks.onPlaybackEnded(this);
+        changed(previous);
+    }
+
+    /** Something outside the state machine changed what the events show, e.g. a stream title. */
+    void changed() {
+        changed(transportState);
+    }
+
+    /** Makes the cached query responses stale without an event, for changes whose events are throttled. */
+    void invalidateResponses() {
+        responseCache.invalidate();
+    }
+
+    private void changed(String previousState) {
+        changeCount++;
+        responseCache.invalidate();
+        hooks.onTransportChanged(this, previousState);
+    }
+
+    @Override
+    public void onPrepared(PlaybackEngine engine) {
+        if (engine != this.engine) return;
+        prepared = true;
+        metrics.onPrepared();
+        durationMs = Math.max(0, engine.getDuration());
+        if (hooks.deferStart(this)) {
+            pendingSeekMs = -1;
+            return;
+        }
+        if (pendingSeekMs > 0 && pendingSeekMs < getDurationMs()) {
+            engine.seekTo(pendingSeekMs);
+        }
+        pendingSeekMs = -1;
+        start();
+    }
+
+    @Override
+    public void onCompletion(PlaybackEngine engine) {
+        if (engine != this.engine) return;
+        String previous = transportState;
+        prepared = false;
+        durationMs = 0;
+        speed = 1.0f;
+        metrics.onPlaybackEnded();
+        hooks.onPlaybackEnded(this);
+        PlayQueue.Item next = hooks.autoAdvance(this) ? queue.advance() : null;
+        transportState = STOPPED;
+        int mark = changeCount;
+        if (next != null) {
+            load(next);
+            requestPlay();
+        }
+        if (changeCount == mark) {
+            changed(previous);
+        }
+    }
+
+    @Override
+    public boolean onError(PlaybackEngine engine, int what, int extra) {
+        if (engine != this.engine) return true;
+        metrics.onError();
+        String previous = transportState;
+        if (hooks.recover(this, engine, what, extra)) {
+            prepared = false;
+            transportState = TRANSITIONING;
+            changed(previous);
+            return true;
+        }
+        failed(previous);
+        return true;
+    }
+
+    @Override
+    public void onBufferingStart(PlaybackEngine engine) {
+        if (engine == this.engine) metrics.onBufferingStart();
+    }
+
+    @Override
+    public void onBufferingEnd(PlaybackEngine engine) {
+        if (engine == this.engine) metrics.onBufferingEnd();
+    }
+
+    @Override
+    public void onBufferingUpdate(PlaybackEngine engine, int percent) {
+        if (engine == this.engine) metrics.onBufferingUpdate(percent);
+    }
+
+    /**
+     * Answers an AVTransport or RenderingControl action, or GetCurrentConnectionInfo.
+     * The rest of ConnectionManager is device-wide and left to the caller.
+     * Transport changes are handed to {@code transport}, the thread delivering the
+     * engine callbacks, and the response does not wait for them.
+     */
+    String handleSoap(String soapAction, String soapBody, Executor transport) {
+        // Имя действия целиком: по подстроке SetPlayMode выглядел бы как Play
+        String action = actionName(soapAction);
+        if ("GetCurrentConnectionInfo".equals(action)) {
+            String connectionId = UpnpSoap.extractValue(soapBody, "ConnectionID");
+            if (connectionId != null && !"0".equals(connectionId.trim())) {
+                return UpnpSoap.error(706, "Invalid connection reference");
+            }
+            String uri = currentUri;
+            String type = contentType;
+            XmlWriter xml = UpnpSoap.startResponse("GetCurrentConnectionInfo", "ConnectionManager");
+            xml.element("RcsID", 0)
+               .element("AVTransportID", 0)
+               .element("ProtocolInfo", uri.isEmpty() ? "" : "http-get:*:" + (type.isEmpty() ? "*" : type) + ":*")
+               .element("PeerConnectionManager", "")
+               .element("PeerConnectionID", -1)
+               .element("Direction", "Input")
+               .element("Status", "OK");
+            return UpnpSoap.finishResponse(xml);
+        } else if ("SetNextAVTransportURI".equals(action)) {
+            String uri = PlayQueue.unescapeXml(UpnpSoap.extractValue(soapBody, "NextURI"));
+            String didl = PlayQueue.unescapeXml(UpnpSoap.extractValue(soapBody, "NextURIMetaData"));
+            transport.execute(() -> setNext(uri, didl));
+            return UpnpSoap.success("SetNextAVTransportURI", AV_TRANSPORT);
+        } else if ("SetAVTransportURI".equals(action)) {
+            // Значение приходит экранированным; без этого &amp; в URL экранировался повторно
+            String uri = PlayQueue.unescapeXml(UpnpSoap.extractValue(soapBody, "CurrentURI"));
+            if (uri == null) {
+                return UpnpSoap.error(402, "Invalid Args");
+            }
+            String didl = PlayQueue.unescapeXml(UpnpSoap.extractValue(soapBody, "CurrentURIMetaData"));
+            transport.execute(() -> setUri(uri, didl));
+            return UpnpSoap.success("SetAVTransportURI", AV_TRANSPORT);
+        } else if ("GetMediaInfo".equals(action)) {
+            return mediaInfoResponse();
+        } else if ("Play".equals(action)) {
+            transport.execute(this::requestPlay);
+            return UpnpSoap.success("Play", AV_TRANSPORT);
+        } else if ("Pause".equals(action)) {
+            transport.execute(this::requestPause);
+            return UpnpSoap.success("Pause", AV_TRANSPORT);
+        } else if ("Stop".equals(action)) {
+            transport.execute(this::requestStop);
+            return UpnpSoap.success("Stop", AV_TRANSPORT);
+        } else if ("GetTransportInfo".equals(action)) {
+            return transportInfoResponse();
+        } else if ("GetPositionInfo".equals(action)) {
+            return utf8(positionInfoResponse());
+        } else if ("SetVolume".equals(action)) {
+            int newVolume = HttpUtil.parseInt(UpnpSoap.extractValue(soapBody, "DesiredVolume"), -1);
+            if (newVolume < 0) {
+                return UpnpSoap.error(402, "Invalid Args");
+            }
+            transport.execute(() -> setVolume(newVolume));
+            return UpnpSoap.success("SetVolume", RENDERING_CONTROL);
+        } else if ("GetVolume".equals(action)) {
+            return volumeResponse();
+        } else if ("Seek".equals(action)) {
+            return handleSeek(soapBody, transport);
+        } else if ("Next".equals(action)) {
+            if (queue.peekNext() == null) {
+                return UpnpSoap.error(701, "Transition not available");
+            }
+            transport.execute(this::next);
+            return UpnpSoap.success("Next", AV_TRANSPORT);
+        } else if ("Previous".equals(action)) {
+            if (queue.currentTrackNumber() <= 1) {
+                return UpnpSoap.error(701, "Transition not available");
+            }
+            transport.execute(this::previous);
+            return UpnpSoap.success("Previous", AV_TRANSPORT);
+        }
+        return UpnpSoap.error(501, "Not Implemented");
+    }
+
+    /** {@code GetVolume} from a SOAPACTION header value like {@code "urn:...:RenderingControl:1#GetVolume"}. */
+    static String actionName(String soapAction) {
+        int hash = soapAction.lastIndexOf('#');
+        return soapAction.substring(hash + 1).replace("\"", "").trim();
+    }
+
+    private String handleSeek(String soapBody, Executor transport) {
+        String unit = UpnpSoap.extractValue(soapBody, "Unit");
+        String target = UpnpSoap.extractValue(soapBody, "Target");
+        if (target == null) {
+            return UpnpSoap.error(402, "Invalid Args");
+        }
+        if ("REL_TIME".equals(unit)) {
+            // HH:MM:SS или HH:MM:SS.FRACTION
+            int seconds = UpnpSoap.parseRelTime(target);
+            int duration = getDurationMs();
+            if (seconds < 0 || (duration > 0 && seconds * 1000 > duration)) {
+                return UpnpSoap.error(711, "Illegal seek target");
+            }
+            transport.execute(() -> requestSeek(seconds * 1000));
+            return UpnpSoap.success("Seek", AV_TRANSPORT);
+        } else if ("TRACK_NR".equals(unit)) {
+            int track = HttpUtil.parseInt(target, -1);
+            if (track < 1 || track > queue.size()) {
+                return UpnpSoap.error(711, "Illegal seek target");
+            }
+            transport.execute(() -> jumpTo(track));
+            return UpnpSoap.success("Seek", AV_TRANSPORT);
+        }
+        return UpnpSoap.error(710, "Seek mode not supported");
+    }
+
+    /**
+     * Pre-encoded response for the queries controllers poll (GetTransportInfo,
+     * GetVolume, GetMediaInfo, GetPositionInfo), or null for any other action.
+     */
+    byte[] cachedQuery(String action) {
+        if ("GetPositionInfo".equals(action)) {
+            return positionInfoResponse();
+        }
+        if (!"GetTransportInfo".equals(action) && !"GetVolume".equals(action) && !"GetMediaInfo".equals(action)) {
+            return null;
+        }
+        byte[] cached = responseCache.get(action);
+        if (cached != null) {
+            return cached;
+        }
+        int version = responseCache.version();
+        String response;
+        if ("GetTransportInfo".equals(action)) {
+            response = transportInfoResponse();
+        } else if ("GetVolume".equals(action)) {
+            response = volumeResponse();
+        } else {
+            response = mediaInfoResponse();
+        }
+        byte[] bytes = bytes(response);
+        responseCache.put(action, version, bytes);
+        return bytes;
+    }
+
+    private String transportInfoResponse() {
+        XmlWriter xml = UpnpSoap.startResponse("GetTransportInfo", AV_TRANSPORT);
+        xml.element("CurrentTransportState", transportState)
+           .element("CurrentTransportStatus", transportStatus)
+           .element("CurrentSpeed", "1");
+        return UpnpSoap.finishResponse(xml);
+    }
+
+    private String mediaInfoResponse() {
+        PlayQueue.Item next = queue.peekNext();
+        XmlWriter xml = UpnpSoap.startResponse("GetMediaInfo", AV_TRANSPORT);
+        xml.element("NrTracks", queue.size())
+           .element("MediaDuration", UpnpSoap.formatTime(getDurationMs() / 1000))
+           .element("CurrentURI", currentUri)
+           .element("CurrentURIMetaData", currentMetaData)
+           .element("NextURI", next != null ? next.uri : "")
+           .element("NextURIMetaData", next != null ? next.metaData : "")
+           .element("PlayMedium", "NETWORK")
+           .element("RecordMedium", "NOT_IMPLEMENTED")
+           .element("WriteStatus", "NOT_IMPLEMENTED");
+        return UpnpSoap.finishResponse(xml);
+    }
+
+    private String volumeResponse() {
+        XmlWriter xml = UpnpSoap.startResponse("GetVolume", RENDERING_CONTROL);
+        xml.element("CurrentVolume", volume);
+        return UpnpSoap.finishResponse(xml);
+    }
+
+    // Всё, кроме RelTime/AbsTime, меняется только вместе с состоянием — собираем один раз на версию
+    private byte[] positionInfoResponse() {
+        SoapResponseCache.PositionTemplate template = responseCache.getPositionTemplate();
+        if (template == null) {
+            int version = responseCache.version();
+            template = positionTemplate();
+            responseCache.putPositionTemplate(version, template);
+        }
+        return SoapResponseCache.splice(template, getPositionMs() / 1000);
+    }
+
+    private SoapResponseCache.PositionTemplate positionTemplate() {
+        String uri = currentUri;
+        String didl = hooks.trackMetaData(this);
+        String trackMetaData = responseCache.getEscapedMetaData(uri, didl);
+        if (trackMetaData == null) {
+            trackMetaData = XmlWriter.escape(didl);
+            responseCache.putEscapedMetaData(uri, didl, trackMetaData);
+        }
+        XmlWriter xml = UpnpSoap.startResponse("GetPositionInfo", AV_TRANSPORT);
+        xml.element("Track", queue.currentTrackNumber())
+           .element("TrackDuration", UpnpSoap.formatTime(getDurationMs() / 1000));
+        xml.start("TrackMetaData").raw(trackMetaData).end();
+        xml.element("TrackURI", uri);
+        xml.start("RelTime").text("");
+        String head = xml.toString();
+        // AbsTime совпадает с RelTime, счётчики не поддерживаются
+        xml.reset().fragment("</AbsTime>")
+           .element("RelCount", "2147483647")
+           .element("AbsCount", "2147483647")
+           .fragment("</u:GetPositionInfoResponse></s:Body></s:Envelope>");
+        return new SoapResponseCache.PositionTemplate(head, xml.finish());
+    }
+
+    /** AVTransport LastChange with the whole current state, also sent to new subscribers. */
+    String transportEvent() {
+        PlayQueue.Item next = queue.peekNext();
+        XmlWriter xml = UpnpSoap.startLastChange("urn:schemas-upnp-org:metadata-1-0/AVT/");
+        xml.start("TransportState").attr("val", transportState).end();
+        xml.start("TransportStatus").attr("val", transportStatus).end();
+        xml.start("CurrentTrackURI").attr("val", currentUri).end();
+        xml.start("CurrentTrackMetaData").attr("val", hooks.trackMetaData(this)).end();
+        xml.start("NumberOfTracks").attr("val", String.valueOf(queue.size())).end();
+        xml.start("CurrentTrack").attr("val", String.valueOf(queue.currentTrackNumber())).end();
+        xml.start("NextAVTransportURI").attr("val", next != null ? next.uri : "").end();
+        return UpnpSoap.finishLastChange(xml);
+    }
+
+    /** RenderingControl LastChange with the current volume. */
+    String volumeEvent() {
+        XmlWriter xml = UpnpSoap.startLastChange("urn:schemas-upnp-org:metadata-1-0/RCS/");
+        xml.start("Volume").attr("channel", "Master").attr("val", String.valueOf(volume)).end();
+        return UpnpSoap.finishLastChange(xml);
+    }
+
+    // Минимальный валидный DIDL, когда контроллер не прислал метаданных
+    static String fallbackDidl(String title, String artist, String album) {
+        XmlWriter xml = XmlWriter.obtain();
+        xml.start("DIDL-Lite")
+            .attr("xmlns", "urn:schemas-upnp-org:metadata-1-0/DIDL/")
+            .attr("xmlns:dc", "http://purl.org/dc/elements/1.1/")
+            .attr("xmlns:upnp", "urn:schemas-upnp-org:metadata-1-0/upnp/")
+            .attr("xmlns:dlna", "urn:schemas-dlna-org:metadata-1-0/");
+        xml.start("item").attr("id", "0").attr("parentID", "-1").attr("restricted", "1")
+            .element("dc:title", title)
+            .element("upnp:class", "object.item.audioItem.musicTrack");
+        if (!artist.isEmpty()) {
+            xml.element("upnp:artist", artist);
+        }
+        if (!album.isEmpty()) {
+            xml.element("upnp:album", album);
+        }
+        xml.end().end();
+        return xml.finish();
+    }
+
+    static String filename(String uri) {
+        if (uri == null) return "Unknown";
+        int lastSlash = uri.lastIndexOf('/');
+        return lastSlash >= 0 ? uri.substring(lastSlash + 1) : uri;
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String utf8(byte[] b) {
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
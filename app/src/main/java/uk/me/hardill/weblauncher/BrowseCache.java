@@ -0,0 +1,330 @@
+package uk.me.hardill.weblauncher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Browse results of remote ContentDirectories for {@link ControlPoint}, one entry
+ * per (server, container). Entries are not expired by time: a container is only
+ * marked stale when the server reports a new update ID for it
+ * ({@code ContainerUpdateIDs}), or, for servers that only report
+ * {@code SystemUpdateID}, when that changes. Stale containers are still served
+ * while they are re-browsed, so a library of tens of thousands of tracks is only
+ * fetched again where it actually changed. Large containers are cached page by
+ * page, only as far as they have been browsed.
+ */
+public class BrowseCache {
+    // ~1 КБ на запись с учётом строк: до ~20 МБ кучи
+    private static final int MAX_ENTRIES = 20000;
+    /** Children are browsed and cached in pages of this many. */
+    static final int PAGE_SIZE = 500;
+
+    /** A DIDL-Lite {@code <container>} or {@code <item>}. */
+    public static final class Entry {
+        public final String id;
+        public final String parentId;
+        public final boolean container;
+        public final String title;
+        public final String upnpClass;
+        public final String artist;
+        public final String album;
+        public final String uri;
+        public final String protocolInfo;
+        public final String albumArtUri;
+        public final int childCount;
+
+        Entry(String id, String parentId, boolean container, String title, String upnpClass, String artist,
+              String album, String uri, String protocolInfo, String albumArtUri, int childCount) {
+            this.id = id;
+            this.parentId = parentId;
+            this.container = container;
+            this.title = title;
+            this.upnpClass = upnpClass;
+            this.artist = artist;
+            this.album = album;
+            this.uri = uri;
+            this.protocolInfo = protocolInfo;
+            this.albumArtUri = albumArtUri;
+            this.childCount = childCount;
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"id\":");
+            HttpUtil.appendJsonString(sb, id);
+            sb.append(",\"parentId\":");
+            HttpUtil.appendJsonString(sb, parentId);
+            sb.append(",\"container\":").append(container);
+            sb.append(",\"title\":");
+            HttpUtil.appendJsonString(sb, title);
+            sb.append(",\"class\":");
+            HttpUtil.appendJsonString(sb, upnpClass);
+            if (container) {
+                sb.append(",\"childCount\":").append(childCount);
+            } else {
+                sb.append(",\"artist\":");
+                HttpUtil.appendJsonString(sb, artist);
+                sb.append(",\"album\":");
+                HttpUtil.appendJsonString(sb, album);
+                sb.append(",\"uri\":");
+                HttpUtil.appendJsonString(sb, uri);
+                sb.append(",\"protocolInfo\":");
+                HttpUtil.appendJsonString(sb, protocolInfo);
+            }
+            if (!albumArtUri.isEmpty()) {
+                sb.append(",\"albumArtUri\":");
+                HttpUtil.appendJsonString(sb, albumArtUri);
+            }
+            sb.append('}');
+        }
+    }
+
+    /**
+     * Children of one container in server order, filled a page at a time as they
+     * are browsed; {@link #get} is null for children not fetched yet.
+     */
+    public static final class Container {
+        public final int updateId;
+        private final Map<Integer, List<Entry>> pages = new TreeMap<>();
+        private int total;
+        private int extent = 0;
+        private boolean stale = false;
+
+        Container(int total, int updateId) {
+            this.total = total;
+            this.updateId = updateId;
+        }
+
+        /** Number of children: the server's total, or how far it has been read when the server does not know. */
+        public synchronized int size() {
+            return total >= 0 ? total : extent;
+        }
+
+        public synchronized boolean isComplete() {
+            return total >= 0;
+        }
+
+        public synchronized boolean hasPage(int start) {
+            return pages.containsKey(start / PAGE_SIZE);
+        }
+
+        public synchronized Entry get(int index) {
+            List<Entry> page = pages.get(index / PAGE_SIZE);
+            int offset = index % PAGE_SIZE;
+            return page != null && offset < page.size() ? page.get(offset) : null;
+        }
+
+        public synchronized boolean isStale() {
+            return stale;
+        }
+
+        synchronized void markStale() {
+            stale = true;
+        }
+
+        // Возвращает изменение числа записей
+        synchronized int putPage(int start, List<Entry> page, int newTotal) {
+            List<Entry> previous = pages.put(start / PAGE_SIZE, new ArrayList<>(page));
+            if (newTotal >= 0) total = newTotal;
+            extent = Math.max(extent, start + page.size());
+            return page.size() - (previous != null ? previous.size() : 0);
+        }
+
+        synchronized int entryCount() {
+            int count = 0;
+            for (List<Entry> page : pages.values()) {
+                count += page.size();
+            }
+            return count;
+        }
+
+        synchronized void collect(String needle, List<Entry> result, int limit) {
+            for (List<Entry> page : pages.values()) {
+                for (Entry child : page) {
+                    if (result.size() >= limit) return;
+                    if (child.container) continue;
+                    if (child.title.toLowerCase(Locale.ROOT).contains(needle) ||
+                        child.artist.toLowerCase(Locale.ROOT).contains(needle) ||
+                        child.album.toLowerCase(Locale.ROOT).contains(needle)) {
+                        result.add(child);
+                    }
+                }
+            }
+        }
+    }
+
+    private final LinkedHashMap<String, Container> containers = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, Integer> systemUpdateIds = new HashMap<>();
+    private int entryCount = 0;
+
+    public synchronized Container get(String serverId, String objectId) {
+        return containers.get(key(serverId, objectId));
+    }
+
+    /**
+     * Stores one page of a container, {@code start} being a multiple of {@link #PAGE_SIZE};
+     * {@code total} is -1 when the server did not say. A page with another update ID
+     * than the cached container, or for a stale one, starts the container afresh.
+     * Returns the container now cached.
+     */
+    public synchronized Container put(String serverId, String objectId, int start, List<Entry> page, int total,
+                                      int updateId) {
+        String key = key(serverId, objectId);
+        Container container = containers.get(key);
+        if (container == null || container.isStale() || container.updateId != updateId) {
+            if (container != null) {
+                entryCount -= container.entryCount();
+            }
+            container = new Container(total, updateId);
+            containers.put(key, container);
+        }
+        entryCount += container.putPage(start, page, total);
+        // Вытесняем давно не открывавшиеся папки, но не только что добавленную
+        Iterator<Map.Entry<String, Container>> iterator = containers.entrySet().iterator();
+        while (entryCount > MAX_ENTRIES && containers.size() > 1 && iterator.hasNext()) {
+            Container eldest = iterator.next().getValue();
+            if (eldest == container) continue;
+            entryCount -= eldest.entryCount();
+            iterator.remove();
+        }
+        return container;
+    }
+
+    public synchronized int entryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Applies a ContentDirectory change (GENA event or polled SystemUpdateID).
+     * {@code containerUpdateIds} is the "id,updateId,..." list, or null/empty when
+     * the server only reported SystemUpdateID. Returns the object IDs that became stale.
+     */
+    public synchronized List<String> applyUpdate(String serverId, int systemUpdateId, String containerUpdateIds) {
+        List<String> staleIds = new ArrayList<>();
+        Integer known = systemUpdateIds.put(serverId, systemUpdateId);
+        if (containerUpdateIds != null && !containerUpdateIds.trim().isEmpty()) {
+            String[] parts = containerUpdateIds.split(",");
+            for (int i = 0; i + 1 < parts.length; i += 2) {
+                String objectId = parts[i].trim();
+                Container container = containers.get(key(serverId, objectId));
+                if (container == null) continue;
+                try {
+                    if (container.updateId == Integer.parseInt(parts[i + 1].trim())) continue;
+                } catch (NumberFormatException ignored) {
+                }
+                container.markStale();
+                staleIds.add(objectId);
+            }
+            return staleIds;
+        }
+        if (known == null || known == systemUpdateId) {
+            return staleIds;
+        }
+        // Сервер не говорит, что именно изменилось — устаревает всё, что от него закешировано
+        String prefix = serverId + "\n";
+        for (Map.Entry<String, Container> entry : containers.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                entry.getValue().markStale();
+                staleIds.add(entry.getKey().substring(prefix.length()));
+            }
+        }
+        return staleIds;
+    }
+
+    public synchronized void removeServer(String serverId) {
+        String prefix = serverId + "\n";
+        Iterator<Map.Entry<String, Container>> iterator = containers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Container> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                entryCount -= entry.getValue().entryCount();
+                iterator.remove();
+            }
+        }
+        systemUpdateIds.remove(serverId);
+    }
+
+    /**
+     * Items whose title, artist or album contain {@code query}, from everything
+     * browsed so far; {@code serverId} null searches all servers.
+     */
+    public synchronized List<Entry> search(String serverId, String query, int limit) {
+        List<Entry> result = new ArrayList<>();
+        String needle = query.toLowerCase(Locale.ROOT);
+        String prefix = serverId != null ? serverId + "\n" : null;
+        for (Map.Entry<String, Container> entry : containers.entrySet()) {
+            if (prefix != null && !entry.getKey().startsWith(prefix)) continue;
+            entry.getValue().collect(needle, result, limit);
+            if (result.size() >= limit) break;
+        }
+        return result;
+    }
+
+    /** Containers and items of a DIDL-Lite document, in document order. */
+    public static List<Entry> parseDidl(String didl) {
+        List<Entry> entries = new ArrayList<>();
+        if (didl == null) return entries;
+        int position = 0;
+        while (true) {
+            int item = PlayQueue.indexOfElement(didl, "item", position);
+            int container = PlayQueue.indexOfElement(didl, "container", position);
+            boolean isContainer = container != -1 && (item == -1 || container < item);
+            int start = isContainer ? container : item;
+            if (start == -1) break;
+            String name = isContainer ? "container" : "item";
+            int tagEnd = didl.indexOf('>', start);
+            if (tagEnd == -1) break;
+            int end = didl.charAt(tagEnd - 1) == '/' ? tagEnd + 1 : didl.indexOf("</" + name + ">", tagEnd);
+            if (end == -1) break;
+            if (didl.charAt(tagEnd - 1) != '/') end += name.length() + 3;
+            String openTag = didl.substring(start, tagEnd + 1);
+            String xml = didl.substring(start, end);
+            entries.add(new Entry(
+                orEmpty(attribute(openTag, "id")),
+                orEmpty(attribute(openTag, "parentID")),
+                isContainer,
+                orEmpty(PlayQueue.extractElement(xml, "dc:title")),
+                orEmpty(PlayQueue.extractElement(xml, "upnp:class")),
+                firstNonNull(PlayQueue.extractElement(xml, "upnp:artist"), PlayQueue.extractElement(xml, "dc:creator")),
+                orEmpty(PlayQueue.extractElement(xml, "upnp:album")),
+                orEmpty(PlayQueue.extractElement(xml, "res")),
+                orEmpty(PlayQueue.extractAttribute(xml, "protocolInfo")),
+                orEmpty(PlayQueue.extractElement(xml, "upnp:albumArtURI")),
+                HttpUtil.parseInt(attribute(openTag, "childCount"), 0)));
+            position = end;
+        }
+        return entries;
+    }
+
+    // Атрибут только открывающего тега: у вложенных res свои атрибуты
+    private static String attribute(String openTag, String name) {
+        int start = 0;
+        while (true) {
+            start = openTag.indexOf(name + "=\"", start);
+            if (start == -1) return null;
+            char before = openTag.charAt(start - 1);
+            if (before == ' ' || before == '\t' || before == '\n' || before == '\r') break;
+            start += name.length();
+        }
+        start += name.length() + 2;
+        int end = openTag.indexOf('"', start);
+        return end == -1 ? null : PlayQueue.unescapeXml(openTag.substring(start, end));
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static String firstNonNull(String first, String second) {
+        return first != null ? first : orEmpty(second);
+    }
+
+    private static String key(String serverId, String objectId) {
+        return serverId + "\n" + objectId;
+    }
+}
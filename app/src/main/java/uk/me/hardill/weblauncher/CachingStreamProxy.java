@@ -0,0 +1,758 @@
+package uk.me.hardill.weblauncher;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loopback HTTP proxy that feeds MediaPlayer from 127.0.0.1.
+ * Upstream media is read ahead into a {@link SegmentCache}, so seeks inside the
+ * buffered region and replays of a track are answered from disk without touching
+ * the network. Streams without a known length (live radio) are piped through,
+ * via a shared {@link StreamRelay} connection when one is set; in-band ICY
+ * titles are stripped from them by {@link IcyDemuxer} and reported separately.
+ */
+public class CachingStreamProxy {
+    private static final String TAG = "DLNAProxy";
+    private static final int SEGMENT_SIZE = SegmentCache.SEGMENT_SIZE;
+    private static final int READ_AHEAD_SEGMENTS = 16; // 4 MiB ahead of the player
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final long SEGMENT_WAIT_MS = 20000;
+    private static final int MAX_RESOURCES = 32;
+    private static final long PROBE_HANDOFF_MS = 5000;
+
+    /** Response headers describing an upstream stream, reported from proxy threads. */
+    public interface StreamInfoListener {
+        void onStreamInfo(String url, String contentType, String name);
+    }
+
+    /** "Now playing" text from ICY metadata of a live stream, reported when it changes. */
+    public interface StreamTitleListener {
+        void onStreamTitle(String url, String streamTitle);
+    }
+
+    private final SegmentCache cache;
+    private volatile StreamInfoListener streamInfoListener;
+    private volatile StreamTitleListener streamTitleListener;
+    private volatile StreamRelay liveRelay;
+    private volatile TimeshiftBuffer timeshift;
+    private final Map<String, String> upstreamById = new ConcurrentHashMap<>();
+    private final Map<String, Resource> resources = new LinkedHashMap<String, Resource>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Resource> eldest) {
+            return size() > MAX_RESOURCES && eldest.getValue().isIdle();
+        }
+    };
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // Number of fetch threads currently reading upstream for a player
+    private final AtomicInteger activeFetches = new AtomicInteger();
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+
+    public CachingStreamProxy(SegmentCache cache) {
+        this.cache = cache;
+    }
+
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        running = true;
+        Thread acceptThread = new Thread(() -> {
+            cache.load();
+            Log.i(TAG, "Stream proxy listening on 127.0.0.1:" + serverSocket.getLocalPort() +
+                    ", cached bytes: " + cache.size());
+            while (running) {
+                try {
+                    Socket client = serverSocket.accept();
+                    executor.execute(() -> serve(client));
+                } catch (IOException e) {
+                    if (running) {
+                        Log.e(TAG, "Error accepting proxy connection", e);
+                    }
+                }
+            }
+        }, "StreamProxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing proxy socket", e);
+            }
+            serverSocket = null;
+        }
+        executor.shutdownNow();
+        synchronized (resources) {
+            for (Resource resource : resources.values()) {
+                resource.wake();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** True while the active stream is still being downloaded; background work should yield. */
+    public boolean isFetching() {
+        return activeFetches.get() > 0;
+    }
+
+    public void setStreamInfoListener(StreamInfoListener listener) {
+        streamInfoListener = listener;
+    }
+
+    public void setStreamTitleListener(StreamTitleListener listener) {
+        streamTitleListener = listener;
+    }
+
+    /** Live streams read through the relay are then also buffered for pause/resume (timeshift). */
+    public void setTimeshift(TimeshiftBuffer buffer) {
+        timeshift = buffer;
+    }
+
+    /** Live streams are then read through {@code relay}, sharing one upstream connection with other renderers. */
+    public void setLiveRelay(StreamRelay relay) {
+        liveRelay = relay;
+        if (relay != null) {
+            relay.setStreamTitleListener(this::reportStreamTitle);
+        }
+    }
+
+    void reportStreamTitle(String url, String streamTitle) {
+        StreamTitleListener listener = streamTitleListener;
+        if (listener != null) {
+            listener.onStreamTitle(url, streamTitle);
+        }
+    }
+
+    private void reportStreamInfo(String url, HttpURLConnection connection) {
+        StreamInfoListener listener = streamInfoListener;
+        if (listener != null) {
+            listener.onStreamInfo(url, connection.getContentType(), connection.getHeaderField("icy-name"));
+        }
+    }
+
+    /** Returns the loopback URL MediaPlayer should open instead of {@code upstreamUrl}. */
+    public String proxyUrl(String upstreamUrl) {
+        String id = SegmentCache.key(upstreamUrl);
+        upstreamById.put(id, upstreamUrl);
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/stream/" + id;
+    }
+
+    private Resource resourceFor(String url) {
+        synchronized (resources) {
+            Resource resource = resources.get(url);
+            if (resource == null) {
+                resource = new Resource(url);
+                resources.put(url, resource);
+            }
+            return resource;
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            socket.setSoTimeout(30000);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String request = readHeaderBlock(in);
+            if (request == null) return;
+
+            String[] requestLine = request.substring(0, request.indexOf("\r\n")).split(" ");
+            String path = requestLine.length >= 2 ? requestLine[1] : "";
+            String id = path.startsWith("/stream/") ? path.substring("/stream/".length()) : "";
+            String upstream = upstreamById.get(id);
+            if (upstream == null) {
+                out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+                return;
+            }
+            boolean headOnly = "HEAD".equals(requestLine[0]);
+            long[] range = parseRange(headerValue(request, "Range"));
+
+            Resource resource = resourceFor(upstream);
+            resource.acquire();
+            try {
+                if (!resource.awaitInfo(SEGMENT_WAIT_MS)) {
+                    out.write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+                } else if (resource.isLive()) {
+                    servePassthrough(upstream, headOnly ? null : resource.takeLiveConnection(), out, headOnly);
+                } else {
+                    serveCached(resource, out, range, headOnly);
+                }
+            } finally {
+                resource.release();
+            }
+        } catch (IOException e) {
+            // MediaPlayer closes the connection on every seek — это нормально
+            Log.d(TAG, "Proxy connection closed: " + e.getMessage());
+        }
+    }
+
+    private void serveCached(Resource resource, OutputStream out, long[] range, boolean headOnly) throws IOException {
+        long length = resource.getLength();
+        long[] bounds = resolveRange(range, length);
+        if (bounds == null) {
+            out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length +
+                    "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            return;
+        }
+
+        long start = bounds[0];
+        long end = bounds[1];
+        StringBuilder headers = new StringBuilder();
+        headers.append(range != null ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        headers.append("Content-Type: ").append(resource.getContentType()).append("\r\n");
+        headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        if (range != null) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length).append("\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("UTF-8"));
+        if (headOnly) return;
+
+        byte[] buffer = new byte[SEGMENT_SIZE];
+        long position = start;
+        while (position <= end) {
+            int index = (int) (position / SEGMENT_SIZE);
+            int segmentLength = resource.awaitSegment(index, buffer, SEGMENT_WAIT_MS);
+            int offset = (int) (position - (long) index * SEGMENT_SIZE);
+            int count = (int) Math.min(segmentLength - offset, end - position + 1);
+            if (segmentLength < 0 || count <= 0) {
+                throw new IOException("Segment " + index + " unavailable");
+            }
+            out.write(buffer, offset, count);
+            position += count;
+        }
+        out.flush();
+    }
+
+    // Живые потоки без длины не кешируем — просто проксируем. {@code probe} — соединение,
+    // по которому поток распознали как живой; если оно есть, второй раз к источнику не ходим
+    private void servePassthrough(String upstream, HttpURLConnection probe, OutputStream out, boolean headOnly) throws IOException {
+        StreamRelay relay = liveRelay;
+        if (relay != null) {
+            serveRelayed(relay, upstream, probe, out, headOnly);
+            return;
+        }
+        HttpURLConnection connection = probe;
+        if (connection == null) {
+            connection = openUpstream(upstream, 0);
+            connection.setRequestProperty("Icy-MetaData", "1");
+        }
+        try (InputStream in = connection.getInputStream()) {
+            String contentType = connection.getContentType();
+            reportStreamInfo(upstream, connection);
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + (contentType != null ? contentType : "audio/mpeg") +
+                    "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            if (headOnly) return;
+            int metaInt = IcyDemuxer.parseMetaInt(connection.getHeaderField("icy-metaint"));
+            IcyDemuxer demuxer = metaInt > 0
+                    ? new IcyDemuxer(metaInt, title -> reportStreamTitle(upstream, title)) : null;
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while (running && (read = in.read(buffer)) != -1) {
+                if (demuxer != null) {
+                    demuxer.process(buffer, 0, read, out);
+                } else {
+                    out.write(buffer, 0, read);
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void serveRelayed(StreamRelay relay, String upstream, HttpURLConnection probe, OutputStream out,
+                              boolean headOnly) throws IOException {
+        TimeshiftBuffer ring = timeshift;
+        if (ring != null && !headOnly) {
+            serveTimeshifted(relay, ring, upstream, probe, out);
+            return;
+        }
+        try (StreamRelay.Reader reader = relay.open(upstream, probe)) {
+            StreamInfoListener listener = streamInfoListener;
+            if (listener != null) {
+                listener.onStreamInfo(upstream, reader.getContentType(), reader.getName());
+            }
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + reader.getContentType() +
+                    "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            if (headOnly) return;
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while (running && (read = reader.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    // Плеер читает из кольцевого файла, а запись в него идёт и во время паузы
+    private void serveTimeshifted(StreamRelay relay, TimeshiftBuffer buffer, String upstream, HttpURLConnection probe,
+                                  OutputStream out) throws IOException {
+        TimeshiftBuffer.Reader reader = buffer.openReader(upstream);
+        if (reader != null && probe != null) {
+            probe.disconnect();
+        }
+        if (reader == null) {
+            // Подключение к источнику может занять секунды — не под блокировкой буфера
+            StreamRelay.Reader source = relay.open(upstream, probe);
+            synchronized (buffer) {
+                reader = buffer.openReader(upstream);
+                if (reader == null) {
+                    buffer.start(upstream, source);
+                    reader = buffer.openReader(upstream);
+                } else {
+                    source.close();
+                }
+            }
+        }
+        if (reader == null) {
+            throw new IOException("Timeshift unavailable for " + upstream);
+        }
+        try (TimeshiftBuffer.Reader source = reader) {
+            StreamInfoListener listener = streamInfoListener;
+            if (listener != null) {
+                listener.onStreamInfo(upstream, buffer.getContentType(), buffer.getName());
+            }
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: " + buffer.getContentType() +
+                    "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            byte[] data = new byte[16 * 1024];
+            int read;
+            while (running && (read = source.read(data)) != -1) {
+                out.write(data, 0, read);
+            }
+        }
+    }
+
+    static HttpURLConnection openUpstream(String url, long offset) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(15000);
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        return connection;
+    }
+
+    private static String readHeaderBlock(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            sb.append((char) c);
+            int len = sb.length();
+            if (len >= 4 && sb.charAt(len - 1) == '\n' && sb.charAt(len - 2) == '\r' &&
+                    sb.charAt(len - 3) == '\n' && sb.charAt(len - 4) == '\r') {
+                return sb.toString();
+            }
+            if (len > 16 * 1024) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String headerValue(String headers, String name) {
+        String prefix = name.toLowerCase() + ":";
+        for (String line : headers.split("\r\n")) {
+            if (line.toLowerCase().startsWith(prefix)) {
+                return line.substring(prefix.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses "bytes=start-[end]" into {start, end} (end -1 when open) and the suffix
+     * form "bytes=-N" into {-N, -1}; null if absent or malformed. Only the first
+     * range of a list is used. {@link #resolveRange} turns it into file offsets.
+     */
+    static long[] parseRange(String value) {
+        if (value == null || !value.startsWith("bytes=")) return null;
+        String spec = value.substring("bytes=".length());
+        int comma = spec.indexOf(',');
+        if (comma != -1) {
+            spec = spec.substring(0, comma);
+        }
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String startPart = spec.substring(0, dash).trim();
+            String endPart = spec.substring(dash + 1).trim();
+            if (startPart.isEmpty()) {
+                // Последние N байт: так плееры ищут moov в MP4 и тег ID3v1
+                long suffix = Long.parseLong(endPart);
+                return suffix > 0 ? new long[] { -suffix, -1 } : null;
+            }
+            long start = Long.parseLong(startPart);
+            long end = endPart.isEmpty() ? -1 : Long.parseLong(endPart);
+            if (start < 0 || (end >= 0 && end < start)) return null;
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Inclusive {start, end} offsets of {@code range} (from {@link #parseRange}, or null
+     * for the whole body) in a body of {@code length} bytes; null if it is not satisfiable.
+     */
+    static long[] resolveRange(long[] range, long length) {
+        long start;
+        long end = length - 1;
+        if (range == null) {
+            start = 0;
+        } else if (range[0] < 0) {
+            start = Math.max(0, length + range[0]);
+        } else {
+            start = range[0];
+            if (range[1] >= 0 && range[1] < length) {
+                end = range[1];
+            }
+        }
+        return start < length || (range == null && length == 0) ? new long[] { start, end } : null;
+    }
+
+    /**
+     * One upstream URL. A single fetch thread per resource keeps up to
+     * {@link #READ_AHEAD_SEGMENTS} segments ahead of the furthest segment a client
+     * is waiting for; client connections only ever read from the cache.
+     */
+    private class Resource implements Runnable {
+        private final String url;
+        private long length = -1;
+        private String contentType = "audio/mpeg";
+        private boolean infoKnown = false;
+        private boolean live = false;
+        private boolean failed = false;
+        private int wantedSegment = 0;
+        private int clients = 0;
+        private Thread fetchThread;
+        // Соединение, на котором поток оказался живым; ждёт клиента PROBE_HANDOFF_MS
+        private HttpURLConnection liveConnection;
+
+        Resource(String url) {
+            this.url = url;
+            String[] info = cache.readInfo(url);
+            if (info != null) {
+                try {
+                    length = Long.parseLong(info[0]);
+                    if (!info[1].isEmpty()) {
+                        contentType = info[1];
+                    }
+                    infoKnown = true;
+                } catch (NumberFormatException e) {
+                    length = -1;
+                }
+            }
+        }
+
+        synchronized void acquire() {
+            clients++;
+            if (fetchThread == null && !live) {
+                failed = false;
+                acquireFetcher();
+            }
+        }
+
+        synchronized void release() {
+            clients--;
+            notifyAll();
+        }
+
+        synchronized boolean isIdle() {
+            return clients == 0 && fetchThread == null;
+        }
+
+        synchronized boolean isLive() {
+            return live;
+        }
+
+        synchronized long getLength() {
+            return length;
+        }
+
+        synchronized String getContentType() {
+            return contentType;
+        }
+
+        synchronized void wake() {
+            notifyAll();
+        }
+
+        synchronized boolean awaitInfo(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!infoKnown && !failed && running) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return infoKnown;
+        }
+
+        int awaitSegment(int index, byte[] buffer, long timeoutMs) {
+            synchronized (this) {
+                if (wantedSegment != index) {
+                    wantedSegment = index;
+                    notifyAll();
+                }
+            }
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (running) {
+                int read = cache.read(url, index, buffer);
+                if (read >= 0) {
+                    return read;
+                }
+                synchronized (this) {
+                    if (failed || System.currentTimeMillis() > deadline) {
+                        return -1;
+                    }
+                    if (fetchThread == null && !live) {
+                        acquireFetcher();
+                    }
+                    try {
+                        wait(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /** The connection that detected a live stream, or null; the caller then owns it. */
+        synchronized HttpURLConnection takeLiveConnection() {
+            HttpURLConnection connection = liveConnection;
+            liveConnection = null;
+            notifyAll();
+            return connection;
+        }
+
+        private synchronized void handOver(HttpURLConnection connection, InputStream in) {
+            liveConnection = connection;
+            notifyAll();
+            long deadline = System.currentTimeMillis() + PROBE_HANDOFF_MS;
+            try {
+                while (liveConnection != null && running) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (liveConnection != null) {
+                closeQuietly(liveConnection, in);
+                liveConnection = null;
+            }
+        }
+
+        private void acquireFetcher() {
+            fetchThread = new Thread(this, "StreamProxy-fetch");
+            fetchThread.setDaemon(true);
+            fetchThread.start();
+        }
+
+        // Первый отсутствующий сегмент в окне упреждающего чтения
+        private int nextMissingSegment() {
+            int last = length >= 0 ? (int) ((length - 1) / SEGMENT_SIZE) : wantedSegment;
+            int limit = Math.min(last, wantedSegment + READ_AHEAD_SEGMENTS);
+            for (int i = wantedSegment; i <= limit; i++) {
+                if (!cache.contains(url, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void run() {
+            HttpURLConnection connection = null;
+            InputStream upstream = null;
+            int positioned = -1;
+            byte[] buffer = new byte[SEGMENT_SIZE];
+            long idleSince = System.currentTimeMillis();
+            try {
+                while (running) {
+                    int target;
+                    boolean probing;
+                    synchronized (this) {
+                        probing = !infoKnown;
+                        target = infoKnown ? nextMissingSegment() : wantedSegment;
+                        if (clients > 0) {
+                            idleSince = System.currentTimeMillis();
+                        }
+                        if (target == -1) {
+                            if (clients == 0 && System.currentTimeMillis() - idleSince > IDLE_TIMEOUT_MS) {
+                                break;
+                            }
+                            wait(1000);
+                            continue;
+                        }
+                    }
+
+                    if (positioned != target) {
+                        closeQuietly(connection, upstream);
+                        long offset = (long) target * SEGMENT_SIZE;
+                        connection = openUpstream(url, offset);
+                        if (probing && offset == 0) {
+                            // Если поток окажется живым, это соединение достанется плееру
+                            connection.setRequestProperty("Icy-MetaData", "1");
+                        }
+                        int code = connection.getResponseCode();
+                        if (code >= 400) {
+                            throw new IOException("Upstream returned " + code);
+                        }
+                        upstream = connection.getInputStream();
+                        if (code == 200 && offset > 0) {
+                            skipFully(upstream, offset);
+                        }
+                        if (!updateInfo(connection, code)) {
+                            // Live stream, handled by passthrough on this same connection
+                            if (offset == 0) {
+                                handOver(connection, upstream);
+                                connection = null;
+                                upstream = null;
+                            }
+                            break;
+                        }
+                        positioned = target;
+                    }
+
+                    int read;
+                    activeFetches.incrementAndGet();
+                    try {
+                        read = readFully(upstream, buffer);
+                    } finally {
+                        activeFetches.decrementAndGet();
+                    }
+                    long segmentStart = (long) target * SEGMENT_SIZE;
+                    long expected = Math.min(SEGMENT_SIZE, length - segmentStart);
+                    if (read == expected) {
+                        cache.write(url, target, buffer, read);
+                        positioned = target + 1;
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    } else {
+                        // Обрыв соединения посреди сегмента — переоткроем с нужной позиции
+                        Log.w(TAG, "Short read for segment " + target + " of " + url + ": " + read + "/" + expected);
+                        closeQuietly(connection, upstream);
+                        connection = null;
+                        upstream = null;
+                        positioned = -1;
+                        if (read <= 0) {
+                            throw new IOException("Upstream ended early");
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                Log.w(TAG, "Fetch failed for " + url, e);
+                synchronized (this) {
+                    failed = true;
+                    notifyAll();
+                }
+            } finally {
+                closeQuietly(connection, upstream);
+                synchronized (this) {
+                    fetchThread = null;
+                    notifyAll();
+                }
+            }
+        }
+
+        /** Records length and type from the first response; returns false for live streams. */
+        private synchronized boolean updateInfo(HttpURLConnection connection, int code) {
+            if (infoKnown) {
+                return !live;
+            }
+            long total = -1;
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null && contentRange.contains("/")) {
+                String totalPart = contentRange.substring(contentRange.indexOf('/') + 1).trim();
+                if (!"*".equals(totalPart)) {
+                    total = Long.parseLong(totalPart);
+                }
+            } else if (code == 200) {
+                String contentLength = connection.getHeaderField("Content-Length");
+                if (contentLength != null) {
+                    total = Long.parseLong(contentLength.trim());
+                }
+            }
+            boolean icy = connection.getHeaderField("icy-name") != null || connection.getHeaderField("icy-metaint") != null;
+            if (total <= 0 || icy) {
+                live = true;
+            } else {
+                length = total;
+                String type = connection.getContentType();
+                if (type != null) {
+                    contentType = type;
+                }
+                cache.writeInfo(url, length, contentType);
+            }
+            infoKnown = true;
+            notifyAll();
+            reportStreamInfo(url, connection);
+            return !live;
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("Upstream ended while skipping");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static void closeQuietly(HttpURLConnection connection, InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+}
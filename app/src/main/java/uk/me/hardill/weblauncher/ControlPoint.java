@@ -0,0 +1,588 @@
+package uk.me.hardill.weblauncher;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control point for MediaServers on the LAN, so the kiosk page can browse other
+ * libraries without a separate app. Servers are found by M-SEARCH and by the
+ * NOTIFY packets the renderer's SSDP loop already receives. Browse results are
+ * kept in a {@link BrowseCache}; a GENA subscription to each ContentDirectory
+ * (or a {@code GetSystemUpdateID} poll for servers that refuse one) tells which
+ * containers to fetch again, so queries are answered from memory. A browse only
+ * fetches the pages covering the requested window; the rest of a large container
+ * is read when the page scrolls to it.
+ *
+ * <p>The page reads {@code /cp/servers}, {@code /cp/browse?server=&id=&start=&count=}
+ * (count defaults to one page) and {@code /cp/search?q=&server=} as JSON.</p>
+ */
+public class ControlPoint {
+    private static final String TAG = "DLNAControlPoint";
+    public static final String PATH_PREFIX = "/cp/";
+    public static final String EVENT_PATH = "/cp/event";
+    private static final String MEDIA_SERVER_TYPE = "urn:schemas-upnp-org:device:MediaServer:1";
+    private static final String CONTENT_DIRECTORY_TYPE = "urn:schemas-upnp-org:service:ContentDirectory:1";
+    private static final int SEARCH_LIMIT = 200;
+    private static final int EAGER_REFRESH_LIMIT = 16;
+    private static final int SUBSCRIPTION_SECONDS = 1800;
+    private static final long MAINTENANCE_INTERVAL_MS = 60 * 1000;
+    private static final int SEARCH_EVERY = 5; // M-SEARCH раз в пять циклов обслуживания
+    private static final int TIMEOUT_MS = 5000;
+
+    /** A discovered MediaServer. */
+    static final class Server {
+        final String udn;
+        final String location;
+        volatile String name;
+        volatile String controlUrl;
+        volatile String eventUrl;
+        volatile String sid;
+        volatile long subscribedUntil;
+        volatile long expiresAt;
+
+        Server(String udn, String location) {
+            this.udn = udn;
+            this.location = location;
+        }
+    }
+
+    private final String callbackUrl;
+    private final BrowseCache cache = new BrowseCache();
+    private final Map<String, Server> servers = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = Collections.synchronizedSet(new HashSet<String>());
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ControlPoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ControlPointBrowse");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int maintenanceCycle = 0;
+
+    /** {@code callbackUrl} is where servers send GENA events: this device's {@link #EVENT_PATH}. */
+    public ControlPoint(String callbackUrl) {
+        this.callbackUrl = callbackUrl;
+    }
+
+    public void start() {
+        scheduler.execute(this::search);
+        scheduler.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL_MS, MAINTENANCE_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        servers.clear();
+    }
+
+    /** SSDP NOTIFY or M-SEARCH response; anything but a MediaServer is ignored. */
+    public void onSsdpPacket(String packet) {
+        String type = packet.startsWith("NOTIFY") ? header(packet, "NT") : header(packet, "ST");
+        String usn = header(packet, "USN");
+        if (!MEDIA_SERVER_TYPE.equals(type) || usn == null) return;
+        int separator = usn.indexOf("::");
+        String udn = separator >= 0 ? usn.substring(0, separator) : usn;
+
+        if ("ssdp:byebye".equals(header(packet, "NTS"))) {
+            Server server = servers.remove(udn);
+            if (server != null) {
+                cache.removeServer(udn);
+                Log.i(TAG, "Media server left: " + server.name);
+            }
+            return;
+        }
+        String location = header(packet, "LOCATION");
+        if (location == null) return;
+        long expiresAt = System.currentTimeMillis() + maxAge(header(packet, "CACHE-CONTROL")) * 1000L;
+        Server existing = servers.get(udn);
+        if (existing != null && existing.location.equals(location)) {
+            existing.expiresAt = expiresAt;
+            return;
+        }
+        // Новый сервер или сменился адрес: описание заново
+        Server server = new Server(udn, location);
+        server.expiresAt = expiresAt;
+        servers.put(udn, server);
+        if (existing != null) cache.removeServer(udn);
+        executor.execute(() -> describe(server));
+    }
+
+    /**
+     * Answers a {@code /cp/} request (JSON GET or the servers' GENA NOTIFY) on a
+     * worker thread, which then owns the socket; browsing may wait for the network.
+     */
+    public void serve(Socket socket, String method, String path, String request) {
+        executor.execute(() -> {
+            try (Socket client = socket) {
+                String response;
+                if ("NOTIFY".equals(method) && path.startsWith(EVENT_PATH)) {
+                    onEvent(header(request, "SID"), readBody(client, request));
+                    response = httpResponse(200, "text/plain", "");
+                } else if ("GET".equals(method)) {
+                    response = handleQuery(path);
+                } else {
+                    response = httpResponse(405, "text/plain", "Method Not Allowed");
+                }
+                client.getOutputStream().write(response.getBytes("UTF-8"));
+            } catch (IOException e) {
+                Log.d(TAG, "Control point connection closed: " + e.getMessage());
+            }
+        });
+    }
+
+    private String handleQuery(String path) throws IOException {
+        int question = path.indexOf('?');
+        String endpoint = question >= 0 ? path.substring(0, question) : path;
+        Map<String, String> params = HttpUtil.parseQuery(question >= 0 ? path.substring(question + 1) : "");
+        StringBuilder json = new StringBuilder();
+
+        if ((PATH_PREFIX + "servers").equals(endpoint)) {
+            json.append('[');
+            for (Server server : servers.values()) {
+                if (server.controlUrl == null) continue;
+                if (json.length() > 1) json.append(',');
+                json.append("{\"udn\":");
+                HttpUtil.appendJsonString(json, server.udn);
+                json.append(",\"name\":");
+                HttpUtil.appendJsonString(json, server.name != null ? server.name : server.udn);
+                json.append(",\"subscribed\":").append(server.sid != null).append('}');
+            }
+            json.append(']');
+            return httpResponse(200, "application/json", json.toString());
+        }
+
+        if ((PATH_PREFIX + "browse").equals(endpoint)) {
+            Server server = servers.get(String.valueOf(params.get("server")));
+            if (server == null || server.controlUrl == null) {
+                return httpResponse(404, "application/json", "{\"error\":\"unknown server\"}");
+            }
+            String id = params.containsKey("id") ? params.get("id") : "0";
+            int start = Math.max(0, HttpUtil.parseInt(params.get("start"), 0));
+            int count = HttpUtil.parseInt(params.get("count"), 0);
+            if (count <= 0) count = BrowseCache.PAGE_SIZE;
+            int end = (int) Math.min((long) start + count, Integer.MAX_VALUE);
+            BrowseCache.Container container;
+            try {
+                container = window(server, id, start, end);
+            } catch (IOException e) {
+                Log.w(TAG, "Browse of " + id + " on " + server.name + " failed: " + e.getMessage());
+                return httpResponse(502, "application/json", "{\"error\":\"browse failed\"}");
+            }
+            int total = container.size();
+            start = Math.min(start, total);
+            end = Math.min(end, total);
+            json.append("{\"server\":");
+            HttpUtil.appendJsonString(json, server.udn);
+            json.append(",\"id\":");
+            HttpUtil.appendJsonString(json, id);
+            json.append(",\"stale\":").append(container.isStale());
+            json.append(",\"total\":").append(total);
+            json.append(",\"start\":").append(start);
+            json.append(",\"items\":[");
+            for (int i = start; i < end; i++) {
+                BrowseCache.Entry entry = container.get(i);
+                if (entry == null) break; // сервер отдал меньше, чем обещал
+                if (i > start) json.append(',');
+                entry.appendJson(json);
+            }
+            json.append("]}");
+            return httpResponse(200, "application/json", json.toString());
+        }
+
+        if ((PATH_PREFIX + "search").equals(endpoint)) {
+            String query = params.get("q");
+            if (query == null || query.trim().isEmpty()) {
+                return httpResponse(400, "application/json", "{\"error\":\"missing q\"}");
+            }
+            List<BrowseCache.Entry> results = cache.search(params.get("server"), query.trim(), SEARCH_LIMIT);
+            json.append('[');
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0) json.append(',');
+                results.get(i).appendJson(json);
+            }
+            json.append(']');
+            return httpResponse(200, "application/json", json.toString());
+        }
+        return httpResponse(404, "text/plain", "Not Found");
+    }
+
+    private void onEvent(String sid, String body) {
+        if (sid == null) return;
+        for (Server server : servers.values()) {
+            if (!sid.equals(server.sid)) continue;
+            String systemUpdateId = PlayQueue.extractElement(body, "SystemUpdateID");
+            if (systemUpdateId == null) return;
+            List<String> stale = cache.applyUpdate(server.udn, HttpUtil.parseInt(systemUpdateId, 0),
+                PlayQueue.extractElement(body, "ContainerUpdateIDs"));
+            refreshStale(server, stale);
+            return;
+        }
+    }
+
+    // Немного изменившихся папок обновляем сразу, остальные — при следующем запросе
+    private void refreshStale(Server server, List<String> stale) {
+        if (stale.isEmpty()) return;
+        Log.i(TAG, stale.size() + " cached containers of " + server.name + " changed");
+        if (stale.size() > EAGER_REFRESH_LIMIT) return;
+        for (String id : stale) {
+            refreshLater(server, id);
+        }
+    }
+
+    private void refreshLater(Server server, String id) {
+        String key = server.udn + "\n" + id;
+        if (!refreshing.add(key)) return;
+        executor.execute(() -> {
+            try {
+                // Первая страница заменяет устаревший контейнер, остальные подтянутся по запросу
+                fetchPage(server, id, 0);
+            } catch (IOException e) {
+                Log.w(TAG, "Refresh of " + id + " on " + server.name + " failed: " + e.getMessage());
+            } finally {
+                refreshing.remove(key);
+            }
+        });
+    }
+
+    /**
+     * The cached container with every page overlapping children [start, end)
+     * fetched; a stale container is answered as is and refreshed in the background.
+     */
+    private BrowseCache.Container window(Server server, String id, int start, int end) throws IOException {
+        BrowseCache.Container container = cache.get(server.udn, id);
+        if (container != null && container.isStale()) {
+            // Отдаём что есть, свежая версия подтянется в фоне
+            refreshLater(server, id);
+        }
+        boolean restarted = false;
+        int first = start - start % BrowseCache.PAGE_SIZE;
+        for (int page = first; page < end; page += BrowseCache.PAGE_SIZE) {
+            if (container != null && container.isComplete() && page >= container.size()) break;
+            if (container != null && container.hasPage(page)) continue;
+            BrowseCache.Container fetched = fetchPage(server, id, page);
+            if (container != null && fetched != container && !restarted) {
+                // Папка изменилась на сервере: уже взятые страницы от старой версии
+                restarted = true;
+                page = first - BrowseCache.PAGE_SIZE;
+            }
+            container = fetched;
+        }
+        return container;
+    }
+
+    private BrowseCache.Container fetchPage(Server server, String id, int start) throws IOException {
+        List<BrowseCache.Entry> children = new ArrayList<>();
+        int total = -1;
+        int updateId = 0;
+        while (children.size() < BrowseCache.PAGE_SIZE) {
+            int requested = BrowseCache.PAGE_SIZE - children.size();
+            XmlWriter request = startRequest("Browse")
+                .element("ObjectID", id)
+                .element("BrowseFlag", "BrowseDirectChildren")
+                .element("Filter", "*")
+                .element("StartingIndex", start + children.size())
+                .element("RequestedCount", requested)
+                .element("SortCriteria", "");
+            String response = soap(server, "Browse", request);
+            List<BrowseCache.Entry> page = BrowseCache.parseDidl(PlayQueue.extractElement(response, "Result"));
+            children.addAll(page);
+            int totalMatches = HttpUtil.parseInt(PlayQueue.extractElement(response, "TotalMatches"), 0);
+            updateId = HttpUtil.parseInt(PlayQueue.extractElement(response, "UpdateID"), 0);
+            if (totalMatches > 0) {
+                total = totalMatches;
+            } else if (page.size() < requested) {
+                // TotalMatches 0 — сервер не знает общего числа, конец на короткой странице
+                total = start + children.size();
+            }
+            if (page.isEmpty() || (total >= 0 && start + children.size() >= total)) break;
+        }
+        if (children.isEmpty() && total < 0) total = start;
+        return cache.put(server.udn, id, start, children, total, updateId);
+    }
+
+    private void search() {
+        String request = "M-SEARCH * HTTP/1.1\r\n" +
+            "HOST: 239.255.255.250:1900\r\n" +
+            "MAN: \"ssdp:discover\"\r\n" +
+            "MX: 2\r\n" +
+            "ST: " + MEDIA_SERVER_TYPE + "\r\n\r\n";
+        try (DatagramSocket socket = new DatagramSocket()) {
+            byte[] bytes = request.getBytes("UTF-8");
+            socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("239.255.255.250"), 1900));
+            socket.setSoTimeout(3000);
+            byte[] buffer = new byte[2048];
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                onSsdpPacket(new String(packet.getData(), 0, packet.getLength(), "UTF-8"));
+            }
+        } catch (SocketTimeoutException e) {
+            // ответы собраны
+        } catch (IOException e) {
+            Log.w(TAG, "M-SEARCH for media servers failed: " + e.getMessage());
+        }
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (Server server : new ArrayList<>(servers.values())) {
+            if (server.expiresAt < now) {
+                servers.remove(server.udn);
+                cache.removeServer(server.udn);
+                Log.i(TAG, "Media server expired: " + server.name);
+                continue;
+            }
+            if (server.controlUrl == null) continue;
+            if (server.sid == null || server.subscribedUntil - now < 2 * MAINTENANCE_INTERVAL_MS) {
+                subscribe(server);
+            }
+            if (server.sid == null) {
+                // Без событий остаётся опрос SystemUpdateID
+                poll(server);
+            }
+        }
+        if (++maintenanceCycle % SEARCH_EVERY == 0) {
+            search();
+        }
+    }
+
+    private void describe(Server server) {
+        try {
+            String description = get(server.location);
+            String base = PlayQueue.extractElement(description, "URLBase");
+            URL baseUrl = new URL(base != null && !base.isEmpty() ? base : server.location);
+            server.name = PlayQueue.extractElement(description, "friendlyName");
+            int position = 0;
+            while (true) {
+                int start = PlayQueue.indexOfElement(description, "service", position);
+                if (start == -1) break;
+                int end = description.indexOf("</service>", start);
+                if (end == -1) break;
+                String service = description.substring(start, end);
+                position = end;
+                String type = PlayQueue.extractElement(service, "serviceType");
+                if (type == null || !type.startsWith("urn:schemas-upnp-org:service:ContentDirectory:")) continue;
+                server.eventUrl = new URL(baseUrl, PlayQueue.extractElement(service, "eventSubURL")).toString();
+                server.controlUrl = new URL(baseUrl, PlayQueue.extractElement(service, "controlURL")).toString();
+                break;
+            }
+            if (server.controlUrl == null) {
+                Log.w(TAG, "No ContentDirectory in " + server.location);
+                return;
+            }
+            Log.i(TAG, "Media server found: " + server.name + " at " + server.location);
+            poll(server);
+            subscribe(server);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read description " + server.location + ": " + e.getMessage());
+        }
+    }
+
+    private void poll(Server server) {
+        try {
+            String response = soap(server, "GetSystemUpdateID", startRequest("GetSystemUpdateID"));
+            String id = PlayQueue.extractElement(response, "Id");
+            if (id == null) return;
+            refreshStale(server, cache.applyUpdate(server.udn, HttpUtil.parseInt(id, 0), null));
+        } catch (IOException e) {
+            Log.w(TAG, "GetSystemUpdateID on " + server.name + " failed: " + e.getMessage());
+        }
+    }
+
+    // GENA: первая подписка с CALLBACK, продление — только с SID
+    private void subscribe(Server server) {
+        if (server.eventUrl == null) return;
+        String sid = server.sid;
+        try {
+            URL url = new URL(server.eventUrl);
+            int port = url.getPort() != -1 ? url.getPort() : 80;
+            try (Socket socket = new Socket()) {
+                socket.connect(new java.net.InetSocketAddress(url.getHost(), port), TIMEOUT_MS);
+                socket.setSoTimeout(TIMEOUT_MS);
+                StringBuilder request = new StringBuilder();
+                request.append("SUBSCRIBE ").append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+                request.append("HOST: ").append(url.getHost()).append(':').append(port).append("\r\n");
+                if (sid != null) {
+                    request.append("SID: ").append(sid).append("\r\n");
+                } else {
+                    request.append("CALLBACK: <").append(callbackUrl).append(">\r\n");
+                    request.append("NT: upnp:event\r\n");
+                }
+                request.append("TIMEOUT: Second-").append(SUBSCRIPTION_SECONDS).append("\r\n");
+                request.append("CONTENT-LENGTH: 0\r\n\r\n");
+                socket.getOutputStream().write(request.toString().getBytes("UTF-8"));
+
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                StringBuilder response = new StringBuilder();
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    response.append(line).append("\r\n");
+                }
+                String status = response.toString();
+                if (!status.startsWith("HTTP/1.1 200") && !status.startsWith("HTTP/1.0 200")) {
+                    Log.w(TAG, "Subscription to " + server.name + " refused: " + status.split("\r\n")[0]);
+                    server.sid = null;
+                    return;
+                }
+                String newSid = header(status, "SID");
+                server.sid = newSid != null ? newSid : sid;
+                String timeout = header(status, "TIMEOUT");
+                int seconds = SUBSCRIPTION_SECONDS;
+                if (timeout != null && timeout.startsWith("Second-")) {
+                    seconds = HttpUtil.parseInt(timeout.substring("Second-".length()), SUBSCRIPTION_SECONDS);
+                }
+                server.subscribedUntil = System.currentTimeMillis() + seconds * 1000L;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Subscription to " + server.name + " failed: " + e.getMessage());
+            server.sid = null;
+        }
+    }
+
+    // Открывает конверт запроса; аргументы дописывает вызывающий, soap() закрывает и отправляет
+    private static XmlWriter startRequest(String action) {
+        XmlWriter xml = XmlWriter.obtain().declaration();
+        xml.start("s:Envelope")
+            .attr("xmlns:s", "http://schemas.xmlsoap.org/soap/envelope/")
+            .attr("s:encodingStyle", "http://schemas.xmlsoap.org/soap/encoding/");
+        xml.start("s:Body");
+        xml.start("u:" + action).attr("xmlns:u", CONTENT_DIRECTORY_TYPE);
+        return xml;
+    }
+
+    private String soap(Server server, String action, XmlWriter request) throws IOException {
+        request.text("");
+        String body = request.end().end().end().finish();
+        HttpURLConnection connection = (HttpURLConnection) new URL(server.controlUrl).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(3 * TIMEOUT_MS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", UpnpSoap.CONTENT_TYPE);
+        connection.setRequestProperty("SOAPACTION", "\"" + CONTENT_DIRECTORY_TYPE + "#" + action + "\"");
+        try {
+            byte[] bytes = body.getBytes("UTF-8");
+            connection.setFixedLengthStreamingMode(bytes.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(bytes);
+            }
+            if (connection.getResponseCode() >= 400) {
+                throw new IOException("HTTP " + connection.getResponseCode() + " for " + action);
+            }
+            return readAll(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        try {
+            if (connection.getResponseCode() >= 400) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+            return readAll(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    // Сервер HTTP читает запрос одним read(); тело события может прийти следом
+    private static String readBody(Socket socket, String request) throws IOException {
+        int headerEnd = request.indexOf("\r\n\r\n");
+        String body = headerEnd >= 0 ? request.substring(headerEnd + 4) : "";
+        int length = HttpUtil.parseInt(header(request, "CONTENT-LENGTH"), 0);
+        byte[] received = body.getBytes("UTF-8");
+        if (received.length >= length) return body;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        out.write(received, 0, received.length);
+        socket.setSoTimeout(TIMEOUT_MS);
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        while (out.size() < length) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, length - out.size()));
+            if (read == -1) break;
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    static String header(String message, String name) {
+        String prefix = name.toUpperCase(Locale.US) + ":";
+        for (String line : message.split("\r\n")) {
+            if (line.isEmpty()) break;
+            if (line.toUpperCase(Locale.US).startsWith(prefix)) {
+                return line.substring(prefix.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    private static int maxAge(String cacheControl) {
+        if (cacheControl != null) {
+            int index = cacheControl.toLowerCase(Locale.US).indexOf("max-age");
+            if (index >= 0) {
+                int equals = cacheControl.indexOf('=', index);
+                if (equals >= 0) {
+                    return HttpUtil.parseInt(cacheControl.substring(equals + 1).split("[,;]")[0], 1800);
+                }
+            }
+        }
+        return 1800;
+    }
+
+    private static String httpResponse(int code, String contentType, String body) throws UnsupportedEncodingException {
+        String status = code == 200 ? "OK" : code == 400 ? "Bad Request" : code == 404 ? "Not Found" :
+            code == 405 ? "Method Not Allowed" : "Bad Gateway";
+        return "HTTP/1.1 " + code + " " + status + "\r\n" +
+            "Content-Type: " + contentType + "; charset=utf-8\r\n" +
+            "Content-Length: " + body.getBytes("UTF-8").length + "\r\n" +
+            "Access-Control-Allow-Origin: *\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n\r\n" +
+            body;
+    }
+}
@@ -0,0 +1,337 @@
+package uk.me.hardill.weblauncher;
+
+import java.util.PriorityQueue;
+
+/**
+ * Deterministic {@link PlaybackEngine} with simulated prepare, rebuffer and
+ * completion timing. Nothing is decoded; time comes from a {@link Scheduler}, so
+ * with {@link ManualScheduler} a whole track plays in microseconds of test time.
+ */
+public class FakePlaybackEngine implements PlaybackEngine {
+
+    /** Source of time and delayed callbacks for the fake engine. */
+    public interface Scheduler {
+        long now();
+
+        void schedule(Runnable task, long delayMs);
+    }
+
+    /** Virtual-time scheduler: tasks only run when {@link #advance(long)} is called. */
+    public static class ManualScheduler implements Scheduler {
+        private static class Task implements Comparable<Task> {
+            final long due;
+            final long sequence;
+            final Runnable runnable;
+
+            Task(long due, long sequence, Runnable runnable) {
+                this.due = due;
+                this.sequence = sequence;
+                this.runnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (due != other.due) return Long.compare(due, other.due);
+                return Long.compare(sequence, other.sequence);
+            }
+        }
+
+        private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+        private long now = 0;
+        private long sequence = 0;
+
+        @Override
+        public synchronized long now() {
+            return now;
+        }
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMs) {
+            tasks.add(new Task(now + Math.max(0, delayMs), sequence++, task));
+        }
+
+        /** Moves virtual time forward, running every task that falls due on the way. */
+        public void advance(long ms) {
+            long target;
+            synchronized (this) {
+                target = now + ms;
+            }
+            while (true) {
+                Task task;
+                synchronized (this) {
+                    task = tasks.peek();
+                    if (task == null || task.due > target) {
+                        now = target;
+                        return;
+                    }
+                    tasks.poll();
+                    now = task.due;
+                }
+                task.runnable.run();
+            }
+        }
+
+        public synchronized int pendingTasks() {
+            return tasks.size();
+        }
+    }
+
+    private enum State { IDLE, INITIALIZED, PREPARING, PREPARED, STARTED, PAUSED, STOPPED, COMPLETED, ERROR, END }
+
+    private final Scheduler scheduler;
+    private Listener listener;
+    private State state = State.IDLE;
+    private String dataSource;
+    // Каждая смена состояния инвалидирует ранее запланированные события
+    private int generation = 0;
+    private long positionMs = 0;
+    private long startedAt = 0;
+    private boolean buffering = false;
+    private boolean stallDone = false;
+    private float volume = 1.0f;
+    private float speed = 1.0f;
+
+    private long prepareDelayMs = 50;
+    private int durationMs = 180000;
+    private int stallAtMs = -1;
+    private long stallLengthMs = 0;
+    private int prepareErrorWhat = 0;
+
+    public FakePlaybackEngine(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public synchronized FakePlaybackEngine setPrepareDelay(long ms) {
+        prepareDelayMs = ms;
+        return this;
+    }
+
+    public synchronized FakePlaybackEngine setTrackDuration(int ms) {
+        durationMs = ms;
+        return this;
+    }
+
+    /** Simulates one rebuffer of {@code lengthMs} when playback reaches {@code atMs}. */
+    public synchronized FakePlaybackEngine setStall(int atMs, long lengthMs) {
+        stallAtMs = atMs;
+        stallLengthMs = lengthMs;
+        return this;
+    }
+
+    /** Makes the next prepare fail with the given MediaPlayer error code (0 to disable). */
+    public synchronized FakePlaybackEngine setPrepareError(int what) {
+        prepareErrorWhat = what;
+        return this;
+    }
+
+    public synchronized String getDataSource() {
+        return dataSource;
+    }
+
+    public synchronized float getVolume() {
+        return volume;
+    }
+
+    public synchronized float getPlaybackSpeed() {
+        return speed;
+    }
+
+    @Override
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void setDataSource(String uri) {
+        if (state != State.IDLE) {
+            throw new IllegalStateException("setDataSource in state " + state);
+        }
+        dataSource = uri;
+        state = State.INITIALIZED;
+    }
+
+    @Override
+    public synchronized void prepareAsync() {
+        if (state != State.INITIALIZED && state != State.STOPPED) {
+            throw new IllegalStateException("prepareAsync in state " + state);
+        }
+        state = State.PREPARING;
+        final int g = ++generation;
+        scheduler.schedule(() -> {
+            Listener l;
+            boolean failed;
+            int what;
+            synchronized (this) {
+                if (g != generation) return;
+                failed = prepareErrorWhat != 0;
+                what = prepareErrorWhat;
+                prepareErrorWhat = 0;
+                state = failed ? State.ERROR : State.PREPARED;
+                positionMs = 0;
+                stallDone = false;
+                l = listener;
+            }
+            if (l == null) return;
+            if (failed) {
+                l.onError(this, what, 0);
+            } else {
+                l.onBufferingUpdate(this, 100);
+                l.onPrepared(this);
+            }
+        }, prepareDelayMs);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (state != State.PREPARED && state != State.PAUSED && state != State.COMPLETED && state != State.STARTED) {
+            throw new IllegalStateException("start in state " + state);
+        }
+        if (state == State.STARTED) return;
+        if (state == State.COMPLETED) {
+            positionMs = 0;
+        }
+        state = State.STARTED;
+        startedAt = scheduler.now();
+        scheduleProgress();
+    }
+
+    // Планирует следующее событие: начало ребуфера или конец трека
+    private void scheduleProgress() {
+        final int g = ++generation;
+        if (!stallDone && stallAtMs >= 0 && stallAtMs >= positionMs && stallAtMs < durationMs) {
+            scheduler.schedule(() -> {
+                Listener l;
+                synchronized (this) {
+                    if (g != generation) return;
+                    positionMs = stallAtMs;
+                    buffering = true;
+                    stallDone = true;
+                    l = listener;
+                }
+                if (l != null) l.onBufferingStart(this);
+                final int g2;
+                synchronized (this) {
+                    g2 = generation;
+                }
+                scheduler.schedule(() -> {
+                    Listener l2;
+                    synchronized (this) {
+                        if (g2 != generation) return;
+                        buffering = false;
+                        startedAt = scheduler.now();
+                        scheduleProgress();
+                        l2 = listener;
+                    }
+                    if (l2 != null) l2.onBufferingEnd(this);
+                }, stallLengthMs);
+            }, scaled(stallAtMs - positionMs));
+        } else {
+            scheduler.schedule(() -> {
+                Listener l;
+                synchronized (this) {
+                    if (g != generation) return;
+                    positionMs = durationMs;
+                    state = State.COMPLETED;
+                    l = listener;
+                }
+                if (l != null) l.onCompletion(this);
+            }, scaled(Math.max(0, durationMs - positionMs)));
+        }
+    }
+
+    private long currentPosition() {
+        if (state == State.STARTED && !buffering) {
+            return Math.min(durationMs, positionMs + (long) ((scheduler.now() - startedAt) * speed));
+        }
+        return positionMs;
+    }
+
+    // Позиция трека -> реальное время при текущей скорости
+    private long scaled(long trackMs) {
+        return (long) Math.ceil(trackMs / speed);
+    }
+
+    @Override
+    public synchronized void pause() {
+        if (state != State.STARTED && state != State.PAUSED) {
+            throw new IllegalStateException("pause in state " + state);
+        }
+        positionMs = currentPosition();
+        buffering = false;
+        state = State.PAUSED;
+        generation++;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (state == State.IDLE || state == State.INITIALIZED || state == State.ERROR || state == State.END) {
+            throw new IllegalStateException("stop in state " + state);
+        }
+        positionMs = 0;
+        buffering = false;
+        state = State.STOPPED;
+        generation++;
+    }
+
+    @Override
+    public synchronized void reset() {
+        state = State.IDLE;
+        dataSource = null;
+        positionMs = 0;
+        buffering = false;
+        generation++;
+    }
+
+    @Override
+    public synchronized void release() {
+        state = State.END;
+        listener = null;
+        generation++;
+    }
+
+    @Override
+    public synchronized void seekTo(int target) {
+        positionMs = Math.max(0, Math.min(target, durationMs));
+        buffering = false;
+        if (state == State.STARTED) {
+            startedAt = scheduler.now();
+            scheduleProgress();
+        }
+    }
+
+    @Override
+    public synchronized int getCurrentPosition() {
+        return (int) currentPosition();
+    }
+
+    @Override
+    public synchronized int getDuration() {
+        return state == State.IDLE || state == State.INITIALIZED || state == State.PREPARING ? -1 : durationMs;
+    }
+
+    @Override
+    public synchronized boolean isPlaying() {
+        return state == State.STARTED;
+    }
+
+    @Override
+    public synchronized void setVolume(float volume) {
+        this.volume = volume;
+    }
+
+    @Override
+    public synchronized boolean setPlaybackSpeed(float newSpeed) {
+        if (newSpeed <= 0) {
+            throw new IllegalArgumentException("speed " + newSpeed);
+        }
+        if (state == State.STARTED && !buffering) {
+            positionMs = currentPosition();
+            startedAt = scheduler.now();
+            speed = newSpeed;
+            scheduleProgress();
+        } else {
+            speed = newSpeed;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,75 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Small helpers shared by the HTTP endpoints of the renderer, the control point
+ * and the status stream: query strings, lenient numbers and JSON strings.
+ */
+final class HttpUtil {
+
+    private HttpUtil() {
+    }
+
+    /** Decoded {@code key=value} pairs of a query string; malformed pairs are skipped. */
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            try {
+                String key = URLDecoder.decode(equals >= 0 ? pair.substring(0, equals) : pair, "UTF-8");
+                String value = equals >= 0 ? URLDecoder.decode(pair.substring(equals + 1), "UTF-8") : "";
+                params.put(key, value);
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                // кривую пару пропускаем
+            }
+        }
+        return params;
+    }
+
+    static int parseInt(String value, int fallback) {
+        if (value == null) return fallback;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /** Appends {@code value} as a quoted JSON string. */
+    static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
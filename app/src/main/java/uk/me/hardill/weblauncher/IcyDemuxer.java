@@ -0,0 +1,125 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Splits a Shoutcast/ICY stream ({@code Icy-MetaData: 1}, {@code icy-metaint: N})
+ * into audio and metadata. Every N audio bytes the server inserts a length byte
+ * and up to 4080 bytes of {@code StreamTitle='...';} text. Audio runs are written
+ * straight from the caller's buffer, so only the small metadata blocks are copied.
+ * Blocks may span any number of reads. Not thread-safe; one instance per connection.
+ */
+public class IcyDemuxer {
+    private static final int MAX_METADATA = 255 * 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    public interface Listener {
+        void onStreamTitle(String streamTitle);
+    }
+
+    private final int metaInt;
+    private final Listener listener;
+    private final byte[] metadata = new byte[MAX_METADATA];
+    private int audioLeft;
+    private int metadataLength = -1; // -1: следующий байт — длина блока
+    private int metadataFilled = 0;
+    private String lastTitle;
+
+    public IcyDemuxer(int metaInt, Listener listener) {
+        if (metaInt <= 0) throw new IllegalArgumentException("icy-metaint must be positive");
+        this.metaInt = metaInt;
+        this.listener = listener;
+        this.audioLeft = metaInt;
+    }
+
+    /** Writes the audio part of {@code buffer[offset, offset + length)} to {@code audio}. */
+    public void process(byte[] buffer, int offset, int length, OutputStream audio) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (audioLeft > 0) {
+                int count = Math.min(audioLeft, end - offset);
+                audio.write(buffer, offset, count);
+                offset += count;
+                audioLeft -= count;
+            } else if (metadataLength < 0) {
+                metadataLength = (buffer[offset++] & 0xff) * 16;
+                metadataFilled = 0;
+                if (metadataLength == 0) {
+                    // Пустой блок — заголовок не менялся
+                    metadataLength = -1;
+                    audioLeft = metaInt;
+                }
+            } else {
+                int count = Math.min(metadataLength - metadataFilled, end - offset);
+                System.arraycopy(buffer, offset, metadata, metadataFilled, count);
+                offset += count;
+                metadataFilled += count;
+                if (metadataFilled == metadataLength) {
+                    onMetadata(decode(metadata, metadataLength));
+                    metadataLength = -1;
+                    audioLeft = metaInt;
+                }
+            }
+        }
+    }
+
+    private void onMetadata(String text) {
+        String title = parseStreamTitle(text);
+        // Многие серверы повторяют тот же заголовок в каждом блоке
+        if (title == null || title.equals(lastTitle)) return;
+        lastTitle = title;
+        if (listener != null) {
+            listener.onStreamTitle(title);
+        }
+    }
+
+    /** {@code icy-metaint} header value, or 0 when the stream carries no metadata. */
+    public static int parseMetaInt(String header) {
+        if (header == null) return 0;
+        try {
+            int value = Integer.parseInt(header.trim());
+            return value > 0 ? value : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** StreamTitle from a metadata block, or null if the block has none. */
+    static String parseStreamTitle(String text) {
+        int start = text.indexOf("StreamTitle='");
+        if (start < 0) return null;
+        start += "StreamTitle='".length();
+        // В названии бывают апострофы, поэтому ищем именно "';"
+        int end = text.indexOf("';", start);
+        if (end < 0) end = text.lastIndexOf('\'');
+        if (end < start) return null;
+        return text.substring(start, end).trim();
+    }
+
+    /** "Artist - Title" as {artist, title}; {"", text} when there is no separator. */
+    public static String[] splitArtistTitle(String streamTitle) {
+        int separator = streamTitle.indexOf(" - ");
+        if (separator <= 0) return new String[] { "", streamTitle };
+        return new String[] { streamTitle.substring(0, separator).trim(), streamTitle.substring(separator + 3).trim() };
+    }
+
+    // Блок дополнен нулями; кодировка не объявляется — UTF-8, а если не разбирается, Latin-1
+    private static String decode(byte[] data, int length) {
+        int end = 0;
+        while (end < length && data[end] != 0) end++;
+        try {
+            return UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(data, 0, end)).toString();
+        } catch (CharacterCodingException e) {
+            return new String(data, 0, end, LATIN_1);
+        }
+    }
+}
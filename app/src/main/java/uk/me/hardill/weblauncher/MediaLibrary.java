@@ -0,0 +1,275 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory index of the shared media folders behind the ContentDirectory of
+ * {@link MediaServer}. Folders are scanned once; after that the index is kept up
+ * to date from single file events ({@link #onCreated}, {@link #onDeleted}), so a
+ * new track costs one {@code stat} instead of a rescan. Children are kept sorted,
+ * which lets Browse return any page straight from the list. Object ids are
+ * name-based UUIDs of the path inside the shared folder, so {@code /ms/media/<id>}
+ * links survive restarts and rewrites of the file.
+ */
+public class MediaLibrary {
+    public static final String ROOT_ID = "0";
+
+    /** Directories entering or leaving the index, so the caller can watch them. */
+    public interface Listener {
+        void onDirectoryAdded(File directory);
+
+        void onDirectoryRemoved(File directory);
+
+        /** A container's children changed; {@code systemUpdateId} has been bumped. */
+        void onContainerChanged(Node container, int systemUpdateId);
+    }
+
+    public static final class Node {
+        public final String id;
+        public final String parentId;
+        public final File file;
+        public final String title;
+        public final String mimeType; // null for containers
+        public final long size;
+        private final List<Node> children;
+        private final String key;
+        private int updateId = 0;
+
+        Node(String key, String parentId, File file, String title, String mimeType, long size) {
+            this.key = key;
+            this.id = key == null ? ROOT_ID : idFor(key);
+            this.parentId = parentId;
+            this.file = file;
+            this.title = title;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.children = mimeType == null ? new ArrayList<Node>() : null;
+        }
+
+        public boolean isContainer() {
+            return mimeType == null;
+        }
+
+        public int childCount() {
+            return children != null ? children.size() : 0;
+        }
+
+        public int updateId() {
+            return updateId;
+        }
+    }
+
+    /** One Browse page: {@code items} out of {@code total} children. */
+    public static final class Page {
+        public final List<Node> items;
+        public final int total;
+        public final int updateId;
+
+        Page(List<Node> items, int total, int updateId) {
+            this.items = items;
+            this.total = total;
+            this.updateId = updateId;
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Comparator<Node> ORDER = (a, b) -> {
+        // Папки перед файлами, дальше по имени без учёта регистра
+        if (a.isContainer() != b.isContainer()) return a.isContainer() ? -1 : 1;
+        return a.title.compareToIgnoreCase(b.title);
+    };
+
+    private final Map<String, Node> byId = new HashMap<>();
+    private final Map<String, Node> byPath = new HashMap<>();
+    private final Node root;
+    private Listener listener;
+    private int systemUpdateId = 0;
+    private int unlistable = 0;
+
+    public MediaLibrary(String rootTitle) {
+        root = new Node(null, "-1", null, rootTitle, null, 0);
+        byId.put(ROOT_ID, root);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Adds {@code folder} as a top-level container and indexes everything below it. */
+    public synchronized void addFolder(File folder) {
+        if (!folder.isDirectory() || byPath.containsKey(folder.getAbsolutePath())) return;
+        insert(root, folder);
+    }
+
+    public synchronized Node get(String id) {
+        return byId.get(id);
+    }
+
+    public synchronized int systemUpdateId() {
+        return systemUpdateId;
+    }
+
+    public synchronized int size() {
+        return byId.size() - 1;
+    }
+
+    /** Playable files indexed so far. */
+    public synchronized int trackCount() {
+        int tracks = 0;
+        for (Node node : byId.values()) {
+            if (!node.isContainer()) tracks++;
+        }
+        return tracks;
+    }
+
+    /**
+     * Directories that exist but could not be listed; without the storage
+     * permission the Music folder itself is one of them.
+     */
+    public synchronized int unlistableFolders() {
+        return unlistable;
+    }
+
+    /** Children {@code [start, start + count)} of container {@code id}; count 0 means all. Null if unknown. */
+    public synchronized Page browse(String id, int start, int count) {
+        Node container = byId.get(id);
+        if (container == null || !container.isContainer()) return null;
+        int total = container.children.size();
+        int from = Math.max(0, Math.min(start, total));
+        int to = count <= 0 ? total : (int) Math.min((long) from + count, total);
+        return new Page(new ArrayList<>(container.children.subList(from, to)), total, container.updateId);
+    }
+
+    /** A file or directory appeared (or finished writing) at {@code file}. */
+    public synchronized void onCreated(File file) {
+        Node parent = byPath.get(file.getParentFile() != null ? file.getParentFile().getAbsolutePath() : "");
+        if (parent == null) return;
+        Node existing = byPath.get(file.getAbsolutePath());
+        if (existing != null) {
+            // Перезаписанный файл: размер мог измениться
+            if (existing.isContainer() || existing.size == file.length()) return;
+            detach(existing);
+        }
+        if (insert(parent, file) != null) {
+            changed(parent);
+        }
+    }
+
+    /** {@code file} was deleted or moved away; drops it and anything below it. */
+    public synchronized void onDeleted(File file) {
+        Node node = byPath.get(file.getAbsolutePath());
+        if (node == null) return;
+        Node parent = byId.get(node.parentId);
+        detach(node);
+        if (parent != null) {
+            changed(parent);
+        }
+    }
+
+    private Node insert(Node parent, File file) {
+        String key = keyFor(parent, file);
+        Node node;
+        if (file.isDirectory()) {
+            node = new Node(key, parent.id, file, file.getName(), null, 0);
+        } else {
+            String mimeType = mimeTypeFor(file.getName());
+            if (mimeType == null) return null;
+            node = new Node(key, parent.id, file, stripExtension(file.getName()), mimeType, file.length());
+        }
+        byId.put(node.id, node);
+        byPath.put(file.getAbsolutePath(), node);
+        int index = Collections.binarySearch(parent.children, node, ORDER);
+        parent.children.add(index < 0 ? -index - 1 : index, node);
+
+        if (node.isContainer()) {
+            if (listener != null) listener.onDirectoryAdded(file);
+            File[] entries = file.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (!entry.isHidden()) insert(node, entry);
+                }
+            } else {
+                unlistable++;
+            }
+        }
+        return node;
+    }
+
+    // Путь внутри общей папки, начиная с её имени. Две общие папки с одинаковым
+    // именем различаются полным путём второй из них
+    private String keyFor(Node parent, File file) {
+        if (parent != root) return parent.key + "/" + file.getName();
+        String key = file.getName();
+        return byId.containsKey(idFor(key)) ? file.getAbsolutePath() : key;
+    }
+
+    static String idFor(String key) {
+        return UUID.nameUUIDFromBytes(key.getBytes(UTF_8)).toString();
+    }
+
+    private void detach(Node node) {
+        Node parent = byId.get(node.parentId);
+        if (parent != null) {
+            parent.children.remove(node);
+        }
+        removeTree(node);
+    }
+
+    private void removeTree(Node node) {
+        byId.remove(node.id);
+        byPath.remove(node.file.getAbsolutePath());
+        if (node.isContainer()) {
+            for (Node child : node.children) {
+                removeTree(child);
+            }
+            node.children.clear();
+            if (listener != null) listener.onDirectoryRemoved(node.file);
+        }
+    }
+
+    private void changed(Node container) {
+        systemUpdateId++;
+        container.updateId = systemUpdateId;
+        if (listener != null) listener.onContainerChanged(container, systemUpdateId);
+    }
+
+    /** Audio MIME type by extension, or null for files the library does not share. */
+    public static String mimeTypeFor(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) return null;
+        switch (name.substring(dot + 1).toLowerCase(Locale.US)) {
+            case "mp3":
+                return "audio/mpeg";
+            case "flac":
+                return "audio/flac";
+            case "m4a":
+            case "aac":
+                return "audio/mp4";
+            case "ogg":
+            case "oga":
+            case "opus":
+                return "audio/ogg";
+            case "wav":
+                return "audio/wav";
+            case "wma":
+                return "audio/x-ms-wma";
+            default:
+                return null;
+        }
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,132 @@
+package uk.me.hardill.weblauncher;
+
+import android.content.Context;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.PowerManager;
+
+import java.io.IOException;
+
+/**
+ * {@link PlaybackEngine} backed by {@link MediaPlayer}. Callbacks arrive on the
+ * looper of the thread that created the engine.
+ */
+public class MediaPlayerEngine implements PlaybackEngine {
+    private final MediaPlayer mediaPlayer;
+    private Listener listener;
+
+    public MediaPlayerEngine(Context context) {
+        mediaPlayer = new MediaPlayer();
+        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        // Keep the CPU awake while playing so the queue keeps advancing with the screen off
+        mediaPlayer.setWakeMode(context.getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+
+        mediaPlayer.setOnPreparedListener(mp -> {
+            if (listener != null) listener.onPrepared(this);
+        });
+        mediaPlayer.setOnCompletionListener(mp -> {
+            if (listener != null) listener.onCompletion(this);
+        });
+        mediaPlayer.setOnErrorListener((mp, what, extra) -> listener != null && listener.onError(this, what, extra));
+        mediaPlayer.setOnInfoListener((mp, what, extra) -> {
+            if (listener == null) return false;
+            if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+                listener.onBufferingStart(this);
+            } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+                listener.onBufferingEnd(this);
+            }
+            return false;
+        });
+        mediaPlayer.setOnBufferingUpdateListener((mp, percent) -> {
+            if (listener != null) listener.onBufferingUpdate(this, percent);
+        });
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String uri) throws IOException {
+        mediaPlayer.setDataSource(uri);
+    }
+
+    @Override
+    public void prepareAsync() {
+        mediaPlayer.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        mediaPlayer.start();
+    }
+
+    @Override
+    public void pause() {
+        mediaPlayer.pause();
+    }
+
+    @Override
+    public void stop() {
+        mediaPlayer.stop();
+    }
+
+    @Override
+    public void reset() {
+        mediaPlayer.reset();
+    }
+
+    @Override
+    public void release() {
+        mediaPlayer.release();
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        mediaPlayer.seekTo(positionMs);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return mediaPlayer.getDuration();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mediaPlayer.isPlaying();
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        mediaPlayer.setVolume(volume, volume);
+    }
+
+    /**
+     * Routes this player to {@code device} instead of the system default output.
+     * Returns false before API 28, where MediaPlayer cannot be pinned to a device.
+     */
+    public boolean setPreferredDevice(AudioDeviceInfo device) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) return false;
+        return mediaPlayer.setPreferredDevice(device);
+    }
+
+    @Override
+    public boolean setPlaybackSpeed(float speed) {
+        // PlaybackParams появились в API 23
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return false;
+        try {
+            mediaPlayer.setPlaybackParams(mediaPlayer.getPlaybackParams().setSpeed(speed));
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
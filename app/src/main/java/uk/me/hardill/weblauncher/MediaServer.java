@@ -0,0 +1,350 @@
+package uk.me.hardill.weblauncher;
+
+import android.Manifest;
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Optional UPnP MediaServer that shares on-device music over the renderer's HTTP
+ * server. The ContentDirectory is answered from a {@link MediaLibrary} kept current
+ * by one {@link FileObserver} per folder, and file bodies are sent with
+ * {@link FileChannel#transferTo}, so the kernel copies them straight to the
+ * socket. Single {@code Range} requests are supported, including suffix ranges.
+ */
+public class MediaServer implements MediaLibrary.Listener {
+    private static final String TAG = "DLNAMediaServer";
+    public static final String PATH_PREFIX = "/ms/";
+    public static final String MEDIA_PATH = "/ms/media/";
+    private static final long EVENT_INTERVAL_MS = 1000;
+    private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE |
+        FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    /** Changes for GENA, delivered on the handler thread at most once per second. */
+    public interface ChangeListener {
+        void onLibraryChanged(int systemUpdateId, String containerUpdateIds);
+    }
+
+    /** Called on a background thread when the first scan is done. */
+    public interface ScanListener {
+        void onScanFinished(int tracks);
+    }
+
+    /** Answer to a Browse action. */
+    public static final class BrowseResult {
+        public final String didl;
+        public final int numberReturned;
+        public final int totalMatches;
+        public final int updateId;
+
+        BrowseResult(String didl, int numberReturned, int totalMatches, int updateId) {
+            this.didl = didl;
+            this.numberReturned = numberReturned;
+            this.totalMatches = totalMatches;
+            this.updateId = updateId;
+        }
+    }
+
+    public final String uuid;
+    private final MediaLibrary library;
+    private final List<File> folders;
+    private final Handler handler;
+    private final Map<String, FileObserver> observers = new HashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "MediaServer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // containerId -> updateId, ещё не отправленные подписчикам
+    private final Map<String, Integer> pendingContainers = new LinkedHashMap<>();
+    private final Runnable flushRunnable = this::flushChanges;
+    private volatile ChangeListener changeListener;
+    private volatile ScanListener scanListener;
+
+    public MediaServer(String uuid, String rootTitle, List<File> folders, Handler handler) {
+        this.uuid = uuid;
+        this.folders = folders;
+        this.handler = handler;
+        this.library = new MediaLibrary(rootTitle);
+        library.setListener(this);
+    }
+
+    public void setChangeListener(ChangeListener listener) {
+        this.changeListener = listener;
+    }
+
+    public void setScanListener(ScanListener listener) {
+        this.scanListener = listener;
+    }
+
+    /** Runtime permission needed to read shared music: READ_MEDIA_AUDIO from Android 13, before that READ_EXTERNAL_STORAGE. */
+    public static String readPermission() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+            ? Manifest.permission.READ_MEDIA_AUDIO : Manifest.permission.READ_EXTERNAL_STORAGE;
+    }
+
+    /** Indexes the folders in the background; Browse returns what is indexed so far. */
+    public void start() {
+        executor.execute(() -> {
+            for (File folder : folders) {
+                if (!folder.isDirectory()) {
+                    Log.w(TAG, "Media folder not readable: " + folder);
+                    continue;
+                }
+                library.addFolder(folder);
+            }
+            int tracks = library.trackCount();
+            Log.i(TAG, "Indexed " + library.size() + " entries in " + folders.size() + " folders");
+            if (tracks == 0) {
+                // Без разрешения папка Music всё равно isDirectory(), только пустая
+                int unlistable = library.unlistableFolders();
+                Log.w(TAG, "No readable music files in " + folders +
+                    (unlistable > 0 ? "; " + unlistable + " folders could not be listed (storage permission?)" : ""));
+            }
+            ScanListener listener = scanListener;
+            if (listener != null) {
+                listener.onScanFinished(tracks);
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        handler.removeCallbacks(flushRunnable);
+        synchronized (observers) {
+            for (FileObserver observer : observers.values()) {
+                observer.stopWatching();
+            }
+            observers.clear();
+        }
+    }
+
+    public int systemUpdateId() {
+        return library.systemUpdateId();
+    }
+
+    /**
+     * BrowseMetadata or BrowseDirectChildren of {@code objectId}; resource URLs
+     * start with {@code baseUrl} ({@code http://ip:port}). Null if there is no such object.
+     */
+    public BrowseResult browse(String objectId, boolean metadata, int start, int count, String baseUrl) {
+        if (metadata) {
+            MediaLibrary.Node node = library.get(objectId);
+            if (node == null) return null;
+            XmlWriter xml = XmlWriter.obtain();
+            startDidl(xml);
+            writeNode(xml, node, baseUrl);
+            xml.end();
+            return new BrowseResult(xml.finish(), 1, 1, library.systemUpdateId());
+        }
+        MediaLibrary.Page page = library.browse(objectId, start, count);
+        if (page == null) return null;
+        XmlWriter xml = XmlWriter.obtain();
+        startDidl(xml);
+        for (MediaLibrary.Node node : page.items) {
+            writeNode(xml, node, baseUrl);
+        }
+        xml.end();
+        return new BrowseResult(xml.finish(), page.items.size(), page.total, page.updateId);
+    }
+
+    /** SourceProtocolInfo: every type the library can serve. */
+    public static String sourceProtocolInfo() {
+        Set<String> types = new LinkedHashSet<>();
+        for (String extension : new String[] { "mp3", "flac", "m4a", "ogg", "wav", "wma" }) {
+            types.add(MediaLibrary.mimeTypeFor("a." + extension));
+        }
+        StringBuilder info = new StringBuilder();
+        for (String type : types) {
+            if (info.length() > 0) info.append(',');
+            info.append("http-get:*:").append(type).append(":*");
+        }
+        return info.toString();
+    }
+
+    /**
+     * Streams the file behind {@code /ms/media/<id>} on a worker thread, which then
+     * owns the socket. Returns false if there is no such item.
+     */
+    public boolean serve(Socket socket, String path, String rangeHeader, boolean headOnly) {
+        String id = path.substring(MEDIA_PATH.length());
+        // Контроллеры иногда определяют тип по расширению, поэтому оно есть в URL
+        int dot = id.indexOf('.');
+        if (dot >= 0) id = id.substring(0, dot);
+        MediaLibrary.Node node = library.get(id);
+        if (node == null || node.isContainer()) return false;
+        executor.execute(() -> send(socket, node, CachingStreamProxy.parseRange(rangeHeader), headOnly));
+        return true;
+    }
+
+    private void send(Socket client, MediaLibrary.Node node, long[] range, boolean headOnly) {
+        try (Socket socket = client; FileInputStream input = new FileInputStream(node.file)) {
+            FileChannel file = input.getChannel();
+            OutputStream out = socket.getOutputStream();
+            long length = file.size();
+            long[] bounds = CachingStreamProxy.resolveRange(range, length);
+            if (bounds == null) {
+                out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + length +
+                        "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                return;
+            }
+
+            long start = bounds[0];
+            long end = bounds[1];
+            StringBuilder headers = new StringBuilder();
+            headers.append(range != null ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Type: ").append(node.mimeType).append("\r\n");
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            if (range != null) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length).append("\r\n");
+            }
+            headers.append("Accept-Ranges: bytes\r\n");
+            headers.append("transferMode.dlna.org: Streaming\r\n");
+            headers.append("contentFeatures.dlna.org: DLNA.ORG_OP=01\r\n");
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("UTF-8"));
+            out.flush();
+            if (headOnly) return;
+
+            // Сокеты сервера открыты через ServerSocketChannel — тогда sendfile без копий в Java
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            long position = start;
+            long remaining = end - start + 1;
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, target);
+                if (sent <= 0) {
+                    throw new IOException("File shrank while sending: " + node.file);
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        } catch (IOException e) {
+            // Плееры закрывают соединение при каждой перемотке
+            Log.d(TAG, "Media connection closed: " + e.getMessage());
+        }
+    }
+
+    private static void startDidl(XmlWriter xml) {
+        xml.start("DIDL-Lite")
+            .attr("xmlns", "urn:schemas-upnp-org:metadata-1-0/DIDL/")
+            .attr("xmlns:dc", "http://purl.org/dc/elements/1.1/")
+            .attr("xmlns:upnp", "urn:schemas-upnp-org:metadata-1-0/upnp/");
+    }
+
+    private static void writeNode(XmlWriter xml, MediaLibrary.Node node, String baseUrl) {
+        if (node.isContainer()) {
+            xml.start("container").attr("id", node.id).attr("parentID", node.parentId).attr("restricted", "1")
+                .attr("childCount", String.valueOf(node.childCount()))
+                .element("dc:title", node.title)
+                .element("upnp:class", "object.container.storageFolder")
+                .end();
+            return;
+        }
+        String name = node.file.getName();
+        String extension = name.substring(name.lastIndexOf('.'));
+        xml.start("item").attr("id", node.id).attr("parentID", node.parentId).attr("restricted", "1")
+            .element("dc:title", node.title)
+            .element("upnp:class", "object.item.audioItem.musicTrack");
+        xml.start("res").attr("protocolInfo", "http-get:*:" + node.mimeType + ":DLNA.ORG_OP=01")
+            .attr("size", String.valueOf(node.size))
+            .text(baseUrl + MEDIA_PATH + node.id + extension)
+            .end();
+        xml.end();
+    }
+
+    @Override
+    public void onDirectoryAdded(File directory) {
+        FileObserver observer = new DirectoryObserver(directory);
+        synchronized (observers) {
+            FileObserver previous = observers.put(directory.getAbsolutePath(), observer);
+            if (previous != null) previous.stopWatching();
+        }
+        observer.startWatching();
+    }
+
+    @Override
+    public void onDirectoryRemoved(File directory) {
+        FileObserver observer;
+        synchronized (observers) {
+            observer = observers.remove(directory.getAbsolutePath());
+        }
+        if (observer != null) observer.stopWatching();
+    }
+
+    @Override
+    public void onContainerChanged(MediaLibrary.Node container, int systemUpdateId) {
+        synchronized (pendingContainers) {
+            boolean idle = pendingContainers.isEmpty();
+            pendingContainers.put(container.id, container.updateId());
+            if (idle) {
+                handler.postDelayed(flushRunnable, EVENT_INTERVAL_MS);
+            }
+        }
+    }
+
+    private void flushChanges() {
+        StringBuilder ids = new StringBuilder();
+        synchronized (pendingContainers) {
+            for (Map.Entry<String, Integer> entry : pendingContainers.entrySet()) {
+                if (ids.length() > 0) ids.append(',');
+                ids.append(entry.getKey()).append(',').append(entry.getValue());
+            }
+            pendingContainers.clear();
+        }
+        ChangeListener listener = changeListener;
+        if (listener != null) {
+            listener.onLibraryChanged(library.systemUpdateId(), ids.toString());
+        }
+    }
+
+    // FileObserver не рекурсивен: по одному на каждую папку индекса
+    private class DirectoryObserver extends FileObserver {
+        private final File directory;
+
+        @SuppressWarnings("deprecation")
+        DirectoryObserver(File directory) {
+            super(directory.getAbsolutePath(), WATCH_MASK);
+            this.directory = directory;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (path == null) return;
+            File file = new File(directory, path);
+            switch (event & FileObserver.ALL_EVENTS) {
+                case FileObserver.CREATE:
+                    // Файлы ждут CLOSE_WRITE, а папки сразу индексируются
+                    if (file.isDirectory()) library.onCreated(file);
+                    break;
+                case FileObserver.CLOSE_WRITE:
+                case FileObserver.MOVED_TO:
+                    library.onCreated(file);
+                    break;
+                case FileObserver.DELETE:
+                case FileObserver.MOVED_FROM:
+                    library.onDeleted(file);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Layout of an uncompressed PCM stream: {@code audio/L16} (RFC 2586, big-endian,
+ * parameters in the MIME type) or a RIFF/WAVE file (little-endian, parameters in
+ * the header). Used by {@link PcmPlaybackEngine}.
+ */
+public final class PcmFormat {
+    private static final int DEFAULT_L16_RATE = 44100;
+
+    public final int sampleRate;
+    public final int channels;
+    public final int bitsPerSample;
+    public final boolean bigEndian;
+    /** Bytes before the first sample (the WAV header); 0 for L16. */
+    public final int headerLength;
+
+    PcmFormat(int sampleRate, int channels, int bitsPerSample, boolean bigEndian, int headerLength) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.bigEndian = bigEndian;
+        this.headerLength = headerLength;
+    }
+
+    public int frameSize() {
+        return channels * bitsPerSample / 8;
+    }
+
+    public long bytesToMs(long bytes) {
+        return bytes / frameSize() * 1000L / sampleRate;
+    }
+
+    /** Byte count for {@code ms} of audio, rounded down to whole frames. */
+    public long msToBytes(long ms) {
+        return ms * sampleRate / 1000L * frameSize();
+    }
+
+    public static boolean isL16(String mimeType) {
+        return mimeType != null && mimeType.trim().toLowerCase(Locale.US).startsWith("audio/l16");
+    }
+
+    public static boolean isWav(String mimeType) {
+        if (mimeType == null) return false;
+        String type = mimeType.trim().toLowerCase(Locale.US);
+        return type.startsWith("audio/wav") || type.startsWith("audio/x-wav") ||
+               type.startsWith("audio/wave") || type.startsWith("audio/vnd.wave");
+    }
+
+    /** {@code audio/L16;rate=48000;channels=2}; RFC 2586 defaults to one channel. */
+    public static PcmFormat fromL16(String mimeType) {
+        int rate = DEFAULT_L16_RATE;
+        int channels = 1;
+        String[] parts = mimeType.split(";");
+        for (int i = 1; i < parts.length; i++) {
+            String[] pair = parts[i].trim().split("=", 2);
+            if (pair.length != 2) continue;
+            try {
+                int value = Integer.parseInt(pair[1].trim().replace("\"", ""));
+                if ("rate".equalsIgnoreCase(pair[0].trim()) && value > 0) {
+                    rate = value;
+                } else if ("channels".equalsIgnoreCase(pair[0].trim()) && value > 0) {
+                    channels = value;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return new PcmFormat(rate, channels, 16, true, 0);
+    }
+
+    /**
+     * Parses the RIFF/WAVE header at the start of {@code header}. Returns null when
+     * more bytes are needed to reach the {@code data} chunk.
+     */
+    public static PcmFormat fromWavHeader(byte[] header, int length) throws IOException {
+        if (length < 12) return null;
+        if (!tag(header, 0, "RIFF") || !tag(header, 8, "WAVE")) {
+            throw new IOException("Not a RIFF/WAVE stream");
+        }
+        int position = 12;
+        int channels = 0;
+        int rate = 0;
+        int bits = 0;
+        while (position + 8 <= length) {
+            long size = littleEndian(header, position + 4, 4);
+            if (tag(header, position, "fmt ")) {
+                if (position + 8 + 16 > length) return null;
+                int encoding = (int) littleEndian(header, position + 8, 2);
+                // 1 — PCM, 0xFFFE — WAVE_FORMAT_EXTENSIBLE (в нём тоже обычно PCM)
+                if (encoding != 1 && encoding != 0xFFFE) {
+                    throw new IOException("Unsupported WAV encoding " + encoding);
+                }
+                channels = (int) littleEndian(header, position + 10, 2);
+                rate = (int) littleEndian(header, position + 12, 4);
+                bits = (int) littleEndian(header, position + 22, 2);
+            } else if (tag(header, position, "data")) {
+                if (channels <= 0 || rate <= 0 || (bits != 8 && bits != 16)) {
+                    throw new IOException("Unsupported WAV format: " + channels + " ch, " + rate + " Hz, " + bits + " bit");
+                }
+                return new PcmFormat(rate, channels, bits, false, position + 8);
+            }
+            position += 8 + (int) ((size + 1) & ~1L); // чанки выровнены на чётную границу
+        }
+        return null;
+    }
+
+    /** Swaps each pair of bytes in place: big-endian 16-bit samples to the little-endian AudioTrack wants. */
+    public static void swap16(byte[] data, int offset, int length) {
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            byte high = data[i];
+            data[i] = data[i + 1];
+            data[i + 1] = high;
+        }
+    }
+
+    private static boolean tag(byte[] data, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (data[offset + i] != tag.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static long littleEndian(byte[] data, int offset, int count) {
+        long value = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,597 @@
+package uk.me.hardill.weblauncher;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * {@link PlaybackEngine} for uncompressed PCM ({@code audio/L16} and WAV) that
+ * bypasses MediaPlayer and its seconds of buffering. A network thread reads the
+ * stream, swaps L16 samples to little-endian in place and pushes them through a
+ * {@link PcmRingBuffer} to an audio thread feeding a small streaming
+ * {@link AudioTrack}. Only ~{@link #PREBUFFER_MS} ms are buffered before playback
+ * starts, and live feeds that drift ahead are trimmed back, keeping latency
+ * under 100 ms. Callbacks arrive on the looper of the thread that created the engine.
+ *
+ * <p>Idle threads sleep on the session's monitor instead of polling: while paused
+ * neither thread runs and the network is not read, and a full or empty ring wakes
+ * the other side only when it is actually waiting. {@link #reset()} never blocks;
+ * the thread that owns the AudioTrack releases it once it sees the cancel.</p>
+ */
+public class PcmPlaybackEngine implements PlaybackEngine {
+    private static final String TAG = "DLNAPcm";
+    private static final int PREBUFFER_MS = 40;
+    private static final int RING_MS = 250;
+    private static final int TRACK_BUFFER_MS = 40;
+    private static final int LIVE_MAX_LATENCY_MS = 120;
+    private static final int NETWORK_CHUNK = 4096;
+    private static final int MAX_HEADER = 64 * 1024;
+    private static final long PREPARE_TIMEOUT_MS = 10000;
+    // Коды ошибок MediaPlayer, чтобы сервис обрабатывал их одинаково
+    private static final int MEDIA_ERROR_UNKNOWN = 1;
+    private static final int MEDIA_ERROR_IO = -1004;
+
+    private final Handler handler;
+    private Listener listener;
+    private String uri;
+    private String contentTypeHint;
+    private float volume = 1.0f;
+    private Session session;
+    // Известны после первой подготовки и нужны для перемотки
+    private PcmFormat format;
+    private long dataLength = -1;
+
+    public PcmPlaybackEngine() {
+        Looper looper = Looper.myLooper();
+        handler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    /** MIME type from DIDL, used for L16 when the server's Content-Type carries no rate/channels. */
+    public void setContentTypeHint(String mimeType) {
+        contentTypeHint = mimeType;
+    }
+
+    /** True for the MIME types this engine plays. */
+    public static boolean handles(String mimeType) {
+        return PcmFormat.isL16(mimeType) || PcmFormat.isWav(mimeType);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String uri) throws IOException {
+        if (session != null) throw new IllegalStateException("reset() first");
+        this.uri = uri;
+    }
+
+    @Override
+    public void prepareAsync() {
+        format = null;
+        dataLength = -1;
+        session = new Session(uri, 0, false);
+        session.begin();
+    }
+
+    @Override
+    public void start() {
+        if (session != null) session.play();
+    }
+
+    @Override
+    public void pause() {
+        if (session != null) session.pause();
+    }
+
+    @Override
+    public void stop() {
+        if (session != null) session.cancel();
+    }
+
+    @Override
+    public void reset() {
+        if (session != null) {
+            session.cancel();
+            session = null;
+        }
+        uri = null;
+        contentTypeHint = null;
+    }
+
+    @Override
+    public void release() {
+        reset();
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        Session current = session;
+        // Живой поток перематывать некуда
+        if (current == null || format == null || dataLength <= 0) return;
+        long offset = Math.min(format.msToBytes(Math.max(0, positionMs)), dataLength);
+        boolean playing = current.playWhenReady;
+        current.cancel();
+        session = new Session(uri, offset, true);
+        session.playWhenReady = playing;
+        session.begin();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        Session current = session;
+        return current != null ? (int) current.positionMs() : 0;
+    }
+
+    @Override
+    public int getDuration() {
+        return format != null && dataLength > 0 ? (int) format.bytesToMs(dataLength) : -1;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        Session current = session;
+        return current != null && current.playWhenReady && current.track != null && !current.finished;
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        this.volume = volume;
+        Session current = session;
+        AudioTrack track = current != null ? current.track : null;
+        if (track != null) {
+            track.setVolume(volume);
+        }
+    }
+
+    @Override
+    public boolean setPlaybackSpeed(float speed) {
+        Session current = session;
+        AudioTrack track = current != null ? current.track : null;
+        if (track == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return false;
+        try {
+            track.setPlaybackParams(track.getPlaybackParams().setSpeed(speed));
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void post(Runnable callback) {
+        handler.post(callback);
+    }
+
+    /**
+     * One connection: the network thread is the ring's producer, the audio thread
+     * its consumer. A seek replaces the whole session. The AudioTrack belongs to the
+     * audio thread once it is started, before that to the network thread.
+     */
+    private final class Session {
+        final String source;
+        final long startOffset; // байты от начала данных (после заголовка WAV)
+        final boolean seek;
+        volatile boolean cancelled = false;
+        volatile boolean playWhenReady = false;
+        volatile boolean endOfStream = false;
+        volatile boolean finished = false;
+        volatile AudioTrack track;
+        volatile PcmRingBuffer ring;
+        volatile PcmFormat sessionFormat;
+        volatile long framesWritten = 0;
+        boolean live = false;
+        Thread networkThread;
+        volatile Thread audioThread;
+        // Монитор для ожидания: пауза, пустое или полное кольцо, отмена
+        private final Object lock = new Object();
+        private volatile int waiters = 0;
+
+        Session(String source, long startOffset, boolean seek) {
+            this.source = source;
+            this.startOffset = startOffset;
+            this.seek = seek;
+        }
+
+        void begin() {
+            networkThread = new Thread(this::network, "PcmNetwork");
+            networkThread.setDaemon(true);
+            networkThread.start();
+        }
+
+        void play() {
+            synchronized (lock) {
+                playWhenReady = true;
+                AudioTrack current = track;
+                if (current != null && !cancelled) {
+                    current.play();
+                }
+                lock.notifyAll();
+            }
+        }
+
+        void pause() {
+            synchronized (lock) {
+                playWhenReady = false;
+                AudioTrack current = track;
+                if (current != null && !cancelled) {
+                    current.pause();
+                }
+                lock.notifyAll();
+            }
+        }
+
+        // Не ждёт потоков: дорожку освобождает тот, кому она принадлежит
+        void cancel() {
+            synchronized (lock) {
+                if (cancelled) return;
+                cancelled = true;
+                AudioTrack current = track;
+                if (current != null && audioThread != null) {
+                    // Освобождает поток, застрявший в блокирующем write()
+                    current.pause();
+                    current.flush();
+                }
+                lock.notifyAll();
+            }
+            if (networkThread != null) {
+                networkThread.interrupt();
+            }
+        }
+
+        // Будит другую сторону кольца, только если она спит
+        private void signal() {
+            if (waiters > 0) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        private void awaitCancel() {
+            synchronized (lock) {
+                while (!cancelled) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // прерывает только cancel()
+                    }
+                }
+            }
+        }
+
+        private void releaseTrack() {
+            synchronized (lock) {
+                AudioTrack current = track;
+                if (current != null) {
+                    current.release();
+                }
+            }
+        }
+
+        long positionMs() {
+            PcmFormat f = sessionFormat;
+            AudioTrack current = track;
+            long base = f != null ? f.bytesToMs(startOffset) : 0;
+            if (f == null || current == null || cancelled) return base;
+            long frames = current.getPlaybackHeadPosition() & 0xffffffffL;
+            return base + frames * 1000L / f.sampleRate;
+        }
+
+        private void network() {
+            HttpURLConnection connection = null;
+            try {
+                long offset = startOffset + (seek ? format.headerLength : 0);
+                connection = CachingStreamProxy.openUpstream(source, offset);
+                int code = connection.getResponseCode();
+                if (code >= 400) throw new IOException("HTTP " + code);
+                InputStream in = connection.getInputStream();
+                if (offset > 0 && code != 206) {
+                    skipFully(in, offset); // сервер не поддерживает Range
+                }
+                byte[] buffer = new byte[Math.max(NETWORK_CHUNK, MAX_HEADER)];
+                int filled = 0;
+                PcmFormat f;
+                if (seek) {
+                    f = format;
+                } else {
+                    String contentType = connection.getContentType();
+                    if (PcmFormat.isL16(contentType) && contentType.contains("rate=")) {
+                        f = PcmFormat.fromL16(contentType);
+                    } else if (PcmFormat.isL16(contentTypeHint) && !PcmFormat.isWav(contentType)) {
+                        f = PcmFormat.fromL16(contentTypeHint);
+                    } else if (PcmFormat.isL16(contentType)) {
+                        f = PcmFormat.fromL16(contentType);
+                    } else {
+                        // WAV: читаем, пока не дойдём до чанка data
+                        f = null;
+                        while (f == null) {
+                            int read = in.read(buffer, filled, buffer.length - filled);
+                            if (read == -1) throw new IOException("Stream ended inside the WAV header");
+                            filled += read;
+                            f = PcmFormat.fromWavHeader(buffer, filled);
+                            if (f == null && filled == buffer.length) throw new IOException("WAV header too large");
+                        }
+                        System.arraycopy(buffer, f.headerLength, buffer, 0, filled - f.headerLength);
+                        filled -= f.headerLength;
+                    }
+                    long length = connection.getContentLength();
+                    final long data = length > 0 ? length - f.headerLength : -1;
+                    final PcmFormat prepared = f;
+                    post(() -> {
+                        if (session == this) {
+                            format = prepared;
+                            dataLength = data;
+                        }
+                    });
+                    live = length <= 0;
+                }
+                sessionFormat = f;
+                createTrack(f);
+                pump(in, buffer, filled, f);
+            } catch (InterruptedException e) {
+                // cancel()
+            } catch (IOException e) {
+                if (!cancelled) {
+                    Log.w(TAG, "PCM stream failed: " + e.getMessage());
+                    post(() -> {
+                        if (session == this && listener != null) {
+                            listener.onError(PcmPlaybackEngine.this, MEDIA_ERROR_UNKNOWN, MEDIA_ERROR_IO);
+                        }
+                    });
+                }
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                if (audioThread == null && track != null) {
+                    // Воспроизведение так и не началось — дорожка наша
+                    awaitCancel();
+                    releaseTrack();
+                }
+            }
+        }
+
+        private void createTrack(PcmFormat f) throws IOException {
+            int channelMask = f.channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            if (f.channels > 2) throw new IOException("Unsupported channel count " + f.channels);
+            int encoding = f.bitsPerSample == 8 ? AudioFormat.ENCODING_PCM_8BIT : AudioFormat.ENCODING_PCM_16BIT;
+            int minBuffer = AudioTrack.getMinBufferSize(f.sampleRate, channelMask, encoding);
+            if (minBuffer <= 0) throw new IOException("Unsupported PCM format " + f.sampleRate + " Hz");
+            int bufferSize = Math.max(minBuffer, (int) f.msToBytes(TRACK_BUFFER_MS));
+            AudioTrack created;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                created = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(f.sampleRate)
+                        .setChannelMask(channelMask)
+                        .setEncoding(encoding)
+                        .build())
+                    .setBufferSizeInBytes(bufferSize)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .build();
+            } else {
+                created = new AudioTrack(AudioManager.STREAM_MUSIC, f.sampleRate, channelMask, encoding,
+                        bufferSize, AudioTrack.MODE_STREAM);
+            }
+            if (created.getState() != AudioTrack.STATE_INITIALIZED) {
+                created.release();
+                throw new IOException("AudioTrack could not be initialized");
+            }
+            created.setVolume(volume);
+            ring = new PcmRingBuffer((int) f.msToBytes(RING_MS));
+            track = created;
+        }
+
+        // Производитель: сеть → (перестановка байтов) → кольцо
+        private void pump(InputStream in, byte[] buffer, int filled, PcmFormat f)
+                throws IOException, InterruptedException {
+            int prebuffer = (int) f.msToBytes(PREBUFFER_MS);
+            long deadline = System.currentTimeMillis() + PREPARE_TIMEOUT_MS;
+            boolean started = false;
+            int carry = filled; // байты в начале буфера, ещё не отправленные в кольцо
+            while (!cancelled) {
+                if (started && !playWhenReady) {
+                    // На паузе сеть не читаем
+                    synchronized (lock) {
+                        while (!playWhenReady && !cancelled) {
+                            lock.wait();
+                        }
+                    }
+                    continue;
+                }
+                int read = carry < NETWORK_CHUNK ? in.read(buffer, carry, NETWORK_CHUNK - carry) : 0;
+                if (read == -1) {
+                    endOfStream = true;
+                    signal();
+                    break;
+                }
+                int ready = carry + read;
+                // Нечётный хвост L16 ждёт свою пару до следующего чтения
+                int usable = f.bigEndian ? ready & ~1 : ready;
+                if (f.bigEndian) {
+                    PcmFormat.swap16(buffer, 0, usable);
+                }
+                int offset = 0;
+                while (offset < usable && !cancelled) {
+                    int written = ring.write(buffer, offset, usable - offset);
+                    offset += written;
+                    if (written > 0) {
+                        signal();
+                    } else if (!started) {
+                        break; // кольцо заполнено до старта — стартуем ниже
+                    } else {
+                        synchronized (lock) {
+                            waiters++;
+                            try {
+                                while (ring.free() == 0 && !cancelled) {
+                                    lock.wait();
+                                }
+                            } finally {
+                                waiters--;
+                            }
+                        }
+                    }
+                }
+                System.arraycopy(buffer, offset, buffer, 0, ready - offset);
+                carry = ready - offset;
+                if (!started && (ring.available() >= prebuffer || ring.free() == 0 ||
+                        System.currentTimeMillis() > deadline)) {
+                    started = true;
+                    startAudio();
+                }
+            }
+            if (!started && !cancelled) {
+                startAudio(); // короткий файл целиком меньше предбуфера
+            }
+        }
+
+        private void startAudio() {
+            Thread thread = new Thread(this::audio, "PcmAudio");
+            thread.setDaemon(true);
+            synchronized (lock) {
+                audioThread = thread;
+            }
+            thread.start();
+            post(() -> {
+                if (session != this || cancelled) return;
+                if (playWhenReady) {
+                    play();
+                } else if (!seek && listener != null) {
+                    listener.onPrepared(PcmPlaybackEngine.this);
+                }
+            });
+        }
+
+        // Потребитель: кольцо → AudioTrack; write() блокируется, пока в дорожке нет места
+        private void audio() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            try {
+                if (consume()) {
+                    finish();
+                }
+            } catch (InterruptedException e) {
+                // не прерывается никем, кроме отмены
+            }
+            // После конца или ошибки дорожка живёт до отмены: по ней ещё считается позиция
+            awaitCancel();
+            releaseTrack();
+        }
+
+        // true — поток доигран до конца
+        private boolean consume() throws InterruptedException {
+            PcmFormat f = sessionFormat;
+            int frameSize = f.frameSize();
+            byte[] chunk = new byte[(int) Math.max(frameSize, f.msToBytes(10))];
+            int prebuffer = (int) f.msToBytes(PREBUFFER_MS);
+            int maxLatency = (int) f.msToBytes(LIVE_MAX_LATENCY_MS);
+            boolean buffering = false;
+            while (!cancelled) {
+                if (!playWhenReady) {
+                    synchronized (lock) {
+                        while (!playWhenReady && !cancelled) {
+                            lock.wait();
+                        }
+                    }
+                    continue;
+                }
+                int available = ring.available();
+                if (buffering && available < prebuffer && !endOfStream) {
+                    synchronized (lock) {
+                        waiters++;
+                        try {
+                            while (ring.available() < prebuffer && !endOfStream && playWhenReady && !cancelled) {
+                                lock.wait();
+                            }
+                        } finally {
+                            waiters--;
+                        }
+                    }
+                    continue;
+                }
+                if (buffering) {
+                    buffering = false;
+                    post(() -> {
+                        if (session == this && listener != null) listener.onBufferingEnd(PcmPlaybackEngine.this);
+                    });
+                }
+                if (live && available > maxLatency) {
+                    // Часы источника спешат относительно ЦАП — сбрасываем лишнее, а не копим задержку
+                    ring.skip((available - prebuffer) / frameSize * frameSize);
+                    available = ring.available();
+                    signal();
+                }
+                int count = Math.min(chunk.length, available) / frameSize * frameSize;
+                if (count == 0) {
+                    if (endOfStream) {
+                        return true;
+                    }
+                    buffering = true;
+                    post(() -> {
+                        if (session == this && listener != null) listener.onBufferingStart(PcmPlaybackEngine.this);
+                    });
+                    continue;
+                }
+                ring.read(chunk, 0, count);
+                signal();
+                int written = track.write(chunk, 0, count);
+                if (written < 0) {
+                    Log.w(TAG, "AudioTrack write failed: " + written);
+                    // Как и при сбое сети: без сообщения сервис так и остался бы в PLAYING
+                    if (!cancelled) {
+                        post(() -> {
+                            if (session == this && listener != null) {
+                                listener.onError(PcmPlaybackEngine.this, MEDIA_ERROR_UNKNOWN, written);
+                            }
+                        });
+                    }
+                    return false;
+                }
+                framesWritten += written / frameSize;
+            }
+            return false;
+        }
+
+        // Дожидаемся, пока дорожка доиграет записанное, и сообщаем о конце
+        private void finish() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            synchronized (lock) {
+                // Голову дорожки опрашиваем, но отмена будит сразу
+                while (!cancelled && (track.getPlaybackHeadPosition() & 0xffffffffL) < framesWritten &&
+                        System.currentTimeMillis() < deadline) {
+                    lock.wait(10);
+                }
+            }
+            if (cancelled) return;
+            finished = true;
+            post(() -> {
+                if (session == this && listener != null) listener.onCompletion(PcmPlaybackEngine.this);
+            });
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new IOException("Stream ended while skipping");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
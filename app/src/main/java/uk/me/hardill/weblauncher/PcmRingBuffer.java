@@ -0,0 +1,75 @@
+package uk.me.hardill.weblauncher;
+
+/**
+ * Lock-free single-producer/single-consumer byte ring between the network thread
+ * and the AudioTrack thread of {@link PcmPlaybackEngine}. {@link #write} is only
+ * called by the producer and {@link #read}/{@link #skip} only by the consumer;
+ * each side publishes its position through a volatile field after touching the
+ * data, so neither ever waits on a lock held by the other.
+ */
+public final class PcmRingBuffer {
+    private final byte[] data;
+    private final int mask;
+    private volatile long writePosition = 0;
+    private volatile long readPosition = 0;
+
+    /** {@code capacity} is rounded up to a power of two. */
+    public PcmRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        data = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    /** Bytes the consumer can read. */
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /** Bytes the producer can write. */
+    public int free() {
+        return data.length - available();
+    }
+
+    /** Producer side: copies up to {@code length} bytes in, returns how many fitted. */
+    public int write(byte[] source, int offset, int length) {
+        long position = writePosition;
+        int count = Math.min(length, data.length - (int) (position - readPosition));
+        if (count <= 0) return 0;
+        int index = (int) (position & mask);
+        int first = Math.min(count, data.length - index);
+        System.arraycopy(source, offset, data, index, first);
+        if (first < count) {
+            System.arraycopy(source, offset + first, data, 0, count - first);
+        }
+        writePosition = position + count;
+        return count;
+    }
+
+    /** Consumer side: copies up to {@code length} bytes out, returns how many were available. */
+    public int read(byte[] target, int offset, int length) {
+        long position = readPosition;
+        int count = Math.min(length, (int) (writePosition - position));
+        if (count <= 0) return 0;
+        int index = (int) (position & mask);
+        int first = Math.min(count, data.length - index);
+        System.arraycopy(data, index, target, offset, first);
+        if (first < count) {
+            System.arraycopy(data, 0, target, offset + first, count - first);
+        }
+        readPosition = position + count;
+        return count;
+    }
+
+    /** Consumer side: drops up to {@code count} of the oldest bytes, e.g. to cut latency. */
+    public int skip(int count) {
+        long position = readPosition;
+        int skipped = Math.min(count, (int) (writePosition - position));
+        if (skipped <= 0) return 0;
+        readPosition = position + skipped;
+        return skipped;
+    }
+}
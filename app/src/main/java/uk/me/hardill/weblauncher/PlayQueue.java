@@ -0,0 +1,322 @@
+package uk.me.hardill.weblauncher;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Renderer-side play queue backing AVTransport Next/Previous and Seek by TRACK_NR.
+ * Filled from SetAVTransportURI (single items, DIDL lists, m3u playlists) and
+ * SetNextAVTransportURI, so the renderer can move through an album on its own.
+ */
+public class PlayQueue {
+
+    /**
+     * One queue entry. Title, artist, album, duration and content type are extracted
+     * once when the item is queued, so switching tracks does not need to reparse the DIDL.
+     */
+    public static class Item {
+        public final String uri;
+        public final String metaData;
+        public final String title;
+        public final String artist;
+        public final String album;
+        public final long durationMs;
+        public final String contentType;
+        public final String albumArtUri;
+
+        public Item(String uri, String metaData) {
+            this(uri, metaData, null);
+        }
+
+        public Item(String uri, String metaData, String titleHint) {
+            this.uri = uri;
+            this.metaData = metaData != null ? metaData : "";
+            String parsedTitle = extractElement(this.metaData, "dc:title");
+            this.title = parsedTitle != null ? parsedTitle : (titleHint != null ? titleHint : "");
+            String parsedArtist = extractElement(this.metaData, "upnp:artist");
+            if (parsedArtist == null) {
+                parsedArtist = extractElement(this.metaData, "dc:creator");
+            }
+            this.artist = parsedArtist != null ? parsedArtist : "";
+            String parsedAlbum = extractElement(this.metaData, "upnp:album");
+            this.album = parsedAlbum != null ? parsedAlbum : "";
+            this.durationMs = parseDuration(extractAttribute(this.metaData, "duration"));
+            String protocolInfo = extractAttribute(this.metaData, "protocolInfo");
+            String type = null;
+            if (protocolInfo != null) {
+                String[] parts = protocolInfo.split(":");
+                if (parts.length >= 3) {
+                    type = parts[2];
+                }
+            }
+            this.contentType = type != null ? type : "";
+            String art = extractElement(this.metaData, "upnp:albumArtURI");
+            this.albumArtUri = art != null ? unescapeXml(art.trim()) : "";
+        }
+
+        private Item(Item base, String title, String contentType) {
+            this.uri = base.uri;
+            this.metaData = base.metaData;
+            this.title = title;
+            this.artist = base.artist;
+            this.album = base.album;
+            this.durationMs = base.durationMs;
+            this.contentType = contentType;
+            this.albumArtUri = base.albumArtUri;
+        }
+
+        /**
+         * Copy with the type and name announced in the stream's response headers filled
+         * in where the DIDL had none; returns this item if nothing changes.
+         */
+        public Item withStreamInfo(String streamType, String streamName) {
+            String newTitle = title.isEmpty() && streamName != null ? streamName.trim() : title;
+            String newType = contentType.isEmpty() && streamType != null ? streamType.trim() : contentType;
+            if (newTitle.equals(title) && newType.equals(contentType)) {
+                return this;
+            }
+            return new Item(this, newTitle, newType);
+        }
+    }
+
+    private static final String DIDL_HEADER = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" " +
+            "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" " +
+            "xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\" " +
+            "xmlns:dlna=\"urn:schemas-dlna-org:metadata-1-0/\">";
+    private static final String[][] DEFAULT_NAMESPACES = {
+        { "xmlns=", "xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\"" },
+        { "xmlns:dc=", "xmlns:dc=\"http://purl.org/dc/elements/1.1/\"" },
+        { "xmlns:upnp=", "xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\"" },
+        { "xmlns:dlna=", "xmlns:dlna=\"urn:schemas-dlna-org:metadata-1-0/\"" }
+    };
+
+    private final List<Item> items = new ArrayList<>();
+    private int currentIndex = -1;
+    private Item nextItem;
+
+    /** Replaces the whole queue and makes {@code startIndex} the current track. */
+    public synchronized void replace(List<Item> newItems, int startIndex) {
+        items.clear();
+        items.addAll(newItems);
+        nextItem = null;
+        currentIndex = items.isEmpty() ? -1 : Math.max(0, Math.min(startIndex, items.size() - 1));
+    }
+
+    public synchronized void clear() {
+        items.clear();
+        nextItem = null;
+        currentIndex = -1;
+    }
+
+    /** Stores the item announced via SetNextAVTransportURI. */
+    public synchronized void setNext(Item item) {
+        nextItem = item;
+    }
+
+    public synchronized Item current() {
+        return currentIndex >= 0 ? items.get(currentIndex) : null;
+    }
+
+    /** Item that {@link #advance()} would move to, or null at the end of the queue. */
+    public synchronized Item peekNext() {
+        if (currentIndex + 1 < items.size()) {
+            return items.get(currentIndex + 1);
+        }
+        return nextItem;
+    }
+
+    public synchronized Item advance() {
+        if (currentIndex + 1 < items.size()) {
+            currentIndex++;
+            return items.get(currentIndex);
+        }
+        if (nextItem != null) {
+            items.add(nextItem);
+            nextItem = null;
+            currentIndex = items.size() - 1;
+            return items.get(currentIndex);
+        }
+        return null;
+    }
+
+    public synchronized Item previous() {
+        if (currentIndex > 0) {
+            currentIndex--;
+            return items.get(currentIndex);
+        }
+        return null;
+    }
+
+    /** Moves to a 1-based track number, as used by Seek with Unit TRACK_NR. */
+    public synchronized Item jumpTo(int trackNumber) {
+        if (trackNumber < 1 || trackNumber > items.size()) {
+            return null;
+        }
+        currentIndex = trackNumber - 1;
+        return items.get(currentIndex);
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    /** 1-based number of the current track, 0 when the queue is empty. */
+    public synchronized int currentTrackNumber() {
+        return currentIndex + 1;
+    }
+
+    public synchronized List<Item> snapshot() {
+        return Collections.unmodifiableList(new ArrayList<>(items));
+    }
+
+    /**
+     * Splits a DIDL-Lite document into one item per {@code <item>} element. Each item
+     * keeps its own DIDL-Lite wrapper, with the namespace declarations of the source
+     * root, so it can be reported as CurrentTrackMetaData.
+     */
+    public static List<Item> parseDidlItems(String didl) {
+        List<Item> result = new ArrayList<>();
+        if (didl == null) return result;
+        String header = rootStartTag(didl);
+        int pos = 0;
+        while (true) {
+            int start = indexOfElement(didl, "item", pos);
+            if (start == -1) break;
+            int end = didl.indexOf("</item>", start);
+            if (end == -1) break;
+            end += "</item>".length();
+            String itemXml = didl.substring(start, end);
+            String res = extractElement(itemXml, "res");
+            if (res != null && !res.isEmpty()) {
+                result.add(new Item(res, header + itemXml + "</DIDL-Lite>"));
+            }
+            pos = end;
+        }
+        return result;
+    }
+
+    // Корневой тег исходного документа: в нём объявлены dlna:, pv:, sec: и прочие префиксы
+    // элементов. Стандартные пространства имён дописываются, если сервер их не объявил
+    static String rootStartTag(String didl) {
+        int start = indexOfElement(didl, "DIDL-Lite", 0);
+        int end = start != -1 ? didl.indexOf('>', start) : -1;
+        if (end == -1 || didl.charAt(end - 1) == '/') return DIDL_HEADER;
+        StringBuilder tag = new StringBuilder(didl.substring(start, end));
+        for (String[] namespace : DEFAULT_NAMESPACES) {
+            if (!declares(tag, namespace[0])) {
+                tag.append(' ').append(namespace[1]);
+            }
+        }
+        return tag.append('>').toString();
+    }
+
+    private static boolean declares(CharSequence tag, String attribute) {
+        String text = tag.toString();
+        for (int idx = text.indexOf(attribute); idx > 0; idx = text.indexOf(attribute, idx + 1)) {
+            if (Character.isWhitespace(text.charAt(idx - 1))) return true;
+        }
+        return false;
+    }
+
+    /** Parses an (extended) m3u playlist, resolving relative entries against {@code baseUri}. */
+    public static List<Item> parseM3u(String body, String baseUri) {
+        List<Item> result = new ArrayList<>();
+        if (body == null) return result;
+        String pendingTitle = null;
+        for (String rawLine : body.split("\r?\n")) {
+            String line = rawLine.trim();
+            if (line.isEmpty()) continue;
+            if (line.startsWith("#EXTINF:")) {
+                int comma = line.indexOf(',');
+                pendingTitle = comma != -1 ? line.substring(comma + 1).trim() : null;
+                continue;
+            }
+            if (line.startsWith("#")) continue;
+            result.add(new Item(resolve(baseUri, line), "", pendingTitle));
+            pendingTitle = null;
+        }
+        return result;
+    }
+
+    /** True for m3u bodies that are really HLS media/master playlists. */
+    public static boolean isHlsPlaylist(String body) {
+        return body != null && body.contains("#EXT-X-");
+    }
+
+    static String resolve(String baseUri, String entry) {
+        if (baseUri == null || entry.contains("://")) {
+            return entry;
+        }
+        try {
+            return new URI(baseUri).resolve(entry.replace(" ", "%20")).toString();
+        } catch (Exception e) {
+            return entry;
+        }
+    }
+
+    static int indexOfElement(String xml, String name, int from) {
+        int idx = from;
+        while (true) {
+            idx = xml.indexOf("<" + name, idx);
+            if (idx == -1) return -1;
+            int after = idx + name.length() + 1;
+            if (after < xml.length()) {
+                char c = xml.charAt(after);
+                if (c == '>' || c == ' ' || c == '/' || c == '\t' || c == '\r' || c == '\n') {
+                    return idx;
+                }
+            }
+            idx = after;
+        }
+    }
+
+    static String extractElement(String xml, String name) {
+        if (xml == null) return null;
+        int start = indexOfElement(xml, name, 0);
+        if (start == -1) return null;
+        int contentStart = xml.indexOf('>', start);
+        if (contentStart == -1 || xml.charAt(contentStart - 1) == '/') return null;
+        contentStart++;
+        int end = xml.indexOf("</" + name + ">", contentStart);
+        if (end == -1) return null;
+        return unescapeXml(xml.substring(contentStart, end).trim());
+    }
+
+    static String extractAttribute(String xml, String name) {
+        if (xml == null) return null;
+        String marker = name + "=\"";
+        int start = xml.indexOf(marker);
+        if (start == -1) return null;
+        start += marker.length();
+        int end = xml.indexOf('"', start);
+        if (end == -1) return null;
+        return unescapeXml(xml.substring(start, end));
+    }
+
+    /** Parses a DIDL {@code res@duration} value (H+:MM:SS[.F+]); 0 if absent or malformed. */
+    static long parseDuration(String value) {
+        if (value == null) return 0;
+        String[] parts = value.trim().split(":");
+        if (parts.length != 3) return 0;
+        try {
+            long hours = Long.parseLong(parts[0]);
+            long minutes = Long.parseLong(parts[1]);
+            double seconds = Double.parseDouble(parts[2]);
+            if (hours < 0 || minutes < 0 || seconds < 0) return 0;
+            return hours * 3600000L + minutes * 60000L + Math.round(seconds * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static String unescapeXml(String s) {
+        if (s == null || s.indexOf('&') == -1) return s;
+        return s.replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+}
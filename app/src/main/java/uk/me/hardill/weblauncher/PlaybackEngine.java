@@ -0,0 +1,61 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.IOException;
+
+/**
+ * Audio backend used by {@link UpnpAudioRendererService}. The transport state
+ * machine only talks to this interface, so it can run against
+ * {@link MediaPlayerEngine} on a device or {@link FakePlaybackEngine} in JVM tests
+ * and benchmarks.
+ */
+public interface PlaybackEngine {
+
+    /** Playback callbacks, mirroring the MediaPlayer listeners the renderer relies on. */
+    interface Listener {
+        void onPrepared(PlaybackEngine engine);
+
+        void onCompletion(PlaybackEngine engine);
+
+        /** Returns true if the error was handled. */
+        boolean onError(PlaybackEngine engine, int what, int extra);
+
+        void onBufferingStart(PlaybackEngine engine);
+
+        void onBufferingEnd(PlaybackEngine engine);
+
+        void onBufferingUpdate(PlaybackEngine engine, int percent);
+    }
+
+    void setListener(Listener listener);
+
+    void setDataSource(String uri) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void reset();
+
+    void release();
+
+    void seekTo(int positionMs);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    boolean isPlaying();
+
+    /** Volume from 0.0 to 1.0, applied to both channels. */
+    void setVolume(float volume);
+
+    /**
+     * Playback rate, 1.0 being normal. Only call while playing; returns false if the
+     * backend cannot change the rate.
+     */
+    boolean setPlaybackSpeed(float speed);
+}
@@ -0,0 +1,289 @@
+package uk.me.hardill.weblauncher;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of what the renderer is playing, used to
+ * resume after the process is killed. A TRACK record is written when a track
+ * starts and small POSITION records are appended every few seconds. The file
+ * has a fixed size: when it is full, writing wraps to the start and the
+ * current TRACK record is written again first, so the newest records always
+ * describe a complete state. All file work runs on one background thread.
+ */
+public class PlaybackJournal {
+    private static final String TAG = "DLNAJournal";
+
+    static final int FILE_SIZE = 64 * 1024;
+    private static final int MAGIC = 0x504a524e; // "PJRN"
+    // magic, payload length, sequence, type, crc
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 4;
+    private static final int MAX_METADATA_BYTES = 16 * 1024;
+    // После оборота кольца запись трека и позиция должны поместиться вместе
+    static final int MAX_TRACK_RECORD = FILE_SIZE / 2;
+    private static final byte TYPE_TRACK = 1;
+    private static final byte TYPE_POSITION = 2;
+
+    /** State recovered from the journal. */
+    public static class Snapshot {
+        public final String uri;
+        public final String metaData;
+        public final String title;
+        public final String artist;
+        public final int positionMs;
+        public final String transportState;
+
+        Snapshot(String uri, String metaData, String title, String artist, int positionMs, String transportState) {
+            this.uri = uri;
+            this.metaData = metaData;
+            this.title = title;
+            this.artist = artist;
+            this.positionMs = positionMs;
+            this.transportState = transportState;
+        }
+    }
+
+    public interface RecoveryListener {
+        /** Called on the journal thread; {@code snapshot} is null when there is nothing to resume. */
+        void onRecovered(Snapshot snapshot);
+    }
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "PlaybackJournal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Поля ниже используются только из потока журнала
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int writePosition = 0;
+    private long sequence = 0;
+    private long trackSequence = -1;
+    private byte[] trackPayload;
+    private final CRC32 crc = new CRC32();
+
+    public PlaybackJournal(File file) {
+        this.file = file;
+    }
+
+    /** Maps the journal and reports the last recorded state to {@code listener}. */
+    public void open(RecoveryListener listener) {
+        executor.execute(() -> {
+            Snapshot snapshot = null;
+            try {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                randomAccessFile.setLength(FILE_SIZE);
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                snapshot = scan();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open playback journal", e);
+                buffer = null;
+            }
+            if (listener != null) {
+                listener.onRecovered(snapshot);
+            }
+        });
+    }
+
+    /** Records a newly started track. */
+    public void recordTrack(String uri, String metaData, String title, String artist) {
+        executor.execute(() -> {
+            if (buffer == null) return;
+            try {
+                // Слишком большие метаданные не сохраняем, трек всё равно восстановится по URI
+                byte[] payload = encodeTrack(uri,
+                    metaData != null && metaData.length() <= MAX_METADATA_BYTES / 3 ? metaData : "", title, artist);
+                if (HEADER_SIZE + payload.length > MAX_TRACK_RECORD) {
+                    payload = encodeTrack(uri, "", "", "");
+                }
+                if (HEADER_SIZE + payload.length > MAX_TRACK_RECORD) {
+                    // Пустой трек вместо него: после перезапуска не возобновлять предыдущий
+                    Log.w(TAG, "URI too long to journal (" + payload.length + " bytes)");
+                    payload = encodeTrack("", "", "", "");
+                }
+                trackPayload = payload;
+                trackSequence = append(TYPE_TRACK, trackPayload);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal track", e);
+            }
+        });
+    }
+
+    private static byte[] encodeTrack(String uri, String metaData, String title, String artist) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, uri);
+        writeString(out, metaData);
+        writeString(out, title);
+        writeString(out, artist);
+        return bytes.toByteArray();
+    }
+
+    /** Records the position and transport state of the current track. */
+    public void recordPosition(int positionMs, String transportState) {
+        executor.execute(() -> {
+            if (buffer == null || trackSequence < 0) return;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeLong(trackSequence);
+                out.writeInt(positionMs);
+                writeString(out, transportState);
+                append(TYPE_POSITION, bytes.toByteArray());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal position", e);
+            }
+        });
+    }
+
+    /** Flushes the mapping and stops the journal thread once queued records are written. */
+    public void close() {
+        executor.execute(() -> {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                }
+                randomAccessFile = null;
+            }
+        });
+        executor.shutdown();
+    }
+
+    // Для тестов: ждёт, пока close() допишет очередь и отпустит файл
+    boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private long append(byte type, byte[] payload) {
+        int size = HEADER_SIZE + payload.length;
+        if (writePosition + size + 4 > FILE_SIZE) {
+            // Кольцо: начинаем сначала и первым делом повторяем запись текущего трека
+            writePosition = 0;
+            if (type == TYPE_POSITION && trackPayload != null) {
+                long newTrackSequence = writeRecord(TYPE_TRACK, trackPayload);
+                relinkPosition(payload, newTrackSequence);
+                trackSequence = newTrackSequence;
+            }
+        }
+        return writeRecord(type, payload);
+    }
+
+    // Позиция ссылается на порядковый номер записи трека — он поменялся при повторе
+    private static void relinkPosition(byte[] payload, long trackSequence) {
+        ByteBuffer.wrap(payload).putLong(0, trackSequence);
+    }
+
+    private long writeRecord(byte type, byte[] payload) {
+        long seq = ++sequence;
+        crc.reset();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+        int start = writePosition;
+        buffer.position(start + 4);
+        buffer.putInt(payload.length);
+        buffer.putLong(seq);
+        buffer.put(type);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        // Маркер конца: при чтении старые записи за ним не рассматриваются
+        if (buffer.position() + 4 <= FILE_SIZE) {
+            buffer.putInt(buffer.position(), 0);
+        }
+        // magic пишем последним, чтобы недописанная запись не считалась целой
+        buffer.putInt(start, MAGIC);
+        writePosition = start + HEADER_SIZE + payload.length;
+        return seq;
+    }
+
+    private Snapshot scan() {
+        String uri = null;
+        String metaData = "";
+        String title = "";
+        String artist = "";
+        int positionMs = 0;
+        String state = "STOPPED";
+        int position = 0;
+        try {
+            while (position + HEADER_SIZE <= FILE_SIZE) {
+                buffer.position(position);
+                if (buffer.getInt() != MAGIC) break;
+                int length = buffer.getInt();
+                if (length < 0 || position + HEADER_SIZE + length > FILE_SIZE) break;
+                long seq = buffer.getLong();
+                byte type = buffer.get();
+                int storedCrc = buffer.getInt();
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != storedCrc || seq <= sequence) break;
+
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                if (type == TYPE_TRACK) {
+                    uri = readString(in);
+                    metaData = readString(in);
+                    title = readString(in);
+                    artist = readString(in);
+                    positionMs = 0;
+                    state = "STOPPED";
+                    trackSequence = seq;
+                    trackPayload = payload;
+                } else if (type == TYPE_POSITION && in.getLong() == trackSequence) {
+                    positionMs = in.getInt();
+                    state = readString(in);
+                }
+                sequence = seq;
+                position += HEADER_SIZE + length;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Journal ends with a damaged record at " + position);
+        }
+        writePosition = position;
+        if (uri == null || uri.isEmpty()) {
+            return null;
+        }
+        Log.i(TAG, "Recovered " + state + " at " + positionMs + " ms: " + uri);
+        return new Snapshot(uri, metaData, title, artist, positionMs, state);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, java.nio.charset.Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,226 @@
+package uk.me.hardill.weblauncher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Playback quality counters for the renderer: time from SetAVTransportURI to
+ * prepared and to first audio, rebuffer count and stall time, and error rates
+ * per host and content type. Latencies go into fixed-size log2 histograms so the
+ * collector never grows, however long the renderer runs.
+ */
+public class PlaybackMetrics {
+    private static final int MAX_KEYS = 64;
+
+    /** Histogram with power-of-two millisecond buckets: [0,1), [1,2), [2,4) ... [2^30, ∞). */
+    public static class Histogram {
+        private static final int BUCKETS = 32;
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        synchronized void record(long valueMs) {
+            long value = Math.max(0, valueMs);
+            int bucket = value == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            counts[bucket]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        /** Upper bound of the bucket holding the given percentile (0-100). */
+        public synchronized long percentile(double p) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        public synchronized long count() {
+            return count;
+        }
+
+        synchronized void appendJson(StringBuilder sb) {
+            sb.append("{\"count\":").append(count)
+              .append(",\"mean\":").append(count > 0 ? sum / count : 0)
+              .append(",\"p50\":").append(percentile(50))
+              .append(",\"p90\":").append(percentile(90))
+              .append(",\"p99\":").append(percentile(99))
+              .append(",\"max\":").append(max)
+              .append(",\"buckets\":[");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(counts[i]);
+            }
+            sb.append("]}");
+        }
+    }
+
+    public final Histogram uriToPrepared = new Histogram();
+    public final Histogram prepareDuration = new Histogram();
+    public final Histogram uriToFirstAudio = new Histogram();
+    public final Histogram stallDuration = new Histogram();
+
+    // key -> {attempts, errors}
+    private final Map<String, long[]> hostStats = new LinkedHashMap<>();
+    private final Map<String, long[]> contentTypeStats = new LinkedHashMap<>();
+
+    private long uriSetAt = -1;
+    private long prepareStartedAt = -1;
+    private long stallStartedAt = -1;
+    private boolean audioStarted = false;
+    private String currentHost = "";
+    private String currentContentType = "";
+    private long rebufferCount = 0;
+    private int lastBufferPercent = 0;
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public synchronized void onTransportUriSet() {
+        uriSetAt = now();
+    }
+
+    public synchronized void onPrepareStarted(String uri, String contentType) {
+        prepareStartedAt = now();
+        if (uriSetAt < 0) {
+            uriSetAt = prepareStartedAt;
+        }
+        stallStartedAt = -1;
+        audioStarted = false;
+        lastBufferPercent = 0;
+        currentHost = hostOf(uri);
+        currentContentType = contentType != null ? contentType : "";
+        stats(hostStats, currentHost)[0]++;
+        stats(contentTypeStats, currentContentType)[0]++;
+    }
+
+    public synchronized void onPrepared() {
+        long t = now();
+        if (prepareStartedAt >= 0) {
+            prepareDuration.record(t - prepareStartedAt);
+        }
+        if (uriSetAt >= 0) {
+            uriToPrepared.record(t - uriSetAt);
+        }
+    }
+
+    /** Called once the playback position first moves after a start. */
+    public synchronized void onFirstAudio() {
+        if (audioStarted) return;
+        audioStarted = true;
+        if (uriSetAt >= 0) {
+            uriToFirstAudio.record(now() - uriSetAt);
+            uriSetAt = -1;
+        }
+    }
+
+    public synchronized boolean isAwaitingFirstAudio() {
+        return prepareStartedAt >= 0 && !audioStarted;
+    }
+
+    public synchronized void onBufferingStart() {
+        // Буферизацию до первого звука считаем стартом, а не ребуфером
+        if (audioStarted && stallStartedAt < 0) {
+            stallStartedAt = now();
+            rebufferCount++;
+        }
+    }
+
+    public synchronized void onBufferingEnd() {
+        if (stallStartedAt >= 0) {
+            stallDuration.record(now() - stallStartedAt);
+            stallStartedAt = -1;
+        }
+    }
+
+    public synchronized void onBufferingUpdate(int percent) {
+        lastBufferPercent = percent;
+    }
+
+    public synchronized void onError() {
+        onBufferingEnd();
+        stats(hostStats, currentHost)[1]++;
+        stats(contentTypeStats, currentContentType)[1]++;
+        prepareStartedAt = -1;
+        uriSetAt = -1;
+    }
+
+    public synchronized void onPlaybackEnded() {
+        onBufferingEnd();
+        prepareStartedAt = -1;
+    }
+
+    public synchronized long getRebufferCount() {
+        return rebufferCount;
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("{\"uriToPreparedMs\":");
+        uriToPrepared.appendJson(sb);
+        sb.append(",\"prepareMs\":");
+        prepareDuration.appendJson(sb);
+        sb.append(",\"uriToFirstAudioMs\":");
+        uriToFirstAudio.appendJson(sb);
+        sb.append(",\"stallMs\":");
+        stallDuration.appendJson(sb);
+        sb.append(",\"rebuffers\":").append(rebufferCount);
+        sb.append(",\"bufferPercent\":").append(lastBufferPercent);
+        sb.append(",\"hosts\":");
+        appendStats(sb, hostStats);
+        sb.append(",\"contentTypes\":");
+        appendStats(sb, contentTypeStats);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static void appendStats(StringBuilder sb, Map<String, long[]> stats) {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, long[]> entry : stats.entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            long[] value = entry.getValue();
+            sb.append('"').append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":{\"attempts\":")
+              .append(value[0]).append(",\"errors\":").append(value[1]).append('}');
+        }
+        sb.append('}');
+    }
+
+    // Ограничиваем число ключей, чтобы коллектор не рос бесконечно
+    private static long[] stats(Map<String, long[]> map, String key) {
+        long[] value = map.get(key);
+        if (value == null) {
+            if (map.size() >= MAX_KEYS) {
+                key = "other";
+                value = map.get(key);
+            }
+            if (value == null) {
+                value = new long[2];
+                map.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    private static String hostOf(String uri) {
+        if (uri == null) return "";
+        int scheme = uri.indexOf("://");
+        if (scheme == -1) return "local";
+        int start = scheme + 3;
+        int end = start;
+        while (end < uri.length() && "/?#".indexOf(uri.charAt(end)) == -1) {
+            end++;
+        }
+        return uri.substring(start, end);
+    }
+}
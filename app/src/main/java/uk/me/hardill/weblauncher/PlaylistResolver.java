@@ -0,0 +1,357 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resolves playlist wrappers (m3u, pls, asx, HLS master) that MediaPlayer cannot
+ * open or opens slowly. Playlists are fetched on a background thread and parsed
+ * into either a station (alternative URLs of one stream, tried in order) or a
+ * list of tracks for the queue. Results are cached by URL for {@link #DEFAULT_TTL_MS},
+ * so replaying a station starts without the extra round trip.
+ */
+public class PlaylistResolver {
+    static final long DEFAULT_TTL_MS = 30 * 60 * 1000;
+    static final int MAX_ENTRIES = 32;
+    private static final int MAX_BODY = 256 * 1024;
+
+    /** Parsed playlist. */
+    public static final class Resolution {
+        public final List<PlayQueue.Item> entries;
+        /** True when the entries are mirrors/variants of one stream rather than separate tracks. */
+        public final boolean station;
+
+        Resolution(List<PlayQueue.Item> entries, boolean station) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.station = station;
+        }
+    }
+
+    /**
+     * Called on the resolver thread. {@code resolution} is null if the fetch failed;
+     * no entries means the URL is not a playlist after all and plays as is.
+     */
+    public interface Callback {
+        void onResolved(String playlistUrl, Resolution resolution, Exception error);
+    }
+
+    private static final class Cached {
+        final Resolution resolution;
+        final long expiresAt;
+
+        Cached(Resolution resolution, long expiresAt) {
+            this.resolution = resolution;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMs;
+    private final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PlaylistResolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PlaylistResolver() {
+        this(DEFAULT_TTL_MS);
+    }
+
+    PlaylistResolver(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /** Cached resolution of {@code url}, or null if unknown or expired. */
+    public Resolution cached(String url) {
+        String key = TrackMetadataCache.normalize(url);
+        synchronized (cache) {
+            Cached entry = cache.get(key);
+            if (entry == null) return null;
+            if (System.currentTimeMillis() >= entry.expiresAt) {
+                cache.remove(key);
+                return null;
+            }
+            return entry.resolution;
+        }
+    }
+
+    void store(String url, Resolution resolution) {
+        synchronized (cache) {
+            cache.put(TrackMetadataCache.normalize(url), new Cached(resolution, System.currentTimeMillis() + ttlMs));
+        }
+    }
+
+    /** Drops {@code url} from the cache, e.g. after none of its entries played. */
+    public void invalidate(String url) {
+        synchronized (cache) {
+            cache.remove(TrackMetadataCache.normalize(url));
+        }
+    }
+
+    /** Moves the station entry that just played to the front, so the next play tries it first. */
+    public void promote(String url, String workingUri) {
+        String key = TrackMetadataCache.normalize(url);
+        synchronized (cache) {
+            Cached entry = cache.get(key);
+            if (entry == null || !entry.resolution.station) return;
+            List<PlayQueue.Item> entries = new ArrayList<>(entry.resolution.entries);
+            for (int i = 1; i < entries.size(); i++) {
+                if (entries.get(i).uri.equals(workingUri)) {
+                    entries.add(0, entries.remove(i));
+                    cache.put(key, new Cached(new Resolution(entries, true), entry.expiresAt));
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Fetches and parses {@code url} on the resolver thread (or answers from the cache). */
+    public void resolve(String url, Callback callback) {
+        executor.execute(() -> {
+            Resolution resolution = cached(url);
+            if (resolution != null) {
+                callback.onResolved(url, resolution, null);
+                return;
+            }
+            try {
+                resolution = fetch(url);
+                if (resolution == null) {
+                    // Запоминаем и отрицательный ответ, чтобы не скачивать HLS-плейлист при каждом запуске
+                    resolution = new Resolution(new ArrayList<PlayQueue.Item>(), false);
+                }
+                store(url, resolution);
+                callback.onResolved(url, resolution, null);
+            } catch (IOException e) {
+                callback.onResolved(url, null, e);
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static Resolution fetch(String url) throws IOException {
+        HttpURLConnection connection = CachingStreamProxy.openUpstream(url, 0);
+        try (InputStream in = connection.getInputStream()) {
+            String contentType = connection.getContentType();
+            // Сервер может отдать сразу поток вместо плейлиста — тогда разрешать нечего
+            if (contentType != null && contentType.startsWith("audio/") && !isPlaylistContentType(contentType)) {
+                return null;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1 && body.size() < MAX_BODY) {
+                body.write(buffer, 0, read);
+            }
+            String finalUrl = connection.getURL().toString(); // после редиректов
+            return parse(body.toString("UTF-8"), finalUrl);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /** True for URIs whose extension names a playlist format. */
+    public static boolean isPlaylistUri(String uri) {
+        String path = uri.toLowerCase(Locale.US);
+        int end = path.indexOf('?');
+        if (end == -1) end = path.indexOf('#');
+        if (end != -1) path = path.substring(0, end);
+        return path.endsWith(".m3u") || path.endsWith(".m3u8") || path.endsWith(".pls") ||
+               path.endsWith(".asx") || path.endsWith(".wax") || path.endsWith(".wvx");
+    }
+
+    /** True for playlist MIME types, including the ones servers send for HLS. */
+    public static boolean isPlaylistContentType(String contentType) {
+        if (contentType == null) return false;
+        String type = contentType.toLowerCase(Locale.US);
+        return type.contains("mpegurl") || type.contains("scpls") || type.contains("x-ms-asf") ||
+               type.contains("x-ms-wax") || type.contains("x-ms-wvx") || type.contains("video/x-ms-asx");
+    }
+
+    /**
+     * Parses a playlist body; null when there is nothing to resolve (an HLS media
+     * playlist that MediaPlayer plays itself, or a body with no entries).
+     */
+    static Resolution parse(String body, String baseUrl) {
+        String text = body.trim();
+        if (text.startsWith("\uFEFF")) text = text.substring(1);
+        String lower = text.toLowerCase(Locale.US);
+        List<PlayQueue.Item> entries;
+        boolean station;
+        if (lower.startsWith("[playlist]")) {
+            entries = new ArrayList<>();
+            station = parsePls(text, baseUrl, entries);
+        } else if (lower.startsWith("<asx")) {
+            entries = parseAsx(text, baseUrl);
+            station = true;
+        } else if (text.startsWith("<DIDL-Lite")) {
+            entries = PlayQueue.parseDidlItems(text);
+            station = false;
+        } else if (text.contains("#EXT-X-STREAM-INF")) {
+            entries = hlsVariants(text, baseUrl);
+            station = true;
+        } else if (text.contains("#EXT-X-")) {
+            return null;
+        } else {
+            entries = PlayQueue.parseM3u(text, baseUrl);
+            station = entries.size() == 1 || m3uIsLive(text);
+        }
+        return entries.isEmpty() ? null : new Resolution(entries, station);
+    }
+
+    // Все #EXTINF с длительностью -1 — это зеркала одной станции, а не треки
+    private static boolean m3uIsLive(String body) {
+        boolean seen = false;
+        for (String line : body.split("\r?\n")) {
+            line = line.trim();
+            if (!line.startsWith("#EXTINF:")) continue;
+            seen = true;
+            int end = line.indexOf(',');
+            String duration = (end != -1 ? line.substring(8, end) : line.substring(8)).trim();
+            int space = duration.indexOf(' ');
+            if (space != -1) duration = duration.substring(0, space);
+            try {
+                if (Double.parseDouble(duration) > 0) return false;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return seen;
+    }
+
+    // File1=, Title1=, Length1= — нумерация может идти не по порядку; возвращает признак станции
+    private static boolean parsePls(String body, String baseUrl, List<PlayQueue.Item> out) {
+        Map<Integer, String> files = new TreeMap<>();
+        Map<Integer, String> titles = new HashMap<>();
+        boolean hasLength = false;
+        for (String rawLine : body.split("\r?\n")) {
+            String line = rawLine.trim();
+            int equals = line.indexOf('=');
+            if (equals <= 0) continue;
+            String key = line.substring(0, equals).trim().toLowerCase(Locale.US);
+            String value = line.substring(equals + 1).trim();
+            int digits = key.length();
+            while (digits > 0 && Character.isDigit(key.charAt(digits - 1))) digits--;
+            if (digits == key.length()) continue;
+            int index;
+            try {
+                index = Integer.parseInt(key.substring(digits));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String name = key.substring(0, digits);
+            if (name.equals("file") && !value.isEmpty()) {
+                files.put(index, value);
+            } else if (name.equals("title")) {
+                titles.put(index, value);
+            } else if (name.equals("length")) {
+                try {
+                    hasLength |= Long.parseLong(value) > 0;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        for (Map.Entry<Integer, String> file : files.entrySet()) {
+            out.add(new PlayQueue.Item(PlayQueue.resolve(baseUrl, file.getValue()), "", titles.get(file.getKey())));
+        }
+        return out.size() == 1 || !hasLength;
+    }
+
+    // <ref href="..."/> внутри <entry>; теги и атрибуты ASX бывают в любом регистре
+    private static List<PlayQueue.Item> parseAsx(String body, String baseUrl) {
+        List<PlayQueue.Item> result = new ArrayList<>();
+        String lower = body.toLowerCase(Locale.US);
+        int pos = 0;
+        while ((pos = lower.indexOf("<ref", pos)) != -1) {
+            int end = lower.indexOf('>', pos);
+            if (end == -1) break;
+            int href = lower.indexOf("href", pos);
+            if (href != -1 && href < end) {
+                int quote = href + 4;
+                while (quote < end && body.charAt(quote) != '"' && body.charAt(quote) != '\'') quote++;
+                if (quote < end) {
+                    int close = body.indexOf(body.charAt(quote), quote + 1);
+                    if (close != -1 && close <= end) {
+                        String url = PlayQueue.unescapeXml(body.substring(quote + 1, close).trim());
+                        // mms:// MediaPlayer не умеет, но у многих станций тот же адрес отвечает по http
+                        if (url.toLowerCase(Locale.US).startsWith("mms://")) {
+                            url = "http://" + url.substring(6);
+                        }
+                        result.add(new PlayQueue.Item(PlayQueue.resolve(baseUrl, url), "", null));
+                    }
+                }
+            }
+            pos = end + 1;
+        }
+        return result;
+    }
+
+    // Варианты мастер-плейлиста: сначала чисто звуковые (по убыванию битрейта), затем с видео от самого лёгкого
+    private static List<PlayQueue.Item> hlsVariants(String body, String baseUrl) {
+        List<long[]> order = new ArrayList<>(); // {audioOnly ? 0 : 1, key, index}
+        List<String> uris = new ArrayList<>();
+        String pending = null;
+        for (String rawLine : body.split("\r?\n")) {
+            String line = rawLine.trim();
+            if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                pending = line;
+            } else if (pending != null && !line.isEmpty() && !line.startsWith("#")) {
+                long bandwidth = hlsAttribute(pending, "BANDWIDTH");
+                String codecs = hlsCodecs(pending);
+                boolean audioOnly = codecs != null && !codecs.contains("avc") && !codecs.contains("hvc") &&
+                        !codecs.contains("hev") && !codecs.contains("vp0") && !codecs.contains("av01");
+                order.add(new long[] { audioOnly ? 0 : 1, audioOnly ? -bandwidth : bandwidth, uris.size() });
+                uris.add(PlayQueue.resolve(baseUrl, line));
+                pending = null;
+            }
+        }
+        Collections.sort(order, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        List<PlayQueue.Item> result = new ArrayList<>();
+        for (long[] variant : order) {
+            result.add(new PlayQueue.Item(uris.get((int) variant[2]), "", null));
+        }
+        return result;
+    }
+
+    private static long hlsAttribute(String line, String name) {
+        // BANDWIDTH= не должен совпасть с AVERAGE-BANDWIDTH=
+        int start = line.indexOf(":" + name + "=");
+        if (start == -1) start = line.indexOf("," + name + "=");
+        if (start == -1) return 0;
+        start += name.length() + 2;
+        int end = start;
+        while (end < line.length() && Character.isDigit(line.charAt(end))) end++;
+        try {
+            return Long.parseLong(line.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String hlsCodecs(String line) {
+        int start = line.indexOf("CODECS=\"");
+        if (start == -1) return null;
+        start += "CODECS=\"".length();
+        int end = line.indexOf('"', start);
+        return end == -1 ? null : line.substring(start, end).toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,75 @@
+package uk.me.hardill.weblauncher;
+
+import java.nio.charset.Charset;
+
+/**
+ * Minimal remote control served at {@code /} and {@code /remote}. The page
+ * follows {@code /events} and sends {@code POST /remote/<action>}; the whole
+ * HTTP response is encoded once, so serving it is a single write.
+ */
+final class RemotePage {
+    static final String PATH = "/remote";
+
+    private static final String HTML =
+        "<!DOCTYPE html><html><head><meta charset=\"utf-8\">" +
+        "<meta name=\"viewport\" content=\"width=device-width,initial-scale=1\">" +
+        "<title>Renderer</title><style>" +
+        "body{font-family:sans-serif;margin:0;padding:1.5em;background:#111;color:#eee;text-align:center}" +
+        "#title{font-size:1.4em;margin:.3em 0}#artist,#state{color:#aaa}" +
+        "button{font-size:1.6em;margin:.4em;padding:.3em .8em;border:0;border-radius:.3em;background:#333;color:#eee}" +
+        "input{width:80%;margin-top:1em}progress{width:80%;margin-top:1em}" +
+        "</style></head><body>" +
+        "<div id=\"state\">Connecting…</div><div id=\"title\"></div><div id=\"artist\"></div>" +
+        "<progress id=\"pos\" value=\"0\" max=\"1\"></progress><div>" +
+        "<button data-a=\"previous\">&#9198;</button><button data-a=\"play\">&#9654;</button>" +
+        "<button data-a=\"pause\">&#9208;</button><button data-a=\"stop\">&#9209;</button>" +
+        "<button data-a=\"next\">&#9197;</button></div>" +
+        "<input id=\"vol\" type=\"range\" min=\"0\" max=\"100\">" +
+        "<script>" +
+        "var s={},t=0,$=function(i){return document.getElementById(i)};" +
+        "function post(a){fetch('" + PATH + "/'+a,{method:'POST'})}" +
+        "document.querySelectorAll('button').forEach(function(b){b.onclick=function(){post(b.dataset.a)}});" +
+        "$('vol').onchange=function(){post('volume?level='+this.value)};" +
+        "function draw(){$('state').textContent=s.transportState||'';" +
+        "$('title').textContent=s.streamTitle||s.title||'';$('artist').textContent=s.artist||'';" +
+        "var p=s.positionMs+(s.transportState=='PLAYING'?Date.now()-t:0);" +
+        "$('pos').max=s.durationMs||1;$('pos').value=s.durationMs?Math.min(p,s.durationMs):0}" +
+        "var e=new EventSource('/events');" +
+        "e.addEventListener('status',function(m){s=JSON.parse(m.data);t=Date.now();" +
+        "if(document.activeElement!=$('vol'))$('vol').value=s.volume;draw()});" +
+        "e.onerror=function(){$('state').textContent='Reconnecting…'};" +
+        "setInterval(draw,1000);" +
+        "</script></body></html>";
+
+    static final byte[] RESPONSE;
+
+    static {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[] body = HTML.getBytes(utf8);
+        byte[] headers = ("HTTP/1.1 200 OK\r\n" +
+            "Content-Type: text/html; charset=utf-8\r\n" +
+            "Content-Length: " + body.length + "\r\n" +
+            "Cache-Control: max-age=3600\r\n" +
+            "Connection: close\r\n" +
+            "Server: Android/UPnP/1.0 WebLauncher/1.0\r\n" +
+            "\r\n").getBytes(utf8);
+        RESPONSE = new byte[headers.length + body.length];
+        System.arraycopy(headers, 0, RESPONSE, 0, headers.length);
+        System.arraycopy(body, 0, RESPONSE, headers.length, body.length);
+    }
+
+    private RemotePage() {
+    }
+
+    static boolean matches(String path) {
+        return "/".equals(path) || PATH.equals(path) || (PATH + "/").equals(path);
+    }
+
+    /** {@code /remote/play} -> "play"; null for other paths. */
+    static String action(String path) {
+        if (!path.startsWith(PATH + "/") || path.length() == PATH.length() + 1) return null;
+        String action = path.substring(PATH.length() + 1);
+        int question = action.indexOf('?');
+        return question >= 0 ? action.substring(0, question) : action;
+    }
+}
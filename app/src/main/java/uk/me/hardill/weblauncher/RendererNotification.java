@@ -0,0 +1,175 @@
+package uk.me.hardill.weblauncher;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.core.app.NotificationCompat;
+
+/**
+ * The renderer's foreground notification. One builder is reused, a post is
+ * skipped when the visible text, buttons and album art are unchanged, and posts are
+ * rate limited to one per {@link #MIN_UPDATE_INTERVAL_MS} with the latest
+ * state winning. Transport buttons send intents straight back to the service.
+ */
+public class RendererNotification {
+    static final long MIN_UPDATE_INTERVAL_MS = 1000;
+
+    public static final String ACTION_PLAY = "uk.me.hardill.weblauncher.action.PLAY";
+    public static final String ACTION_PAUSE = "uk.me.hardill.weblauncher.action.PAUSE";
+    public static final String ACTION_NEXT = "uk.me.hardill.weblauncher.action.NEXT";
+    public static final String ACTION_PREVIOUS = "uk.me.hardill.weblauncher.action.PREVIOUS";
+    public static final String ACTION_STOP = "uk.me.hardill.weblauncher.action.STOP";
+
+    private static final String CONTENT_TITLE = "DLNA Audio Renderer";
+
+    private final Service service;
+    private final int notificationId;
+    private final Handler handler;
+    private final NotificationCompat.Builder builder;
+    private final PendingIntent playIntent;
+    private final PendingIntent pauseIntent;
+    private final PendingIntent nextIntent;
+    private final PendingIntent previousIntent;
+    private final PendingIntent stopIntent;
+
+    // Последнее показанное и последнее запрошенное состояние
+    private String postedText;
+    private boolean postedPlaying;
+    private boolean postedHasMedia;
+    private Bitmap postedArt;
+    private String requestedText;
+    private boolean requestedPlaying;
+    private boolean requestedHasMedia;
+    private Bitmap requestedArt;
+    private long lastPostAt = -MIN_UPDATE_INTERVAL_MS;
+    private boolean flushScheduled = false;
+
+    private final Runnable flushRunnable = this::flush;
+
+    public RendererNotification(Service service, String channelId, int notificationId, Handler handler) {
+        this.service = service;
+        this.notificationId = notificationId;
+        this.handler = handler;
+        this.builder = new NotificationCompat.Builder(service, channelId)
+                .setContentTitle(CONTENT_TITLE)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+                .setOnlyAlertOnce(true)
+                .setShowWhen(false)
+                .setOngoing(true);
+        playIntent = serviceIntent(ACTION_PLAY);
+        pauseIntent = serviceIntent(ACTION_PAUSE);
+        nextIntent = serviceIntent(ACTION_NEXT);
+        previousIntent = serviceIntent(ACTION_PREVIOUS);
+        stopIntent = serviceIntent(ACTION_STOP);
+    }
+
+    private PendingIntent serviceIntent(String action) {
+        Intent intent = new Intent(service, service.getClass()).setAction(action);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        return PendingIntent.getService(service, action.hashCode(), intent, flags);
+    }
+
+    /**
+     * Notification for {@code startForeground()}: the latest requested state, or
+     * {@code text} if nothing was requested yet. Counts as a post.
+     */
+    public synchronized Notification foreground(String text) {
+        if (requestedText == null) {
+            requestedText = text;
+        }
+        Notification notification = build(requestedText, requestedPlaying, requestedHasMedia, requestedArt);
+        postedText = requestedText;
+        postedPlaying = requestedPlaying;
+        postedHasMedia = requestedHasMedia;
+        postedArt = requestedArt;
+        lastPostAt = SystemClock.elapsedRealtime();
+        return notification;
+    }
+
+    /** Requests a notification showing {@code status}; may be merged with later updates. */
+    public synchronized void update(String status, String title, String artist, boolean playing, boolean hasMedia) {
+        String text;
+        if (!title.isEmpty()) {
+            text = !artist.isEmpty() ? status + ": " + artist + " - " + title : status + ": " + title;
+        } else {
+            text = status;
+        }
+        requestedText = text;
+        requestedPlaying = playing;
+        requestedHasMedia = hasMedia;
+        scheduleFlush();
+    }
+
+    /** Sets the large icon (album art); null removes it. */
+    public synchronized void setArtwork(Bitmap art) {
+        if (requestedText == null) return;
+        requestedArt = art;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) return;
+        long wait = lastPostAt + MIN_UPDATE_INTERVAL_MS - SystemClock.elapsedRealtime();
+        if (wait > 0) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, wait);
+        } else {
+            flush();
+        }
+    }
+
+    public synchronized void cancelPending() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (requestedText == null) return;
+        if (requestedText.equals(postedText) && requestedPlaying == postedPlaying &&
+                requestedHasMedia == postedHasMedia && requestedArt == postedArt) {
+            return;
+        }
+        Notification notification = build(requestedText, requestedPlaying, requestedHasMedia, requestedArt);
+        postedText = requestedText;
+        postedPlaying = requestedPlaying;
+        postedHasMedia = requestedHasMedia;
+        postedArt = requestedArt;
+        lastPostAt = SystemClock.elapsedRealtime();
+
+        NotificationManager manager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+        if (manager != null) {
+            manager.notify(notificationId, notification);
+        }
+    }
+
+    private Notification build(String text, boolean playing, boolean hasMedia, Bitmap art) {
+        builder.setContentText(text);
+        builder.setLargeIcon(art);
+        builder.clearActions();
+        if (hasMedia) {
+            builder.addAction(android.R.drawable.ic_media_previous, "Previous", previousIntent);
+            if (playing) {
+                builder.addAction(android.R.drawable.ic_media_pause, "Pause", pauseIntent);
+            } else {
+                builder.addAction(android.R.drawable.ic_media_play, "Play", playIntent);
+            }
+            builder.addAction(android.R.drawable.ic_media_next, "Next", nextIntent);
+            builder.addAction(android.R.drawable.ic_menu_close_clear_cancel, "Stop", stopIntent);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,218 @@
+package uk.me.hardill.weblauncher;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renderer playback state (volume, transport state, current URI and metadata)
+ * kept in its own small file instead of the UI SharedPreferences. Writes only
+ * mark fields dirty; they are flushed together at most once per
+ * {@link #FLUSH_DELAY_MS} on a background thread, and synchronously on
+ * {@link #close()}. A write goes to a temporary file that is synced and renamed
+ * over the old one, so a crash leaves either the old or the new state.
+ */
+public class RendererStateStore {
+    private static final String TAG = "DLNARenderer";
+    private static final int FORMAT_VERSION = 1;
+    static final long FLUSH_DELAY_MS = 3000;
+
+    // Ключи, которые раньше хранились в SharedPreferences
+    private static final String[] LEGACY_STRING_KEYS = {
+        "renderer_transport_state", "renderer_current_uri", "renderer_current_metadata",
+        "renderer_media_title", "renderer_media_artist"
+    };
+    private static final String LEGACY_VOLUME_KEY = "renderer_volume";
+
+    private final File file;
+    private final File tmpFile;
+    private final long flushDelayMs;
+    private final Map<String, String> values = new LinkedHashMap<>();
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RendererStateStore");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean dirty = false;
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    public RendererStateStore(File file) {
+        this(file, FLUSH_DELAY_MS);
+    }
+
+    RendererStateStore(File file, long flushDelayMs) {
+        this.file = file;
+        this.tmpFile = new File(file.getPath() + ".new");
+        this.flushDelayMs = flushDelayMs;
+    }
+
+    /** Reads the state file; on first run imports and removes the old values from {@code legacy}. */
+    public synchronized void load(SharedPreferences legacy) {
+        values.clear();
+        if (file.exists()) {
+            readFile();
+            return;
+        }
+        if (legacy == null) return;
+
+        SharedPreferences.Editor editor = legacy.edit();
+        boolean migrated = false;
+        for (String key : LEGACY_STRING_KEYS) {
+            if (legacy.contains(key)) {
+                values.put(key, legacy.getString(key, ""));
+                editor.remove(key);
+                migrated = true;
+            }
+        }
+        if (legacy.contains(LEGACY_VOLUME_KEY)) {
+            values.put(LEGACY_VOLUME_KEY, String.valueOf(legacy.getInt(LEGACY_VOLUME_KEY, 50)));
+            editor.remove(LEGACY_VOLUME_KEY);
+            migrated = true;
+        }
+        if (migrated) {
+            Log.i(TAG, "Migrated renderer state out of shared preferences");
+            editor.apply();
+            markDirty();
+        }
+    }
+
+    private void readFile() {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            DataInputStream in = new DataInputStream(stream);
+            if (in.readInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Unknown renderer state format, starting fresh");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                values.put(readString(in), readString(in));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read renderer state: " + e.getMessage());
+            values.clear();
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public synchronized String getString(String key, String defaultValue) {
+        String value = values.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public synchronized int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public synchronized void putString(String key, String value) {
+        if (value == null) value = "";
+        if (value.equals(values.get(key))) return;
+        values.put(key, value);
+        markDirty();
+    }
+
+    public synchronized void putInt(String key, int value) {
+        putString(key, String.valueOf(value));
+    }
+
+    // Несколько изменений подряд попадают в одну запись
+    private void markDirty() {
+        dirty = true;
+        if (flushScheduled || closed) return;
+        flushScheduled = true;
+        executor.schedule(this::flush, flushDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Writes pending changes now, on the calling thread. */
+    public void flush() {
+        // Фоновая запись и запись из close() не должны пересекаться
+        synchronized (writeLock) {
+            writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() {
+        Map<String, String> snapshot;
+        synchronized (this) {
+            flushScheduled = false;
+            if (!dirty) return;
+            dirty = false;
+            snapshot = new LinkedHashMap<>(values);
+        }
+        try {
+            try (FileOutputStream stream = new FileOutputStream(tmpFile)) {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+                out.flush();
+                stream.getFD().sync();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write renderer state", e);
+            tmpFile.delete();
+            // Изменения не потеряны: пробуем ещё раз через FLUSH_DELAY_MS
+            synchronized (this) {
+                markDirty();
+            }
+        }
+    }
+
+    /** Flushes synchronously and stops the background writer. */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        executor.shutdownNow();
+        flush();
+    }
+
+    // writeUTF ограничен 64 КБ, а DIDL бывает длиннее
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 16 * 1024 * 1024) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,241 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded on-disk cache of fixed-size media segments, keyed by stream URL and
+ * segment index. Whole segments are stored as individual files and evicted in
+ * least-recently-used order once the total size goes over the limit. The
+ * {@code .info} sidecar of a stream counts towards the limit and is deleted
+ * together with the last segment of that stream.
+ */
+public class SegmentCache {
+    public static final int SEGMENT_SIZE = 256 * 1024;
+
+    private final File dir;
+    private final long maxBytes;
+    // file name -> size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    // stream key -> число сегментов и размер .info
+    private final Map<String, Integer> segmentCounts = new HashMap<>();
+    private final Map<String, Long> infoSizes = new HashMap<>();
+    private long totalBytes = 0;
+
+    public SegmentCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Scans the cache directory; call once from a background thread before use. */
+    public void load() {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        // Восстанавливаем LRU по времени изменения файлов
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                } else if (file.getName().endsWith(".seg") && !entries.containsKey(file.getName())) {
+                    addSegment(file.getName(), file.length());
+                }
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(".info")) continue;
+                String key = name.substring(0, name.length() - ".info".length());
+                // Сведения о потоке, от которого не осталось сегментов, больше не нужны
+                if (segmentCounts.containsKey(key)) {
+                    infoSizes.put(key, file.length());
+                    totalBytes += file.length();
+                } else {
+                    file.delete();
+                }
+            }
+            trim();
+        }
+    }
+
+    public synchronized boolean contains(String url, int index) {
+        return entries.containsKey(segmentName(url, index));
+    }
+
+    /**
+     * Reads a cached segment into {@code buffer}, which must hold {@link #SEGMENT_SIZE}
+     * bytes. Returns the segment length, or -1 if it is not cached.
+     */
+    public int read(String url, int index, byte[] buffer) {
+        String name = segmentName(url, index);
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                return -1;
+            }
+        }
+        File file = new File(dir, name);
+        try (FileInputStream in = new FileInputStream(file)) {
+            int total = 0;
+            int read;
+            while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+                total += read;
+            }
+            return total;
+        } catch (IOException e) {
+            synchronized (this) {
+                Long size = entries.remove(name);
+                if (size != null) {
+                    removeSegment(name, size);
+                }
+            }
+            return -1;
+        }
+    }
+
+    public void write(String url, int index, byte[] data, int length) {
+        String name = segmentName(url, index);
+        File target = new File(dir, name);
+        // Свой временный файл у каждого писателя: предзагрузка и прокси могут
+        // писать один и тот же сегмент одновременно, а переименование атомарно
+        File tmp;
+        try {
+            tmp = File.createTempFile(name, ".tmp", dir);
+        } catch (IOException e) {
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data, 0, length);
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                return;
+            }
+            Long previous = entries.get(name);
+            if (previous != null) {
+                entries.put(name, (long) length);
+                totalBytes += length - previous;
+            } else {
+                addSegment(name, length);
+            }
+            trim();
+        }
+    }
+
+    /** Stores small per-stream facts (length, content type) next to the segments. */
+    public void writeInfo(String url, long length, String contentType) {
+        String key = key(url);
+        File file = new File(dir, key + ".info");
+        synchronized (this) {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write((length + "\n" + (contentType != null ? contentType : "")).getBytes("UTF-8"));
+            } catch (IOException e) {
+                file.delete();
+            }
+            Long previous = infoSizes.remove(key);
+            if (previous != null) {
+                totalBytes -= previous;
+            }
+            if (file.exists()) {
+                infoSizes.put(key, file.length());
+                totalBytes += file.length();
+                trim();
+            }
+        }
+    }
+
+    /** Returns {length, contentType} previously stored by {@link #writeInfo}, or null. */
+    public String[] readInfo(String url) {
+        File file = new File(dir, key(url) + ".info");
+        if (!file.exists()) return null;
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) Math.min(file.length(), 4096)];
+            int read = in.read(data);
+            if (read <= 0) return null;
+            String[] parts = new String(data, 0, read, "UTF-8").split("\n", 2);
+            return new String[] { parts[0], parts.length > 1 ? parts[1] : "" };
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public synchronized long size() {
+        return totalBytes;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(dir, eldest.getKey()).delete();
+            it.remove();
+            removeSegment(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void addSegment(String name, long size) {
+        entries.put(name, size);
+        totalBytes += size;
+        String key = streamKey(name);
+        Integer count = segmentCounts.get(key);
+        segmentCounts.put(key, count != null ? count + 1 : 1);
+    }
+
+    // Сегмент уже убран из entries; с последним сегментом потока уходит и его .info
+    private void removeSegment(String name, long size) {
+        totalBytes -= size;
+        String key = streamKey(name);
+        Integer count = segmentCounts.get(key);
+        if (count != null && count > 1) {
+            segmentCounts.put(key, count - 1);
+            return;
+        }
+        segmentCounts.remove(key);
+        Long infoSize = infoSizes.remove(key);
+        if (infoSize != null) {
+            new File(dir, key + ".info").delete();
+            totalBytes -= infoSize;
+        }
+    }
+
+    private static String streamKey(String segmentName) {
+        return segmentName.substring(0, segmentName.lastIndexOf('_'));
+    }
+
+    private static String segmentName(String url, int index) {
+        return key(url) + "_" + index + ".seg";
+    }
+
+    static String key(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
@@ -9,7 +9,9 @@ import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
@@ -61,6 +63,7 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     public static class SettingsFragment extends PreferenceFragmentCompat implements SharedPreferences.OnSharedPreferenceChangeListener {
+        private static final int REQUEST_MEDIA_PERMISSION = 1;
 
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
@@ -116,13 +119,67 @@ public class SettingsActivity extends AppCompatActivity {
                 rendererNamePref.setSummaryProvider(EditTextPreference.SimpleSummaryProvider.getInstance());
             }
 
-            // Add summary provider for http port
-            EditTextPreference httpPortPref = findPreference("http_port");
-            if (httpPortPref != null) {
-                httpPortPref.setSummaryProvider(EditTextPreference.SimpleSummaryProvider.getInstance());
+            updateHttpPortSummary();
+            updateMediaServerSummary();
+        }
+
+        // Без разрешения папки видны, но пусты: об этом говорит подпись, а не пустой сервер
+        private void updateMediaServerSummary() {
+            Preference mediaServerPref = findPreference("media_server");
+            if (mediaServerPref == null) return;
+            mediaServerPref.setSummaryProvider(preference -> {
+                SharedPreferences prefs = preference.getSharedPreferences();
+                if (!prefs.getBoolean("media_server", false)) {
+                    return getString(R.string.summary_media_server);
+                }
+                if (!hasMediaPermission()) {
+                    return getString(R.string.summary_media_server_no_permission);
+                }
+                if (prefs.getInt(UpnpAudioRendererService.PREF_MEDIA_SERVER_TRACKS, -1) == 0) {
+                    return getString(R.string.summary_media_server_empty);
+                }
+                return getString(R.string.summary_media_server);
+            });
+        }
+
+        private boolean hasMediaPermission() {
+            return ContextCompat.checkSelfPermission(requireContext(), MediaServer.readPermission()) ==
+                PackageManager.PERMISSION_GRANTED;
+        }
+
+        @Override
+        public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+            super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+            if (requestCode != REQUEST_MEDIA_PERMISSION) return;
+            boolean granted = grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED;
+            Log.i("SettingsActivity", "Media permission " + (granted ? "granted" : "denied"));
+            updateMediaServerSummary();
+            SharedPreferences prefs = getPreferenceManager().getSharedPreferences();
+            if (granted && prefs.getBoolean("enable_upnp_renderer", false)) {
+                // Сервис сканирует папки при старте: перезапускаем, чтобы скан увидел файлы
+                Intent serviceIntent = new Intent(getActivity(), UpnpAudioRendererService.class);
+                getActivity().stopService(serviceIntent);
+                getActivity().startService(serviceIntent);
             }
         }
 
+        // Порт из настроек и, если он был занят, тот, на котором сервис реально слушает (или что порта нет)
+        private void updateHttpPortSummary() {
+            EditTextPreference httpPortPref = findPreference("http_port");
+            if (httpPortPref == null) return;
+            httpPortPref.setSummaryProvider(preference -> {
+                String configured = ((EditTextPreference) preference).getText();
+                int active = preference.getSharedPreferences().getInt(UpnpAudioRendererService.PREF_ACTIVE_HTTP_PORT, -1);
+                if (active == 0) {
+                    return getString(R.string.summary_http_port_unavailable, configured);
+                }
+                if (active > 0 && !String.valueOf(active).equals(configured)) {
+                    return getString(R.string.summary_http_port_fallback, configured, active);
+                }
+                return configured;
+            });
+        }
+
         @Override
         public void onResume() {
             super.onResume();
@@ -153,13 +210,27 @@ public class SettingsActivity extends AppCompatActivity {
                     Log.i("SettingsActivity", "Stopping DLNA renderer service");
                     getActivity().stopService(serviceIntent);
                 }
+            } else if ("media_server".equals(key)) {
+                if (sharedPreferences.getBoolean(key, false) && !hasMediaPermission()) {
+                    Log.i("SettingsActivity", "Requesting " + MediaServer.readPermission() + " for the media server");
+                    requestPermissions(new String[]{MediaServer.readPermission()}, REQUEST_MEDIA_PERMISSION);
+                }
+                updateMediaServerSummary();
+            } else if (UpnpAudioRendererService.PREF_MEDIA_SERVER_TRACKS.equals(key)) {
+                updateMediaServerSummary();
+            } else if (UpnpAudioRendererService.PREF_ACTIVE_HTTP_PORT.equals(key) || "http_port".equals(key)) {
+                updateHttpPortSummary();
+                if (sharedPreferences.getBoolean("enable_upnp_renderer", false)) {
+                    updateUpnpInfo();
+                }
             }
         }
 
         private void updateUpnpInfo() {
             Preference ipPref = findPreference("local_ip");
             Preference uuidPref = findPreference("device_uuid");
-            ipPref.setSummary(getLocalIpAddress());
+            int port = getPreferenceManager().getSharedPreferences().getInt(UpnpAudioRendererService.PREF_ACTIVE_HTTP_PORT, -1);
+            ipPref.setSummary(port > 0 ? getLocalIpAddress() + ":" + port : getLocalIpAddress());
             uuidPref.setSummary("Generated on service start - check logs");
         }
 
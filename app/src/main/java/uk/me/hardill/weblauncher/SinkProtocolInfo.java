@@ -0,0 +1,135 @@
+package uk.me.hardill.weblauncher;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.util.Log;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * ConnectionManager Sink protocol list derived from the audio decoders this
+ * device actually has. Enumerating {@link MediaCodecList} is slow on low-end
+ * boxes, so the list is built once per process and cached.
+ */
+public final class SinkProtocolInfo {
+    private static final String TAG = "DLNARenderer";
+    private static final int[] L16_RATES = { 44100, 48000, 32000, 22050, 16000, 11025, 8000 };
+
+    private static volatile String cached;
+
+    private SinkProtocolInfo() {
+    }
+
+    /** Comma-separated protocolInfo list for GetProtocolInfo's Sink argument. */
+    public static String get() {
+        String result = cached;
+        if (result == null) {
+            synchronized (SinkProtocolInfo.class) {
+                result = cached;
+                if (result == null) {
+                    result = build();
+                    cached = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Builds the cache on a background thread so the first controller request doesn't pay for it. */
+    public static void warmUp() {
+        Thread thread = new Thread(SinkProtocolInfo::get, "SinkProtocolInfo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static String build() {
+        long started = System.currentTimeMillis();
+        Set<String> mimeTypes = new LinkedHashSet<>();
+        try {
+            MediaCodecInfo[] codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+            for (MediaCodecInfo codec : codecs) {
+                if (codec.isEncoder()) continue;
+                for (String type : codec.getSupportedTypes()) {
+                    addNetworkTypes(type.toLowerCase(), mimeTypes);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to enumerate decoders, using a minimal sink list", e);
+        }
+        if (mimeTypes.isEmpty()) {
+            addNetworkTypes("audio/mpeg", mimeTypes);
+            addNetworkTypes("audio/mp4a-latm", mimeTypes);
+        }
+        // Контейнеры, которые разбирает сам MediaPlayer
+        mimeTypes.add("application/vnd.apple.mpegurl");
+        mimeTypes.add("audio/x-mpegurl");
+        mimeTypes.add("audio/mpegurl");
+        // Сырой PCM играет PcmPlaybackEngine через AudioTrack, декодер не нужен
+        mimeTypes.add("audio/wav");
+        mimeTypes.add("audio/x-wav");
+        for (int rate : L16_RATES) {
+            mimeTypes.add("audio/L16;rate=" + rate + ";channels=2");
+            mimeTypes.add("audio/L16;rate=" + rate + ";channels=1");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String mime : mimeTypes) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append("http-get:*:").append(mime).append(":*");
+        }
+        Log.i(TAG, "Sink protocol info built in " + (System.currentTimeMillis() - started) + " ms: " + mimeTypes.size() + " types");
+        return sb.toString();
+    }
+
+    // Отображение MIME-типов декодеров в типы, которые присылают DLNA-серверы
+    private static void addNetworkTypes(String decoderType, Set<String> out) {
+        switch (decoderType) {
+            case "audio/mpeg":
+                out.add("audio/mpeg");
+                out.add("audio/mp3");
+                out.add("audio/x-mpeg");
+                break;
+            case "audio/mp4a-latm":
+                out.add("audio/mp4");
+                out.add("audio/x-m4a");
+                out.add("audio/aac");
+                out.add("audio/x-aac");
+                out.add("audio/vnd.dlna.adts");
+                break;
+            case "audio/flac":
+                out.add("audio/flac");
+                out.add("audio/x-flac");
+                break;
+            case "audio/vorbis":
+                out.add("audio/ogg");
+                out.add("audio/x-ogg");
+                out.add("application/ogg");
+                break;
+            case "audio/opus":
+                out.add("audio/opus");
+                out.add("audio/ogg");
+                break;
+            case "audio/raw":
+                out.add("audio/wav");
+                out.add("audio/x-wav");
+                out.add("audio/wave");
+                break;
+            case "audio/3gpp":
+                out.add("audio/3gpp");
+                out.add("audio/amr");
+                break;
+            case "audio/amr-wb":
+                out.add("audio/amr-wb");
+                break;
+            case "audio/ac3":
+                out.add("audio/ac3");
+                break;
+            case "audio/eac3":
+                out.add("audio/eac3");
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package uk.me.hardill.weblauncher;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-encoded responses for the SOAP queries controllers poll every second
+ * (GetTransportInfo, GetVolume, GetMediaInfo, GetPositionInfo). Entries are
+ * keyed by action and the renderer's state version, so any state change makes
+ * them stale; a short TTL bounds the damage if a change ever forgets to bump
+ * the version. GetPositionInfo is kept as a template and only the two time
+ * fields are spliced in per request.
+ */
+public class SoapResponseCache {
+    static final long TTL_MS = 2000;
+    private static final int MAX_METADATA_ENTRIES = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] HEADER_START = ascii(
+        "HTTP/1.1 200 OK\r\n" +
+        "Content-Type: " + UpnpSoap.CONTENT_TYPE + "\r\n" +
+        "Content-Length: ");
+    private static final byte[] HEADER_END = ascii(
+        "\r\n" +
+        "Connection: close\r\n" +
+        "Server: Android/UPnP/1.0 WebLauncher/1.0\r\n" +
+        "\r\n");
+    private static final byte[] TIME_SEPARATOR = ascii("</RelTime><AbsTime>");
+
+    /** GetPositionInfo body split around RelTime/AbsTime. */
+    public static class PositionTemplate {
+        final byte[] head; // ...<RelTime>
+        final byte[] tail; // </AbsTime>...
+
+        public PositionTemplate(String head, String tail) {
+            this.head = head.getBytes(UTF_8);
+            this.tail = tail.getBytes(UTF_8);
+        }
+    }
+
+    private static class Entry {
+        final int version;
+        final long createdAt;
+        final Object value;
+
+        Entry(int version, long createdAt, Object value) {
+            this.version = version;
+            this.createdAt = createdAt;
+            this.value = value;
+        }
+    }
+
+    private final AtomicInteger version = new AtomicInteger();
+    private final Map<String, Entry> entries = new HashMap<>();
+    // URI -> {исходные метаданные, экранированные метаданные}
+    private final LinkedHashMap<String, String[]> escapedMetaData =
+        new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                return size() > MAX_METADATA_ENTRIES;
+            }
+        };
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /** Marks every cached response stale. Call on any transport or volume change. */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    /** Read this before building a response and pass it to {@code put}. */
+    public int version() {
+        return version.get();
+    }
+
+    public synchronized byte[] get(String action) {
+        return (byte[]) lookup(action);
+    }
+
+    public synchronized void put(String action, int builtAtVersion, byte[] response) {
+        entries.put(action, new Entry(builtAtVersion, now(), response));
+    }
+
+    public synchronized PositionTemplate getPositionTemplate() {
+        return (PositionTemplate) lookup("GetPositionInfo");
+    }
+
+    public synchronized void putPositionTemplate(int builtAtVersion, PositionTemplate template) {
+        entries.put("GetPositionInfo", new Entry(builtAtVersion, now(), template));
+    }
+
+    private Object lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.version != version.get() || now() - entry.createdAt > TTL_MS) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /** Escaped TrackMetaData for {@code uri}, or null if it hasn't been escaped yet. */
+    public synchronized String getEscapedMetaData(String uri, String metaData) {
+        String[] cached = escapedMetaData.get(uri);
+        if (cached != null && cached[0].equals(metaData)) {
+            return cached[1];
+        }
+        return null;
+    }
+
+    public synchronized void putEscapedMetaData(String uri, String metaData, String escaped) {
+        escapedMetaData.put(uri, new String[] { metaData, escaped });
+    }
+
+    /** Full HTTP response for GetPositionInfo: the template with the position written in as H:MM:SS twice. */
+    public static byte[] splice(PositionTemplate template, int positionSeconds) {
+        byte[] time = formatTime(positionSeconds);
+        int bodyLength = template.head.length + time.length + TIME_SEPARATOR.length + time.length + template.tail.length;
+        byte[] contentLength = ascii(Integer.toString(bodyLength));
+
+        byte[] out = new byte[HEADER_START.length + contentLength.length + HEADER_END.length + bodyLength];
+        int pos = copy(HEADER_START, out, 0);
+        pos = copy(contentLength, out, pos);
+        pos = copy(HEADER_END, out, pos);
+        pos = copy(template.head, out, pos);
+        pos = copy(time, out, pos);
+        pos = copy(TIME_SEPARATOR, out, pos);
+        pos = copy(time, out, pos);
+        copy(template.tail, out, pos);
+        return out;
+    }
+
+    private static int copy(byte[] src, byte[] dst, int pos) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    // Тот же формат, что и UpnpSoap.formatTime(), без String.format
+    static byte[] formatTime(int seconds) {
+        int hours = seconds / 3600;
+        int minutes = (seconds % 3600) / 60;
+        int secs = seconds % 60;
+        if (hours > 99) {
+            return ascii(hours + ":" + (char) ('0' + minutes / 10) + (char) ('0' + minutes % 10)
+                + ":" + (char) ('0' + secs / 10) + (char) ('0' + secs % 10));
+        }
+        return new byte[] {
+            (byte) ('0' + hours / 10), (byte) ('0' + hours % 10), ':',
+            (byte) ('0' + minutes / 10), (byte) ('0' + minutes % 10), ':',
+            (byte) ('0' + secs / 10), (byte) ('0' + secs % 10)
+        };
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,219 @@
+package uk.me.hardill.weblauncher;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-Sent Events for {@code /events}: every connected client gets the
+ * renderer's status JSON pushed on each state change instead of polling SOAP.
+ * Changes are coalesced for {@link #COALESCE_MS} and a snapshot identical to the
+ * last one is not sent. Each client has its own writer and a bounded queue; a
+ * client that reads too slowly loses its oldest snapshots (the newest one always
+ * describes the full state), so it can never hold up the others or grow memory.
+ */
+public class StatusStream {
+    private static final String TAG = "DLNAStatusStream";
+    static final int MAX_CLIENTS = 32;
+    static final int MAX_PENDING_BYTES = 32 * 1024;
+    static final long COALESCE_MS = 100;
+    static final long HEARTBEAT_MS = 15000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] HEADERS = (
+        "HTTP/1.1 200 OK\r\n" +
+        "Content-Type: text/event-stream; charset=utf-8\r\n" +
+        "Cache-Control: no-cache\r\n" +
+        "Access-Control-Allow-Origin: *\r\n" +
+        "Server: Android/UPnP/1.0 WebLauncher/1.0\r\n" +
+        "\r\n").getBytes(UTF_8);
+    // Комментарий SSE: держит соединение и выявляет отвалившихся клиентов
+    private static final byte[] PING = ": ping\n\n".getBytes(UTF_8);
+
+    /**
+     * Builds the current status JSON. Called on the stream's scheduler thread and,
+     * for a new client, on the thread calling {@link #add}, so it must be thread-safe.
+     */
+    public interface Source {
+        String snapshot();
+    }
+
+    /** One {@code /events} connection. */
+    final class Client {
+        private final OutputStream out;
+        private final Closeable connection;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        private int pendingBytes = 0;
+        private int dropped = 0;
+        private boolean draining = false;
+        private boolean closed = false;
+
+        Client(OutputStream out, Closeable connection) {
+            this.out = out;
+            this.connection = connection;
+        }
+
+        void offer(byte[] event) {
+            synchronized (this) {
+                if (closed) return;
+                pending.add(event);
+                pendingBytes += event.length;
+                while (pendingBytes > MAX_PENDING_BYTES && pending.size() > 1) {
+                    pendingBytes -= pending.poll().length;
+                    dropped++;
+                }
+                if (draining) return;
+                draining = true;
+            }
+            writers.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                byte[] event;
+                synchronized (this) {
+                    event = pending.poll();
+                    if (event == null || closed) {
+                        draining = false;
+                        return;
+                    }
+                    pendingBytes -= event.length;
+                }
+                try {
+                    out.write(event);
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+            }
+        }
+
+        synchronized int pendingBytes() {
+            return pendingBytes;
+        }
+
+        synchronized int dropped() {
+            return dropped;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                pending.clear();
+                pendingBytes = 0;
+            }
+            clients.remove(this);
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final Source source;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean publishScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "StatusStream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService writers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "StatusStreamWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile String lastSnapshot;
+
+    public StatusStream(Source source) {
+        this.source = source;
+        scheduler.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts streaming to a new client. The headers and the current status are
+     * written right away; afterwards {@code connection} belongs to the stream.
+     * Returns null, leaving the connection to the caller, when the stream is full.
+     */
+    public Client add(OutputStream out, Closeable connection) throws IOException {
+        if (clients.size() >= MAX_CLIENTS) return null;
+        String snapshot = source.snapshot();
+        out.write(HEADERS);
+        out.write(encode(snapshot));
+        out.flush();
+        Client client = new Client(out, connection);
+        clients.add(client);
+        return client;
+    }
+
+    /** The renderer's state changed; a snapshot follows after {@link #COALESCE_MS}. */
+    public void changed() {
+        if (clients.isEmpty() || !publishScheduled.compareAndSet(false, true)) return;
+        scheduler.schedule(this::publishSafely, COALESCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public int clientCount() {
+        return clients.size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        writers.shutdownNow();
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    private void publishSafely() {
+        try {
+            publish();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Status snapshot failed", e);
+        }
+    }
+
+    void publish() {
+        publishScheduled.set(false);
+        if (clients.isEmpty()) return;
+        String snapshot = source.snapshot();
+        if (snapshot.equals(lastSnapshot)) return;
+        lastSnapshot = snapshot;
+        byte[] event = encode(snapshot);
+        for (Client client : clients) {
+            client.offer(event);
+        }
+    }
+
+    // Заодно страховка от изменений, о которых забыли сообщить. Исключение
+    // отменило бы scheduleWithFixedDelay навсегда, поэтому ловим всё
+    private void heartbeat() {
+        try {
+            if (clients.isEmpty()) return;
+            String previous = lastSnapshot;
+            publish();
+            if (previous != null && previous.equals(lastSnapshot)) {
+                for (Client client : clients) {
+                    client.offer(PING);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Status heartbeat failed", e);
+        }
+    }
+
+    static byte[] encode(String snapshot) {
+        return ("event: status\ndata: " + snapshot + "\n\n").getBytes(UTF_8);
+    }
+}
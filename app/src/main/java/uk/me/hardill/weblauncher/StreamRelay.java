@@ -0,0 +1,466 @@
+package uk.me.hardill.weblauncher;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fan-out for live streams: each upstream URL is fetched by one thread into an
+ * in-memory ring buffer, and any number of readers (the local player through
+ * {@link CachingStreamProxy}, other renderers through {@code /relay?url=...})
+ * are fed from it. Readers join at the current write position; a reader that
+ * falls a whole ring behind is dropped rather than slowing the fetch down, so
+ * upstream bandwidth does not depend on how many rooms are listening. ICY
+ * metadata is stripped before the ring, so every reader gets plain audio.
+ * With a peer set (another renderer in the sync group), new channels fetch
+ * from that peer's {@code /relay} and only go to the upstream if it fails.
+ */
+public class StreamRelay {
+    private static final String TAG = "DLNARelay";
+    static final int RING_SIZE = 1024 * 1024; // ~1 min of 128 kbit/s
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_READERS = 16;
+    private static final long IDLE_TIMEOUT_MS = 10000;
+    private static final long HEADER_WAIT_MS = 10000;
+    private static final int MAX_RECONNECTS = 5;
+    public static final String RELAY_PATH = "/relay";
+
+    private final Map<String, Channel> channels = new HashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "StreamRelay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
+    private volatile CachingStreamProxy.StreamTitleListener streamTitleListener;
+    private volatile String peer;
+
+    public void setStreamTitleListener(CachingStreamProxy.StreamTitleListener listener) {
+        streamTitleListener = listener;
+    }
+
+    /**
+     * Base URL ({@code http://host:port}) of a renderer already relaying the
+     * streams this one is about to play, or null to fetch upstream directly.
+     * Applies to channels started from now on.
+     */
+    public void setPeer(String baseUrl) {
+        peer = baseUrl;
+    }
+
+    /** Attaches a reader to {@code url}, starting the upstream fetch if nobody is reading it yet. */
+    public Reader open(String url) throws IOException {
+        return open(url, null);
+    }
+
+    /**
+     * Like {@link #open(String)}; a new fetch starts on {@code connection}, already
+     * opened to {@code url} with ICY metadata requested, instead of connecting again.
+     * The relay owns the connection afterwards.
+     */
+    public Reader open(String url, HttpURLConnection connection) throws IOException {
+        Reader reader;
+        synchronized (channels) {
+            Channel channel = channels.get(url);
+            if (channel == null || channel.isFinished()) {
+                channel = new Channel(url, peer, connection);
+                channels.put(url, channel);
+                executor.execute(channel);
+            } else if (connection != null) {
+                connection.disconnect();
+            }
+            reader = channel.attach();
+        }
+        try {
+            reader.awaitHeaders();
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    /** Like {@link #open(String)}, but only joins a stream that is already being fetched. */
+    public Reader openExisting(String url) throws IOException {
+        synchronized (channels) {
+            Channel channel = channels.get(url);
+            if (channel == null || channel.isFinished()) {
+                return null;
+            }
+        }
+        return open(url);
+    }
+
+    /**
+     * Answers a {@code /relay} request on a relay thread, so waiting for the
+     * upstream never blocks the caller. With {@code startFetch} the stream is
+     * fetched if nobody is reading it yet; otherwise only a running stream is
+     * shared. Answers 404 when the stream is not available.
+     */
+    public void serve(Socket socket, String url, boolean startFetch, boolean headOnly) {
+        executor.execute(() -> {
+            Reader reader = null;
+            try {
+                reader = startFetch ? open(url) : openExisting(url);
+            } catch (IOException e) {
+                Log.w(TAG, "Relay refused for " + url + ": " + e.getMessage());
+            }
+            if (reader == null) {
+                try (Socket client = socket) {
+                    client.getOutputStream().write(
+                            "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+            Log.i(TAG, "Relaying " + url + " to " + socket.getRemoteSocketAddress());
+            stream(socket, reader, headOnly);
+        });
+    }
+
+    // Отдаёт поток клиенту до конца или до его ухода, потом закрывает оба
+    private void stream(Socket socket, Reader reader, boolean headOnly) {
+        try (Socket client = socket; Reader source = reader) {
+            OutputStream out = client.getOutputStream();
+            StringBuilder headers = new StringBuilder("HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Type: ").append(source.getContentType()).append("\r\n");
+            if (source.getName() != null) {
+                headers.append("icy-name: ").append(source.getName()).append("\r\n");
+            }
+            headers.append("Cache-Control: no-cache\r\nConnection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("UTF-8"));
+            if (headOnly) return;
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Relay client " + socket.getRemoteSocketAddress() + " left: " + e.getMessage());
+        }
+    }
+
+    public int channelCount() {
+        synchronized (channels) {
+            return channels.size();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (channels) {
+            for (Channel channel : channels.values()) {
+                channel.wake();
+            }
+            channels.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    /** Path other renderers can GET to share this renderer's fetch of {@code upstream}. */
+    public static String relayPath(String upstream) {
+        try {
+            return RELAY_PATH + "?url=" + URLEncoder.encode(upstream, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Upstream URL from a {@code /relay?url=...} request path, or null. */
+    public static String parseRelayPath(String path) {
+        if (path == null || !path.startsWith(RELAY_PATH + "?")) return null;
+        for (String param : path.substring(RELAY_PATH.length() + 1).split("&")) {
+            if (param.startsWith("url=")) {
+                try {
+                    String url = URLDecoder.decode(param.substring(4), "UTF-8");
+                    return url.startsWith("http://") || url.startsWith("https://") ? url : null;
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** One consumer of a relayed stream. Not thread-safe; use from one thread. */
+    public final class Reader implements Closeable {
+        private final Channel channel;
+        private long position;
+        private boolean closed = false;
+
+        Reader(Channel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void awaitHeaders() throws IOException {
+            channel.awaitHeaders();
+        }
+
+        public String getContentType() {
+            return channel.contentType;
+        }
+
+        public String getName() {
+            return channel.name;
+        }
+
+        /** Blocks until bytes are available; -1 when the stream ended. Throws if this reader was lapped. */
+        public int read(byte[] buffer) throws IOException {
+            if (closed) throw new IOException("Reader closed");
+            long available;
+            synchronized (channel) {
+                while (position >= channel.written && !channel.finished && running) {
+                    try {
+                        channel.wait(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+                if (position >= channel.written) {
+                    return -1;
+                }
+                available = channel.written - position;
+            }
+            if (available > RING_SIZE - CHUNK_SIZE) {
+                throw new IOException("Reader fell " + available + " bytes behind, dropped");
+            }
+            int count = (int) Math.min(buffer.length, available);
+            int offset = (int) (position % RING_SIZE);
+            int first = Math.min(count, RING_SIZE - offset);
+            System.arraycopy(channel.ring, offset, buffer, 0, first);
+            if (first < count) {
+                System.arraycopy(channel.ring, 0, buffer, first, count - first);
+            }
+            // Пока копировали, писатель мог перезаписать эти байты. append() копирует
+            // до увеличения written, так что незавершённая запись (до CHUNK_SIZE байт)
+            // здесь не видна — оставляем тот же запас, что и в проверке выше
+            synchronized (channel) {
+                if (channel.written - position > RING_SIZE - CHUNK_SIZE) {
+                    throw new IOException("Reader overrun while copying, dropped");
+                }
+            }
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            channel.detach();
+        }
+    }
+
+    private final class Channel implements Runnable {
+        final String url;
+        final byte[] ring = new byte[RING_SIZE];
+        // Только для потока канала: после первого сбоя пира идём к источнику напрямую
+        private String peer;
+        private HttpURLConnection initial;
+        // Поля ниже защищены монитором канала
+        long written = 0;
+        boolean headersKnown = false;
+        boolean finished = false;
+        String contentType = "audio/mpeg";
+        String name;
+        int readers = 0;
+        long idleSince = System.currentTimeMillis();
+
+        Channel(String url, String peer, HttpURLConnection initial) {
+            this.url = url;
+            this.peer = peer;
+            // Через пира идём ради синхронности, уже открытое соединение тогда не нужно
+            if (initial != null && peer != null) {
+                initial.disconnect();
+                initial = null;
+            }
+            this.initial = initial;
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        synchronized Reader attach() throws IOException {
+            if (readers >= MAX_READERS) {
+                throw new IOException("Too many relay readers for " + url);
+            }
+            readers++;
+            return new Reader(this, written);
+        }
+
+        synchronized void detach() {
+            readers--;
+            if (readers == 0) {
+                idleSince = System.currentTimeMillis();
+            }
+        }
+
+        synchronized void wake() {
+            notifyAll();
+        }
+
+        synchronized void awaitHeaders() throws IOException {
+            long deadline = System.currentTimeMillis() + HEADER_WAIT_MS;
+            while (!headersKnown && !finished) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) break;
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!headersKnown) {
+                throw new IOException("Upstream not available: " + url);
+            }
+        }
+
+        @Override
+        public void run() {
+            int failures = 0;
+            Log.i(TAG, "Relaying " + url + (peer != null ? " via " + peer : ""));
+            try {
+                while (running) {
+                    HttpURLConnection connection = null;
+                    boolean viaPeer = peer != null;
+                    try {
+                        if (initial != null) {
+                            connection = initial;
+                            initial = null;
+                        } else {
+                            connection = CachingStreamProxy.openUpstream(viaPeer ? peer + relayPath(url) : url, 0);
+                            connection.setRequestProperty("Icy-MetaData", "1");
+                        }
+                        int code = connection.getResponseCode();
+                        if (code >= 400) {
+                            throw new IOException((viaPeer ? "Peer returned " : "Upstream returned ") + code);
+                        }
+                        InputStream in = connection.getInputStream();
+                        synchronized (this) {
+                            if (connection.getContentType() != null) {
+                                contentType = connection.getContentType();
+                            }
+                            name = connection.getHeaderField("icy-name");
+                            headersKnown = true;
+                            notifyAll();
+                        }
+                        failures = 0;
+                        int metaInt = IcyDemuxer.parseMetaInt(connection.getHeaderField("icy-metaint"));
+                        if (!pump(in, metaInt)) {
+                            if (!viaPeer) {
+                                return; // поток закончился или все слушатели ушли
+                            }
+                            synchronized (this) {
+                                if (readers == 0) return;
+                            }
+                            // Пир перестал играть, а мы ещё слушаем
+                            throw new IOException("Peer stream ended");
+                        }
+                    } catch (IOException e) {
+                        if (viaPeer) {
+                            Log.w(TAG, "Peer relay " + peer + " failed for " + url + ", fetching directly: " + e.getMessage());
+                            peer = null;
+                            continue;
+                        }
+                        Log.w(TAG, "Relay upstream failed for " + url + ": " + e.getMessage());
+                    } finally {
+                        if (connection != null) {
+                            connection.disconnect();
+                        }
+                    }
+                    synchronized (this) {
+                        if (readers == 0) return;
+                    }
+                    if (++failures > MAX_RECONNECTS) return;
+                    Thread.sleep(1000L * failures);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (initial != null) {
+                    initial.disconnect();
+                }
+                synchronized (this) {
+                    finished = true;
+                    notifyAll();
+                }
+                synchronized (channels) {
+                    if (channels.get(url) == this) {
+                        channels.remove(url);
+                    }
+                }
+                Log.i(TAG, "Relay for " + url + " ended after " + written + " bytes");
+            }
+        }
+
+        // Возвращает false, когда продолжать не нужно; IOException — повод переподключиться
+        private boolean pump(InputStream in, int metaInt) throws IOException {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            IcyDemuxer demuxer = metaInt > 0 ? new IcyDemuxer(metaInt, this::onStreamTitle) : null;
+            OutputStream ringWriter = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) {
+                    append(data, offset, length);
+                }
+            };
+            while (running) {
+                synchronized (this) {
+                    if (readers == 0 && System.currentTimeMillis() - idleSince > IDLE_TIMEOUT_MS) {
+                        return false;
+                    }
+                }
+                int read = in.read(chunk);
+                if (read == -1) {
+                    return false;
+                }
+                if (demuxer != null) {
+                    demuxer.process(chunk, 0, read, ringWriter);
+                } else {
+                    append(chunk, 0, read);
+                }
+            }
+            return false;
+        }
+
+        private void append(byte[] data, int start, int length) {
+            int offset = (int) (written % RING_SIZE);
+            int first = Math.min(length, RING_SIZE - offset);
+            System.arraycopy(data, start, ring, offset, first);
+            if (first < length) {
+                System.arraycopy(data, start + first, ring, 0, length - first);
+            }
+            synchronized (this) {
+                written += length;
+                notifyAll();
+            }
+        }
+
+        private void onStreamTitle(String title) {
+            CachingStreamProxy.StreamTitleListener listener = streamTitleListener;
+            if (listener != null) {
+                listener.onStreamTitle(url, title);
+            }
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional multi-room sync group. Renderers configured with the same group
+ * name announce themselves over UDP, agree on a clock leader (the lowest member
+ * id heard recently) and estimate their offset to the leader's clock NTP-style
+ * from ping/pong round trips, keeping the sample with the shortest delay.
+ * Play and seek commands carry a start time on that shared clock, so every
+ * member starts the same timeline and can measure its drift against it.
+ * Announcements carry each member's HTTP port, so members can share the
+ * session owner's stream through its {@code /relay}, and a URI too long for a
+ * datagram is fetched from the owner's {@link #SESSION_PATH} instead.
+ * Commands are single datagrams, so the member that sent the latest one repeats
+ * it, same sequence number and all, every tick: a member that lost it or joined
+ * late catches up, and one that already applied it drops the repeat.
+ * Only java.net is used, so several members can run over loopback in a test.
+ */
+public class SyncGroup {
+    public static final String DEFAULT_ADDRESS = "239.255.90.91";
+    public static final int DEFAULT_PORT = 19091;
+    static final long DEFAULT_TICK_MS = 1000;
+    static final int MAX_SAMPLES = 8;
+    private static final String MAGIC = "WLSYNC1";
+    static final int MAX_PACKET = 2048;
+    /** Owner's HTTP path answering {@code ?seq=<command>} with the URI of a PLAY sent without it. */
+    public static final String SESSION_PATH = "/sync/session";
+    private static final int MAX_URI_BYTES = 64 * 1024;
+    private static final int FETCH_TIMEOUT_MS = 2000;
+    // STOP повторяем несколько тиков, а не вечно: остановленной сессии догонять нечего
+    static final int STOP_REPEATS = 5;
+
+    /** Monotonic local clock in milliseconds. */
+    public interface Clock {
+        long nowMs();
+    }
+
+    public static final Clock MONOTONIC = () -> System.nanoTime() / 1000000L;
+
+    /** Commands from the group, called on the receive thread (or the caller's thread for own commands). */
+    public interface Listener {
+        /** Start {@code uri} so that {@code positionMs} plays at local time {@code startAtLocalMs}. */
+        void onPlay(String uri, long positionMs, long startAtLocalMs);
+
+        void onPause(long positionMs);
+
+        void onStop();
+    }
+
+    private static final class Member {
+        SocketAddress address;
+        long lastSeen;
+        int httpPort;
+    }
+
+    private final String group;
+    private final String memberId;
+    private final DatagramSocket socket;
+    private final List<SocketAddress> announceTo;
+    private final Clock clock;
+    private final long tickMs;
+    private volatile Listener listener;
+    private volatile int httpPort = 0;
+
+    private final Map<String, Member> members = new HashMap<>();
+    private final Map<String, Long> lastCommandSeq = new HashMap<>();
+    private final long[] sampleOffsets = new long[MAX_SAMPLES];
+    private final long[] sampleDelays = new long[MAX_SAMPLES];
+    private int sampleCount = 0;
+    private int sampleNext = 0;
+    private String clockSource;
+    private volatile long offsetMs = 0;
+    private long commandSeq = System.currentTimeMillis();
+
+    // Текущая сессия на часах группы
+    private String sessionUri;
+    private String sessionOwner;
+    private long sessionSeq;
+    private long sessionPositionMs;
+    private long sessionStartAtGroupMs;
+    private boolean sessionPlaying = false;
+    // Последняя команда этого участника, пока её не сменила чужая; повторяется каждый тик
+    private String lastCommand;
+    private int lastCommandRepeats;
+
+    private ScheduledExecutorService ticker;
+    private Thread receiveThread;
+    private volatile boolean running = false;
+    private volatile long startedAt;
+
+    /**
+     * @param socket     bound socket for all traffic (a joined MulticastSocket on a device)
+     * @param announceTo where announcements and commands go: the multicast group, or
+     *                   every member's address in a loopback test
+     */
+    public SyncGroup(String group, String memberId, DatagramSocket socket, List<SocketAddress> announceTo) {
+        this(group, memberId, socket, announceTo, MONOTONIC, DEFAULT_TICK_MS);
+    }
+
+    SyncGroup(String group, String memberId, DatagramSocket socket, List<SocketAddress> announceTo,
+              Clock clock, long tickMs) {
+        this.group = group.trim().replaceAll("\\s+", "_");
+        this.memberId = memberId;
+        this.socket = socket;
+        this.announceTo = new ArrayList<>(announceTo);
+        this.clock = clock;
+        this.tickMs = tickMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** HTTP port announced to the other members; 0 announces none. */
+    public void setHttpPort(int port) {
+        httpPort = port;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        startedAt = clock.nowMs();
+        synchronized (members) {
+            Member self = new Member();
+            self.lastSeen = Long.MAX_VALUE;
+            members.put(memberId, self);
+        }
+        receiveThread = new Thread(this::receiveLoop, "SyncGroup-" + group);
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SyncGroupTick");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, 0, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+        socket.close();
+        receiveThread = null;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    /** Lowest member id heard within the last few ticks; every member computes the same one. */
+    public String leaderId() {
+        long now = clock.nowMs();
+        String leader = memberId;
+        synchronized (members) {
+            for (Map.Entry<String, Member> entry : members.entrySet()) {
+                if (now - entry.getValue().lastSeen > memberTimeoutMs() && entry.getValue().lastSeen != Long.MAX_VALUE) {
+                    continue;
+                }
+                if (entry.getKey().compareTo(leader) < 0) {
+                    leader = entry.getKey();
+                }
+            }
+        }
+        return leader;
+    }
+
+    public boolean isLeader() {
+        return memberId.equals(leaderId());
+    }
+
+    public int memberCount() {
+        synchronized (members) {
+            return members.size();
+        }
+    }
+
+    /** True once this member's clock offset to the current leader is known. */
+    public boolean isSynced() {
+        String leader = leaderId();
+        if (memberId.equals(leader)) return true;
+        synchronized (sampleOffsets) {
+            return leader.equals(clockSource) && sampleCount > 0;
+        }
+    }
+
+    public long groupTimeMs() {
+        return clock.nowMs() + offsetMs;
+    }
+
+    public long offsetMs() {
+        return offsetMs;
+    }
+
+    public long toLocalTime(long groupTimeMs) {
+        return groupTimeMs - offsetMs;
+    }
+
+    /**
+     * Tells every member, this one included, to start {@code uri} at
+     * {@code positionMs} {@code leadMs} from now on the group clock. A URI that
+     * does not fit in a datagram is left out and fetched from {@link #SESSION_PATH};
+     * returns false, doing nothing, if no HTTP port was set to serve it.
+     */
+    public boolean schedulePlay(String uri, long positionMs, long leadMs) {
+        long startAt = groupTimeMs() + leadMs;
+        long seq = nextSeq();
+        String command = "PLAY " + group + " " + memberId + " " + seq + " " + positionMs + " " + startAt;
+        boolean fits = fits(command + " " + uri);
+        if (!fits && httpPort <= 0) {
+            return false;
+        }
+        // Сессию запоминаем до отправки: участник может сразу прийти за адресом
+        applyPlay(memberId, seq, uri, positionMs, startAt);
+        announce(fits ? command + " " + uri : command, Integer.MAX_VALUE);
+        return true;
+    }
+
+    /** URI of the PLAY command {@code seq} if it is this member's current session; for {@link #SESSION_PATH}. */
+    public synchronized String sessionUriFor(long seq) {
+        return memberId.equals(sessionOwner) && sessionSeq == seq ? sessionUri : null;
+    }
+
+    public void pause(long positionMs) {
+        announce("PAUSE " + group + " " + memberId + " " + nextSeq() + " " + positionMs, Integer.MAX_VALUE);
+        applyPause(positionMs);
+    }
+
+    public void stopPlayback() {
+        announce("STOP " + group + " " + memberId + " " + nextSeq(), STOP_REPEATS);
+        applyStop();
+    }
+
+    private void announce(String command, int repeats) {
+        synchronized (this) {
+            lastCommand = command;
+            lastCommandRepeats = repeats;
+        }
+        send(command);
+    }
+
+    // Команда для повтора на этом тике, null — повторять нечего
+    private synchronized String repeatCommand() {
+        if (lastCommand == null) return null;
+        String command = lastCommand;
+        if (lastCommandRepeats != Integer.MAX_VALUE && --lastCommandRepeats <= 0) {
+            lastCommand = null;
+        }
+        return command;
+    }
+
+    // Чужая команда новее нашей — повторять свою больше нельзя
+    private synchronized void supersede() {
+        lastCommand = null;
+    }
+
+    /** Where the shared timeline is now, or -1 outside a playing session. */
+    public synchronized long expectedPositionMs() {
+        if (!sessionPlaying) return -1;
+        long elapsed = groupTimeMs() - sessionStartAtGroupMs;
+        return sessionPositionMs + Math.max(0, elapsed);
+    }
+
+    public synchronized String sessionUri() {
+        return sessionUri;
+    }
+
+    /**
+     * {@code http://host:port} of the member that scheduled the current session,
+     * or null when that is this member or its HTTP port was not announced.
+     */
+    public String sessionOwnerHttpBase() {
+        String owner;
+        synchronized (this) {
+            owner = sessionOwner;
+        }
+        if (owner == null || memberId.equals(owner)) return null;
+        return httpBase(owner);
+    }
+
+    private String httpBase(String id) {
+        synchronized (members) {
+            Member member = members.get(id);
+            if (member == null || member.httpPort <= 0 || !(member.address instanceof InetSocketAddress)) {
+                return null;
+            }
+            String host = ((InetSocketAddress) member.address).getAddress().getHostAddress();
+            if (host.indexOf(':') >= 0) {
+                host = "[" + host + "]";
+            }
+            return "http://" + host + ":" + member.httpPort;
+        }
+    }
+
+    /** True if the current session was scheduled by this member, which then drives track changes. */
+    public synchronized boolean ownsSession() {
+        return memberId.equals(sessionOwner);
+    }
+
+    private synchronized long nextSeq() {
+        return ++commandSeq;
+    }
+
+    private long memberTimeoutMs() {
+        return tickMs * 7 / 2;
+    }
+
+    private void tick() {
+        try {
+            int port = httpPort;
+            send("HELLO " + group + " " + memberId + (port > 0 ? " " + port : ""));
+            String command = repeatCommand();
+            if (command != null) {
+                send(command);
+            }
+            expireMembers();
+            String leader = leaderId();
+            if (!memberId.equals(leader)) {
+                SocketAddress leaderAddress;
+                synchronized (members) {
+                    Member member = members.get(leader);
+                    leaderAddress = member != null ? member.address : null;
+                }
+                if (leaderAddress != null) {
+                    sendTo("PING " + group + " " + memberId + " " + clock.nowMs(), leaderAddress);
+                }
+            } else {
+                synchronized (sampleOffsets) {
+                    switchClockSource(memberId, 0);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Тик не должен остановить расписание
+        }
+    }
+
+    private void expireMembers() {
+        long now = clock.nowMs();
+        synchronized (members) {
+            Iterator<Map.Entry<String, Member>> iterator = members.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Member member = iterator.next().getValue();
+                if (member.lastSeen != Long.MAX_VALUE && now - member.lastSeen > memberTimeoutMs() * 2) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_PACKET];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (!running) break;
+                continue;
+            }
+            long receivedAt = clock.nowMs();
+            try {
+                handle(new String(packet.getData(), packet.getOffset(), packet.getLength(), "UTF-8"),
+                        packet.getSocketAddress(), receivedAt);
+            } catch (IOException | RuntimeException e) {
+                // Чужой или повреждённый пакет
+            }
+        }
+    }
+
+    void handle(String message, SocketAddress from, long receivedAt) throws IOException {
+        String[] parts = message.trim().split(" ", 8);
+        if (parts.length < 4 || !MAGIC.equals(parts[0]) || !group.equals(parts[2])) return;
+        String type = parts[1];
+        String sender = parts[3];
+        if (memberId.equals(sender)) return;
+
+        synchronized (members) {
+            Member member = members.get(sender);
+            if (member == null) {
+                member = new Member();
+                members.put(sender, member);
+            }
+            member.address = from;
+            member.lastSeen = receivedAt;
+            if ("HELLO".equals(type) && parts.length > 4) {
+                member.httpPort = Integer.parseInt(parts[4]);
+            }
+        }
+
+        switch (type) {
+            case "HELLO":
+                break;
+            case "PING":
+                // t0 клиента, t1 приёма и t2 отправки по нашим часам
+                sendTo("PONG " + group + " " + memberId + " " + parts[4] + " " + receivedAt + " " + clock.nowMs(), from);
+                break;
+            case "PONG":
+                onPong(sender, Long.parseLong(parts[4]), Long.parseLong(parts[5]), Long.parseLong(parts[6]), receivedAt);
+                break;
+            case "PLAY":
+                // Без часов лидера момент старта не перевести; повтор придёт на следующем тике.
+                // Только что запущенный участник может ещё не слышать лидера и считать лидером себя
+                if (!isSynced() || clock.nowMs() - startedAt < 2 * tickMs) break;
+                if (parts.length == 8 && isNewCommand(sender, parts[4])) {
+                    supersede();
+                    applyPlay(sender, Long.parseLong(parts[4]), parts[7], Long.parseLong(parts[5]), Long.parseLong(parts[6]));
+                } else if (parts.length == 7 && isNewCommand(sender, parts[4])) {
+                    supersede();
+                    fetchAndPlay(sender, Long.parseLong(parts[4]), Long.parseLong(parts[5]), Long.parseLong(parts[6]));
+                }
+                break;
+            case "PAUSE":
+                if (isNewCommand(sender, parts[4])) {
+                    supersede();
+                    applyPause(Long.parseLong(parts[5]));
+                }
+                break;
+            case "STOP":
+                if (isNewCommand(sender, parts[4])) {
+                    supersede();
+                    applyStop();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean isNewCommand(String sender, String seqText) {
+        long seq = Long.parseLong(seqText);
+        synchronized (lastCommandSeq) {
+            Long last = lastCommandSeq.get(sender);
+            if (last != null && seq <= last) return false;
+            lastCommandSeq.put(sender, seq);
+            return true;
+        }
+    }
+
+    private void onPong(String sender, long t0, long t1, long t2, long t3) {
+        if (!sender.equals(leaderId())) return;
+        long delay = (t3 - t0) - (t2 - t1);
+        if (delay < 0) return;
+        long offset = ((t1 - t0) + (t2 - t3)) / 2;
+        synchronized (sampleOffsets) {
+            switchClockSource(sender, offset);
+            sampleOffsets[sampleNext] = offset;
+            sampleDelays[sampleNext] = delay;
+            sampleNext = (sampleNext + 1) % MAX_SAMPLES;
+            if (sampleCount < MAX_SAMPLES) sampleCount++;
+            // Фильтр NTP: образец с наименьшей задержкой точнее всего
+            int best = 0;
+            for (int i = 1; i < sampleCount; i++) {
+                if (sampleDelays[i] < sampleDelays[best]) best = i;
+            }
+            offsetMs = sampleOffsets[best];
+        }
+    }
+
+    // Новый лидер — новые часы: сбрасываем образцы и переводим сессию на его шкалу
+    private void switchClockSource(String source, long firstOffset) {
+        if (source.equals(clockSource)) return;
+        long oldOffset = offsetMs;
+        clockSource = source;
+        sampleCount = 0;
+        sampleNext = 0;
+        offsetMs = firstOffset;
+        synchronized (this) {
+            sessionStartAtGroupMs += firstOffset - oldOffset;
+        }
+    }
+
+    // Адрес не поместился в пакет — берём его у владельца по HTTP, не задерживая приём
+    private void fetchAndPlay(String sender, long seq, long positionMs, long startAtGroupMs) {
+        String base = httpBase(sender);
+        if (base == null) {
+            forgetCommand(sender, seq);
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            String uri = fetchSessionUri(base, seq);
+            if (uri == null) {
+                forgetCommand(sender, seq); // повтор команды попробует ещё раз
+                return;
+            }
+            if (!running) return;
+            synchronized (lastCommandSeq) {
+                Long last = lastCommandSeq.get(sender);
+                if (last == null || last != seq) return; // уже пришла новая команда
+            }
+            applyPlay(sender, seq, uri, positionMs, startAtGroupMs);
+        }, "SyncGroupFetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void forgetCommand(String sender, long seq) {
+        synchronized (lastCommandSeq) {
+            Long last = lastCommandSeq.get(sender);
+            if (last != null && last == seq) {
+                lastCommandSeq.remove(sender);
+            }
+        }
+    }
+
+    private static String fetchSessionUri(String base, long seq) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(base + SESSION_PATH + "?seq=" + seq).openConnection();
+            connection.setConnectTimeout(FETCH_TIMEOUT_MS);
+            connection.setReadTimeout(FETCH_TIMEOUT_MS);
+            if (connection.getResponseCode() != 200) return null;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1 && body.size() < MAX_URI_BYTES) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            String uri = body.toString("UTF-8").trim();
+            return uri.isEmpty() ? null : uri;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void applyPlay(String owner, long seq, String uri, long positionMs, long startAtGroupMs) {
+        synchronized (this) {
+            sessionOwner = owner;
+            sessionSeq = seq;
+            sessionUri = uri;
+            sessionPositionMs = positionMs;
+            sessionStartAtGroupMs = startAtGroupMs;
+            sessionPlaying = true;
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onPlay(uri, positionMs, toLocalTime(startAtGroupMs));
+        }
+    }
+
+    private void applyPause(long positionMs) {
+        synchronized (this) {
+            sessionPositionMs = positionMs;
+            sessionPlaying = false;
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onPause(positionMs);
+        }
+    }
+
+    private void applyStop() {
+        synchronized (this) {
+            sessionUri = null;
+            sessionOwner = null;
+            sessionPlaying = false;
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onStop();
+        }
+    }
+
+    private void send(String body) {
+        for (SocketAddress address : announceTo) {
+            sendTo(body, address);
+        }
+    }
+
+    private static boolean fits(String body) {
+        try {
+            return (MAGIC + " " + body).getBytes("UTF-8").length <= MAX_PACKET;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void sendTo(String body, SocketAddress address) {
+        try {
+            byte[] data = (MAGIC + " " + body).getBytes("UTF-8");
+            if (data.length > MAX_PACKET) return; // schedulePlay уже проверил свои команды
+            socket.send(new DatagramPacket(data, data.length, address));
+        } catch (IOException e) {
+            // UDP: HELLO, PING и последнюю команду следующий тик отправит снова
+        }
+    }
+}
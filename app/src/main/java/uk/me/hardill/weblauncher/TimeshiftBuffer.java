@@ -0,0 +1,255 @@
+package uk.me.hardill.weblauncher;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Timeshift for the live stream that is playing: a writer thread copies the
+ * stream from the {@link StreamRelay} into a fixed-size memory-mapped ring file
+ * whether or not the player is reading, and the player reads from the ring at
+ * its own position. Pausing therefore keeps the upstream connection busy, and
+ * resuming (even over a new loopback connection) continues where the player
+ * stopped. Disk use never exceeds the ring size; a player paused for longer
+ * than the ring holds continues from the oldest byte still buffered.
+ */
+public class TimeshiftBuffer {
+    private static final String TAG = "DLNATimeshift";
+    static final int DEFAULT_CAPACITY = 32 * 1024 * 1024; // ~30 min of 128 kbit/s
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long MIN_RATE_WINDOW_MS = 5000;
+
+    private final File file;
+    private final int capacity;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer map;
+
+    // Текущая сессия; поля защищены монитором буфера
+    private String url;
+    private Thread writerThread;
+    private StreamRelay.Reader source;
+    private String contentType = "audio/mpeg";
+    private String name;
+    private long written = 0;
+    private long savedPosition = -1;
+    private Reader activeReader;
+    private boolean finished = true;
+    private long startedAt = 0;
+
+    public TimeshiftBuffer(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    public synchronized boolean isActive(String streamUrl) {
+        return !finished && streamUrl.equals(url);
+    }
+
+    /** Starts buffering {@code streamUrl} from {@code relayReader}, replacing any previous session. */
+    public void start(String streamUrl, StreamRelay.Reader relayReader) throws IOException {
+        stop();
+        synchronized (this) {
+            if (map == null) {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                randomAccessFile.setLength(capacity);
+                map = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            url = streamUrl;
+            source = relayReader;
+            contentType = relayReader.getContentType();
+            name = relayReader.getName();
+            written = 0;
+            savedPosition = -1;
+            finished = false;
+            startedAt = System.currentTimeMillis();
+            final ByteBuffer target = map.duplicate();
+            writerThread = new Thread(() -> writeLoop(relayReader, target), "Timeshift");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        Log.i(TAG, "Timeshift buffering " + streamUrl);
+    }
+
+    /**
+     * Reader for {@code streamUrl} starting where the previous reader of this session
+     * stopped (live edge for the first one), or null if that stream is not buffered.
+     */
+    public synchronized Reader openReader(String streamUrl) {
+        if (finished || !streamUrl.equals(url) || map == null) return null;
+        if (activeReader != null) {
+            // Плеер переподключился — старое соединение больше не читает
+            activeReader.closed = true;
+            savedPosition = activeReader.position;
+        }
+        long position = savedPosition >= 0 ? savedPosition : written;
+        activeReader = new Reader(map.duplicate(), position);
+        return activeReader;
+    }
+
+    /** Bytes between what the player has been given and the live edge. */
+    public synchronized long lagBytes() {
+        if (finished) return 0;
+        long position = activeReader != null ? activeReader.position : savedPosition;
+        return position < 0 ? 0 : written - position;
+    }
+
+    /** {@link #lagBytes()} converted with the measured stream rate; 0 until the rate is known. */
+    public synchronized long lagMs() {
+        long elapsed = System.currentTimeMillis() - startedAt;
+        if (finished || elapsed < MIN_RATE_WINDOW_MS || written == 0) return 0;
+        long bytesPerSecond = written * 1000 / elapsed;
+        return bytesPerSecond > 0 ? lagBytes() * 1000 / bytesPerSecond : 0;
+    }
+
+    public synchronized String getContentType() {
+        return contentType;
+    }
+
+    public synchronized String getName() {
+        return name;
+    }
+
+    /** Ends the session: stops buffering and lets the player's reader reach end of stream. */
+    public void stop() {
+        StreamRelay.Reader oldSource;
+        Thread oldWriter;
+        synchronized (this) {
+            if (finished) return;
+            finished = true;
+            oldSource = source;
+            oldWriter = writerThread;
+            source = null;
+            writerThread = null;
+            activeReader = null;
+            notifyAll();
+        }
+        if (oldWriter != null) {
+            oldWriter.interrupt();
+        }
+        if (oldSource != null) {
+            oldSource.close();
+        }
+        Log.i(TAG, "Timeshift session ended");
+    }
+
+    /** Stops the session and releases the file. */
+    public void close() {
+        stop();
+        synchronized (this) {
+            map = null;
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                }
+                randomAccessFile = null;
+            }
+        }
+    }
+
+    private void writeLoop(StreamRelay.Reader relayReader, ByteBuffer target) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+            while (true) {
+                int read = relayReader.read(chunk);
+                if (read == -1) break;
+                // Проверка сессии и запись в кольцо — одним блоком: иначе писатель
+                // прошлой сессии мог бы затереть данные новой
+                synchronized (this) {
+                    if (finished || source != relayReader) return;
+                    int offset = (int) (written % capacity);
+                    int first = Math.min(read, capacity - offset);
+                    target.position(offset);
+                    target.put(chunk, 0, first);
+                    if (first < read) {
+                        target.position(0);
+                        target.put(chunk, first, read - first);
+                    }
+                    written += read;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Timeshift source ended: " + e.getMessage());
+        }
+        synchronized (this) {
+            if (source == relayReader) {
+                // Поток закончился, но уже записанное ещё можно дослушать
+                source = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /** The player's view of the ring. Used from one proxy thread. */
+    public final class Reader implements Closeable {
+        private final ByteBuffer view;
+        private long position;
+        private boolean closed = false;
+
+        Reader(ByteBuffer view, long position) {
+            this.view = view;
+            this.position = position;
+        }
+
+        /** Blocks until bytes are buffered; -1 once the session ended and everything was read. */
+        public int read(byte[] buffer) throws IOException {
+            long available;
+            synchronized (TimeshiftBuffer.this) {
+                while (!closed && !finished && position >= written && source != null) {
+                    try {
+                        TimeshiftBuffer.this.wait(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+                if (closed || finished || position >= written) {
+                    return -1;
+                }
+                if (written - position > capacity - 4L * CHUNK_SIZE) {
+                    // Пауза длиннее буфера: продолжаем с самого старого, что осталось
+                    long oldest = written - capacity + 4L * CHUNK_SIZE;
+                    Log.i(TAG, "Paused longer than the buffer, skipping " + (oldest - position) + " bytes");
+                    position = oldest;
+                }
+                available = written - position;
+            }
+            int count = (int) Math.min(buffer.length, available);
+            int offset = (int) (position % capacity);
+            int first = Math.min(count, capacity - offset);
+            view.position(offset);
+            view.get(buffer, 0, first);
+            if (first < count) {
+                view.position(0);
+                view.get(buffer, first, count - first);
+            }
+            synchronized (TimeshiftBuffer.this) {
+                if (written - position > capacity) {
+                    // Писатель успел перезаписать скопированное — читаем заново с нового места
+                    return read(buffer);
+                }
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            synchronized (TimeshiftBuffer.this) {
+                if (closed) return;
+                closed = true;
+                if (activeReader == this) {
+                    savedPosition = position;
+                    activeReader = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package uk.me.hardill.weblauncher;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded LRU of parsed track metadata keyed by normalized URI. Every
+ * SetAVTransportURI / SetNextAVTransportURI item and the proxy's response
+ * headers land here, so a URI sent again without DIDL (or a queue entry from an
+ * m3u) still resolves to title, artist, album, duration and art, and the
+ * renderer never parses the same DIDL twice.
+ */
+public class TrackMetadataCache {
+    static final int MAX_ENTRIES = 128;
+
+    private final Map<String, PlayQueue.Item> entries = new LinkedHashMap<String, PlayQueue.Item>(32, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PlayQueue.Item> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public synchronized PlayQueue.Item get(String uri) {
+        if (uri == null) return null;
+        return entries.get(normalize(uri));
+    }
+
+    /**
+     * Stores {@code item} if it carries DIDL and returns the entry to use: an item
+     * without metadata is replaced by what was cached for its URI, and header
+     * information already known for the URI is kept.
+     */
+    public synchronized PlayQueue.Item remember(PlayQueue.Item item) {
+        if (item == null || item.uri == null) return item;
+        String key = normalize(item.uri);
+        PlayQueue.Item cached = entries.get(key);
+        if (item.metaData.isEmpty()) {
+            if (cached == null) {
+                if (!item.title.isEmpty()) {
+                    // Заголовок из #EXTINF тоже пригодится
+                    entries.put(key, item);
+                }
+                return item;
+            }
+            // В кеше может быть только имя из заголовков, а у элемента — из плейлиста
+            return cached.metaData.isEmpty() && !item.title.isEmpty()
+                    ? item.withStreamInfo(cached.contentType, null) : cached;
+        }
+        if (cached != null && cached.metaData.equals(item.metaData)) {
+            return cached;
+        }
+        PlayQueue.Item merged = cached != null ? item.withStreamInfo(cached.contentType, null) : item;
+        entries.put(key, merged);
+        return merged;
+    }
+
+    /** Records Content-Type and icy-name from a stream's response; returns the updated entry. */
+    public synchronized PlayQueue.Item rememberStreamInfo(String uri, String contentType, String name) {
+        if (uri == null) return null;
+        String key = normalize(uri);
+        PlayQueue.Item cached = entries.get(key);
+        if (cached == null) {
+            cached = new PlayQueue.Item(uri, "");
+        }
+        PlayQueue.Item updated = cached.withStreamInfo(contentType, name);
+        entries.put(key, updated);
+        return updated;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Cache key: trimmed, fragment removed, scheme and host lower-cased and the
+     * default port dropped. Path and query are compared as sent.
+     */
+    static String normalize(String uri) {
+        String s = uri.trim();
+        int hash = s.indexOf('#');
+        if (hash != -1) {
+            s = s.substring(0, hash);
+        }
+        int schemeEnd = s.indexOf("://");
+        if (schemeEnd == -1) {
+            return s;
+        }
+        int authorityStart = schemeEnd + 3;
+        int pathStart = s.indexOf('/', authorityStart);
+        int queryStart = s.indexOf('?', authorityStart);
+        if (pathStart == -1 || (queryStart != -1 && queryStart < pathStart)) {
+            pathStart = queryStart;
+        }
+        String scheme = s.substring(0, schemeEnd).toLowerCase(Locale.US);
+        String authority = (pathStart == -1 ? s.substring(authorityStart) : s.substring(authorityStart, pathStart))
+                .toLowerCase(Locale.US);
+        String rest = pathStart == -1 ? "/" : s.substring(pathStart);
+        if (rest.startsWith("?")) {
+            rest = "/" + rest;
+        }
+        if (("http".equals(scheme) && authority.endsWith(":80")) ||
+                ("https".equals(scheme) && authority.endsWith(":443"))) {
+            authority = authority.substring(0, authority.lastIndexOf(':'));
+        }
+        return scheme + "://" + authority + rest;
+    }
+}
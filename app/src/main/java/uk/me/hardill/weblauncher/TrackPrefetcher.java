@@ -0,0 +1,191 @@
+package uk.me.hardill.weblauncher;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads the head (or optionally all) of the next queued track into the
+ * {@link SegmentCache} while the current one plays, so the proxy can answer the
+ * first request for it from disk. Downloads are rate limited and pause while the
+ * proxy is fetching for the active stream.
+ */
+public class TrackPrefetcher {
+    private static final String TAG = "DLNAPrefetch";
+    private static final int SEGMENT_SIZE = SegmentCache.SEGMENT_SIZE;
+    private static final int HEAD_SEGMENTS = 2; // 512 KiB, около 30 секунд при 128 кбит/с
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final long YIELD_SLEEP_MS = 200;
+
+    private final SegmentCache cache;
+    private final CachingStreamProxy proxy;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "TrackPrefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Последний запрошенный URL; более старые задания отменяются
+    private volatile String pendingUrl;
+
+    public TrackPrefetcher(SegmentCache cache, CachingStreamProxy proxy) {
+        this.cache = cache;
+        this.proxy = proxy;
+    }
+
+    /**
+     * Queues a prefetch of {@code url}. Only the most recent request is honoured.
+     *
+     * @param wholeFile      download the entire file instead of the first segments
+     * @param bytesPerSecond bandwidth cap for the download
+     */
+    public void prefetch(String url, boolean wholeFile, int bytesPerSecond) {
+        if (url.equals(pendingUrl)) {
+            return;
+        }
+        pendingUrl = url;
+        executor.execute(() -> {
+            if (url.equals(pendingUrl)) {
+                download(url, wholeFile, bytesPerSecond);
+                if (url.equals(pendingUrl)) {
+                    pendingUrl = null;
+                }
+            }
+        });
+    }
+
+    public void cancel() {
+        pendingUrl = null;
+    }
+
+    public void shutdown() {
+        pendingUrl = null;
+        executor.shutdownNow();
+    }
+
+    private boolean cancelled(String url) {
+        return !url.equals(pendingUrl) || Thread.currentThread().isInterrupted();
+    }
+
+    private void download(String url, boolean wholeFile, int bytesPerSecond) {
+        long length = -1;
+        String[] info = cache.readInfo(url);
+        if (info != null) {
+            try {
+                length = Long.parseLong(info[0]);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        int firstMissing = 0;
+        if (length > 0) {
+            int lastSegment = lastSegment(length, wholeFile);
+            while (firstMissing <= lastSegment && cache.contains(url, firstMissing)) {
+                firstMissing++;
+            }
+            if (firstMissing > lastSegment) {
+                Log.d(TAG, "Already cached: " + url);
+                return;
+            }
+        }
+
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        try {
+            long offset = (long) firstMissing * SEGMENT_SIZE;
+            connection = CachingStreamProxy.openUpstream(url, offset);
+            int code = connection.getResponseCode();
+            if (code >= 400 || connection.getHeaderField("icy-metaint") != null) {
+                return;
+            }
+            if (code == 200 && offset > 0) {
+                // Сервер игнорирует Range — качаем с начала
+                firstMissing = 0;
+                offset = 0;
+            }
+            if (length <= 0) {
+                length = totalLength(connection, code);
+                if (length <= 0) {
+                    return; // живой поток, нечего кешировать
+                }
+                cache.writeInfo(url, length, connection.getContentType());
+            }
+            in = connection.getInputStream();
+
+            int lastSegment = lastSegment(length, wholeFile);
+            byte[] segment = new byte[SEGMENT_SIZE];
+            long started = System.currentTimeMillis();
+            long transferred = 0;
+            Log.i(TAG, "Prefetching segments " + firstMissing + ".." + lastSegment + " of " + url);
+
+            for (int index = firstMissing; index <= lastSegment; index++) {
+                int expected = (int) Math.min(SEGMENT_SIZE, length - (long) index * SEGMENT_SIZE);
+                int filled = 0;
+                while (filled < expected) {
+                    if (cancelled(url)) return;
+                    while (proxy.isFetching()) {
+                        Thread.sleep(YIELD_SLEEP_MS);
+                        if (cancelled(url)) return;
+                    }
+                    int read = in.read(segment, filled, Math.min(CHUNK_SIZE, expected - filled));
+                    if (read == -1) {
+                        throw new IOException("Upstream ended early");
+                    }
+                    filled += read;
+                    transferred += read;
+                    long due = transferred * 1000 / bytesPerSecond;
+                    long elapsed = System.currentTimeMillis() - started;
+                    if (due > elapsed) {
+                        Thread.sleep(due - elapsed);
+                    }
+                }
+                if (!cache.contains(url, index)) {
+                    cache.write(url, index, segment, expected);
+                }
+            }
+            Log.i(TAG, "Prefetch complete: " + url + " (" + transferred + " bytes)");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.w(TAG, "Prefetch failed for " + url + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static int lastSegment(long length, boolean wholeFile) {
+        int last = (int) ((length - 1) / SEGMENT_SIZE);
+        return wholeFile ? last : Math.min(last, HEAD_SEGMENTS - 1);
+    }
+
+    private static long totalLength(HttpURLConnection connection, int code) {
+        try {
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null && contentRange.contains("/")) {
+                String total = contentRange.substring(contentRange.indexOf('/') + 1).trim();
+                return "*".equals(total) ? -1 : Long.parseLong(total);
+            }
+            String contentLength = connection.getHeaderField("Content-Length");
+            if (code == 200 && contentLength != null) {
+                return Long.parseLong(contentLength.trim());
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return -1;
+    }
+}
@@ -1,15 +1,18 @@
 package uk.me.hardill.weblauncher;
 
-import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
@@ -18,21 +21,27 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * DLNA Audio Renderer Service for Android
@@ -45,24 +54,130 @@ public class UpnpAudioRendererService extends Service {
     // SSDP constants
     private static final String SSDP_IP = "239.255.255.250";
     private static final int SSDP_PORT = 1900;
+    // ssdp:alive при старте несколько раз (UDP теряется), дальше раз в половину max-age
+    private static final int SSDP_ALIVE_BURST = 3;
+    private static final long SSDP_ALIVE_BURST_INTERVAL_MS = 2000;
+    private static final long SSDP_ALIVE_INTERVAL_MS = 900 * 1000;
+    // Wi-Fi после загрузки поднимается не сразу
+    private static final int NETWORK_RETRY_LIMIT = 60;
+    private static final long NETWORK_RETRY_INTERVAL_MS = 2000;
+    // Занятый порт: пробуем следующие по порядку, потом любой свободный
+    private static final int HTTP_PORT_ATTEMPTS = 10;
+    // Фактический порт для экрана настроек; сам http_port не перезаписывается, 0 — свободного порта нет
+    static final String PREF_ACTIVE_HTTP_PORT = "http_port_active";
+    // Сколько треков нашёл последний скан общих папок; 0 показывается в настройках
+    static final String PREF_MEDIA_SERVER_TRACKS = "media_server_tracks";
+
+    /**
+     * Boolean extra set by {@link AutoStartReceiver} on the start intent of the
+     * headless boot mode. Android 15 does not allow a mediaPlayback foreground
+     * service to start from BOOT_COMPLETED, so that start uses connectedDevice and
+     * adds mediaPlayback once something plays.
+     */
+    static final String EXTRA_BOOT_START = "uk.me.hardill.weblauncher.extra.BOOT_START";
     private static final String UPNP_ROOT_DEVICE = "upnp:rootdevice";
     private static final String MEDIA_RENDERER_NT = "urn:schemas-upnp-org:device:MediaRenderer:1";
-
-    private MediaPlayer mediaPlayer;
+    private static final String[] SERVICE_TYPES = {
+        "urn:schemas-upnp-org:service:AVTransport:1",
+        "urn:schemas-upnp-org:service:RenderingControl:1",
+        "urn:schemas-upnp-org:service:ConnectionManager:1"
+    };
+    private static final String MEDIA_SERVER_NT = "urn:schemas-upnp-org:device:MediaServer:1";
+    private static final String CONTENT_DIRECTORY_TYPE = "urn:schemas-upnp-org:service:ContentDirectory:1";
+    private static final String[] MEDIA_SERVER_SERVICE_TYPES = {
+        CONTENT_DIRECTORY_TYPE,
+        "urn:schemas-upnp-org:service:ConnectionManager:1"
+    };
+
+    // Local read-ahead cache for remote streams
+    private static final long STREAM_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int PREFETCH_BYTES_PER_SECOND = 256 * 1024;
+
+    // Queue, AVTransport state machine and LastChange; the service adds Android around it
+    private AvTransport transport;
+    // Backends: MediaPlayer, or AudioTrack for raw PCM (L16/WAV) with low latency
+    private PlaybackEngine defaultEngine;
+    private PcmPlaybackEngine pcmEngine;
+    private String activePcmType;
+    private boolean pcmFallback = false;
     private Handler handler;
+    private RendererNotification notification;
+
+    // Album art for the notification large icon
+    private static final int ALBUM_ART_SIZE_PX = 256;
+    private AlbumArtCache albumArtCache;
+    private volatile String currentAlbumArtUri = "";
     private SharedPreferences prefs;
-    private int volume = 50;
-    private String currentUri = "";
-    private String currentMetaData = "";
+    // Playback state lives in its own file, flushed in batches
+    private RendererStateStore stateStore;
+
+    // Resume after the process is killed: track + position checkpoints
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
+    private PlaybackJournal playbackJournal;
+    private final Runnable checkpointRunnable = this::checkpointPlayback;
+    private final Runnable virtualCheckpointRunnable = this::checkpointVirtualRenderers;
 
     // Добавлены поля для метаданных
     private String mediaTitle = "";
     private String mediaArtist = "";
-    private String mediaContentType = "audio/mpeg";
-
-    private String transportState = "STOPPED"; // STOPPED, PLAYING, PAUSED_PLAYBACK
-    private int mediaDurationMs = 0; // Cached duration in ms
-    private int mediaPositionMs = 0; // For simplicity, update on query if playing
+    // ICY "now playing" of a live stream; LastChange for it is sent at most every 2 s
+    private static final long STREAM_TITLE_EVENT_INTERVAL_MS = 2000;
+    private String streamTitle = "";
+    private long lastStreamTitleEventMs = 0;
+    private final Runnable streamTitleEventRunnable = this::sendStreamTitleEvent;
+
+    // Parsed DIDL and stream headers by URI, so metadata is resolved without reparsing
+    private final TrackMetadataCache metadataCache = new TrackMetadataCache();
+
+    // Station playlists (m3u/pls/asx/HLS master) are fetched in the background and cached with a TTL
+    private final PlaylistResolver playlistResolver = new PlaylistResolver();
+    private String currentSourceUri = ""; // what MediaPlayer actually opens for currentUri
+    private String pendingPlaylistUri;
+    private PlaylistResolver.Resolution stationEntries;
+    private int stationEntryIndex = 0;
+    private boolean playlistProbed = false;
+
+    // Loopback proxy that feeds MediaPlayer from the segment cache
+    private CachingStreamProxy streamProxy;
+    // One upstream connection per live stream, shared with other renderers via /relay
+    private StreamRelay streamRelay;
+    // Live streams keep buffering to disk while paused; optional catch-up to the live edge
+    private static final long CATCH_UP_CHECK_INTERVAL_MS = 2000;
+    private static final long CATCH_UP_START_LAG_MS = 3000;
+    private static final long CATCH_UP_STOP_LAG_MS = 1000;
+    private static final float CATCH_UP_SPEED = 1.1f;
+    private TimeshiftBuffer timeshift;
+    private boolean catchingUp = false;
+    private final Runnable catchUpRunnable = this::checkCatchUp;
+    private TrackPrefetcher trackPrefetcher;
+
+    // QoS (time to first audio, rebuffers, error rates) is collected by the transport
+    private static final long FIRST_AUDIO_POLL_MS = 20;
+    private static final long FIRST_AUDIO_TIMEOUT_MS = 10000;
+
+    // Multi-room sync: start and seek on a shared clock, correct drift while playing
+    private static final long SYNC_LEAD_MS = 1500;
+    private static final long DRIFT_CHECK_INTERVAL_MS = 2000;
+    private static final long DRIFT_TOLERANCE_MS = 40;
+    // Меньший уход выправляем скоростью: перемотка каждые пару секунд слышна
+    private static final long DRIFT_SEEK_MS = 500;
+    private static final long DRIFT_CORRECTION_WINDOW_MS = 4000;
+    private static final float MAX_DRIFT_SPEED_ADJUST = 0.02f;
+    private static final long MAX_SEEK_LEAD_MS = 500;
+    private volatile SyncGroup syncGroup;
+    // Вход в группу идёт в отдельном потоке; поколение отличает его от уже остановленного
+    private final Object syncGroupLock = new Object();
+    private int syncGeneration = 0;
+    private WifiManager.MulticastLock syncMulticastLock;
+    private boolean syncPendingStart = false;
+    private long syncStartAtLocalMs = 0;
+    private long syncSeekLeadMs = 0;
+    private boolean syncCorrected = false;
+    private final Runnable syncStartRunnable = this::startSyncedPlayback;
+    private final Runnable driftCheckRunnable = this::checkSyncDrift;
+
+    // /events: снимок состояния для браузеров и панелей вместо опроса SOAP
+    private final StatusStream statusStream = new StatusStream(this::buildStatusJson);
 
     // SSDP discovery
     private MulticastSocket multicastSocket;
@@ -73,12 +188,22 @@ public class UpnpAudioRendererService extends Service {
     private String deviceUUID = java.util.UUID.randomUUID().toString();
     private List<String> avTransportCallbacks = new ArrayList<>();
     private List<String> renderingControlCallbacks = new ArrayList<>();
+    private List<String> connectionManagerCallbacks = new ArrayList<>();
+    // Extra renderers (one per output) served under /r/<n>/ by the same HTTP and SSDP code
+    private final List<VirtualRenderer> virtualRenderers = new ArrayList<>();
+    // Optional MediaServer for on-device music, served under /ms/
+    private MediaServer mediaServer;
+    private List<String> contentDirectoryCallbacks = new ArrayList<>();
+    private List<String> mediaServerConnectionCallbacks = new ArrayList<>();
+    // Optional control point browsing other MediaServers for the kiosk page, served under /cp/
+    private volatile ControlPoint controlPoint;
 
     // HTTP server for SOAP control
     private ServerSocket httpServerSocket;
     private Thread httpServerThread;
     private boolean httpServerRunning = false;
     private int httpPort = 8080;
+    private int configuredHttpPort = 8080;
 
     @Override
     public void onCreate() {
@@ -91,45 +216,114 @@ public class UpnpAudioRendererService extends Service {
         } catch (NumberFormatException e) {
             httpPort = 8080;
         }
+        configuredHttpPort = httpPort;
         Log.i(TAG, "Using HTTP port: " + httpPort);
 
         // Восстановление сохраненных состояний
-        volume = prefs.getInt("renderer_volume", 50);
-        transportState = prefs.getString("renderer_transport_state", "STOPPED");
-        currentUri = prefs.getString("renderer_current_uri", "");
-        currentMetaData = prefs.getString("renderer_current_metadata", "");
-        mediaTitle = prefs.getString("renderer_media_title", "");
-        mediaArtist = prefs.getString("renderer_media_artist", "");
+        stateStore = new RendererStateStore(new File(getFilesDir(), "renderer_state.bin"));
+        stateStore.load(prefs);
+        int volume = stateStore.getInt("renderer_volume", 50);
+        String savedState = stateStore.getString("renderer_transport_state", "STOPPED");
+        String savedUri = stateStore.getString("renderer_current_uri", "");
+        String savedMetaData = stateStore.getString("renderer_current_metadata", "");
+        mediaTitle = stateStore.getString("renderer_media_title", "");
+        mediaArtist = stateStore.getString("renderer_media_artist", "");
 
-        Log.i(TAG, "Restored states - Volume: " + volume + ", TransportState: " + transportState + ", URI: " + currentUri);
+        Log.i(TAG, "Restored states - Volume: " + volume + ", TransportState: " + savedState + ", URI: " + savedUri);
 
         handler = new Handler(Looper.getMainLooper());
-        mediaPlayer = new MediaPlayer();
-        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-
-        // Применить сохраненную громкость к MediaPlayer
-        float volumeFloat = volume / 100.0f;
-        mediaPlayer.setVolume(volumeFloat, volumeFloat);
+        defaultEngine = createPlaybackEngine();
+        // В новом процессе ничего не играет (STOPPED); возобновление решает журнал
+        transport = new AvTransport(defaultEngine, new PrimaryHooks());
+        // Применить сохраненную громкость к плееру
+        transport.setVolume(volume);
+
+        if (!savedUri.isEmpty()) {
+            List<PlayQueue.Item> restored = new ArrayList<>();
+            restored.add(new PlayQueue.Item(savedUri, savedMetaData, mediaTitle));
+            transport.setQueue(restored, 0);
+        }
 
-        setupMediaPlayerListeners();
+        startVirtualRenderers();
+        startMediaServer();
+        startStreamProxy();
+        SinkProtocolInfo.warmUp();
+        playbackJournal = new PlaybackJournal(new File(getFilesDir(), "playback.journal"));
+        playbackJournal.open(snapshot -> handler.post(() -> resumeFromJournal(snapshot)));
         createNotificationChannel();
-        startForeground(1, createNotification());
+        notification = new RendererNotification(this, CHANNEL_ID, 1, handler);
+        albumArtCache = new AlbumArtCache(new File(getCacheDir(), "album_art"), handler);
+
+        Log.i(TAG, "Playback engine and notification setup complete");
+
+        startNetworking();
+    }
+
+    private boolean inForeground = false;
+    // Запуск при загрузке на Android 15: mediaPlayback добавляем, когда что-то заиграет
+    private volatile boolean mediaPlaybackPending = false;
+
+    private void enterForeground(boolean fromBoot) {
+        inForeground = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            int type = ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK | ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE;
+            if (fromBoot && Build.VERSION.SDK_INT >= Build.VERSION_CODES.VANILLA_ICE_CREAM) {
+                type = ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE;
+                mediaPlaybackPending = true;
+            }
+            startForeground(1, notification.foreground("Basic mode - UPnP pending"), type);
+        } else {
+            startForeground(1, notification.foreground("Basic mode - UPnP pending"));
+        }
+    }
+
+    private void enterMediaPlayback() {
+        if (!mediaPlaybackPending || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return;
+        mediaPlaybackPending = false;
+        try {
+            startForeground(1, notification.foreground("Playing"),
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK | ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+            Log.i(TAG, "Foreground service type now includes mediaPlayback");
+        } catch (IllegalStateException e) {
+            // ForegroundServiceStartNotAllowedException: остаёмся connectedDevice
+            Log.w(TAG, "Cannot add the mediaPlayback foreground type: " + e.getMessage());
+        }
+    }
 
-        Log.i(TAG, "MediaPlayer and notification setup complete");
+    private int networkAttempts = 0;
+    private final Runnable networkRetryRunnable = this::startNetworking;
 
+    private void startNetworking() {
         // Initialize SSDP discovery
         try {
             Log.i(TAG, "Attempting to get local IP address...");
             localIP = getLocalIpAddress();
             Log.i(TAG, "Local IP result: " + localIP);
 
-            if (localIP != null && !localIP.isEmpty()) {
+            if (localIP != null && !localIP.isEmpty() && !bindHttpServer()) {
+                // Без HTTP-сервера LOCATION в объявлениях вёл бы в никуда; порты могут освободиться
+                prefs.edit().putInt(PREF_ACTIVE_HTTP_PORT, 0).apply();
+                if (++networkAttempts < NETWORK_RETRY_LIMIT) {
+                    Log.w(TAG, "No free HTTP port from " + configuredHttpPort + ", retrying (attempt " + networkAttempts + ")");
+                    updateNotification("DLNA Renderer Ready (Waiting for HTTP port)", "", "");
+                    handler.postDelayed(networkRetryRunnable, NETWORK_RETRY_INTERVAL_MS);
+                } else {
+                    Log.e(TAG, "No free HTTP port from " + configuredHttpPort + " - SSDP disabled");
+                    updateNotification("DLNA Renderer Error (HTTP port unavailable)", "", "");
+                }
+            } else if (localIP != null && !localIP.isEmpty()) {
                 Log.i(TAG, "Starting SSDP discovery...");
                 startSsdpDiscovery();
                 Log.i(TAG, "Starting HTTP server...");
                 startHttpServer();
+                startControlPoint();
                 Log.i(TAG, "DLNA Audio Renderer initialized with SSDP discovery - IP: " + localIP + ", UUID: " + deviceUUID);
+                startSyncGroup();
                 updateNotification("DLNA Renderer Active (Discoverable)", "", "");
+            } else if (++networkAttempts < NETWORK_RETRY_LIMIT) {
+                Log.w(TAG, "No local IP address yet, retrying (attempt " + networkAttempts + ")");
+                updateNotification("DLNA Renderer Ready (Waiting for network)", "", "");
+                handler.postDelayed(networkRetryRunnable, NETWORK_RETRY_INTERVAL_MS);
             } else {
                 Log.w(TAG, "Could not determine local IP address - SSDP disabled");
                 updateNotification("DLNA Renderer Ready (No network)", "", "");
@@ -140,81 +334,745 @@ public class UpnpAudioRendererService extends Service {
         }
     }
 
-    private void setupMediaPlayerListeners() {
-        mediaPlayer.setOnPreparedListener(mp -> {
-            Log.i(TAG, "Media prepared, starting playback");
-            mediaDurationMs = mp.getDuration();
-            mp.start();
-            transportState = "PLAYING";
-            prefs.edit().putString("renderer_transport_state", transportState).apply();
-            String title = !mediaTitle.isEmpty() ? mediaTitle : getUriFilename(currentUri);
-            updateNotification("Playing", title, mediaArtist);
-            Log.i(TAG, "Transport state changed to: PLAYING");
-            notifyAvTransportChange();
-        });
+    /**
+     * Creates the audio backend. Instrumented tests and benchmarks can override this
+     * to run the transport state machine against a {@link FakePlaybackEngine}.
+     */
+    protected PlaybackEngine createPlaybackEngine() {
+        return new MediaPlayerEngine(this);
+    }
 
-        mediaPlayer.setOnCompletionListener(mp -> {
-            Log.i(TAG, "Playback completed");
-            transportState = "STOPPED";
-            prefs.edit().putString("renderer_transport_state", transportState).apply();
-            mediaDurationMs = 0;
-            updateNotification("Stopped", "", "");
-            Log.i(TAG, "Transport state changed to: STOPPED");
-            notifyAvTransportChange();
-        });
+    /** Creates the AudioTrack backend used for audio/L16 and WAV sources. */
+    protected PcmPlaybackEngine createPcmEngine() {
+        return new PcmPlaybackEngine();
+    }
+
+    /** Creates the player of a virtual renderer; routing to its output happens on each Play. */
+    protected PlaybackEngine createVirtualEngine(VirtualRenderer.Config config) {
+        return new MediaPlayerEngine(this);
+    }
 
-        mediaPlayer.setOnErrorListener((mp, what, extra) -> {
+    private void startVirtualRenderers() {
+        List<VirtualRenderer.Config> configs = VirtualRenderer.parseConfig(prefs.getString("virtual_renderers", ""));
+        for (int i = 0; i < configs.size(); i++) {
+            VirtualRenderer.Config config = configs.get(i);
+            int index = i + 1;
+            VirtualRenderer renderer = new VirtualRenderer(index, VirtualRenderer.deriveUuid(deviceUUID, index),
+                config, createVirtualEngine(config));
+            renderer.setListener(this::onVirtualEvent);
+            renderer.setBeforePlay(() -> routeVirtualOutput(renderer, renderer.engine()));
+            // Потоки из интернета идут через тот же кеширующий прокси, что и у основного
+            renderer.setSourceMapper(this::playbackUri);
+            PlaybackJournal journal = new PlaybackJournal(new File(getFilesDir(), "playback-r" + index + ".journal"));
+            renderer.setJournal(journal);
+            journal.open(snapshot -> handler.post(() -> renderer.resume(snapshot)));
+            virtualRenderers.add(renderer);
+            Log.i(TAG, "Virtual renderer '" + config.name + "' at " + renderer.pathPrefix() +
+                ", output: " + (config.output.isEmpty() ? "default" : config.output) + ", UUID: " + renderer.uuid);
+        }
+    }
+
+    private void startMediaServer() {
+        if (!prefs.getBoolean("media_server", false)) return;
+        List<File> folders = new ArrayList<>();
+        for (String folder : prefs.getString("media_server_folders", "").split("[;\\n]")) {
+            if (!folder.trim().isEmpty()) {
+                folders.add(new File(folder.trim()));
+            }
+        }
+        if (folders.isEmpty()) {
+            folders.add(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC));
+        }
+        if (ContextCompat.checkSelfPermission(this, MediaServer.readPermission()) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "Media server enabled without " + MediaServer.readPermission() + "; shared folders will look empty");
+        }
+        String uuid = java.util.UUID.nameUUIDFromBytes((deviceUUID + "/ms").getBytes(java.nio.charset.Charset.forName("UTF-8"))).toString();
+        prefs.edit().remove(PREF_MEDIA_SERVER_TRACKS).apply();
+        mediaServer = new MediaServer(uuid, "Music", folders, handler);
+        mediaServer.setChangeListener(this::notifyContentDirectoryChange);
+        mediaServer.setScanListener(tracks -> prefs.edit().putInt(PREF_MEDIA_SERVER_TRACKS, tracks).apply());
+        mediaServer.start();
+        Log.i(TAG, "Media server sharing " + folders + ", UUID: " + uuid);
+    }
+
+    private void startControlPoint() {
+        if (!prefs.getBoolean("control_point", false)) return;
+        controlPoint = new ControlPoint("http://" + localIP + ":" + httpPort + ControlPoint.EVENT_PATH);
+        controlPoint.start();
+        Log.i(TAG, "Control point started, events at " + ControlPoint.EVENT_PATH);
+    }
+
+    private void onVirtualEvent(VirtualRenderer renderer, String service, String eventXml) {
+        postVirtualEvent(renderer, service, eventXml);
+        if (VirtualRenderer.AV_TRANSPORT.equals(service)) {
+            handler.removeCallbacks(virtualCheckpointRunnable);
+            handler.postDelayed(virtualCheckpointRunnable, CHECKPOINT_INTERVAL_MS);
+        }
+    }
+
+    // Позиции виртуальных экземпляров пишутся в их журналы, пока хоть один играет
+    private void checkpointVirtualRenderers() {
+        boolean playing = false;
+        for (VirtualRenderer renderer : virtualRenderers) {
+            playing |= renderer.checkpoint();
+        }
+        if (playing) {
+            handler.postDelayed(virtualCheckpointRunnable, CHECKPOINT_INTERVAL_MS);
+        }
+    }
+
+    private VirtualRenderer findVirtualRenderer(int index) {
+        for (VirtualRenderer renderer : virtualRenderers) {
+            if (renderer.index == index) return renderer;
+        }
+        return null;
+    }
+
+    // Bluetooth-колонка может подключиться позже старта, поэтому выход ищется при каждом Play
+    private void routeVirtualOutput(VirtualRenderer renderer, PlaybackEngine engine) {
+        if (renderer.output.isEmpty() || !(engine instanceof MediaPlayerEngine)) return;
+        AudioDeviceInfo device = findOutputDevice(renderer.output);
+        if (device == null) {
+            Log.w(TAG, "No audio output matching '" + renderer.output + "', using the default one");
+        } else if (!((MediaPlayerEngine) engine).setPreferredDevice(device)) {
+            Log.w(TAG, "Output routing needs Android 9; " + renderer.friendlyName + " plays on the default output");
+        }
+    }
+
+    // hdmi, bluetooth, speaker, usb, wired, line — или часть названия устройства
+    private AudioDeviceInfo findOutputDevice(String output) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return null;
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        if (audioManager == null) return null;
+        String wanted = output.toLowerCase(Locale.US);
+        AudioDeviceInfo byName = null;
+        for (AudioDeviceInfo device : audioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
+            if (outputTypeMatches(device.getType(), wanted)) return device;
+            CharSequence product = device.getProductName();
+            if (byName == null && product != null && product.toString().toLowerCase(Locale.US).contains(wanted)) {
+                byName = device;
+            }
+        }
+        return byName;
+    }
+
+    private static boolean outputTypeMatches(int type, String wanted) {
+        switch (wanted) {
+            case "hdmi":
+                return type == AudioDeviceInfo.TYPE_HDMI || type == AudioDeviceInfo.TYPE_HDMI_ARC;
+            case "bluetooth":
+                return type == AudioDeviceInfo.TYPE_BLUETOOTH_A2DP;
+            case "speaker":
+                return type == AudioDeviceInfo.TYPE_BUILTIN_SPEAKER;
+            case "usb":
+                return type == AudioDeviceInfo.TYPE_USB_DEVICE || type == AudioDeviceInfo.TYPE_USB_HEADSET;
+            case "wired":
+                return type == AudioDeviceInfo.TYPE_WIRED_HEADPHONES || type == AudioDeviceInfo.TYPE_WIRED_HEADSET;
+            case "line":
+                return type == AudioDeviceInfo.TYPE_LINE_ANALOG || type == AudioDeviceInfo.TYPE_LINE_DIGITAL;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Всё, что основной рендерер добавляет к общему автомату AVTransport:
+     * группа синхронизации, плейлисты станций, PCM и прокси, таймшифт,
+     * журнал, уведомление и события GENA.
+     */
+    private class PrimaryHooks extends AvTransport.Hooks {
+        @Override
+        boolean interceptPlay(AvTransport t) {
+            if (t.getCurrentUri().isEmpty()) {
+                Log.w(TAG, "No URI set for playback");
+                updateNotification("No source set", "", "");
+                return true;
+            }
+            SyncGroup group = syncGroup;
+            if (group == null) return false;
+            String state = t.getTransportState();
+            if (AvTransport.PLAYING.equals(state)) {
+                Log.i(TAG, "Already playing in sync group");
+                return true;
+            }
+            long positionMs = 0;
+            if (AvTransport.PAUSED_PLAYBACK.equals(state)) {
+                positionMs = t.getPositionMs();
+            } else if (t.getPendingSeekMs() > 0) {
+                positionMs = t.getPendingSeekMs();
+            }
+            if (!group.schedulePlay(t.getCurrentUri(), positionMs, SYNC_LEAD_MS)) {
+                syncCommandFailed("Play");
+            }
+            return true;
+        }
+
+        @Override
+        boolean interceptPause(AvTransport t) {
+            SyncGroup group = syncGroup;
+            if (group == null || !AvTransport.PLAYING.equals(t.getTransportState())) return false;
+            group.pause(t.getPositionMs());
+            return true;
+        }
+
+        @Override
+        boolean interceptStop(AvTransport t) {
+            SyncGroup group = syncGroup;
+            if (group == null || group.sessionUri() == null) return false;
+            group.stopPlayback();
+            return true;
+        }
+
+        @Override
+        boolean interceptSeek(AvTransport t, int positionMs) {
+            SyncGroup group = syncGroup;
+            if (group == null || !AvTransport.PLAYING.equals(t.getTransportState())) return false;
+            if (!group.schedulePlay(t.getCurrentUri(), positionMs, SYNC_LEAD_MS / 3)) {
+                syncCommandFailed("Seek");
+            } else {
+                Log.i(TAG, "Group seek to: " + positionMs + " ms");
+            }
+            return true;
+        }
+
+        @Override
+        List<PlayQueue.Item> queueItems(AvTransport t, String uri, String didl) {
+            return rememberAll(buildQueueItems(uri, didl));
+        }
+
+        @Override
+        PlayQueue.Item remember(PlayQueue.Item item) {
+            return metadataCache.remember(item);
+        }
+
+        @Override
+        void onTrackLoaded(AvTransport t, PlayQueue.Item item) {
+            streamTitle = "";
+            mediaTitle = !item.title.isEmpty() ? item.title : AvTransport.filename(item.uri);
+            mediaArtist = item.artist;
+            updateAlbumArt(item.albumArtUri);
+            stateStore.putString("renderer_current_uri", item.uri);
+            stateStore.putString("renderer_current_metadata", item.metaData);
+            stateStore.putString("renderer_media_title", mediaTitle);
+            stateStore.putString("renderer_media_artist", mediaArtist);
+            Log.i(TAG, "Track " + t.queue().currentTrackNumber() + "/" + t.queue().size() + ": " + item.uri +
+                ", Title: " + mediaTitle + ", Artist: " + mediaArtist);
+        }
+
+        @Override
+        void openSource(AvTransport t, String uri) throws IOException {
+            playlistProbed = false;
+            pcmFallback = false;
+            stopTimeshift();
+            String source = playbackSource(uri);
+            if (source != null) {
+                prepareSource(source);
+            }
+            if (playbackJournal != null) {
+                playbackJournal.recordTrack(uri, t.getCurrentMetaData(), mediaTitle, mediaArtist);
+            }
+            Log.i(TAG, "Starting playback");
+        }
+
+        @Override
+        boolean deferStart(AvTransport t) {
+            if (!syncPendingStart) return false;
+            // В группе стартуем не сразу, а в общий момент времени
+            long delay = syncStartAtLocalMs - SyncGroup.MONOTONIC.nowMs();
+            handler.postDelayed(syncStartRunnable, Math.max(0, delay));
+            return true;
+        }
+
+        @Override
+        void onStarted(AvTransport t, boolean fresh) {
+            if (fresh) {
+                if (stationEntries != null) {
+                    playlistResolver.promote(t.getCurrentUri(), currentSourceUri);
+                }
+                watchForFirstAudio();
+                prefetchNextTrack();
+            }
+            // Живой поток продолжится из буфера timeshift без переподключения
+            startCatchUpChecks();
+        }
+
+        @Override
+        boolean recover(AvTransport t, PlaybackEngine engine, int what, int extra) {
             Log.e(TAG, "Media player error: " + what + ", " + extra);
-            transportState = "STOPPED";
-            prefs.edit().putString("renderer_transport_state", transportState).apply();
-            mediaDurationMs = 0;
-            updateNotification("Playback Error", "", "");
-            Log.i(TAG, "Transport state changed to: STOPPED (error)");
+            return retryWithMediaPlayer(engine) || retryFromPlaylist(engine);
+        }
+
+        @Override
+        boolean autoAdvance(AvTransport t) {
+            // В группе следующий трек выбирает тот, кто запустил сессию
+            SyncGroup group = syncGroup;
+            return group == null || group.ownsSession();
+        }
+
+        @Override
+        void onPlaybackEnded(AvTransport t) {
+            pendingPlaylistUri = null;
+            handler.removeCallbacks(syncStartRunnable);
+            handler.removeCallbacks(driftCheckRunnable);
+            syncPendingStart = false;
+            // Stop сбрасывает буфер; следующий Play начнёт с прямого эфира
+            stopTimeshift();
+        }
+
+        @Override
+        void onNextChanged(AvTransport t) {
+            if (AvTransport.PLAYING.equals(t.getTransportState())) {
+                prefetchNextTrack();
+            }
+        }
+
+        @Override
+        String trackMetaData(AvTransport t) {
+            return currentTrackDidl();
+        }
+
+        @Override
+        void onTransportChanged(AvTransport t, String previousState) {
+            String state = t.getTransportState();
+            if (!state.equals(previousState)) {
+                if (AvTransport.PLAYING.equals(previousState)) {
+                    // Отменяем отложенный общий старт после перемотки и коррекции скорости
+                    handler.removeCallbacks(syncStartRunnable);
+                    handler.removeCallbacks(driftCheckRunnable);
+                    handler.removeCallbacks(catchUpRunnable);
+                    syncPendingStart = false;
+                    catchingUp = false;
+                }
+                stateStore.putString("renderer_transport_state", state);
+                checkpointPlayback();
+                updateNotification(notificationStatus(t), mediaTitle, mediaArtist);
+                Log.i(TAG, "Transport state changed to: " + state + " (" + t.getTransportStatus() + ")");
+            }
             notifyAvTransportChange();
-            return true;
-        });
+        }
+
+        @Override
+        void onVolumeChanged(AvTransport t) {
+            stateStore.putInt("renderer_volume", t.getVolume());
+            Log.i(TAG, "Volume set to: " + t.getVolume());
+            notifyRenderingControlChange();
+        }
     }
 
-    private String getUriFilename(String uri) {
-        if (uri == null) return "Unknown";
-        int lastSlash = uri.lastIndexOf('/');
-        return lastSlash >= 0 ? uri.substring(lastSlash + 1) : uri;
+    private static String notificationStatus(AvTransport t) {
+        switch (t.getTransportState()) {
+            case AvTransport.PLAYING:
+                return "Playing";
+            case AvTransport.TRANSITIONING:
+                return "Loading";
+            case AvTransport.PAUSED_PLAYBACK:
+                return "Paused";
+            default:
+                return AvTransport.STATUS_ERROR.equals(t.getTransportStatus()) ? "Playback Error" : "Stopped";
+        }
     }
 
-    private Notification createNotification() {
-        return new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle("DLNA Audio Renderer")
-                .setContentText("Basic mode - UPnP pending")
-                .setSmallIcon(R.mipmap.ic_launcher)
-                .setPriority(NotificationCompat.PRIORITY_LOW)
-                .build();
+    private void startSyncGroup() {
+        String name = prefs.getString("sync_group", "").trim();
+        if (name.isEmpty()) return;
+        WifiManager wifi = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+        if (wifi != null) {
+            // Без блокировки Wi-Fi отбрасывает многоадресные пакеты
+            syncMulticastLock = wifi.createMulticastLock("weblauncher-sync");
+            syncMulticastLock.setReferenceCounted(false);
+            syncMulticastLock.acquire();
+        }
+        final int generation;
+        synchronized (syncGroupLock) {
+            generation = ++syncGeneration;
+        }
+        new Thread(() -> {
+            MulticastSocket socket = null;
+            try {
+                socket = new MulticastSocket(SyncGroup.DEFAULT_PORT);
+                InetAddress address = InetAddress.getByName(SyncGroup.DEFAULT_ADDRESS);
+                socket.joinGroup(address);
+                List<java.net.SocketAddress> announceTo = new ArrayList<>();
+                announceTo.add(new java.net.InetSocketAddress(address, SyncGroup.DEFAULT_PORT));
+                SyncGroup group = new SyncGroup(name, deviceUUID, socket, announceTo);
+                group.setHttpPort(httpPort);
+                group.setListener(new SyncGroup.Listener() {
+                    @Override
+                    public void onPlay(String uri, long positionMs, long startAtLocalMs) {
+                        handler.post(() -> startSynced(uri, positionMs, startAtLocalMs));
+                    }
+
+                    @Override
+                    public void onPause(long positionMs) {
+                        handler.post(() -> transport.pause());
+                    }
+
+                    @Override
+                    public void onStop() {
+                        handler.post(() -> transport.stop());
+                    }
+                });
+                synchronized (syncGroupLock) {
+                    if (generation != syncGeneration) {
+                        // Сервис успел остановить группу, пока мы подключались
+                        socket.close();
+                        return;
+                    }
+                    group.start();
+                    syncGroup = group;
+                }
+                Log.i(TAG, "Joined sync group '" + group.getGroup() + "' as " + deviceUUID);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to join sync group " + name, e);
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }, "SyncGroupStart").start();
     }
 
-    private void updateNotification(String status, String title, String artist) {
-        String contentText;
-        if (!title.isEmpty()) {
-            if (!artist.isEmpty()) {
-                contentText = status + ": " + artist + " - " + title;
+    private void stopSyncGroup() {
+        handler.removeCallbacks(syncStartRunnable);
+        handler.removeCallbacks(driftCheckRunnable);
+        SyncGroup group;
+        synchronized (syncGroupLock) {
+            syncGeneration++;
+            group = syncGroup;
+            syncGroup = null;
+        }
+        if (group != null) {
+            group.stop();
+        }
+        if (streamRelay != null) {
+            streamRelay.setPeer(null);
+        }
+        if (syncMulticastLock != null) {
+            syncMulticastLock.release();
+            syncMulticastLock = null;
+        }
+    }
+
+    // Команда группы: подготовить трек и начать его в общий момент времени
+    private void startSynced(String uri, long positionMs, long startAtLocalMs) {
+        handler.removeCallbacks(syncStartRunnable);
+        handler.removeCallbacks(driftCheckRunnable);
+        syncStartAtLocalMs = startAtLocalMs;
+        syncCorrected = false;
+        usePeerRelay();
+        String state = transport.getTransportState();
+        boolean prepared = uri.equals(transport.getCurrentUri()) && transport.isPrepared() &&
+                (AvTransport.PLAYING.equals(state) || AvTransport.PAUSED_PLAYBACK.equals(state));
+        if (prepared) {
+            // Пауза или перемотка в том же треке: готовим позицию и ждём общего момента
+            PlaybackEngine engine = transport.engine();
+            if (engine.isPlaying()) {
+                transport.setSpeed(1.0f);
+                engine.pause();
+            }
+            engine.seekTo((int) positionMs);
+            syncPendingStart = true;
+            handler.postDelayed(syncStartRunnable, Math.max(0, startAtLocalMs - SyncGroup.MONOTONIC.nowMs()));
+            return;
+        }
+        if (!uri.equals(transport.getCurrentUri())) {
+            transport.stop();
+            List<PlayQueue.Item> single = new ArrayList<>();
+            single.add(metadataCache.remember(new PlayQueue.Item(uri, "")));
+            transport.setQueue(single, 0);
+        } else {
+            transport.stop();
+        }
+        syncPendingStart = true;
+        Log.i(TAG, "Group play of " + uri + " at " + positionMs + " ms in " +
+                (startAtLocalMs - SyncGroup.MONOTONIC.nowMs()) + " ms");
+        transport.play();
+    }
+
+    // Живой поток берём у того, кто запустил сессию: один поток из интернета на всю группу
+    private void usePeerRelay() {
+        SyncGroup group = syncGroup;
+        if (streamRelay == null) return;
+        String peer = group != null && prefs.getBoolean("stream_relay", false) ? group.sessionOwnerHttpBase() : null;
+        if (peer != null) {
+            Log.i(TAG, "Live streams of this session come from " + peer);
+        }
+        streamRelay.setPeer(peer);
+    }
+
+    // Команда не ушла в группу: пусть это будет видно, а не тишина во всех комнатах
+    private void syncCommandFailed(String action) {
+        Log.e(TAG, "Group " + action + " of " + transport.getCurrentUri() + " not sent: the URI is too long for a sync packet");
+        updateNotification("Group " + action.toLowerCase(Locale.US) + " failed", mediaTitle, mediaArtist);
+    }
+
+    private void startSyncedPlayback() {
+        syncPendingStart = false;
+        SyncGroup group = syncGroup;
+        if (group == null || !transport.isPrepared()) return;
+        long expected = group.expectedPositionMs();
+        if (expected < 0) return;
+        // Опоздали (медленная подготовка или присоединились позже) — догоняем перемоткой
+        PlaybackEngine engine = transport.engine();
+        if (Math.abs(engine.getCurrentPosition() - expected) > DRIFT_TOLERANCE_MS) {
+            engine.seekTo((int) (expected + syncSeekLeadMs));
+        }
+        transport.start();
+        Log.i(TAG, "Group playback started at " + expected + " ms");
+        handler.postDelayed(driftCheckRunnable, DRIFT_CHECK_INTERVAL_MS);
+    }
+
+    /*
+     * Сравниваем позицию плеера с общей шкалой. Небольшой уход выправляем,
+     * чуть ускоряя или замедляя воспроизведение (высота тона сохраняется), а
+     * перематываем только при большом скачке или если скорость не меняется.
+     * Перемотка сама занимает время, поэтому запоминаем, насколько отстали
+     * после прошлой, и в следующий раз перематываем с этим упреждением.
+     */
+    private void checkSyncDrift() {
+        SyncGroup group = syncGroup;
+        if (group == null || !AvTransport.PLAYING.equals(transport.getTransportState())) return;
+        long expected = group.expectedPositionMs();
+        if (expected < 0) return;
+        long error = transport.getPositionMs() - expected;
+        if (syncCorrected) {
+            syncSeekLeadMs = Math.max(0, Math.min(MAX_SEEK_LEAD_MS, syncSeekLeadMs - error / 2));
+            syncCorrected = false;
+        }
+        long drift = Math.abs(error);
+        if (drift <= DRIFT_TOLERANCE_MS) {
+            setSyncSpeed(1.0f);
+        } else if (drift > DRIFT_SEEK_MS || !setSyncSpeed(driftCorrectionSpeed(error))) {
+            setSyncSpeed(1.0f);
+            Log.i(TAG, "Sync drift " + error + " ms, seeking with " + syncSeekLeadMs + " ms lead");
+            transport.engine().seekTo((int) (expected + syncSeekLeadMs));
+            syncCorrected = true;
+        }
+        handler.postDelayed(driftCheckRunnable, DRIFT_CHECK_INTERVAL_MS);
+    }
+
+    // Впереди — замедляемся, позади — ускоряемся; уход убирается примерно за DRIFT_CORRECTION_WINDOW_MS
+    private static float driftCorrectionSpeed(long errorMs) {
+        float adjust = Math.min(MAX_DRIFT_SPEED_ADJUST, (float) Math.abs(errorMs) / DRIFT_CORRECTION_WINDOW_MS);
+        return errorMs > 0 ? 1.0f - adjust : 1.0f + adjust;
+    }
+
+    private boolean setSyncSpeed(float speed) {
+        float previous = transport.getSpeed();
+        if (!transport.setSpeed(speed)) return false;
+        if (speed != 1.0f && previous == 1.0f) {
+            Log.i(TAG, "Correcting sync drift with speed " + speed);
+        }
+        return true;
+    }
+
+    private void startCatchUpChecks() {
+        handler.removeCallbacks(catchUpRunnable);
+        if (timeshift != null) {
+            handler.postDelayed(catchUpRunnable, CATCH_UP_CHECK_INTERVAL_MS);
+        }
+    }
+
+    // После паузы живой поток отстаёт от эфира; по желанию догоняем ускорением
+    private void checkCatchUp() {
+        if (timeshift == null || !AvTransport.PLAYING.equals(transport.getTransportState()) ||
+                !timeshift.isActive(currentSourceUri)) {
+            return;
+        }
+        // В группе скоростью управляет синхронизация
+        if (syncGroup == null && prefs.getBoolean("timeshift_catch_up", false)) {
+            long lagMs = timeshift.lagMs();
+            if (!catchingUp && lagMs > CATCH_UP_START_LAG_MS) {
+                if (transport.setSpeed(CATCH_UP_SPEED)) {
+                    catchingUp = true;
+                    Log.i(TAG, "Timeshift " + lagMs + " ms behind live, catching up");
+                }
+            } else if (catchingUp && lagMs < CATCH_UP_STOP_LAG_MS) {
+                transport.setSpeed(1.0f);
+                catchingUp = false;
+                Log.i(TAG, "Caught up with live");
+            }
+        }
+        handler.postDelayed(catchUpRunnable, CATCH_UP_CHECK_INTERVAL_MS);
+    }
+
+    // Плеер не сообщает о первом звуке — ждём, пока позиция начнёт расти
+    private void watchForFirstAudio() {
+        final long deadline = System.currentTimeMillis() + FIRST_AUDIO_TIMEOUT_MS;
+        final PlaybackMetrics metrics = transport.metrics();
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!metrics.isAwaitingFirstAudio()) return;
+                PlaybackEngine engine = transport.engine();
+                if (engine.isPlaying() && engine.getCurrentPosition() > 0) {
+                    metrics.onFirstAudio();
+                } else if (System.currentTimeMillis() < deadline) {
+                    handler.postDelayed(this, FIRST_AUDIO_POLL_MS);
+                }
+            }
+        }, FIRST_AUDIO_POLL_MS);
+    }
+
+    private void startStreamProxy() {
+        try {
+            SegmentCache segmentCache = new SegmentCache(new File(getCacheDir(), "stream_cache"), STREAM_CACHE_MAX_BYTES);
+            streamProxy = new CachingStreamProxy(segmentCache);
+            streamProxy.setStreamInfoListener(this::onStreamInfo);
+            streamProxy.setStreamTitleListener(this::onStreamTitle);
+            streamRelay = new StreamRelay();
+            streamProxy.setLiveRelay(streamRelay);
+            if (prefs.getBoolean("timeshift_live", false)) {
+                timeshift = new TimeshiftBuffer(new File(getCacheDir(), "timeshift.ring"), TimeshiftBuffer.DEFAULT_CAPACITY);
+                streamProxy.setTimeshift(timeshift);
+            }
+            streamProxy.start();
+            trackPrefetcher = new TrackPrefetcher(segmentCache, streamProxy);
+        } catch (IOException e) {
+            Log.w(TAG, "Stream proxy unavailable, MediaPlayer will read upstream directly", e);
+            streamProxy = null;
+        }
+    }
+
+    // Подкачиваем начало следующего трека в кеш, пока играет текущий
+    private void prefetchNextTrack() {
+        if (trackPrefetcher == null) return;
+        PlayQueue.Item next = transport.queue().peekNext();
+        if (next != null && (next.uri.startsWith("http://") || next.uri.startsWith("https://"))) {
+            trackPrefetcher.prefetch(next.uri, prefs.getBoolean("prefetch_whole_track", false), PREFETCH_BYTES_PER_SECOND);
+        }
+    }
+
+    // URI, который реально получает MediaPlayer: http(s) идёт через локальный кеширующий прокси
+    private String playbackUri(String uri) {
+        if (streamProxy != null && streamProxy.isRunning() &&
+                (uri.startsWith("http://") || uri.startsWith("https://"))) {
+            return streamProxy.proxyUrl(uri);
+        }
+        return uri;
+    }
+
+    // Для станции из плейлиста прокси сообщает об адресе потока, а не самого плейлиста
+    private boolean isCurrentStream(String url) {
+        return url.equals(transport.getCurrentUri()) || url.equals(currentSourceUri);
+    }
+
+    // Вызывается из потоков прокси
+    private void onStreamInfo(String url, String contentType, String name) {
+        PlayQueue.Item info = metadataCache.rememberStreamInfo(url, contentType, name);
+        handler.post(() -> {
+            // Станция без DIDL: показываем icy-name вместо имени файла
+            if (!isCurrentStream(url) || !transport.getCurrentMetaData().isEmpty() || info.title.isEmpty()) return;
+            if (!streamTitle.isEmpty()) return; // уже показываем текущую песню
+            if (info.title.equals(mediaTitle)) return;
+            mediaTitle = info.title;
+            if (!info.contentType.isEmpty()) {
+                transport.setContentType(info.contentType);
+            }
+            stateStore.putString("renderer_media_title", mediaTitle);
+            if (AvTransport.PLAYING.equals(transport.getTransportState())) {
+                updateNotification("Playing", mediaTitle, mediaArtist);
+            }
+            transport.changed();
+        });
+    }
+
+    // Вызывается из потоков прокси и ретранслятора
+    private void onStreamTitle(String url, String title) {
+        handler.post(() -> {
+            if (!isCurrentStream(url) || title.equals(streamTitle)) return;
+            streamTitle = title;
+            String uri = transport.getCurrentUri();
+            PlayQueue.Item station = metadataCache.get(uri);
+            if (title.isEmpty()) {
+                // Между песнями (и в рекламе) станции шлют пустой заголовок — возвращаем название станции
+                mediaTitle = station != null && !station.title.isEmpty() ? station.title : AvTransport.filename(uri);
+                mediaArtist = station != null ? station.artist : "";
             } else {
-                contentText = status + ": " + title;
+                String[] parts = IcyDemuxer.splitArtistTitle(title);
+                mediaArtist = parts[0];
+                mediaTitle = parts[1];
             }
+            Log.i(TAG, "Stream title: " + title);
+            if (AvTransport.PLAYING.equals(transport.getTransportState())) {
+                updateNotification("Playing", mediaTitle, mediaArtist);
+            }
+            notifyStreamTitleChange();
+        });
+    }
+
+    // Контроллеры получают новую песню событием, но не чаще STREAM_TITLE_EVENT_INTERVAL_MS
+    private void notifyStreamTitleChange() {
+        transport.invalidateResponses();
+        onStateChanged();
+        handler.removeCallbacks(streamTitleEventRunnable);
+        long wait = lastStreamTitleEventMs + STREAM_TITLE_EVENT_INTERVAL_MS - System.currentTimeMillis();
+        if (wait > 0) {
+            handler.postDelayed(streamTitleEventRunnable, wait);
         } else {
-            contentText = status;
+            sendStreamTitleEvent();
         }
+    }
 
-        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle("DLNA Audio Renderer")
-                .setContentText(contentText)
-                .setSmallIcon(R.mipmap.ic_launcher)
-                .setPriority(NotificationCompat.PRIORITY_LOW)
-                .build();
+    private void sendStreamTitleEvent() {
+        lastStreamTitleEventMs = System.currentTimeMillis();
+        notifyAvTransportChange();
+    }
 
-        NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        if (manager != null) {
-            manager.notify(1, notification);
+    // Любое изменение состояния: готовые SOAP-ответы устаревают, подписчики /events получают снимок
+    private void onStateChanged() {
+        statusStream.changed();
+        if (mediaPlaybackPending && AvTransport.PLAYING.equals(transport.getTransportState())) {
+            handler.post(this::enterMediaPlayback);
         }
     }
 
+    // Тот же снимок отдаёт /status; позиция — на момент сборки, дальше клиент считает сам
+    private String buildStatusJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"name\":");
+        HttpUtil.appendJsonString(json, prefs.getString("renderer_name", "Android DLNA Media Player"));
+        json.append(",\"transportState\":");
+        HttpUtil.appendJsonString(json, transport.getTransportState());
+        json.append(",\"uri\":");
+        HttpUtil.appendJsonString(json, transport.getCurrentUri());
+        json.append(",\"title\":");
+        HttpUtil.appendJsonString(json, mediaTitle);
+        json.append(",\"artist\":");
+        HttpUtil.appendJsonString(json, mediaArtist);
+        json.append(",\"streamTitle\":");
+        HttpUtil.appendJsonString(json, streamTitle);
+        json.append(",\"albumArtUri\":");
+        HttpUtil.appendJsonString(json, currentAlbumArtUri);
+        json.append(",\"volume\":").append(transport.getVolume());
+        json.append(",\"positionMs\":").append(transport.getPositionMs());
+        json.append(",\"durationMs\":").append(transport.getDurationMs());
+        json.append('}');
+        return json.toString();
+    }
+
+    private void updateAlbumArt(String artUri) {
+        String uri = artUri != null ? artUri : "";
+        if (uri.equals(currentAlbumArtUri)) return;
+        currentAlbumArtUri = uri;
+        if (uri.isEmpty() || albumArtCache == null) {
+            if (notification != null) notification.setArtwork(null);
+            return;
+        }
+        albumArtCache.load(uri, ALBUM_ART_SIZE_PX, ALBUM_ART_SIZE_PX, (url, bitmap) -> {
+            // Пока грузили, трек мог смениться
+            if (url.equals(currentAlbumArtUri) && notification != null) {
+                notification.setArtwork(bitmap);
+            }
+        });
+    }
+
+    private void updateNotification(String status, String title, String artist) {
+        if (notification == null) return;
+        String state = transport.getTransportState();
+        boolean playing = AvTransport.PLAYING.equals(state) || AvTransport.TRANSITIONING.equals(state);
+        notification.update(status, title, artist, playing, !transport.getCurrentUri().isEmpty());
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -233,19 +1091,100 @@ public class UpnpAudioRendererService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.i(TAG, "DLNA Audio Renderer Service started");
+        if (!inForeground) {
+            enterForeground(intent != null && intent.getBooleanExtra(EXTRA_BOOT_START, false));
+        }
+        if (intent != null && intent.getAction() != null) {
+            handleTransportAction(intent.getAction());
+        }
         return START_STICKY;
     }
 
+    // Кнопки уведомления
+    private void handleTransportAction(String action) {
+        Log.i(TAG, "Notification action: " + action);
+        if (RendererNotification.ACTION_PLAY.equals(action)) {
+            playMedia();
+        } else if (RendererNotification.ACTION_PAUSE.equals(action)) {
+            pauseMedia();
+        } else if (RendererNotification.ACTION_STOP.equals(action)) {
+            stopMedia();
+        } else if (RendererNotification.ACTION_NEXT.equals(action)) {
+            transport.next();
+        } else if (RendererNotification.ACTION_PREVIOUS.equals(action)) {
+            transport.previous();
+        }
+    }
+
     @Override
     public void onDestroy() {
         Log.i(TAG, "DLNA Audio Renderer Service destroyed");
 
+        handler.removeCallbacks(networkRetryRunnable);
+        prefs.edit().remove(PREF_ACTIVE_HTTP_PORT).remove(PREF_MEDIA_SERVER_TRACKS).apply();
+        if (notification != null) {
+            notification.cancelPending();
+        }
+        if (albumArtCache != null) {
+            albumArtCache.shutdown();
+        }
+
+        if (playbackJournal != null) {
+            checkpointPlayback();
+            handler.removeCallbacks(checkpointRunnable);
+            playbackJournal.close();
+            playbackJournal = null;
+        }
+
         stopHttpServer();
         stopSsdpDiscovery();
+        stopSyncGroup();
+        handler.removeCallbacks(streamTitleEventRunnable);
+        playlistResolver.shutdown();
+
+        if (trackPrefetcher != null) {
+            trackPrefetcher.shutdown();
+            trackPrefetcher = null;
+        }
+        if (streamProxy != null) {
+            streamProxy.stop();
+            streamProxy = null;
+        }
+        if (timeshift != null) {
+            timeshift.close();
+            timeshift = null;
+        }
+        if (streamRelay != null) {
+            streamRelay.shutdown();
+            streamRelay = null;
+        }
 
-        if (mediaPlayer != null) {
-            mediaPlayer.release();
-            mediaPlayer = null;
+        // Отложенные старты и проверки не должны трогать освобождённые движки
+        handler.removeCallbacksAndMessages(null);
+        if (defaultEngine != null) {
+            defaultEngine.release();
+            defaultEngine = null;
+        }
+        if (pcmEngine != null) {
+            pcmEngine.release();
+            pcmEngine = null;
+        }
+        for (VirtualRenderer renderer : virtualRenderers) {
+            renderer.release();
+        }
+        virtualRenderers.clear();
+        if (mediaServer != null) {
+            mediaServer.shutdown();
+            mediaServer = null;
+        }
+        if (controlPoint != null) {
+            controlPoint.shutdown();
+            controlPoint = null;
+        }
+        statusStream.shutdown();
+
+        if (stateStore != null) {
+            stateStore.close();
         }
 
         super.onDestroy();
@@ -256,119 +1195,90 @@ public class UpnpAudioRendererService extends Service {
         return null;
     }
 
-    // Public methods for future UPnP integration
-    public void setCurrentUri(String uri) {
-        this.currentUri = uri;
-        prefs.edit().putString("renderer_current_uri", uri).apply();
-        Log.i(TAG, "URI set: " + uri);
+    // Пишет в журнал позицию и состояние; пока играет — повторяет каждые CHECKPOINT_INTERVAL_MS
+    private void checkpointPlayback() {
+        if (playbackJournal == null) return;
+        handler.removeCallbacks(checkpointRunnable);
+        String state = transport.getTransportState();
+        int positionMs = transport.getPositionMs();
+        if (AvTransport.TRANSITIONING.equals(state)) {
+            // Не затираем сохранённую позицию, пока идёт возобновление
+            positionMs = Math.max(0, transport.getPendingSeekMs());
+        }
+        playbackJournal.recordPosition(positionMs, state);
+        if (AvTransport.PLAYING.equals(state)) {
+            handler.postDelayed(checkpointRunnable, CHECKPOINT_INTERVAL_MS);
+        }
     }
 
-    public void playMedia() {
-        Log.i(TAG, "Play requested, current URI: " + currentUri + ", transportState: " + transportState);
-
-        if (currentUri.isEmpty()) {
-            Log.w(TAG, "No URI set for playback");
-            updateNotification("No source set", "", "");
-            return;
+    private void resumeFromJournal(PlaybackJournal.Snapshot snapshot) {
+        if (snapshot == null || !AvTransport.STOPPED.equals(transport.getTransportState())) return;
+        boolean wasPlaying = "PLAYING".equals(snapshot.transportState) || "TRANSITIONING".equals(snapshot.transportState);
+        boolean wasPaused = "PAUSED_PLAYBACK".equals(snapshot.transportState);
+        if (!wasPlaying && !wasPaused) return;
+        // Контроллер мог уже выбрать другой трек
+        String uri = transport.getCurrentUri();
+        if (!uri.isEmpty() && !uri.equals(snapshot.uri)) return;
+
+        List<PlayQueue.Item> single = new ArrayList<>();
+        single.add(new PlayQueue.Item(snapshot.uri, snapshot.metaData, snapshot.title));
+        transport.setQueue(single, 0);
+        if (!snapshot.title.isEmpty()) mediaTitle = snapshot.title;
+        if (!snapshot.artist.isEmpty()) mediaArtist = snapshot.artist;
+        transport.seek(snapshot.positionMs);
+
+        Log.i(TAG, "Resuming " + snapshot.uri + " at " + snapshot.positionMs + " ms (was " + snapshot.transportState + ")");
+        if (wasPlaying) {
+            transport.requestPlay();
         }
+    }
 
-        handler.post(() -> {
-            try {
-                if (mediaPlayer.isPlaying()) {
-                    Log.i(TAG, "Already playing → ignoring or force restart if needed");
-                    return;
-                }
+    // Public methods for future UPnP integration
+    public void setCurrentUri(String uri) {
+        transport.setUri(uri != null ? uri : "", "");
+    }
 
-                if ("PAUSED_PLAYBACK".equals(transportState)) {
-                    mediaPlayer.start();
-                    transportState = "PLAYING";
-                    prefs.edit().putString("renderer_transport_state", transportState).apply();
-                    String title = !mediaTitle.isEmpty() ? mediaTitle : getUriFilename(currentUri);
-                    updateNotification("Playing", title, mediaArtist);
-                    Log.i(TAG, "Resumed from pause");
-                } else {
-                    // STOPPED, TRANSITIONING или неизвестное → всегда новый запуск
-                    mediaPlayer.reset();
-                    mediaPlayer.setDataSource(currentUri);
-                    mediaPlayer.prepareAsync();
-                    transportState = "TRANSITIONING";
-                    prefs.edit().putString("renderer_transport_state", transportState).apply();
-                    String title = !mediaTitle.isEmpty() ? mediaTitle : getUriFilename(currentUri);
-                    updateNotification("Loading", title, mediaArtist);
-                    Log.i(TAG, "Starting playback");
-                }
-                notifyAvTransportChange();
-            } catch (Exception e) {
-                Log.e(TAG, "Play failed", e);
-                transportState = "STOPPED";
-                prefs.edit().putString("renderer_transport_state", transportState).apply();
-                updateNotification("Playback failed", "", "");
-                notifyAvTransportChange();
-            }
-        });
+    public void playMedia() {
+        Log.i(TAG, "Play requested, current URI: " + transport.getCurrentUri() +
+                ", transportState: " + transport.getTransportState());
+        transport.requestPlay();
     }
 
     public void pauseMedia() {
-        try {
-            if ("PLAYING".equals(transportState) && mediaPlayer.isPlaying()) {
-                mediaPlayer.pause();
-                transportState = "PAUSED_PLAYBACK";
-                prefs.edit().putString("renderer_transport_state", transportState).apply();
-                String title = !mediaTitle.isEmpty() ? mediaTitle : getUriFilename(currentUri);
-                updateNotification("Paused", title, mediaArtist);
-                Log.i(TAG, "Playback paused");
-                notifyAvTransportChange();
-            } else {
-                Log.i(TAG, "Not playing or not in PLAYING state, cannot pause. Current state: " + transportState);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error pausing playback", e);
-            transportState = "STOPPED";
-            prefs.edit().putString("renderer_transport_state", transportState).apply();
-            notifyAvTransportChange();
-        }
+        transport.requestPause();
     }
 
     public void stopMedia() {
-        try {
-            if (!"STOPPED".equals(transportState)) {
-                mediaPlayer.stop();
-                transportState = "STOPPED";
-                prefs.edit().putString("renderer_transport_state", transportState).apply();
-                mediaDurationMs = 0;
-                updateNotification("Stopped", "", "");
-                Log.i(TAG, "Playback stopped");
-                notifyAvTransportChange();
-            } else {
-                Log.i(TAG, "Already stopped");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error stopping playback", e);
-            transportState = "STOPPED";
-            prefs.edit().putString("renderer_transport_state", transportState).apply();
-            notifyAvTransportChange();
+        transport.requestStop();
+    }
+
+    /*
+     * Сессия таймшифта держит поток от источника открытым и после того, как плеер
+     * перестал читать, поэтому её закрываем на каждом выходе из живого потока:
+     * Stop, ошибка, конец трека, переход на другой адрес.
+     */
+    private void stopTimeshift() {
+        handler.removeCallbacks(catchUpRunnable);
+        catchingUp = false;
+        if (timeshift != null) {
+            timeshift.stop();
         }
     }
 
     public void setMediaVolume(int newVolume) {
-        volume = Math.max(0, Math.min(100, newVolume));
-        float volumeFloat = volume / 100.0f;
-        mediaPlayer.setVolume(volumeFloat, volumeFloat);
-        prefs.edit().putInt("renderer_volume", volume).apply();
-        Log.i(TAG, "Volume set to: " + volume);
-        notifyRenderingControlChange();
+        transport.setVolume(newVolume);
     }
 
     public int getMediaVolume() {
-        return volume;
+        return transport.getVolume();
     }
 
     public boolean isMediaPlaying() {
-        return mediaPlayer.isPlaying();
+        return transport.engine().isPlaying();
     }
 
     public String getCurrentUri() {
-        return currentUri;
+        return transport.getCurrentUri();
     }
 
     // Добавлены геттеры для метаданных
@@ -381,7 +1291,7 @@ public class UpnpAudioRendererService extends Service {
     }
 
     public String getMediaContentType() {
-        return mediaContentType;
+        return transport.getContentType();
     }
 
     // SSDP Discovery Methods
@@ -428,9 +1338,18 @@ public class UpnpAudioRendererService extends Service {
 
                 Log.i(TAG, "SSDP discovery started on " + localIP + ":" + SSDP_PORT);
 
+                // Таймаут приёма нужен, чтобы этот же поток рассылал ssdp:alive
+                multicastSocket.setSoTimeout(1000);
+                long nextAliveAt = 0;
+                int aliveBurst = SSDP_ALIVE_BURST;
                 byte[] buffer = new byte[1024];
                 while (isRunning) {
                     try {
+                        long now = System.currentTimeMillis();
+                        if (now >= nextAliveAt) {
+                            sendSsdpNotify(unicastSocket, "ssdp:alive");
+                            nextAliveAt = now + (--aliveBurst > 0 ? SSDP_ALIVE_BURST_INTERVAL_MS : SSDP_ALIVE_INTERVAL_MS);
+                        }
                         DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                         multicastSocket.receive(packet);
 
@@ -439,7 +1358,12 @@ public class UpnpAudioRendererService extends Service {
 
                         if (received.contains("M-SEARCH")) {
                             handleMSearchRequest(received, packet.getAddress(), packet.getPort());
+                        } else if (received.startsWith("NOTIFY") && controlPoint != null) {
+                            // Анонсы других устройств нужны только контрольной точке
+                            controlPoint.onSsdpPacket(received);
                         }
+                    } catch (SocketTimeoutException e) {
+                        // пора проверить, не нужен ли очередной ssdp:alive
                     } catch (Exception e) {
                         if (isRunning) {
                             Log.e(TAG, "Error in SSDP discovery loop", e);
@@ -476,7 +1400,12 @@ public class UpnpAudioRendererService extends Service {
         }
 
         if (unicastSocket != null) {
-            unicastSocket.close();
+            // byebye, чтобы контроллеры сразу убрали рендерер; сеть не из главного потока
+            DatagramSocket socket = unicastSocket;
+            new Thread(() -> {
+                sendSsdpNotify(socket, "ssdp:byebye");
+                socket.close();
+            }).start();
             unicastSocket = null;
         }
 
@@ -504,12 +1433,35 @@ public class UpnpAudioRendererService extends Service {
                 sendSsdpResponse(clientAddress, clientPort, MEDIA_RENDERER_NT);
                 Log.i(TAG, "✓ SENT SSDP response for MediaRenderer");
 
+                for (String serviceType : SERVICE_TYPES) {
+                    sendSsdpResponse(clientAddress, clientPort, serviceType);
+                }
+
+                if (mediaServer != null) {
+                    sendMediaServerResponse(clientAddress, clientPort, UPNP_ROOT_DEVICE);
+                    sendMediaServerResponse(clientAddress, clientPort, MEDIA_SERVER_NT);
+                    for (String serviceType : MEDIA_SERVER_SERVICE_TYPES) {
+                        sendMediaServerResponse(clientAddress, clientPort, serviceType);
+                    }
+                }
+
+            } else if (MEDIA_SERVER_NT.equals(st) || CONTENT_DIRECTORY_TYPE.equals(st)) {
+                if (mediaServer != null) {
+                    Log.i(TAG, "MATCH: Responding to ST: " + st + " for the media server");
+                    sendMediaServerResponse(clientAddress, clientPort, st);
+                }
             } else if (UPNP_ROOT_DEVICE.equals(st) || MEDIA_RENDERER_NT.equals(st) ||
-                      "urn:schemas-upnp-org:device:MediaRenderer:*".equals(st)) {
+                      "urn:schemas-upnp-org:device:MediaRenderer:*".equals(st) ||
+                      java.util.Arrays.asList(SERVICE_TYPES).contains(st)) {
                 // Specific device type request
                 Log.i(TAG, "MATCH: Responding to ST: " + st);
                 sendSsdpResponse(clientAddress, clientPort, st);
                 Log.i(TAG, "✓ SENT SSDP response to " + clientAddress.getHostAddress() + ":" + clientPort + " for ST: " + st);
+                // Корневое устройство и общий ConnectionManager есть и у медиасервера
+                if (mediaServer != null && (UPNP_ROOT_DEVICE.equals(st) ||
+                        java.util.Arrays.asList(MEDIA_SERVER_SERVICE_TYPES).contains(st))) {
+                    sendMediaServerResponse(clientAddress, clientPort, st);
+                }
             } else {
                 Log.d(TAG, "NO MATCH: Ignoring ST: " + st);
             }
@@ -519,8 +1471,20 @@ public class UpnpAudioRendererService extends Service {
     }
 
     private void sendSsdpResponse(InetAddress clientAddress, int clientPort, String st) {
+        sendSsdpResponse(clientAddress, clientPort, st, deviceUUID, "/description.xml");
+        // Каждый виртуальный рендерер — отдельное корневое устройство со своим USN
+        for (VirtualRenderer renderer : virtualRenderers) {
+            sendSsdpResponse(clientAddress, clientPort, st, renderer.uuid, renderer.pathPrefix() + "/description.xml");
+        }
+    }
+
+    private void sendMediaServerResponse(InetAddress clientAddress, int clientPort, String st) {
+        sendSsdpResponse(clientAddress, clientPort, st, mediaServer.uuid, MediaServer.PATH_PREFIX + "description.xml");
+    }
+
+    private void sendSsdpResponse(InetAddress clientAddress, int clientPort, String st, String uuid, String descriptionPath) {
         try {
-            String response = buildSsdpResponse(st);
+            String response = buildSsdpResponse(st, uuid, descriptionPath);
 
             byte[] responseBytes = response.getBytes("UTF-8");
             DatagramPacket responsePacket = new DatagramPacket(
@@ -533,15 +1497,66 @@ public class UpnpAudioRendererService extends Service {
         }
     }
 
-    private String buildSsdpResponse(String st) {
+    // Объявления в группу: корневое устройство, uuid, тип устройства и сервисы каждого устройства
+    private void sendSsdpNotify(DatagramSocket socket, String nts) {
+        List<String> messages = new ArrayList<>();
+        addSsdpNotify(messages, nts, deviceUUID, "/description.xml", MEDIA_RENDERER_NT, SERVICE_TYPES);
+        for (VirtualRenderer renderer : virtualRenderers) {
+            addSsdpNotify(messages, nts, renderer.uuid, renderer.pathPrefix() + "/description.xml",
+                MEDIA_RENDERER_NT, SERVICE_TYPES);
+        }
+        MediaServer server = mediaServer;
+        if (server != null) {
+            addSsdpNotify(messages, nts, server.uuid, MediaServer.PATH_PREFIX + "description.xml",
+                MEDIA_SERVER_NT, MEDIA_SERVER_SERVICE_TYPES);
+        }
+        try {
+            InetAddress group = InetAddress.getByName(SSDP_IP);
+            for (String message : messages) {
+                byte[] bytes = message.getBytes("UTF-8");
+                socket.send(new DatagramPacket(bytes, bytes.length, group, SSDP_PORT));
+            }
+            Log.d(TAG, "Sent " + messages.size() + " SSDP " + nts + " messages");
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending SSDP " + nts, e);
+        }
+    }
+
+    private void addSsdpNotify(List<String> messages, String nts, String uuid, String descriptionPath,
+                               String deviceType, String[] serviceTypes) {
+        messages.add(buildSsdpNotify(nts, UPNP_ROOT_DEVICE, "uuid:" + uuid + "::" + UPNP_ROOT_DEVICE, descriptionPath));
+        messages.add(buildSsdpNotify(nts, "uuid:" + uuid, "uuid:" + uuid, descriptionPath));
+        messages.add(buildSsdpNotify(nts, deviceType, "uuid:" + uuid + "::" + deviceType, descriptionPath));
+        for (String serviceType : serviceTypes) {
+            messages.add(buildSsdpNotify(nts, serviceType, "uuid:" + uuid + "::" + serviceType, descriptionPath));
+        }
+    }
+
+    private String buildSsdpNotify(String nts, String nt, String usn, String descriptionPath) {
+        StringBuilder message = new StringBuilder();
+        message.append("NOTIFY * HTTP/1.1\r\n");
+        message.append("HOST: ").append(SSDP_IP).append(":").append(SSDP_PORT).append("\r\n");
+        if ("ssdp:alive".equals(nts)) {
+            message.append("CACHE-CONTROL: max-age=1800\r\n");
+            message.append("LOCATION: http://").append(localIP).append(":").append(httpPort).append(descriptionPath).append("\r\n");
+            message.append("SERVER: Android/UPnP/1.0 WebLauncher/1.0\r\n");
+        }
+        message.append("NT: ").append(nt).append("\r\n");
+        message.append("NTS: ").append(nts).append("\r\n");
+        message.append("USN: ").append(usn).append("\r\n");
+        message.append("\r\n");
+        return message.toString();
+    }
+
+    private String buildSsdpResponse(String st, String uuid, String descriptionPath) {
         StringBuilder response = new StringBuilder();
 
         response.append("HTTP/1.1 200 OK\r\n");
         response.append("CACHE-CONTROL: max-age=1800\r\n");
-        response.append("LOCATION: http://").append(localIP).append(":").append(httpPort).append("/description.xml\r\n");
+        response.append("LOCATION: http://").append(localIP).append(":").append(httpPort).append(descriptionPath).append("\r\n");
         response.append("SERVER: Android/UPnP/1.0 WebLauncher/1.0\r\n");
         response.append("ST: ").append(st).append("\r\n");
-        response.append("USN: uuid:").append(deviceUUID).append("::").append(st).append("\r\n");
+        response.append("USN: uuid:").append(uuid).append("::").append(st).append("\r\n");
         response.append("EXT: \r\n");
         response.append("\r\n");
 
@@ -559,11 +1574,41 @@ public class UpnpAudioRendererService extends Service {
     }
 
     // HTTP Server Methods for SOAP Control
+    private boolean bindHttpServer() {
+        for (int attempt = 0; attempt <= HTTP_PORT_ATTEMPTS; attempt++) {
+            int port = attempt < HTTP_PORT_ATTEMPTS ? configuredHttpPort + attempt : 0;
+            if (port > 65535) continue;
+            ServerSocket socket = null;
+            try {
+                // Сокет из канала: у принятых соединений есть getChannel() для transferTo
+                socket = ServerSocketChannel.open().socket();
+                // Порт после перезапуска сервиса может ещё висеть в TIME_WAIT
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(port));
+                httpServerSocket = socket;
+                httpPort = socket.getLocalPort();
+                if (httpPort != configuredHttpPort) {
+                    Log.w(TAG, "HTTP port " + configuredHttpPort + " is busy, using " + httpPort);
+                }
+                prefs.edit().putInt(PREF_ACTIVE_HTTP_PORT, httpPort).apply();
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot bind HTTP port " + port + ": " + e.getMessage());
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     private void startHttpServer() {
         httpServerRunning = true;
         httpServerThread = new Thread(() -> {
             try {
-                httpServerSocket = new ServerSocket(httpPort);
                 Log.i(TAG, "HTTP server started on port " + httpPort);
 
                 while (httpServerRunning) {
@@ -608,6 +1653,7 @@ public class UpnpAudioRendererService extends Service {
     }
 
     private void handleHttpRequest(Socket clientSocket) {
+        boolean handedOff = false;
         try {
             InputStream input = clientSocket.getInputStream();
             OutputStream output = clientSocket.getOutputStream();
@@ -628,436 +1674,610 @@ public class UpnpAudioRendererService extends Service {
                     String method = parts[0];
                     String path = parts[1];
 
-                    String response = handleHttpPath(method, path, request);
-                    output.write(response.getBytes("UTF-8"));
+                    // Долгие соединения ретранслятора обслуживаются в своих потоках
+                    if (("GET".equals(method) || "HEAD".equals(method)) && path.startsWith(StreamRelay.RELAY_PATH + "?")) {
+                        handedOff = handleRelayRequest(clientSocket, path, "HEAD".equals(method));
+                        if (!handedOff) {
+                            output.write(UpnpSoap.httpResponse(404, "text/plain", "Not Found").getBytes("UTF-8"));
+                        }
+                        return;
+                    }
+
+                    // Кеш ответов хранит состояние основного рендерера
+                    boolean primary = VirtualRenderer.indexFromPath(path) < 0;
+                    if (("GET".equals(method) || "HEAD".equals(method)) && path.startsWith(MediaServer.MEDIA_PATH)) {
+                        MediaServer server = mediaServer;
+                        handedOff = server != null &&
+                            server.serve(clientSocket, path, extractHeaderValue(request, "Range"), "HEAD".equals(method));
+                        if (!handedOff) {
+                            output.write(UpnpSoap.httpResponse(404, "text/plain", "Not Found").getBytes("UTF-8"));
+                        }
+                        return;
+                    }
+
+                    if ("GET".equals(method) && RemotePage.matches(path)) {
+                        output.write(RemotePage.RESPONSE);
+                        return;
+                    }
+                    if ("GET".equals(method) && "/events".equals(path)) {
+                        // Долгое соединение: дальше сокетом владеет поток событий
+                        clientSocket.setTcpNoDelay(true);
+                        handedOff = statusStream.add(output, clientSocket) != null;
+                        if (!handedOff) {
+                            output.write(UpnpSoap.httpResponse(503, "text/plain", "Too many event streams").getBytes("UTF-8"));
+                        }
+                        return;
+                    }
+
+                    if (path.startsWith(ControlPoint.PATH_PREFIX)) {
+                        ControlPoint browser = controlPoint;
+                        if (browser != null) {
+                            browser.serve(clientSocket, method, path, request);
+                            handedOff = true;
+                        } else {
+                            output.write(UpnpSoap.httpResponse(404, "text/plain", "Not Found").getBytes("UTF-8"));
+                        }
+                        return;
+                    }
+
+                    byte[] cached = "POST".equals(method) && primary ? handleCachedSoapQuery(request) : null;
+                    if (cached != null) {
+                        output.write(cached);
+                    } else {
+                        String response = handleHttpPath(method, path, request);
+                        output.write(response.getBytes("UTF-8"));
+                    }
                     Log.d(TAG, "HTTP Response sent");
                 }
             }
         } catch (Exception e) {
             Log.e(TAG, "Error handling HTTP request", e);
         } finally {
-            try {
-                clientSocket.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Error closing client socket", e);
+            if (!handedOff) {
+                try {
+                    clientSocket.close();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error closing client socket", e);
+                }
             }
         }
     }
 
+    // Участник группы пришёл за адресом, который не поместился в команду PLAY
+    private String handleSyncSession(String seq) {
+        SyncGroup group = syncGroup;
+        String uri = null;
+        try {
+            uri = group != null ? group.sessionUriFor(Long.parseLong(seq)) : null;
+        } catch (NumberFormatException ignored) {
+        }
+        if (uri == null) {
+            return UpnpSoap.httpResponse(404, "text/plain", "Not Found");
+        }
+        return UpnpSoap.httpResponse(200, "text/plain; charset=utf-8", uri);
+    }
+
+    /*
+     * GET /relay?url=... from another renderer. Only streams this renderer is
+     * fetching or about to play are shared, so the endpoint cannot be used to
+     * make it download arbitrary URLs. Members of the sync group ask for the
+     * current track at the same moment we start it, hence the second case.
+     */
+    private boolean handleRelayRequest(Socket clientSocket, String path, boolean headOnly) {
+        StreamRelay relay = streamRelay;
+        String upstream = StreamRelay.parseRelayPath(path);
+        if (relay == null || upstream == null || !prefs.getBoolean("stream_relay", false)) {
+            return false;
+        }
+        relay.serve(clientSocket, upstream, upstream.equals(currentSourceUri), headOnly);
+        return true;
+    }
+
+    // Быстрый путь для опросов контроллеров: готовые байты вместо сборки конверта
+    private byte[] handleCachedSoapQuery(String request) throws IOException {
+        String soapAction = extractSoapAction(request);
+        if (soapAction == null) return null;
+        return transport.cachedQuery(AvTransport.actionName(soapAction));
+    }
+
     private String handleHttpPath(String method, String path, String request) {
         Log.i(TAG, "HTTP " + method + " " + path);
 
+        if (path.startsWith(MediaServer.PATH_PREFIX)) {
+            return handleMediaServerPath(method, path.substring(MediaServer.PATH_PREFIX.length() - 1), request);
+        }
+
+        int rendererIndex = VirtualRenderer.indexFromPath(path);
+        if (rendererIndex >= 0) {
+            VirtualRenderer renderer = findVirtualRenderer(rendererIndex);
+            if (renderer == null) {
+                return UpnpSoap.httpResponse(404, "text/plain", "Not Found");
+            }
+            return handleVirtualPath(renderer, method, VirtualRenderer.localPath(path), request);
+        }
+
         if ("GET".equals(method) && "/description.xml".equals(path)) {
-            return buildDeviceDescription();
+            return buildDeviceDescription(MEDIA_RENDERER_NT, SERVICE_TYPES,
+                prefs.getString("renderer_name", "Android DLNA Media Player"), deviceUUID, "");
         } else if ("GET".equals(method) && "/AVTransport/scpd.xml".equals(path)) {
             return buildAVTransportSCPD();
         } else if ("GET".equals(method) && "/RenderingControl/scpd.xml".equals(path)) {
             return buildRenderingControlSCPD();
+        } else if ("GET".equals(method) && "/ConnectionManager/scpd.xml".equals(path)) {
+            return buildConnectionManagerSCPD();
+        } else if ("SUBSCRIBE".equals(method) && path.contains("/ConnectionManager/event")) {
+            return handleEventSubscription(request, connectionManagerCallbacks, "_ConnectionManager");
+        } else if ("GET".equals(method) && "/metrics".equals(path)) {
+            return UpnpSoap.httpResponse(200, "application/json", transport.metrics().toJson());
+        } else if ("GET".equals(method) && path.startsWith(SyncGroup.SESSION_PATH + "?seq=")) {
+            return handleSyncSession(path.substring(SyncGroup.SESSION_PATH.length() + 5));
+        } else if ("GET".equals(method) && "/status".equals(path)) {
+            return UpnpSoap.httpResponse(200, "application/json", buildStatusJson());
+        } else if ("POST".equals(method) && RemotePage.action(path) != null) {
+            return handleRemoteAction(RemotePage.action(path), path);
         } else if ("SUBSCRIBE".equals(method) && path.contains("/AVTransport/event")) {
             return handleEventSubscription(request, avTransportCallbacks, "_AVTransport");
         } else if ("SUBSCRIBE".equals(method) && path.contains("/RenderingControl/event")) {
             return handleEventSubscription(request, renderingControlCallbacks, "_RenderingControl");
-        } else if ("POST".equals(method) && (path.contains("AVTransport") || path.contains("RenderingControl"))) {
+        } else if ("POST".equals(method) && (path.contains("AVTransport") || path.contains("RenderingControl") ||
+                   path.contains("ConnectionManager"))) {
             return handleSoapRequest(request);
         } else {
-            return buildHttpResponse(404, "text/plain", "Not Found");
-        }
-    }
-
-    private String buildDeviceDescription() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String friendlyName = prefs.getString("renderer_name", "Android DLNA Media Player");
-        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
-            "<root xmlns=\"urn:schemas-upnp-org:device-1-0\">\r\n" +
-            "  <specVersion>\r\n" +
-            "    <major>1</major>\r\n" +
-            "    <minor>0</minor>\r\n" +
-            "  </specVersion>\r\n" +
-            "  <device>\r\n" +
-            "    <deviceType>urn:schemas-upnp-org:device:MediaRenderer:1</deviceType>\r\n" +
-            "    <friendlyName>" + escapeXml(friendlyName) + "</friendlyName>\r\n" +
-            "    <manufacturer>WebLauncher</manufacturer>\r\n" +
-            "    <manufacturerURL>https://github.com</manufacturerURL>\r\n" +
-            "    <modelDescription>DLNA Audio Renderer for Android</modelDescription>\r\n" +
-            "    <modelName>AndroidDLNARenderer</modelName>\r\n" +
-            "    <modelNumber>1.0</modelNumber>\r\n" +
-            "    <modelURL>https://github.com</modelURL>\r\n" +
-            "    <serialNumber>" + deviceUUID + "</serialNumber>\r\n" +
-            "    <UDN>uuid:" + deviceUUID + "</UDN>\r\n" +
-            "    <serviceList>\r\n" +
-            "      <service>\r\n" +
-            "        <serviceType>urn:schemas-upnp-org:service:AVTransport:1</serviceType>\r\n" +
-            "        <serviceId>urn:upnp-org:serviceId:AVTransport</serviceId>\r\n" +
-            "        <controlURL>/AVTransport/control</controlURL>\r\n" +
-            "        <eventSubURL>/AVTransport/event</eventSubURL>\r\n" +
-            "        <SCPDURL>/AVTransport/scpd.xml</SCPDURL>\r\n" +
-            "      </service>\r\n" +
-            "      <service>\r\n" +
-            "        <serviceType>urn:schemas-upnp-org:service:RenderingControl:1</serviceType>\r\n" +
-            "        <serviceId>urn:upnp-org:serviceId:RenderingControl</serviceId>\r\n" +
-            "        <controlURL>/RenderingControl/control</controlURL>\r\n" +
-            "        <eventSubURL>/RenderingControl/event</eventSubURL>\r\n" +
-            "        <SCPDURL>/RenderingControl/scpd.xml</SCPDURL>\r\n" +
-            "      </service>\r\n" +
-            "    </serviceList>\r\n" +
-            "  </device>\r\n" +
-            "</root>\r\n";
-
-        return buildHttpResponse(200, "text/xml", xml);
+            return UpnpSoap.httpResponse(404, "text/plain", "Not Found");
+        }
     }
 
-    private String handleSoapRequest(String request) {
-        Log.d(TAG, "SOAP Request received");
+    // Кнопки страницы /remote: те же действия, что у уведомления
+    private String handleRemoteAction(String action, String path) {
+        if ("volume".equals(action)) {
+            int question = path.indexOf('?');
+            String level = question >= 0 ? HttpUtil.parseQuery(path.substring(question + 1)).get("level") : null;
+            int value = HttpUtil.parseInt(level, -1);
+            if (value < 0 || value > 100) {
+                return UpnpSoap.httpResponse(400, "text/plain", "Bad volume");
+            }
+            handler.post(() -> transport.setVolume(value));
+            return UpnpSoap.httpResponse(200, "text/plain", "OK");
+        }
+        final String notificationAction;
+        switch (action) {
+            case "play":
+                notificationAction = RendererNotification.ACTION_PLAY;
+                break;
+            case "pause":
+                notificationAction = RendererNotification.ACTION_PAUSE;
+                break;
+            case "stop":
+                notificationAction = RendererNotification.ACTION_STOP;
+                break;
+            case "next":
+                notificationAction = RendererNotification.ACTION_NEXT;
+                break;
+            case "previous":
+                notificationAction = RendererNotification.ACTION_PREVIOUS;
+                break;
+            default:
+                return UpnpSoap.httpResponse(404, "text/plain", "Not Found");
+        }
+        // Переход выполняется в потоке плеера, как и SOAP-действия
+        handler.post(() -> handleTransportAction(notificationAction));
+        return UpnpSoap.httpResponse(200, "text/plain", "OK");
+    }
 
-        try {
-            // Extract SOAP action and body
+    // pathPrefix — "" у основного рендерера, "/r/<n>" у виртуальных, "/ms" у медиасервера
+    private String buildDeviceDescription(String deviceType, String[] serviceTypes, String friendlyName, String uuid, String pathPrefix) {
+        XmlWriter xml = XmlWriter.obtain().declaration();
+        xml.start("root").attr("xmlns", "urn:schemas-upnp-org:device-1-0");
+        xml.start("specVersion").element("major", 1).element("minor", 0).end();
+        xml.start("device")
+            .element("deviceType", deviceType)
+            .element("friendlyName", friendlyName)
+            .element("manufacturer", "WebLauncher")
+            .element("manufacturerURL", "https://github.com")
+            .element("modelDescription", MEDIA_SERVER_NT.equals(deviceType) ? "DLNA Media Server for Android" : "DLNA Audio Renderer for Android")
+            .element("modelName", "AndroidDLNARenderer")
+            .element("modelNumber", "1.0")
+            .element("modelURL", "https://github.com")
+            .element("serialNumber", uuid)
+            .element("UDN", "uuid:" + uuid);
+        xml.start("serviceList");
+        for (String serviceType : serviceTypes) {
+            // urn:schemas-upnp-org:service:AVTransport:1 -> AVTransport
+            String name = serviceType.substring("urn:schemas-upnp-org:service:".length(), serviceType.lastIndexOf(':'));
+            xml.start("service")
+                .element("serviceType", serviceType)
+                .element("serviceId", "urn:upnp-org:serviceId:" + name)
+                .element("controlURL", pathPrefix + "/" + name + "/control")
+                .element("eventSubURL", pathPrefix + "/" + name + "/event")
+                .element("SCPDURL", pathPrefix + "/" + name + "/scpd.xml")
+                .end();
+        }
+        xml.end().end().end();
+
+        return UpnpSoap.httpResponse(200, "text/xml", xml.finish());
+    }
+
+    private String handleMediaServerPath(String method, String path, String request) {
+        MediaServer server = mediaServer;
+        if (server == null) {
+            return UpnpSoap.httpResponse(404, "text/plain", "Not Found");
+        }
+        if ("GET".equals(method) && "/description.xml".equals(path)) {
+            String name = prefs.getString("renderer_name", "Android DLNA Media Player") + " Library";
+            return buildDeviceDescription(MEDIA_SERVER_NT, MEDIA_SERVER_SERVICE_TYPES, name, server.uuid, "/ms");
+        } else if ("GET".equals(method) && "/ContentDirectory/scpd.xml".equals(path)) {
+            return buildContentDirectorySCPD();
+        } else if ("GET".equals(method) && "/ConnectionManager/scpd.xml".equals(path)) {
+            return buildConnectionManagerSCPD();
+        } else if ("SUBSCRIBE".equals(method) && path.contains("/ContentDirectory/event")) {
+            String response = acceptSubscription(request, contentDirectoryCallbacks, "uuid:" + server.uuid + "_ContentDirectory");
+            if (response == null) {
+                return "HTTP/1.1 400 Bad Request\r\n\r\n";
+            }
+            notifyContentDirectoryChange(server.systemUpdateId(), "");
+            return response;
+        } else if ("SUBSCRIBE".equals(method) && path.contains("/ConnectionManager/event")) {
+            String sid = "uuid:" + server.uuid + "_ConnectionManager";
+            String response = acceptSubscription(request, mediaServerConnectionCallbacks, sid);
+            if (response == null) {
+                return "HTTP/1.1 400 Bad Request\r\n\r\n";
+            }
+            notifyConnectionManagerState(mediaServerConnectionCallbacks, sid, MediaServer.sourceProtocolInfo(), "");
+            return response;
+        } else if ("POST".equals(method) && path.contains("ContentDirectory")) {
+            return handleContentDirectoryRequest(server, request);
+        } else if ("POST".equals(method) && path.contains("ConnectionManager")) {
             String soapAction = extractSoapAction(request);
-            String soapBody = extractSoapBody(request);
+            if (soapAction != null && soapAction.contains("GetProtocolInfo")) {
+                XmlWriter xml = UpnpSoap.startResponse("GetProtocolInfo", "ConnectionManager");
+                xml.element("Source", MediaServer.sourceProtocolInfo()).element("Sink", "");
+                return UpnpSoap.finishResponse(xml);
+            } else if (soapAction != null && soapAction.contains("GetCurrentConnectionIDs")) {
+                return handleGetCurrentConnectionIDs(null);
+            }
+            return UpnpSoap.error(501, "Not Implemented");
+        }
+        return UpnpSoap.httpResponse(404, "text/plain", "Not Found");
+    }
 
-            Log.i(TAG, "SOAP Action: " + soapAction);
+    private String handleContentDirectoryRequest(MediaServer server, String request) {
+        String soapAction = extractSoapAction(request);
+        String soapBody = extractSoapBody(request);
+        Log.i(TAG, "ContentDirectory action: " + soapAction);
+        if (soapAction == null) {
+            return UpnpSoap.error(501, "Not Implemented");
+        }
 
-            if (soapAction != null) {
-                if (soapAction.contains("SetAVTransportURI")) {
-                    return handleSetAVTransportURI(soapBody);
-                } else if (soapAction.contains("Play")) {
-                    return handlePlay(soapBody);
-                } else if (soapAction.contains("Pause")) {
-                    return handlePause(soapBody);
-                } else if (soapAction.contains("Stop")) {
-                    return handleStop(soapBody);
-                } else if (soapAction.contains("GetTransportInfo")) {
-                    return handleGetTransportInfo(soapBody);
-                } else if (soapAction.contains("GetPositionInfo")) {
-                    return handleGetPositionInfo(soapBody);
-                } else if (soapAction.contains("SetVolume")) {
-                    return handleSetVolume(soapBody);
-                } else if (soapAction.contains("GetVolume")) {
-                    return handleGetVolume(soapBody);
-                } else if (soapAction.contains("Seek")) {
-                    return handleSeek(soapBody);
-                } else if (soapAction.contains("Next")) {
-                    return handleNext(soapBody);
-                } else if (soapAction.contains("Previous")) {
-                    return handlePrevious(soapBody);
+        try {
+            if (soapAction.contains("GetSystemUpdateID")) {
+                XmlWriter xml = UpnpSoap.startResponse("GetSystemUpdateID", "ContentDirectory");
+                xml.element("Id", server.systemUpdateId());
+                return UpnpSoap.finishResponse(xml);
+            } else if (soapAction.contains("GetSearchCapabilities")) {
+                XmlWriter xml = UpnpSoap.startResponse("GetSearchCapabilities", "ContentDirectory");
+                xml.element("SearchCaps", "");
+                return UpnpSoap.finishResponse(xml);
+            } else if (soapAction.contains("GetSortCapabilities")) {
+                XmlWriter xml = UpnpSoap.startResponse("GetSortCapabilities", "ContentDirectory");
+                xml.element("SortCaps", "");
+                return UpnpSoap.finishResponse(xml);
+            } else if (soapAction.contains("Browse")) {
+                String objectId = UpnpSoap.extractValue(soapBody, "ObjectID");
+                String browseFlag = UpnpSoap.extractValue(soapBody, "BrowseFlag");
+                String startingIndex = UpnpSoap.extractValue(soapBody, "StartingIndex");
+                String requestedCount = UpnpSoap.extractValue(soapBody, "RequestedCount");
+                if (objectId == null || browseFlag == null) {
+                    return UpnpSoap.error(402, "Invalid Args");
+                }
+                int start = startingIndex != null && !startingIndex.trim().isEmpty() ? Integer.parseInt(startingIndex.trim()) : 0;
+                int count = requestedCount != null && !requestedCount.trim().isEmpty() ? Integer.parseInt(requestedCount.trim()) : 0;
+                // Страница берётся прямо из отсортированного индекса, без обхода папки
+                MediaServer.BrowseResult result = server.browse(objectId.trim(), "BrowseMetadata".equals(browseFlag.trim()),
+                    start, count, "http://" + localIP + ":" + httpPort);
+                if (result == null) {
+                    return UpnpSoap.error(701, "No such object");
                 }
+                XmlWriter xml = UpnpSoap.startResponse("Browse", "ContentDirectory");
+                xml.element("Result", result.didl)
+                   .element("NumberReturned", result.numberReturned)
+                   .element("TotalMatches", result.totalMatches)
+                   .element("UpdateID", result.updateId);
+                return UpnpSoap.finishResponse(xml);
             }
+        } catch (NumberFormatException e) {
+            return UpnpSoap.error(402, "Invalid Args");
         } catch (Exception e) {
-            Log.e(TAG, "Error processing SOAP request", e);
+            Log.e(TAG, "Error processing ContentDirectory request", e);
+            return UpnpSoap.error(500, "Internal Server Error");
         }
 
-        return buildSoapError(501, "Not Implemented");
+        return UpnpSoap.error(501, "Not Implemented");
     }
 
-    private String handleSetAVTransportURI(String soapBody) {
+    private String handleVirtualPath(VirtualRenderer renderer, String method, String path, String request) {
+        if ("GET".equals(method) && "/description.xml".equals(path)) {
+            return buildDeviceDescription(MEDIA_RENDERER_NT, SERVICE_TYPES, renderer.friendlyName, renderer.uuid, renderer.pathPrefix());
+        } else if ("GET".equals(method) && "/AVTransport/scpd.xml".equals(path)) {
+            return buildAVTransportSCPD();
+        } else if ("GET".equals(method) && "/RenderingControl/scpd.xml".equals(path)) {
+            return buildRenderingControlSCPD();
+        } else if ("GET".equals(method) && "/ConnectionManager/scpd.xml".equals(path)) {
+            return buildConnectionManagerSCPD();
+        } else if ("GET".equals(method) && "/metrics".equals(path)) {
+            return UpnpSoap.httpResponse(200, "application/json", renderer.transport.metrics().toJson());
+        } else if ("SUBSCRIBE".equals(method) && path.contains("/ConnectionManager/event")) {
+            return handleVirtualSubscription(renderer, request, renderer.connectionManagerCallbacks, "_ConnectionManager");
+        } else if ("SUBSCRIBE".equals(method) && path.contains("/AVTransport/event")) {
+            return handleVirtualSubscription(renderer, request, renderer.avTransportCallbacks, "_AVTransport");
+        } else if ("SUBSCRIBE".equals(method) && path.contains("/RenderingControl/event")) {
+            return handleVirtualSubscription(renderer, request, renderer.renderingControlCallbacks, "_RenderingControl");
+        } else if ("POST".equals(method) && (path.contains("AVTransport") || path.contains("RenderingControl") ||
+                   path.contains("ConnectionManager"))) {
+            return handleVirtualSoapRequest(renderer, request);
+        }
+        return UpnpSoap.httpResponse(404, "text/plain", "Not Found");
+    }
+
+    // Тот же AVTransport, что у основного, но без группы синхронизации и плейлистов; команды плееру идут через handler
+    private String handleVirtualSoapRequest(VirtualRenderer renderer, String request) {
+        String soapAction = extractSoapAction(request);
+        String soapBody = extractSoapBody(request);
+        Log.i(TAG, "SOAP Action for " + renderer.friendlyName + ": " + soapAction);
+        if (soapAction == null) {
+            return UpnpSoap.error(501, "Not Implemented");
+        }
+
         try {
-            String uri = extractXmlValue(soapBody, "CurrentURI");
-            String metaData = extractXmlValue(soapBody, "CurrentURIMetaData");
+            if (soapAction.contains("GetProtocolInfo")) {
+                return handleGetProtocolInfo(soapBody);
+            } else if (soapAction.contains("GetCurrentConnectionIDs")) {
+                return handleGetCurrentConnectionIDs(soapBody);
+            }
+            return renderer.transport.handleSoap(soapAction, soapBody, handler::post);
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing SOAP request for " + renderer.friendlyName, e);
+            return UpnpSoap.error(500, "Internal Server Error");
+        }
+    }
 
-            if (uri != null) {
-                // Останавливаем текущий поток, если он играет
-                if (!"STOPPED".equals(transportState)) {
-                    stopMedia();
-                }
+    private String handleSoapRequest(String request) {
+        Log.d(TAG, "SOAP Request received");
 
-                setCurrentUri(uri);
-
-                // Если метаданных нет или пусто — создаём минимальный валидный DIDL
-                if (metaData == null || metaData.trim().isEmpty() || !metaData.trim().startsWith("<DIDL-Lite")) {
-                    currentMetaData = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" " +
-                                      "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" " +
-                                      "xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\" " +
-                                      "xmlns:dlna=\"urn:schemas-dlna-org:metadata-1-0/\">" +
-                                      "<item id=\"0\" parentID=\"-1\" restricted=\"1\">" +
-                                      "<dc:title>Unknown Track</dc:title>" +
-                                      "<upnp:class>object.item.audioItem.musicTrack</upnp:class>" +
-                                      "<res protocolInfo=\"http-get:*:audio/mpeg:*\">" + escapeXml(uri) + "</res>" +
-                                      "</item></DIDL-Lite>";
-                    mediaTitle = "Unknown Track";
-                    mediaArtist = "";
-                } else {
-                    currentMetaData = ""; // Не храним метаданные для избежания ошибок парсинга
-                    // Если метаданные не удалось извлечь, отправляем дату, время и имя файла
-                    String fileName = getUriFilename(uri);
-                    String currentTime = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date());
-                    mediaTitle = currentTime + " - " + fileName;
-                    mediaArtist = "";
-                }
+        try {
+            // Extract SOAP action and body
+            String soapAction = extractSoapAction(request);
+            String soapBody = extractSoapBody(request);
 
-                // Сохраняем метаданные
-                prefs.edit().putString("renderer_current_metadata", currentMetaData).apply();
-                prefs.edit().putString("renderer_media_title", mediaTitle).apply();
-                prefs.edit().putString("renderer_media_artist", mediaArtist).apply();
+            Log.i(TAG, "SOAP Action: " + soapAction);
 
-                Log.i(TAG, "Set AV Transport URI: " + uri + ", Title: " + mediaTitle + ", Artist: " + mediaArtist);
-                notifyAvTransportChange();
-                return buildSoapSuccess("SetAVTransportURI");
+            if (soapAction == null) {
+                return UpnpSoap.error(501, "Not Implemented");
+            } else if (soapAction.contains("GetProtocolInfo")) {
+                return handleGetProtocolInfo(soapBody);
+            } else if (soapAction.contains("GetCurrentConnectionIDs")) {
+                return handleGetCurrentConnectionIDs(soapBody);
             }
+            // Переходы выполняются в потоке плеера, ответ их не ждёт
+            return transport.handleSoap(soapAction, soapBody, handler::post);
         } catch (Exception e) {
-            Log.e(TAG, "Error setting AV transport URI", e);
+            Log.e(TAG, "Error processing SOAP request", e);
+            return UpnpSoap.error(500, "Internal Server Error");
         }
-        return buildSoapError(500, "Internal Server Error");
     }
 
-    // Метод для извлечения метаданных из DIDL-Lite
-    private void parseMetadataFromDIDL(String didl) {
-        try {
-            // Сброс значений по умолчанию
-            mediaTitle = "";
-            mediaArtist = "";
-            mediaContentType = "audio/mpeg";
-            
-            // Пытаемся извлечь заголовок
-            String titleTag = "<dc:title>";
-            int titleStart = didl.indexOf(titleTag);
-            if (titleStart != -1) {
-                titleStart += titleTag.length();
-                int titleEnd = didl.indexOf("</dc:title>", titleStart);
-                if (titleEnd != -1) {
-                    mediaTitle = didl.substring(titleStart, titleEnd).trim();
-                }
-            }
-            
-            // Пытаемся извлечь исполнителя
-            String artistTag = "<dc:creator>";
-            int artistStart = didl.indexOf(artistTag);
-            if (artistStart != -1) {
-                artistStart += artistTag.length();
-                int artistEnd = didl.indexOf("</dc:creator>", artistStart);
-                if (artistEnd != -1) {
-                    mediaArtist = didl.substring(artistStart, artistEnd).trim();
-                }
-            }
-            
-            // Пытаемся извлечить тип контента из protocolInfo
-            String protocolInfoTag = "protocolInfo=\"";
-            int protocolStart = didl.indexOf(protocolInfoTag);
-            if (protocolStart != -1) {
-                protocolStart += protocolInfoTag.length();
-                int protocolEnd = didl.indexOf("\"", protocolStart);
-                if (protocolEnd != -1) {
-                    String protocolInfo = didl.substring(protocolStart, protocolEnd);
-                    // Формат: http-get:*:audio/mpeg:*
-                    String[] parts = protocolInfo.split(":");
-                    if (parts.length >= 3) {
-                        mediaContentType = parts[2];
-                    }
-                }
+    // Разворачивает SetAVTransportURI в элементы очереди (DIDL со списком, контейнер-плейлист, m3u)
+    private List<PlayQueue.Item> buildQueueItems(String uri, String didl) {
+        List<PlayQueue.Item> items = new ArrayList<>();
+        if (didl != null && didl.trim().startsWith("<DIDL-Lite")) {
+            items = PlayQueue.parseDidlItems(didl);
+        }
+        if (isPlaylistUri(uri, didl)) {
+            // Известный список треков разворачиваем сразу, остальное скачиваем в фоне, пока контроллер жмёт Play
+            PlaylistResolver.Resolution cached = playlistResolver.cached(uri);
+            if (cached == null) {
+                playlistResolver.resolve(uri, this::onPlaylistResolved);
+            } else if (!cached.station && !cached.entries.isEmpty()) {
+                return new ArrayList<>(cached.entries);
             }
-            
-            Log.i(TAG, "Parsed metadata - Title: " + mediaTitle + ", Artist: " + mediaArtist + ", ContentType: " + mediaContentType);
-        } catch (Exception e) {
-            Log.e(TAG, "Error parsing metadata from DIDL", e);
         }
+        return items;
     }
 
-    private String handlePlay(String soapBody) {
-        try {
-            playMedia();
-            Log.i(TAG, "Play command executed");
-            return buildSoapSuccess("Play");
-        } catch (Exception e) {
-            Log.e(TAG, "Error executing play command", e);
-            return buildSoapError(500, "Internal Server Error");
+    // Кладёт элементы в кеш метаданных и подставляет уже известные для элементов без DIDL
+    private List<PlayQueue.Item> rememberAll(List<PlayQueue.Item> items) {
+        for (int i = 0; i < items.size(); i++) {
+            items.set(i, metadataCache.remember(items.get(i)));
         }
+        return items;
     }
 
-    private String handlePause(String soapBody) {
-        try {
-            pauseMedia();
-            Log.i(TAG, "Pause command executed, state now: " + transportState);
-            String resp = buildSoapSuccess("Pause");
-            Log.d(TAG, "Pause response sent:\n" + resp.substring(0, Math.min(500, resp.length())));
-            return resp;
-        } catch (Exception e) {
-            Log.e(TAG, "Pause failed", e);
-            return buildSoapError(500, "Internal Server Error");
+    // По расширению, по типу из DIDL или по Content-Type, который уже вернул сервер
+    private boolean isPlaylistUri(String uri, String didl) {
+        if (PlaylistResolver.isPlaylistUri(uri)) {
+            return true;
+        }
+        PlayQueue.Item known = metadataCache.get(uri);
+        if (known != null && PlaylistResolver.isPlaylistContentType(known.contentType)) {
+            return true;
+        }
+        if (didl != null && !didl.isEmpty()) {
+            String protocolInfo = PlayQueue.extractAttribute(didl, "protocolInfo");
+            return didl.contains("object.container.playlistContainer") ||
+                   (protocolInfo != null && PlaylistResolver.isPlaylistContentType(protocolInfo));
         }
+        return false;
     }
 
-    private String handleStop(String soapBody) {
-        try {
-            stopMedia();
-            Log.i(TAG, "Stop command executed");
-            return buildSoapSuccess("Stop");
-        } catch (Exception e) {
-            Log.e(TAG, "Error executing stop command", e);
-            return buildSoapError(500, "Internal Server Error");
+    // Что открыть в MediaPlayer: поток станции из плейлиста; null — плейлист ещё скачивается
+    private String playbackSource(String uri) {
+        pendingPlaylistUri = null;
+        stationEntries = null;
+        if (!isPlaylistUri(uri, transport.getCurrentMetaData())) {
+            return uri;
+        }
+        PlaylistResolver.Resolution cached = playlistResolver.cached(uri);
+        if (cached == null) {
+            pendingPlaylistUri = uri;
+            playlistResolver.resolve(uri, this::onPlaylistResolved);
+            Log.i(TAG, "Resolving playlist " + uri);
+            return null;
         }
+        return sourceFromResolution(uri, cached);
     }
 
-    private String handleGetTransportInfo(String soapBody) {
-        try {
-            Log.i(TAG, "GetTransportInfo called - Current state: " + transportState +
-                ", URI: " + currentUri + ", MediaPlayer playing: " + mediaPlayer.isPlaying());
-
-            String responseXml = "<CurrentTransportState>" + transportState + "</CurrentTransportState>" +
-                                 "<CurrentTransportStatus>OK</CurrentTransportStatus>" +
-                                 "<CurrentSpeed>1</CurrentSpeed>";
-
-            String response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
-                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">\r\n" +
-                "  <s:Body>\r\n" +
-                "    <u:GetTransportInfoResponse xmlns:u=\"urn:schemas-upnp-org:service:AVTransport:1\">\r\n" +
-                responseXml +
-                "    </u:GetTransportInfoResponse>\r\n" +
-                "  </s:Body>\r\n" +
-                "</s:Envelope>\r\n";
-
-            return buildHttpResponse(200, "text/xml", response);
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting transport info", e);
-            return buildSoapError(500, "Internal Server Error");
+    private String sourceFromResolution(String uri, PlaylistResolver.Resolution resolution) {
+        if (resolution.entries.isEmpty()) {
+            return uri; // не плейлист (или HLS, который MediaPlayer играет сам)
         }
+        if (!resolution.station) {
+            // Плейлист треков: разворачиваем в очередь и играем первый
+            transport.setQueue(rememberAll(new ArrayList<>(resolution.entries)), 0);
+            Log.i(TAG, "Playlist expanded into " + transport.queue().size() + " tracks");
+            return transport.getCurrentUri();
+        }
+        stationEntries = resolution;
+        stationEntryIndex = 0;
+        return resolution.entries.get(0).uri;
     }
 
-    private String handleGetPositionInfo(String soapBody) {
-        try {
-            String track = "1";
-            String trackDuration = formatTime(mediaDurationMs / 1000);
-            String trackMetaData = currentMetaData;
-            if (trackMetaData == null || trackMetaData.trim().isEmpty() || !trackMetaData.trim().startsWith("<DIDL-Lite")) {
-                trackMetaData = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" " +
-                               "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" " +
-                               "xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">" +
-                               "<item id=\"0\" parentID=\"-1\" restricted=\"1\">" +
-                               "<dc:title>Unknown Track</dc:title>" +
-                               "<upnp:class>object.item.audioItem.musicTrack</upnp:class>" +
-                               "</item></DIDL-Lite>";
-            }
-            trackMetaData = escapeXml(trackMetaData);
-            String trackURI = currentUri != null ? escapeXml(currentUri) : "";
-            int positionMs = 0;
-            if ("PLAYING".equals(transportState) || "PAUSED_PLAYBACK".equals(transportState)) {
-                positionMs = mediaPlayer.getCurrentPosition();
-            }
-            String relTime = formatTime(positionMs / 1000);
-            String absTime = relTime; // Absolute time same as relative for simplicity
-            String relCount = "2147483647"; // NOT_IMPLEMENTED equivalent
-            String absCount = "2147483647"; // NOT_IMPLEMENTED equivalent
-
-            Log.i(TAG, "Get position info for URI: " + trackURI + ", Duration: " + trackDuration + ", Position: " + relTime);
-
-            String responseXml = "<Track>" + track + "</Track>" +
-                                 "<TrackDuration>" + trackDuration + "</TrackDuration>" +
-                                 "<TrackMetaData>" + trackMetaData + "</TrackMetaData>" +
-                                 "<TrackURI>" + trackURI + "</TrackURI>" +
-                                 "<RelTime>" + relTime + "</RelTime>" +
-                                 "<AbsTime>" + absTime + "</AbsTime>" +
-                                 "<RelCount>" + relCount + "</RelCount>" +
-                                 "<AbsCount>" + absCount + "</AbsCount>";
-
-            String response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
-                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">\r\n" +
-                "  <s:Body>\r\n" +
-                "    <u:GetPositionInfoResponse xmlns:u=\"urn:schemas-upnp-org:service:AVTransport:1\">\r\n" +
-                responseXml +
-                "    </u:GetPositionInfoResponse>\r\n" +
-                "  </s:Body>\r\n" +
-                "</s:Envelope>\r\n";
-
-            return buildHttpResponse(200, "text/xml", response);
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting position info", e);
-            return buildSoapError(500, "Internal Server Error");
+    private void prepareSource(String source) throws IOException {
+        currentSourceUri = source;
+        activePcmType = pcmContentType(source);
+        if (activePcmType != null) {
+            // AudioTrack читает сеть сам: прокси и его буферы только добавили бы задержку
+            PcmPlaybackEngine pcm = pcmEngine();
+            transport.selectEngine(pcm);
+            pcm.setContentTypeHint(activePcmType);
+            pcm.setDataSource(source);
+        } else {
+            transport.selectEngine(defaultEngine);
+            defaultEngine.setDataSource(playbackUri(source));
         }
+        transport.engine().prepareAsync();
     }
 
-    private String handleSetVolume(String soapBody) {
-        try {
-            String volumeStr = extractXmlValue(soapBody, "DesiredVolume");
-            if (volumeStr != null) {
-                int volume = Integer.parseInt(volumeStr);
-                setMediaVolume(volume);
-                Log.i(TAG, "Set volume to: " + volume);
-                return buildSoapSuccess("SetVolume");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error setting volume", e);
+    // L16 MediaPlayer не умеет вовсе, а WAV буферизует секундами — оба идут через AudioTrack
+    private String pcmContentType(String source) {
+        if (pcmFallback || !(source.startsWith("http://") || source.startsWith("https://"))) return null;
+        PlayQueue.Item item = metadataCache.get(source);
+        if (item == null || item.contentType.isEmpty()) {
+            item = metadataCache.get(transport.getCurrentUri());
+        }
+        if (item != null && PcmPlaybackEngine.handles(item.contentType)) {
+            return item.contentType;
         }
-        return buildSoapError(500, "Internal Server Error");
+        String path = source.toLowerCase(Locale.US);
+        int query = path.indexOf('?');
+        if (query != -1) path = path.substring(0, query);
+        return path.endsWith(".wav") ? "audio/wav" : null;
     }
 
-    private String handleGetVolume(String soapBody) {
-        try {
-            int volume = getMediaVolume();
-            Log.i(TAG, "Get volume: " + volume);
-            String responseXml = "<CurrentVolume>" + volume + "</CurrentVolume>";
-            String response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
-                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">\r\n" +
-                "  <s:Body>\r\n" +
-                "    <u:GetVolumeResponse xmlns:u=\"urn:schemas-upnp-org:service:RenderingControl:1\">\r\n" +
-                responseXml +
-                "    </u:GetVolumeResponse>\r\n" +
-                "  </s:Body>\r\n" +
-                "</s:Envelope>\r\n";
-
-            return buildHttpResponse(200, "text/xml", response);
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting volume", e);
-            return buildSoapError(500, "Internal Server Error");
+    private PcmPlaybackEngine pcmEngine() {
+        if (pcmEngine == null) {
+            pcmEngine = createPcmEngine();
         }
+        return pcmEngine;
     }
 
-    private String handleSeek(String soapBody) {
+    // WAV, который AudioTrack не берёт (24 бит, больше двух каналов), отдаём MediaPlayer
+    private boolean retryWithMediaPlayer(PlaybackEngine engine) {
+        if (engine != pcmEngine || pcmFallback || PcmFormat.isL16(activePcmType)) return false;
+        pcmFallback = true;
+        Log.w(TAG, "PCM playback failed, falling back to MediaPlayer for " + currentSourceUri);
         try {
-            String unit = extractXmlValue(soapBody, "Unit");
-            String target = extractXmlValue(soapBody, "Target");
-
-            if ("REL_TIME".equals(unit) && target != null) {
-                // target в формате HH:MM:SS или HH:MM:SS.FRACTION
-                int seconds = parseRelTime(target);
-                if (seconds >= 0) {
-                    int positionMs = seconds * 1000;
-                    if (positionMs <= mediaDurationMs || mediaDurationMs == 0) {
-                        handler.post(() -> {
-                            if (mediaPlayer != null) {
-                                mediaPlayer.seekTo(positionMs);
-                            }
-                        });
-                        Log.i(TAG, "Seek to: " + seconds + " sec (" + positionMs + " ms)");
-                        notifyAvTransportChange(); // обновим позицию в событиях
-                        return buildSoapSuccess("Seek");
-                    }
+            engine.reset();
+            prepareSource(currentSourceUri);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open " + currentSourceUri, e);
+            return false;
+        }
+    }
+
+    // Вызывается из потока PlaylistResolver
+    private void onPlaylistResolved(String url, PlaylistResolver.Resolution resolution, Exception error) {
+        if (error != null) {
+            Log.w(TAG, "Could not resolve playlist " + url + ": " + error.getMessage());
+        }
+        handler.post(() -> {
+            String state = transport.getTransportState();
+            if (url.equals(pendingPlaylistUri) && url.equals(transport.getCurrentUri()) &&
+                    AvTransport.TRANSITIONING.equals(state)) {
+                pendingPlaylistUri = null;
+                try {
+                    // Не удалось скачать — пусть MediaPlayer попробует адрес как есть
+                    prepareSource(resolution != null ? sourceFromResolution(url, resolution) : url);
+                } catch (Exception e) {
+                    Log.e(TAG, "Play failed", e);
+                    transport.fail();
                 }
+            } else if (resolution != null && !resolution.station && !resolution.entries.isEmpty() &&
+                    url.equals(transport.getCurrentUri()) && AvTransport.STOPPED.equals(state) &&
+                    transport.queue().size() == 1) {
+                // После SetAVTransportURI плейлиста треков показываем контроллеру всю очередь
+                transport.setQueue(rememberAll(new ArrayList<>(resolution.entries)), 0);
             }
-            // Если не поддерживается — ошибка
-            return buildSoapError(706, "Not Implemented");
-        } catch (Exception e) {
-            Log.e(TAG, "Error seeking", e);
-            return buildSoapError(500, "Internal Server Error");
+        });
+    }
+
+    // Ошибка плеера: следующее зеркало станции или, если сервер ответил плейлистом, разбор плейлиста
+    private boolean retryFromPlaylist(PlaybackEngine engine) {
+        if (stationEntries != null) {
+            if (stationEntryIndex + 1 < stationEntries.entries.size()) {
+                stationEntryIndex++;
+                String next = stationEntries.entries.get(stationEntryIndex).uri;
+                Log.w(TAG, "Station stream failed, trying " + next);
+                stopTimeshift();
+                try {
+                    engine.reset();
+                    prepareSource(next);
+                    return true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not open " + next, e);
+                }
+            }
+            // Все адреса не сработали — при следующем запуске скачаем плейлист заново
+            playlistResolver.invalidate(transport.getCurrentUri());
+            stationEntries = null;
+            return false;
+        }
+        String uri = transport.getCurrentUri();
+        PlayQueue.Item known = metadataCache.get(uri);
+        if (!playlistProbed && known != null && PlaylistResolver.isPlaylistContentType(known.contentType)) {
+            playlistProbed = true;
+            Log.i(TAG, "Server answered with a playlist, resolving " + uri);
+            engine.reset();
+            pendingPlaylistUri = uri;
+            playlistResolver.resolve(uri, this::onPlaylistResolved);
+            return true;
         }
+        return false;
     }
 
-    private String handleNext(String soapBody) {
-        // Поскольку плейлистов нет — возвращаем ошибку, но действие объявлено
-        Log.i(TAG, "Next requested - not supported");
-        return buildSoapError(701, "Transition not available");
+    // Для радио с ICY-заголовком текущий трек — песня, а станция идёт в album
+    private String currentTrackDidl() {
+        if (!streamTitle.isEmpty()) {
+            PlayQueue.Item station = metadataCache.get(transport.getCurrentUri());
+            return AvTransport.fallbackDidl(mediaTitle, mediaArtist, station != null ? station.title : "");
+        }
+        String didl = transport.getCurrentMetaData();
+        if (!didl.trim().startsWith("<DIDL-Lite")) {
+            didl = AvTransport.fallbackDidl(!mediaTitle.isEmpty() ? mediaTitle : "Unknown Track", "", "");
+        }
+        return didl;
     }
 
-    private String handlePrevious(String soapBody) {
-        Log.i(TAG, "Previous requested - not supported");
-        return buildSoapError(701, "Transition not available");
+    private String handleGetProtocolInfo(String soapBody) {
+        Log.i(TAG, "GetProtocolInfo called");
+        XmlWriter xml = UpnpSoap.startResponse("GetProtocolInfo", "ConnectionManager");
+        xml.element("Source", "").element("Sink", SinkProtocolInfo.get());
+        return UpnpSoap.finishResponse(xml);
     }
 
-    private int parseRelTime(String relTime) {
-        // Простой парсер HH:MM:SS или MM:SS
-        try {
-            String[] parts = relTime.split(":");
-            int hours = 0, minutes = 0, seconds = 0;
-            if (parts.length == 3) {
-                hours = Integer.parseInt(parts[0]);
-                minutes = Integer.parseInt(parts[1]);
-                seconds = (int) Float.parseFloat(parts[2]);
-            } else if (parts.length == 2) {
-                minutes = Integer.parseInt(parts[0]);
-                seconds = (int) Float.parseFloat(parts[1]);
-            } else {
-                seconds = Integer.parseInt(parts[0]);
-            }
-            return hours * 3600 + minutes * 60 + seconds;
-        } catch (Exception e) {
-            return -1;
-        }
+    private String handleGetCurrentConnectionIDs(String soapBody) {
+        XmlWriter xml = UpnpSoap.startResponse("GetCurrentConnectionIDs", "ConnectionManager");
+        xml.element("ConnectionIDs", "0");
+        return UpnpSoap.finishResponse(xml);
     }
 
     private String extractSoapAction(String request) {
@@ -1072,433 +2292,282 @@ public class UpnpAudioRendererService extends Service {
         return "";
     }
 
-    private String extractXmlValue(String xml, String tagName) {
-        String startTag = "<" + tagName + ">";
-        String endTag = "</" + tagName + ">";
+    // Общая шапка SCPD; после неё открыт actionList
+    private XmlWriter startScpd() {
+        XmlWriter xml = XmlWriter.obtain().declaration();
+        xml.start("scpd").attr("xmlns", "urn:schemas-upnp-org:service-1-0");
+        xml.start("specVersion").element("major", 1).element("minor", 0).end();
+        xml.start("actionList");
+        return xml;
+    }
 
-        int startIndex = xml.indexOf(startTag);
-        if (startIndex != -1) {
-            startIndex += startTag.length();
-            int endIndex = xml.indexOf(endTag, startIndex);
-            if (endIndex != -1) {
-                return xml.substring(startIndex, endIndex);
-            }
+    // Аргументы — тройки: имя, направление (in/out), связанная переменная состояния
+    private void scpdAction(XmlWriter xml, String name, String... arguments) {
+        xml.start("action").element("name", name);
+        xml.start("argumentList");
+        for (int i = 0; i + 2 < arguments.length; i += 3) {
+            xml.start("argument")
+                .element("name", arguments[i])
+                .element("direction", arguments[i + 1])
+                .element("relatedStateVariable", arguments[i + 2])
+                .end();
         }
-        return null;
+        xml.end().end();
     }
 
-    private String buildHttpResponse(int statusCode, String contentType, String body) {
-        String statusText = statusCode == 200 ? "OK" : "Not Found";
-        return "HTTP/1.1 " + statusCode + " " + statusText + "\r\n" +
-               "Content-Type: " + contentType + "\r\n" +
-               "Content-Length: " + body.length() + "\r\n" +
-               "Connection: close\r\n" +
-               "Server: Android/UPnP/1.0 WebLauncher/1.0\r\n" +
-               "\r\n" +
-               body;
+    private void scpdStateVariable(XmlWriter xml, String name, String dataType, boolean sendEvents, String... allowedValues) {
+        xml.start("stateVariable").attr("sendEvents", sendEvents ? "yes" : "no")
+            .element("name", name)
+            .element("dataType", dataType);
+        if (allowedValues.length > 0) {
+            xml.start("allowedValueList");
+            for (String value : allowedValues) {
+                xml.element("allowedValue", value);
+            }
+            xml.end();
+        }
+        xml.end();
     }
 
-    private String buildSoapSuccess(String actionName) {
-        String serviceName = actionName.contains("Volume") ? "RenderingControl" : "AVTransport";
-
-        String resultXml = "<InstanceID>0</InstanceID>";
-
-        if (actionName.equals("GetVolume")) {
-            resultXml += "<CurrentVolume>" + volume + "</CurrentVolume>";
-        } else if (actionName.equals("Play") || actionName.equals("Pause") || actionName.equals("Stop")) {
-            // Можно добавить <Speed>1</Speed> для Play, но не обязательно
+    private void scpdRangeVariable(XmlWriter xml, String name, String dataType, boolean sendEvents,
+                                   String minimum, String maximum, String step) {
+        xml.start("stateVariable").attr("sendEvents", sendEvents ? "yes" : "no")
+            .element("name", name)
+            .element("dataType", dataType);
+        xml.start("allowedValueRange")
+            .element("minimum", minimum)
+            .element("maximum", maximum);
+        if (step != null) {
+            xml.element("step", step);
         }
-
-        String response = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n" +
-            "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">\r\n" +
-            "  <s:Body>\r\n" +
-            "    <u:" + actionName + "Response xmlns:u=\"urn:schemas-upnp-org:service:" + serviceName + ":1\">\r\n" +
-            resultXml +
-            "    </u:" + actionName + "Response>\r\n" +
-            "  </s:Body>\r\n" +
-            "</s:Envelope>\r\n";
-
-        return buildHttpResponse(200, "text/xml; charset=\"utf-8\"", response);
+        xml.end().end();
     }
 
-    private String buildSoapError(int errorCode, String errorDescription) {
-        String response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
-            "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">\r\n" +
-            "  <s:Body>\r\n" +
-            "    <s:Fault>\r\n" +
-            "      <faultcode>s:Client</faultcode>\r\n" +
-            "      <faultstring>UPnPError</faultstring>\r\n" +
-            "      <detail>\r\n" +
-            "        <UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\">\r\n" +
-            "          <errorCode>" + errorCode + "</errorCode>\r\n" +
-            "          <errorDescription>" + errorDescription + "</errorDescription>\r\n" +
-            "        </UPnPError>\r\n" +
-            "      </detail>\r\n" +
-            "    </s:Fault>\r\n" +
-            "  </s:Body>\r\n" +
-            "</s:Envelope>\r\n";
+    private String buildAVTransportSCPD() {
+        XmlWriter xml = startScpd();
+        scpdAction(xml, "SetAVTransportURI",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "CurrentURI", "in", "AVTransportURI",
+            "CurrentURIMetaData", "in", "AVTransportURIMetaData");
+        scpdAction(xml, "SetNextAVTransportURI",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "NextURI", "in", "NextAVTransportURI",
+            "NextURIMetaData", "in", "NextAVTransportURIMetaData");
+        scpdAction(xml, "GetMediaInfo",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "NrTracks", "out", "NumberOfTracks",
+            "MediaDuration", "out", "CurrentMediaDuration",
+            "CurrentURI", "out", "AVTransportURI",
+            "CurrentURIMetaData", "out", "AVTransportURIMetaData",
+            "NextURI", "out", "NextAVTransportURI",
+            "NextURIMetaData", "out", "NextAVTransportURIMetaData",
+            "PlayMedium", "out", "PlaybackStorageMedium",
+            "RecordMedium", "out", "RecordStorageMedium",
+            "WriteStatus", "out", "RecordMediumWriteStatus");
+        scpdAction(xml, "Play",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "Speed", "in", "TransportPlaySpeed");
+        scpdAction(xml, "Pause",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID");
+        scpdAction(xml, "Stop",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID");
+        scpdAction(xml, "GetTransportInfo",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "CurrentTransportState", "out", "TransportState",
+            "CurrentTransportStatus", "out", "TransportStatus",
+            "CurrentSpeed", "out", "TransportPlaySpeed");
+        scpdAction(xml, "Seek",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "Unit", "in", "A_ARG_TYPE_SeekMode",
+            "Target", "in", "A_ARG_TYPE_SeekTarget");
+        scpdAction(xml, "Next",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID");
+        scpdAction(xml, "Previous",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID");
+        scpdAction(xml, "GetPositionInfo",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "Track", "out", "CurrentTrack",
+            "TrackDuration", "out", "CurrentTrackDuration",
+            "TrackMetaData", "out", "CurrentTrackMetaData",
+            "TrackURI", "out", "CurrentTrackURI",
+            "RelTime", "out", "RelativeTimePosition",
+            "AbsTime", "out", "AbsoluteTimePosition",
+            "RelCount", "out", "RelativeCounterPosition",
+            "AbsCount", "out", "AbsoluteCounterPosition");
+        xml.end();
+        xml.start("serviceStateTable");
+        scpdStateVariable(xml, "A_ARG_TYPE_InstanceID", "ui4", false);
+        scpdStateVariable(xml, "AVTransportURI", "string", false);
+        scpdStateVariable(xml, "AVTransportURIMetaData", "string", false);
+        scpdStateVariable(xml, "NextAVTransportURI", "string", false);
+        scpdStateVariable(xml, "NextAVTransportURIMetaData", "string", false);
+        scpdStateVariable(xml, "NumberOfTracks", "ui4", false);
+        scpdStateVariable(xml, "CurrentMediaDuration", "string", false);
+        scpdStateVariable(xml, "PlaybackStorageMedium", "string", false,
+            "NETWORK");
+        scpdStateVariable(xml, "RecordStorageMedium", "string", false,
+            "NOT_IMPLEMENTED");
+        scpdStateVariable(xml, "RecordMediumWriteStatus", "string", false,
+            "NOT_IMPLEMENTED");
+        scpdStateVariable(xml, "TransportPlaySpeed", "string", false,
+            "1");
+        scpdStateVariable(xml, "TransportState", "string", true,
+            "STOPPED", "PLAYING", "PAUSED_PLAYBACK", "TRANSITIONING");
+        scpdStateVariable(xml, "TransportStatus", "string", false,
+            "OK", "ERROR_OCCURRED");
+        scpdRangeVariable(xml, "CurrentTrack", "ui4", false, "0", "65535", null);
+        scpdStateVariable(xml, "CurrentTrackDuration", "string", false);
+        scpdStateVariable(xml, "CurrentTrackMetaData", "string", false);
+        scpdStateVariable(xml, "CurrentTrackURI", "string", false);
+        scpdStateVariable(xml, "RelativeTimePosition", "string", false);
+        scpdStateVariable(xml, "AbsoluteTimePosition", "string", false);
+        scpdStateVariable(xml, "RelativeCounterPosition", "i4", false);
+        scpdStateVariable(xml, "AbsoluteCounterPosition", "i4", false);
+        scpdStateVariable(xml, "LastChange", "string", true);
+        scpdStateVariable(xml, "A_ARG_TYPE_SeekMode", "string", false,
+            "REL_TIME", "TRACK_NR");
+        scpdStateVariable(xml, "A_ARG_TYPE_SeekTarget", "string", false);
+        xml.end().end();
+
+        return UpnpSoap.httpResponse(200, "text/xml", xml.finish());
+    }
 
-        return buildHttpResponse(500, "text/xml", response);
+    private String buildRenderingControlSCPD() {
+        XmlWriter xml = startScpd();
+        scpdAction(xml, "SetVolume",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "Channel", "in", "A_ARG_TYPE_Channel",
+            "DesiredVolume", "in", "Volume");
+        scpdAction(xml, "GetVolume",
+            "InstanceID", "in", "A_ARG_TYPE_InstanceID",
+            "Channel", "in", "A_ARG_TYPE_Channel",
+            "CurrentVolume", "out", "Volume");
+        xml.end();
+        xml.start("serviceStateTable");
+        scpdStateVariable(xml, "A_ARG_TYPE_InstanceID", "ui4", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_Channel", "string", false,
+            "Master");
+        scpdRangeVariable(xml, "Volume", "ui2", true, "0", "100", "1");
+        scpdStateVariable(xml, "LastChange", "string", true);
+        xml.end().end();
+
+        return UpnpSoap.httpResponse(200, "text/xml", xml.finish());
     }
 
-    private String buildAVTransportSCPD() {
-        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
-            "<scpd xmlns=\"urn:schemas-upnp-org:service-1-0\">\r\n" +
-            "  <specVersion>\r\n" +
-            "    <major>1</major>\r\n" +
-            "    <minor>0</minor>\r\n" +
-            "  </specVersion>\r\n" +
-            "  <actionList>\r\n" +
-            "    <action>\r\n" +
-            "      <name>SetAVTransportURI</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>CurrentURI</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>AVTransportURI</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>CurrentURIMetaData</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>AVTransportURIMetaData</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>Play</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>Speed</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>TransportPlaySpeed</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>Pause</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>Stop</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>GetTransportInfo</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>CurrentTransportState</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>TransportState</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>CurrentTransportStatus</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>TransportStatus</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>CurrentSpeed</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>TransportPlaySpeed</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>Seek</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>Unit</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_SeekMode</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>Target</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_SeekTarget</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>Next</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>Previous</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>GetPositionInfo</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>Track</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>CurrentTrack</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>TrackDuration</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>CurrentTrackDuration</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>TrackMetaData</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>CurrentTrackMetaData</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>TrackURI</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>CurrentTrackURI</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>RelTime</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>RelativeTimePosition</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>AbsTime</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>AbsoluteTimePosition</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>RelCount</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>RelativeCounterPosition</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>AbsCount</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>AbsoluteCounterPosition</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "  </actionList>\r\n" +
-            "  <serviceStateTable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>A_ARG_TYPE_InstanceID</name>\r\n" +
-            "      <dataType>ui4</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>AVTransportURI</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>AVTransportURIMetaData</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>TransportPlaySpeed</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "      <allowedValueList>\r\n" +
-            "        <allowedValue>1</allowedValue>\r\n" +
-            "      </allowedValueList>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"yes\">\r\n" +
-            "      <name>TransportState</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "      <allowedValueList>\r\n" +
-            "        <allowedValue>STOPPED</allowedValue>\r\n" +
-            "        <allowedValue>PLAYING</allowedValue>\r\n" +
-            "        <allowedValue>PAUSED_PLAYBACK</allowedValue>\r\n" +
-            "        <allowedValue>TRANSITIONING</allowedValue>\r\n" +
-            "      </allowedValueList>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>TransportStatus</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "      <allowedValueList>\r\n" +
-            "        <allowedValue>OK</allowedValue>\r\n" +
-            "        <allowedValue>ERROR_OCCURRED</allowedValue>\r\n" +
-            "      </allowedValueList>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>CurrentTrack</name>\r\n" +
-            "      <dataType>ui4</dataType>\r\n" +
-            "      <allowedValueRange>\r\n" +
-            "        <minimum>0</minimum>\r\n" +
-            "        <maximum>1</maximum>\r\n" +
-            "      </allowedValueRange>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>CurrentTrackDuration</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>CurrentTrackMetaData</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>CurrentTrackURI</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>RelativeTimePosition</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>AbsoluteTimePosition</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>RelativeCounterPosition</name>\r\n" +
-            "      <dataType>i4</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>AbsoluteCounterPosition</name>\r\n" +
-            "      <dataType>i4</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"yes\">\r\n" +
-            "      <name>LastChange</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>A_ARG_TYPE_SeekMode</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "      <allowedValueList>\r\n" +
-            "        <allowedValue>REL_TIME</allowedValue>\r\n" +
-            "        <allowedValue>TRACK_NR</allowedValue>\r\n" +
-            "      </allowedValueList>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>A_ARG_TYPE_SeekTarget</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "  </serviceStateTable>\r\n" +
-            "</scpd>\r\n";
-
-        return buildHttpResponse(200, "text/xml", xml);
+    private String buildConnectionManagerSCPD() {
+        XmlWriter xml = startScpd();
+        scpdAction(xml, "GetProtocolInfo",
+            "Source", "out", "SourceProtocolInfo",
+            "Sink", "out", "SinkProtocolInfo");
+        scpdAction(xml, "GetCurrentConnectionIDs",
+            "ConnectionIDs", "out", "CurrentConnectionIDs");
+        scpdAction(xml, "GetCurrentConnectionInfo",
+            "ConnectionID", "in", "A_ARG_TYPE_ConnectionID",
+            "RcsID", "out", "A_ARG_TYPE_RcsID",
+            "AVTransportID", "out", "A_ARG_TYPE_AVTransportID",
+            "ProtocolInfo", "out", "A_ARG_TYPE_ProtocolInfo",
+            "PeerConnectionManager", "out", "A_ARG_TYPE_ConnectionManager",
+            "PeerConnectionID", "out", "A_ARG_TYPE_ConnectionID",
+            "Direction", "out", "A_ARG_TYPE_Direction",
+            "Status", "out", "A_ARG_TYPE_ConnectionStatus");
+        xml.end();
+        xml.start("serviceStateTable");
+        scpdStateVariable(xml, "SourceProtocolInfo", "string", true);
+        scpdStateVariable(xml, "SinkProtocolInfo", "string", true);
+        scpdStateVariable(xml, "CurrentConnectionIDs", "string", true);
+        scpdStateVariable(xml, "A_ARG_TYPE_ConnectionStatus", "string", false,
+            "OK", "ContentFormatMismatch", "InsufficientBandwidth", "UnreliableChannel", "Unknown");
+        scpdStateVariable(xml, "A_ARG_TYPE_ConnectionManager", "string", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_Direction", "string", false,
+            "Input", "Output");
+        scpdStateVariable(xml, "A_ARG_TYPE_ProtocolInfo", "string", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_ConnectionID", "i4", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_AVTransportID", "i4", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_RcsID", "i4", false);
+        xml.end().end();
+
+        return UpnpSoap.httpResponse(200, "text/xml", xml.finish());
     }
 
-    private String buildRenderingControlSCPD() {
-        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
-            "<scpd xmlns=\"urn:schemas-upnp-org:service-1-0\">\r\n" +
-            "  <specVersion>\r\n" +
-            "    <major>1</major>\r\n" +
-            "    <minor>0</minor>\r\n" +
-            "  </specVersion>\r\n" +
-            "  <actionList>\r\n" +
-            "    <action>\r\n" +
-            "      <name>SetVolume</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>Channel</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_Channel</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>DesiredVolume</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>Volume</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "    <action>\r\n" +
-            "      <name>GetVolume</name>\r\n" +
-            "      <argumentList>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>InstanceID</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_InstanceID</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>Channel</name>\r\n" +
-            "          <direction>in</direction>\r\n" +
-            "          <relatedStateVariable>A_ARG_TYPE_Channel</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "        <argument>\r\n" +
-            "          <name>CurrentVolume</name>\r\n" +
-            "          <direction>out</direction>\r\n" +
-            "          <relatedStateVariable>Volume</relatedStateVariable>\r\n" +
-            "        </argument>\r\n" +
-            "      </argumentList>\r\n" +
-            "    </action>\r\n" +
-            "  </actionList>\r\n" +
-            "  <serviceStateTable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>A_ARG_TYPE_InstanceID</name>\r\n" +
-            "      <dataType>ui4</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"no\">\r\n" +
-            "      <name>A_ARG_TYPE_Channel</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "      <allowedValueList>\r\n" +
-            "        <allowedValue>Master</allowedValue>\r\n" +
-            "      </allowedValueList>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"yes\">\r\n" +
-            "      <name>Volume</name>\r\n" +
-            "      <dataType>ui2</dataType>\r\n" +
-            "      <allowedValueRange>\r\n" +
-            "        <minimum>0</minimum>\r\n" +
-            "        <maximum>100</maximum>\r\n" +
-            "        <step>1</step>\r\n" +
-            "      </allowedValueRange>\r\n" +
-            "    </stateVariable>\r\n" +
-            "    <stateVariable sendEvents=\"yes\">\r\n" +
-            "      <name>LastChange</name>\r\n" +
-            "      <dataType>string</dataType>\r\n" +
-            "    </stateVariable>\r\n" +
-            "  </serviceStateTable>\r\n" +
-            "</scpd>\r\n";
-
-        return buildHttpResponse(200, "text/xml", xml);
+    private String buildContentDirectorySCPD() {
+        XmlWriter xml = startScpd();
+        scpdAction(xml, "GetSearchCapabilities",
+            "SearchCaps", "out", "SearchCapabilities");
+        scpdAction(xml, "GetSortCapabilities",
+            "SortCaps", "out", "SortCapabilities");
+        scpdAction(xml, "GetSystemUpdateID",
+            "Id", "out", "SystemUpdateID");
+        scpdAction(xml, "Browse",
+            "ObjectID", "in", "A_ARG_TYPE_ObjectID",
+            "BrowseFlag", "in", "A_ARG_TYPE_BrowseFlag",
+            "Filter", "in", "A_ARG_TYPE_Filter",
+            "StartingIndex", "in", "A_ARG_TYPE_Index",
+            "RequestedCount", "in", "A_ARG_TYPE_Count",
+            "SortCriteria", "in", "A_ARG_TYPE_SortCriteria",
+            "Result", "out", "A_ARG_TYPE_Result",
+            "NumberReturned", "out", "A_ARG_TYPE_Count",
+            "TotalMatches", "out", "A_ARG_TYPE_Count",
+            "UpdateID", "out", "A_ARG_TYPE_UpdateID");
+        xml.end();
+        xml.start("serviceStateTable");
+        scpdStateVariable(xml, "SearchCapabilities", "string", false);
+        scpdStateVariable(xml, "SortCapabilities", "string", false);
+        scpdStateVariable(xml, "SystemUpdateID", "ui4", true);
+        scpdStateVariable(xml, "ContainerUpdateIDs", "string", true);
+        scpdStateVariable(xml, "A_ARG_TYPE_ObjectID", "string", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_Result", "string", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_BrowseFlag", "string", false,
+            "BrowseMetadata", "BrowseDirectChildren");
+        scpdStateVariable(xml, "A_ARG_TYPE_Filter", "string", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_SortCriteria", "string", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_Index", "ui4", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_Count", "ui4", false);
+        scpdStateVariable(xml, "A_ARG_TYPE_UpdateID", "ui4", false);
+        xml.end().end();
+
+        return UpnpSoap.httpResponse(200, "text/xml", xml.finish());
     }
 
     private String handleEventSubscription(String request, List<String> callbacks, String sidSuffix) {
         Log.i(TAG, "Event subscription request received for " + sidSuffix);
 
+        String response = acceptSubscription(request, callbacks, "uuid:" + deviceUUID + sidSuffix);
+        if (response == null) {
+            return "HTTP/1.1 400 Bad Request\r\n\r\n";
+        }
+
+        // Send initial event notification with current state
+        if (sidSuffix.equals("_AVTransport")) {
+            notifyAvTransportChange();
+        } else if (sidSuffix.equals("_RenderingControl")) {
+            notifyRenderingControlChange();
+        } else if (sidSuffix.equals("_ConnectionManager")) {
+            notifyConnectionManagerState(connectionManagerCallbacks, "uuid:" + deviceUUID + "_ConnectionManager", "", SinkProtocolInfo.get());
+        }
+        return response;
+    }
+
+    private String handleVirtualSubscription(VirtualRenderer renderer, String request, List<String> callbacks, String sidSuffix) {
+        Log.i(TAG, "Event subscription request received for " + renderer.friendlyName + sidSuffix);
+
+        String sid = "uuid:" + renderer.uuid + sidSuffix;
+        String response = acceptSubscription(request, callbacks, sid);
+        if (response == null) {
+            return "HTTP/1.1 400 Bad Request\r\n\r\n";
+        }
+
+        if (sidSuffix.equals("_AVTransport")) {
+            postVirtualEvent(renderer, VirtualRenderer.AV_TRANSPORT, renderer.transport.transportEvent());
+        } else if (sidSuffix.equals("_RenderingControl")) {
+            postVirtualEvent(renderer, VirtualRenderer.RENDERING_CONTROL, renderer.transport.volumeEvent());
+        } else if (sidSuffix.equals("_ConnectionManager")) {
+            notifyConnectionManagerState(callbacks, sid, "", SinkProtocolInfo.get());
+        }
+        return response;
+    }
+
+    // Запоминает CALLBACK и возвращает ответ с SID; null, если заголовка нет
+    private String acceptSubscription(String request, List<String> callbacks, String sid) {
         // Extract callback URL and timeout
         String callback = extractHeaderValue(request, "CALLBACK");
         String timeout = extractHeaderValue(request, "TIMEOUT");
@@ -1512,82 +2581,86 @@ public class UpnpAudioRendererService extends Service {
             // Store the callback URL for event notifications
             if (!callbacks.contains(callback)) {
                 callbacks.add(callback);
-                Log.i(TAG, "Added event callback for " + sidSuffix + ": " + callback + " (total: " + callbacks.size() + ")");
+                Log.i(TAG, "Added event callback for " + sid + ": " + callback + " (total: " + callbacks.size() + ")");
             }
 
             // Acknowledge the subscription
-            String sid = "uuid:" + deviceUUID + sidSuffix;
-            String response = "HTTP/1.1 200 OK\r\n" +
+            return "HTTP/1.1 200 OK\r\n" +
                 "DATE: " + new Date().toString() + "\r\n" +
                 "SERVER: Android/UPnP/1.0 WebLauncher/1.0\r\n" +
                 "SID: " + sid + "\r\n" +
                 "TIMEOUT: Second-1800\r\n" +
                 "Content-Length: 0\r\n" +
                 "\r\n";
-
-            // Send initial event notification with current state
-            if (sidSuffix.equals("_AVTransport")) {
-                notifyAvTransportChange();
-            } else if (sidSuffix.equals("_RenderingControl")) {
-                notifyRenderingControlChange();
-            }
-
-            return response;
         } else {
             Log.w(TAG, "Event subscription missing CALLBACK header");
-            return "HTTP/1.1 400 Bad Request\r\n\r\n";
+            return null;
         }
     }
 
     private void notifyAvTransportChange() {
+        onStateChanged();
         Log.i(TAG, "Notifying AVTransport state change to " + avTransportCallbacks.size() + " callbacks");
+        if (avTransportCallbacks.isEmpty()) return;
 
         String sid = "uuid:" + deviceUUID + "_AVTransport";
+        String eventXml = transport.transportEvent();
         for (String callback : avTransportCallbacks) {
-            sendEventNotification(callback, sid, buildAvTransportLastChange());
+            postEvent(callback, sid, eventXml);
         }
     }
 
     private void notifyRenderingControlChange() {
+        onStateChanged();
         Log.i(TAG, "Notifying RenderingControl state change to " + renderingControlCallbacks.size() + " callbacks");
+        if (renderingControlCallbacks.isEmpty()) return;
 
         String sid = "uuid:" + deviceUUID + "_RenderingControl";
+        String eventXml = transport.volumeEvent();
         for (String callback : renderingControlCallbacks) {
-            sendEventNotification(callback, sid, buildRenderingControlLastChange());
+            postEvent(callback, sid, eventXml);
         }
     }
 
-    private String buildAvTransportLastChange() {
-        String eventXml = "<Event xmlns=\"urn:schemas-upnp-org:metadata-1-0/AVT/\">\n" +
-                          "<InstanceID val=\"0\">\n" +
-                          "<TransportState val=\"" + transportState + "\"/>\n" +
-                          "<TransportStatus val=\"OK\"/>\n" +
-                          "<CurrentTrackURI val=\"" + (currentUri != null ? escapeXml(currentUri) : "") + "\"/>\n" +
-                          "</InstanceID>\n" +
-                          "</Event>";
-        return eventXml;
+    // ConnectionManager не использует LastChange — переменные отправляются напрямую
+    private void notifyConnectionManagerState(List<String> callbacks, String sid, String source, String sink) {
+        XmlWriter xml = UpnpSoap.startPropertySet();
+        xml.start("e:property").element("SourceProtocolInfo", source).end();
+        xml.start("e:property").element("SinkProtocolInfo", sink).end();
+        xml.start("e:property").element("CurrentConnectionIDs", "0").end();
+        String eventXml = xml.end().finish();
+        for (String callback : callbacks) {
+            postEvent(callback, sid, eventXml);
+        }
     }
 
-    private String buildRenderingControlLastChange() {
-        String eventXml = "<Event xmlns=\"urn:schemas-upnp-org:metadata-1-0/RCS/\">\n" +
-                          "<InstanceID val=\"0\">\n" +
-                          "<Volume channel=\"Master\" val=\"" + volume + "\"/>\n" +
-                          "</InstanceID>\n" +
-                          "</Event>";
-        return eventXml;
+    // SystemUpdateID и ContainerUpdateIDs ("id,updateId,...") изменённых папок
+    private void notifyContentDirectoryChange(int systemUpdateId, String containerUpdateIds) {
+        MediaServer server = mediaServer;
+        if (server == null || contentDirectoryCallbacks.isEmpty()) return;
+
+        XmlWriter xml = UpnpSoap.startPropertySet();
+        xml.start("e:property").element("SystemUpdateID", systemUpdateId).end();
+        xml.start("e:property").element("ContainerUpdateIDs", containerUpdateIds).end();
+        String eventXml = xml.end().finish();
+        String sid = "uuid:" + server.uuid + "_ContentDirectory";
+        for (String callback : contentDirectoryCallbacks) {
+            postEvent(callback, sid, eventXml);
+        }
     }
 
-    private void sendEventNotification(String callbackUrl, String sid, String lastChangeXml) {
+    private void postVirtualEvent(VirtualRenderer renderer, String service, String eventXml) {
+        List<String> callbacks = VirtualRenderer.AV_TRANSPORT.equals(service)
+            ? renderer.avTransportCallbacks : renderer.renderingControlCallbacks;
+        String sid = "uuid:" + renderer.uuid + "_" + service;
+        for (String callback : callbacks) {
+            postEvent(callback, sid, eventXml);
+        }
+    }
+
+    private void postEvent(String callbackUrl, String sid, String eventXml) {
         try {
             Log.i(TAG, "Sending event notification to: " + callbackUrl);
-        
-            String eventXml = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n" +
-                              "<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">\r\n" +
-                              "  <e:property>\r\n" +
-                              "    <LastChange>" + escapeXml(lastChangeXml) + "</LastChange>\r\n" +
-                              "  </e:property>\r\n" +
-                              "</e:propertyset>\r\n";
-        
             new Thread(() -> {
                 try {
                     java.net.URL url = new java.net.URL(callbackUrl);
@@ -1630,20 +2703,4 @@ public class UpnpAudioRendererService extends Service {
             Log.e(TAG, "Error preparing event notification", e);
         }
     }
-
-    private String escapeXml(String s) {
-        if (s == null) return "";
-        return s.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;")
-                .replace("\"", "&quot;")
-                .replace("'", "&apos;");
-    }
-
-    private String formatTime(int seconds) {
-        int hours = seconds / 3600;
-        int minutes = (seconds % 3600) / 60;
-        int secs = seconds % 60;
-        return String.format("%02d:%02d:%02d", hours, minutes, secs);
-    }
 }
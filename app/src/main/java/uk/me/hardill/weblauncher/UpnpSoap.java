@@ -0,0 +1,142 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * SOAP and GENA building blocks shared by the primary renderer in
+ * {@link UpnpAudioRendererService} and the {@link VirtualRenderer} instances:
+ * HTTP framing, response envelopes, UPnP errors and LastChange property sets.
+ * Plain Java, so the SOAP handling built on it runs in JVM tests.
+ */
+final class UpnpSoap {
+    static final String CONTENT_TYPE = "text/xml; charset=\"utf-8\"";
+
+    private UpnpSoap() {
+    }
+
+    static String httpResponse(int statusCode, String contentType, String body) {
+        String statusText = statusCode == 200 ? "OK" : statusCode == 400 ? "Bad Request" :
+            statusCode == 503 ? "Service Unavailable" : "Not Found";
+        return "HTTP/1.1 " + statusCode + " " + statusText + "\r\n" +
+               "Content-Type: " + contentType + "\r\n" +
+               "Content-Length: " + utf8Length(body) + "\r\n" +
+               "Connection: close\r\n" +
+               "Server: Android/UPnP/1.0 WebLauncher/1.0\r\n" +
+               "\r\n" +
+               body;
+    }
+
+    private static int utf8Length(String body) {
+        try {
+            return body.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            return body.length();
+        }
+    }
+
+    // Открывает конверт SOAP; вызывающий дописывает аргументы и передаёт writer в finishResponse
+    static XmlWriter startResponse(String actionName, String serviceName) {
+        XmlWriter xml = XmlWriter.obtain().declaration();
+        xml.start("s:Envelope")
+            .attr("xmlns:s", "http://schemas.xmlsoap.org/soap/envelope/")
+            .attr("s:encodingStyle", "http://schemas.xmlsoap.org/soap/encoding/");
+        xml.start("s:Body");
+        xml.start("u:" + actionName + "Response").attr("xmlns:u", "urn:schemas-upnp-org:service:" + serviceName + ":1");
+        return xml;
+    }
+
+    static String finishResponse(XmlWriter xml) {
+        // Явный закрывающий тег ответа, даже без аргументов
+        xml.text("");
+        xml.end().end().end();
+        return httpResponse(200, CONTENT_TYPE, xml.finish());
+    }
+
+    /** Response of an action without out arguments. */
+    static String success(String actionName, String serviceName) {
+        XmlWriter xml = startResponse(actionName, serviceName);
+        xml.element("InstanceID", 0);
+        return finishResponse(xml);
+    }
+
+    static String error(int errorCode, String errorDescription) {
+        XmlWriter xml = XmlWriter.obtain().declaration();
+        xml.start("s:Envelope")
+            .attr("xmlns:s", "http://schemas.xmlsoap.org/soap/envelope/")
+            .attr("s:encodingStyle", "http://schemas.xmlsoap.org/soap/encoding/");
+        xml.start("s:Body").start("s:Fault")
+            .element("faultcode", "s:Client")
+            .element("faultstring", "UPnPError");
+        xml.start("detail").start("UPnPError").attr("xmlns", "urn:schemas-upnp-org:control-1-0")
+            .element("errorCode", errorCode)
+            .element("errorDescription", errorDescription);
+        xml.end().end().end().end().end();
+
+        return httpResponse(500, "text/xml", xml.finish());
+    }
+
+    /** Raw text of the first {@code <tagName>} element, or null. */
+    static String extractValue(String xml, String tagName) {
+        String startTag = "<" + tagName + ">";
+        String endTag = "</" + tagName + ">";
+
+        int startIndex = xml.indexOf(startTag);
+        if (startIndex != -1) {
+            startIndex += startTag.length();
+            int endIndex = xml.indexOf(endTag, startIndex);
+            if (endIndex != -1) {
+                return xml.substring(startIndex, endIndex);
+            }
+        }
+        return null;
+    }
+
+    static int parseRelTime(String relTime) {
+        // Простой парсер HH:MM:SS или MM:SS
+        try {
+            String[] parts = relTime.split(":");
+            int hours = 0, minutes = 0, seconds = 0;
+            if (parts.length == 3) {
+                hours = Integer.parseInt(parts[0]);
+                minutes = Integer.parseInt(parts[1]);
+                seconds = (int) Float.parseFloat(parts[2]);
+            } else if (parts.length == 2) {
+                minutes = Integer.parseInt(parts[0]);
+                seconds = (int) Float.parseFloat(parts[1]);
+            } else {
+                seconds = Integer.parseInt(parts[0]);
+            }
+            return hours * 3600 + minutes * 60 + seconds;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    static String formatTime(int seconds) {
+        int hours = seconds / 3600;
+        int minutes = (seconds % 3600) / 60;
+        int secs = seconds % 60;
+        return String.format("%02d:%02d:%02d", hours, minutes, secs);
+    }
+
+    static XmlWriter startPropertySet() {
+        XmlWriter xml = XmlWriter.obtain().declaration();
+        xml.start("e:propertyset").attr("xmlns:e", "urn:schemas-upnp-org:event-1-0");
+        return xml;
+    }
+
+    // <e:property><LastChange>, внутри которого событие пишется уже экранированным
+    static XmlWriter startLastChange(String eventNamespace) {
+        XmlWriter xml = startPropertySet();
+        xml.start("e:property").start("LastChange").beginNested();
+        xml.start("Event").attr("xmlns", eventNamespace);
+        xml.start("InstanceID").attr("val", "0");
+        return xml;
+    }
+
+    static String finishLastChange(XmlWriter xml) {
+        xml.end().end();
+        xml.endNested().end().end().end();
+        return xml.finish();
+    }
+}
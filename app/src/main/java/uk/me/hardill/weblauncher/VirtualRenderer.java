@@ -0,0 +1,215 @@
+package uk.me.hardill.weblauncher;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An additional MediaRenderer hosted by {@link UpnpAudioRendererService}, e.g. one
+ * per audio output on a kiosk with both HDMI and a Bluetooth speaker. Each instance
+ * has its own UUID, friendly name and {@link AvTransport} with its own
+ * {@link PlaybackEngine}, queue and metrics; the HTTP server, SSDP responder, GENA
+ * eventing and stream proxy are shared and reach it through the
+ * {@code /r/<index>/} path prefix. Transport methods must be called on the thread
+ * that delivers the engine callbacks. Every transport change yields a LastChange
+ * event, so a whole SOAP -> state -> GENA exchange runs in a JVM test against
+ * {@link FakePlaybackEngine}.
+ */
+final class VirtualRenderer {
+    static final String PATH_PREFIX = "/r/";
+    static final String AV_TRANSPORT = AvTransport.AV_TRANSPORT;
+    static final String RENDERING_CONTROL = AvTransport.RENDERING_CONTROL;
+
+    interface Listener {
+        /** {@code service} is {@link #AV_TRANSPORT} or {@link #RENDERING_CONTROL}; {@code event} the GENA body. */
+        void onEvent(VirtualRenderer renderer, String service, String event);
+    }
+
+    /** Address the engine opens instead of a track URI, e.g. the caching stream proxy. */
+    interface SourceMapper {
+        String playbackUri(String uri);
+    }
+
+    /** One entry of the {@code virtual_renderers} setting: {@code Name} or {@code Name@output}. */
+    static final class Config {
+        final String name;
+        final String output;
+
+        Config(String name, String output) {
+            this.name = name;
+            this.output = output;
+        }
+    }
+
+    final int index;
+    final String uuid;
+    final String friendlyName;
+    final String output;
+    final AvTransport transport;
+    // Подписчики GENA этого экземпляра; рассылка идёт из потоков postEvent
+    final List<String> avTransportCallbacks = new CopyOnWriteArrayList<>();
+    final List<String> renderingControlCallbacks = new CopyOnWriteArrayList<>();
+    final List<String> connectionManagerCallbacks = new CopyOnWriteArrayList<>();
+
+    private volatile Listener listener;
+    private Runnable beforePlay;
+    private SourceMapper sourceMapper;
+    private PlaybackJournal journal;
+
+    VirtualRenderer(int index, String uuid, Config config, PlaybackEngine engine) {
+        this.index = index;
+        this.uuid = uuid;
+        this.friendlyName = config.name;
+        this.output = config.output;
+        this.transport = new AvTransport(engine, new RendererHooks());
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Runs on the transport thread before each Play, e.g. to route the engine to {@link #output}. */
+    void setBeforePlay(Runnable hook) {
+        beforePlay = hook;
+    }
+
+    void setSourceMapper(SourceMapper mapper) {
+        sourceMapper = mapper;
+    }
+
+    /** Journal of this instance; tracks and positions are recorded on every transport change. */
+    void setJournal(PlaybackJournal journal) {
+        this.journal = journal;
+    }
+
+    /** {@code /r/<index>}, prepended to every URL in this renderer's description. */
+    String pathPrefix() {
+        return PATH_PREFIX + index;
+    }
+
+    PlaybackEngine engine() {
+        return transport.engine();
+    }
+
+    /** Records the current position; true while playing, i.e. while it is worth calling again. */
+    boolean checkpoint() {
+        PlaybackJournal current = journal;
+        if (current == null) return false;
+        String state = transport.getTransportState();
+        int positionMs = AvTransport.TRANSITIONING.equals(state)
+            ? Math.max(0, transport.getPendingSeekMs()) : transport.getPositionMs();
+        current.recordPosition(positionMs, state);
+        return AvTransport.PLAYING.equals(state);
+    }
+
+    /** Loads what the journal recorded and plays it again if it was playing, unless a controller got here first. */
+    void resume(PlaybackJournal.Snapshot snapshot) {
+        if (snapshot == null || !AvTransport.STOPPED.equals(transport.getTransportState())) return;
+        if (!transport.getCurrentUri().isEmpty()) return;
+        boolean wasPlaying = AvTransport.PLAYING.equals(snapshot.transportState) ||
+            AvTransport.TRANSITIONING.equals(snapshot.transportState);
+        if (!wasPlaying && !AvTransport.PAUSED_PLAYBACK.equals(snapshot.transportState)) return;
+        List<PlayQueue.Item> single = new ArrayList<>();
+        single.add(new PlayQueue.Item(snapshot.uri, snapshot.metaData, snapshot.title));
+        transport.setQueue(single, 0);
+        transport.seek(snapshot.positionMs);
+        if (wasPlaying) {
+            transport.requestPlay();
+        }
+    }
+
+    void release() {
+        listener = null;
+        PlaybackJournal current = journal;
+        if (current != null) {
+            checkpoint();
+            current.close();
+            journal = null;
+        }
+        transport.engine().release();
+    }
+
+    private final class RendererHooks extends AvTransport.Hooks {
+        @Override
+        void beforePlay(AvTransport t) {
+            Runnable hook = beforePlay;
+            if (hook != null) {
+                hook.run();
+            }
+        }
+
+        @Override
+        void openSource(AvTransport t, String uri) throws IOException {
+            SourceMapper mapper = sourceMapper;
+            PlaybackEngine engine = t.engine();
+            engine.setDataSource(mapper != null ? mapper.playbackUri(uri) : uri);
+            engine.prepareAsync();
+            PlaybackJournal current = journal;
+            if (current != null) {
+                PlayQueue.Item item = t.queue().current();
+                current.recordTrack(uri, t.getCurrentMetaData(), item != null ? item.title : "", item != null ? item.artist : "");
+            }
+        }
+
+        @Override
+        void onTransportChanged(AvTransport t, String previousState) {
+            if (!t.getTransportState().equals(previousState)) {
+                checkpoint();
+            }
+            Listener current = listener;
+            if (current != null) {
+                current.onEvent(VirtualRenderer.this, AV_TRANSPORT, t.transportEvent());
+            }
+        }
+
+        @Override
+        void onVolumeChanged(AvTransport t) {
+            Listener current = listener;
+            if (current != null) {
+                current.onEvent(VirtualRenderer.this, RENDERING_CONTROL, t.volumeEvent());
+            }
+        }
+    }
+
+    /** Entries separated by newlines or ';'; the part after the last '@' names the output. */
+    static List<Config> parseConfig(String setting) {
+        List<Config> configs = new ArrayList<>();
+        if (setting == null) return configs;
+        for (String entry : setting.split("[;\\n]")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int at = entry.lastIndexOf('@');
+            String name = at >= 0 ? entry.substring(0, at).trim() : entry;
+            String output = at >= 0 ? entry.substring(at + 1).trim() : "";
+            if (name.isEmpty()) continue;
+            configs.add(new Config(name, output));
+        }
+        return configs;
+    }
+
+    /** Stable per-index UUID, so controllers keep the instances apart while the base UUID is the same. */
+    static String deriveUuid(String baseUuid, int index) {
+        return UUID.nameUUIDFromBytes((baseUuid + "/r/" + index).getBytes(Charset.forName("UTF-8"))).toString();
+    }
+
+    /** Index from {@code /r/<index>/...}, or -1 for paths of the primary renderer. */
+    static int indexFromPath(String path) {
+        if (path == null || !path.startsWith(PATH_PREFIX)) return -1;
+        int end = path.indexOf('/', PATH_PREFIX.length());
+        if (end < 0) return -1;
+        try {
+            return Integer.parseInt(path.substring(PATH_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** The path with {@code /r/<index>} removed, e.g. {@code /AVTransport/control}. */
+    static String localPath(String path) {
+        int end = path.indexOf('/', PATH_PREFIX.length());
+        return end < 0 ? "/" : path.substring(end);
+    }
+}
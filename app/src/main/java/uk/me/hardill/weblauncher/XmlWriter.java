@@ -0,0 +1,246 @@
+package uk.me.hardill.weblauncher;
+
+import java.util.ArrayList;
+
+/**
+ * Minimal streaming XML writer for the renderer's documents. Text is escaped in
+ * a single pass straight into a reused buffer, and documents embedded as text
+ * (LastChange events, DIDL in TrackMetaData) are written inline between
+ * {@link #beginNested()} and {@link #endNested()} instead of being built
+ * separately and escaped again.
+ */
+public final class XmlWriter {
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<XmlWriter> LOCAL = new ThreadLocal<XmlWriter>() {
+        @Override
+        protected XmlWriter initialValue() {
+            return new XmlWriter(1024);
+        }
+    };
+
+    private StringBuilder out;
+    private final ArrayList<String> openElements = new ArrayList<>();
+    // '<name attr="..."' уже записан, '>' ещё нет
+    private boolean tagOpen;
+    // Уровень вложенности: разметка на уровне N экранируется N раз, текст — N + 1
+    private int depth;
+    private boolean inUse;
+
+    public XmlWriter(int capacity) {
+        out = new StringBuilder(capacity);
+    }
+
+    /**
+     * The calling thread's writer, emptied. If it is already being used further up
+     * the stack a fresh writer is returned, so builders can nest safely.
+     */
+    public static XmlWriter obtain() {
+        XmlWriter writer = LOCAL.get();
+        if (writer.inUse) {
+            writer = new XmlWriter(256);
+        }
+        writer.reset();
+        writer.inUse = true;
+        return writer;
+    }
+
+    public XmlWriter reset() {
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            out = new StringBuilder(1024);
+        } else {
+            out.setLength(0);
+        }
+        openElements.clear();
+        tagOpen = false;
+        depth = 0;
+        return this;
+    }
+
+    /** Returns the document and hands the writer back to {@link #obtain()}. */
+    public String finish() {
+        String result = toString();
+        inUse = false;
+        return result;
+    }
+
+    public XmlWriter declaration() {
+        markup("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n");
+        return this;
+    }
+
+    public XmlWriter start(String name) {
+        closePendingTag();
+        markup("<");
+        markup(name);
+        openElements.add(name);
+        tagOpen = true;
+        return this;
+    }
+
+    public XmlWriter attr(String name, String value) {
+        if (!tagOpen) {
+            throw new IllegalStateException("attr outside a start tag: " + name);
+        }
+        markup(" ");
+        markup(name);
+        markup("=\"");
+        escapeInto(out, value, depth + 1);
+        markup("\"");
+        return this;
+    }
+
+    public XmlWriter text(String value) {
+        closePendingTag();
+        escapeInto(out, value, depth + 1);
+        return this;
+    }
+
+    public XmlWriter text(long value) {
+        closePendingTag();
+        out.append(value);
+        return this;
+    }
+
+    /** Closes the innermost element; an element with no content is written as {@code <name/>}. */
+    public XmlWriter end() {
+        String name = openElements.remove(openElements.size() - 1);
+        if (tagOpen) {
+            markup("/>");
+            tagOpen = false;
+        } else {
+            markup("</");
+            markup(name);
+            markup(">");
+        }
+        return this;
+    }
+
+    /** {@code <name>value</name>}, always with an explicit end tag. */
+    public XmlWriter element(String name, String value) {
+        start(name);
+        text(value);
+        return endExplicit();
+    }
+
+    public XmlWriter element(String name, long value) {
+        start(name);
+        text(value);
+        return endExplicit();
+    }
+
+    private XmlWriter endExplicit() {
+        closePendingTag();
+        return end();
+    }
+
+    /** Appends an already serialized fragment (e.g. a DIDL document) as markup at the current level. */
+    public XmlWriter fragment(String xml) {
+        closePendingTag();
+        markup(xml);
+        return this;
+    }
+
+    /** Appends text that the caller has already escaped for the current position. */
+    public XmlWriter raw(String escaped) {
+        closePendingTag();
+        out.append(escaped);
+        return this;
+    }
+
+    /** Everything written until {@link #endNested()} becomes text content of the current element. */
+    public XmlWriter beginNested() {
+        closePendingTag();
+        depth++;
+        return this;
+    }
+
+    public XmlWriter endNested() {
+        closePendingTag();
+        if (depth == 0) {
+            throw new IllegalStateException("endNested without beginNested");
+        }
+        depth--;
+        return this;
+    }
+
+    public int length() {
+        return out.length();
+    }
+
+    @Override
+    public String toString() {
+        closePendingTag();
+        return out.toString();
+    }
+
+    private void closePendingTag() {
+        if (tagOpen) {
+            markup(">");
+            tagOpen = false;
+        }
+    }
+
+    private void markup(String s) {
+        if (depth == 0) {
+            out.append(s);
+        } else {
+            escapeInto(out, s, depth);
+        }
+    }
+
+    /** One-pass replacement for chained {@code String.replace()} escaping. */
+    public static String escape(String s) {
+        if (s == null) return "";
+        int i = 0;
+        int length = s.length();
+        while (i < length && entity(s.charAt(i)) == null) {
+            i++;
+        }
+        if (i == length) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(length + 16);
+        sb.append(s, 0, i);
+        escapeRange(sb, s, i, 1);
+        return sb.toString();
+    }
+
+    /** Appends {@code s} escaped {@code levels} times, e.g. '&amp;' twice gives "&amp;amp;". */
+    static void escapeInto(StringBuilder sb, String s, int levels) {
+        if (s == null) return;
+        if (levels == 0) {
+            sb.append(s);
+            return;
+        }
+        escapeRange(sb, s, 0, levels);
+    }
+
+    private static void escapeRange(StringBuilder sb, String s, int from, int levels) {
+        int length = s.length();
+        int plainStart = from;
+        for (int i = from; i < length; i++) {
+            String entity = entity(s.charAt(i));
+            if (entity == null) continue;
+            sb.append(s, plainStart, i);
+            sb.append('&');
+            for (int level = 1; level < levels; level++) {
+                sb.append("amp;");
+            }
+            sb.append(entity);
+            plainStart = i + 1;
+        }
+        sb.append(s, plainStart, length);
+    }
+
+    private static String entity(char c) {
+        switch (c) {
+            case '&': return "amp;";
+            case '<': return "lt;";
+            case '>': return "gt;";
+            case '"': return "quot;";
+            case '\'': return "apos;";
+            default: return null;
+        }
+    }
+}
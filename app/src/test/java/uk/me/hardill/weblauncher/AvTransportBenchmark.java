@@ -0,0 +1,106 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency of the {@link AvTransport} state machine itself, on a
+ * {@link FakePlaybackEngine} that prepares instantly: what a SOAP command costs
+ * before the real player is involved, and what the polled queries cost.
+ * Skipped in the normal test run; run with {@code ./gradlew test -Pbenchmark}.
+ */
+public class AvTransportBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private static final String URI = "http://192.168.1.10:8200/MediaItems/1234.mp3?format=mp3&bitrate=320";
+    private static final String DIDL = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" " +
+        "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">" +
+        "<item id=\"64$1$2\" parentID=\"64$1\" restricted=\"1\"><dc:title>Rock &amp; Roll Ain't Noise Pollution</dc:title>" +
+        "<upnp:artist>AC/DC</upnp:artist><upnp:album>Back in Black</upnp:album>" +
+        "<res protocolInfo=\"http-get:*:audio/mpeg:*\" duration=\"0:04:15.000\">" +
+        "http://192.168.1.10:8200/MediaItems/1234.mp3?format=mp3&amp;bitrate=320</res>" +
+        "<upnp:class>object.item.audioItem.musicTrack</upnp:class></item></DIDL-Lite>";
+
+    private FakePlaybackEngine.ManualScheduler scheduler;
+    private AvTransport transport;
+    private int events;
+
+    private interface Body {
+        int run();
+    }
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        scheduler = new FakePlaybackEngine.ManualScheduler();
+        FakePlaybackEngine engine = new FakePlaybackEngine(scheduler).setPrepareDelay(0).setTrackDuration(255000);
+        // Событие собирается на каждый переход, как для подписчика GENA
+        transport = new AvTransport(engine, new AvTransport.Hooks() {
+            @Override
+            void onTransportChanged(AvTransport t, String previousState) {
+                events += t.transportEvent().length();
+            }
+        });
+        transport.setUri(URI, DIDL);
+    }
+
+    private String soap(String action, String body) {
+        return transport.handleSoap("\"urn:schemas-upnp-org:service:AVTransport:1#" + action + "\"",
+            "<s:Envelope><s:Body><u:" + action + "><InstanceID>0</InstanceID>" + body +
+            "</u:" + action + "></s:Body></s:Envelope>", Runnable::run);
+    }
+
+    private static long measure(String name, Body body) {
+        for (int i = 0; i < WARMUP; i++) {
+            body.run();
+        }
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += body.run();
+        }
+        long nsPerOp = (System.nanoTime() - start) / ITERATIONS;
+        System.out.println(String.format("%-28s %6d ns/op (%d)", name, nsPerOp, sink % 10));
+        return nsPerOp;
+    }
+
+    @Test
+    public void playFromStopped() {
+        measure("soap/Play->PLAYING+Stop", () -> {
+            soap("Play", "<Speed>1</Speed>");
+            // Подготовка без задержки: переход в PLAYING в том же цикле
+            scheduler.advance(0);
+            int length = transport.getTransportState().length();
+            soap("Stop", "");
+            return length;
+        });
+        assertEquals(AvTransport.STOPPED, transport.getTransportState());
+        assertTrue(events > 0);
+    }
+
+    @Test
+    public void pauseAndResume() {
+        soap("Play", "");
+        scheduler.advance(0);
+        measure("soap/Pause+Play", () -> {
+            soap("Pause", "");
+            soap("Play", "");
+            return transport.getTransportState().length();
+        });
+        assertEquals(AvTransport.PLAYING, transport.getTransportState());
+    }
+
+    @Test
+    public void polledQueries() {
+        soap("Play", "");
+        scheduler.advance(0);
+        measure("cached/GetPositionInfo", () -> transport.cachedQuery("GetPositionInfo").length);
+        measure("cached/GetTransportInfo", () -> transport.cachedQuery("GetTransportInfo").length);
+        measure("soap/GetPositionInfo", () -> soap("GetPositionInfo", "").length());
+        measure("event/LastChange", () -> transport.transportEvent().length());
+    }
+}
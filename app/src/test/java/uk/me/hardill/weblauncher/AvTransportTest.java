@@ -0,0 +1,372 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * SOAP -> state -> LastChange scenarios of {@link AvTransport}: queue, next
+ * track, seeks, errors and the owner hooks, run against {@link FakePlaybackEngine}
+ * on virtual time.
+ */
+public class AvTransportTest {
+    private static final String DIDL =
+        "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\">" +
+        "<item id=\"1\" parentID=\"0\"><dc:title>One</dc:title><res>http://example.com/1.mp3</res></item>" +
+        "<item id=\"2\" parentID=\"0\"><dc:title>Two</dc:title><res>http://example.com/2.mp3</res></item>" +
+        "</DIDL-Lite>";
+
+    private FakePlaybackEngine.ManualScheduler scheduler;
+    private FakePlaybackEngine engine;
+    private RecordingHooks hooks;
+    private AvTransport transport;
+
+    // Записывает переходы и события, как их увидел бы подписчик
+    private static class RecordingHooks extends AvTransport.Hooks {
+        final List<String> states = new ArrayList<>();
+        final List<String> transportEvents = new ArrayList<>();
+        final List<String> volumeEvents = new ArrayList<>();
+        final List<String> calls = new ArrayList<>();
+        boolean interceptPlay;
+        boolean deferStart;
+        String recoverWith;
+
+        @Override
+        boolean interceptPlay(AvTransport t) {
+            if (interceptPlay) calls.add("play");
+            return interceptPlay;
+        }
+
+        @Override
+        boolean deferStart(AvTransport t) {
+            return deferStart;
+        }
+
+        @Override
+        void onStarted(AvTransport t, boolean fresh) {
+            calls.add(fresh ? "started" : "resumed");
+        }
+
+        @Override
+        boolean recover(AvTransport t, PlaybackEngine engine, int what, int extra) {
+            if (recoverWith == null) return false;
+            engine.reset();
+            try {
+                engine.setDataSource(recoverWith);
+            } catch (IOException e) {
+                return false;
+            }
+            engine.prepareAsync();
+            recoverWith = null;
+            return true;
+        }
+
+        @Override
+        void onPlaybackEnded(AvTransport t) {
+            calls.add("ended");
+        }
+
+        @Override
+        void onTransportChanged(AvTransport t, String previousState) {
+            if (!t.getTransportState().equals(previousState)) {
+                states.add(t.getTransportState());
+            }
+            transportEvents.add(t.transportEvent());
+        }
+
+        @Override
+        void onVolumeChanged(AvTransport t) {
+            volumeEvents.add(t.volumeEvent());
+        }
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = new FakePlaybackEngine.ManualScheduler();
+        engine = new FakePlaybackEngine(scheduler).setPrepareDelay(100).setTrackDuration(5000);
+        hooks = new RecordingHooks();
+        transport = new AvTransport(engine, hooks);
+    }
+
+    // Команды выполняются сразу, как если бы handler уже дошёл до них
+    private String soap(String action, String body) {
+        return transport.handleSoap("\"urn:schemas-upnp-org:service:AVTransport:1#" + action + "\"",
+            "<?xml version=\"1.0\"?><s:Envelope><s:Body><u:" + action + "><InstanceID>0</InstanceID>" + body +
+            "</u:" + action + "></s:Body></s:Envelope>", Runnable::run);
+    }
+
+    private String lastTransportEvent() {
+        return hooks.transportEvents.get(hooks.transportEvents.size() - 1);
+    }
+
+    private static String escaped(String xml) {
+        return XmlWriter.escape(XmlWriter.escape(xml));
+    }
+
+    @Test
+    public void soapCommandsDriveStateAndLastChange() {
+        String response = soap("SetAVTransportURI",
+            "<CurrentURI>http://example.com/a.mp3?x=1&amp;y=2</CurrentURI><CurrentURIMetaData></CurrentURIMetaData>");
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\nContent-Type: " + UpnpSoap.CONTENT_TYPE));
+        assertTrue(response.contains("<u:SetAVTransportURIResponse"));
+        assertEquals("http://example.com/a.mp3?x=1&y=2", transport.getCurrentUri());
+        // В LastChange событие вложено, поэтому экранировано дважды
+        assertTrue(lastTransportEvent().contains("&lt;TransportState val=&quot;STOPPED&quot;/&gt;"));
+        assertTrue(lastTransportEvent().contains("CurrentTrackURI val=&quot;http://example.com/a.mp3?x=1&amp;amp;y=2&quot;"));
+        // Без DIDL в событии минимальный DIDL с именем файла
+        assertTrue(lastTransportEvent().contains(escaped("<dc:title>a.mp3?x=1&amp;y=2</dc:title>")));
+
+        soap("Play", "<Speed>1</Speed>");
+        assertEquals(AvTransport.TRANSITIONING, transport.getTransportState());
+        assertEquals("http://example.com/a.mp3?x=1&y=2", engine.getDataSource());
+        scheduler.advance(100);
+        assertTrue(lastTransportEvent().contains("TransportState val=&quot;PLAYING&quot;"));
+        assertTrue(soap("GetTransportInfo", "").contains("<CurrentTransportState>PLAYING</CurrentTransportState>"));
+
+        scheduler.advance(2000);
+        String position = soap("GetPositionInfo", "");
+        assertTrue(position.contains("<RelTime>00:00:02</RelTime>"));
+        assertTrue(position.contains("<TrackDuration>00:00:05</TrackDuration>"));
+
+        soap("Pause", "");
+        assertTrue(lastTransportEvent().contains("TransportState val=&quot;PAUSED_PLAYBACK&quot;"));
+        soap("Play", "");
+        assertEquals(2000, transport.getPositionMs());
+        soap("Stop", "");
+        assertTrue(lastTransportEvent().contains("TransportState val=&quot;STOPPED&quot;"));
+        assertEquals("[TRANSITIONING, PLAYING, PAUSED_PLAYBACK, PLAYING, STOPPED]", hooks.states.toString());
+        assertEquals("[started, resumed, ended]", hooks.calls.toString());
+        assertTrue(soap("GetMediaInfo", "").contains("<NrTracks>1</NrTracks>"));
+    }
+
+    @Test
+    public void didlListBecomesQueueAndPlaysThrough() {
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/list</CurrentURI>" +
+            "<CurrentURIMetaData>" + XmlWriter.escape(DIDL) + "</CurrentURIMetaData>");
+        assertEquals("http://example.com/1.mp3", transport.getCurrentUri());
+        assertTrue(lastTransportEvent().contains("NumberOfTracks val=&quot;2&quot;"));
+        assertTrue(lastTransportEvent().contains("NextAVTransportURI val=&quot;http://example.com/2.mp3&quot;"));
+
+        soap("Play", "");
+        scheduler.advance(100 + 5000);
+        assertEquals(AvTransport.TRANSITIONING, transport.getTransportState());
+        assertEquals("http://example.com/2.mp3", engine.getDataSource());
+        assertTrue(lastTransportEvent().contains("CurrentTrack val=&quot;2&quot;"));
+
+        scheduler.advance(100 + 5000);
+        assertEquals(AvTransport.STOPPED, transport.getTransportState());
+        assertEquals("[TRANSITIONING, PLAYING, TRANSITIONING, PLAYING, STOPPED]", hooks.states.toString());
+    }
+
+    @Test
+    public void setNextIsPlayedAfterTheCurrentTrack() {
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/a.mp3</CurrentURI>");
+        String response = soap("SetNextAVTransportURI",
+            "<NextURI>http://example.com/b.mp3</NextURI><NextURIMetaData></NextURIMetaData>");
+        assertTrue(response.contains("<u:SetNextAVTransportURIResponse"));
+        assertTrue(lastTransportEvent().contains("NextAVTransportURI val=&quot;http://example.com/b.mp3&quot;"));
+        assertTrue(soap("GetMediaInfo", "").contains("<NextURI>http://example.com/b.mp3</NextURI>"));
+
+        soap("Play", "");
+        scheduler.advance(100 + 5000 + 100);
+        assertEquals(AvTransport.PLAYING, transport.getTransportState());
+        assertEquals("http://example.com/b.mp3", transport.getCurrentUri());
+
+        soap("SetNextAVTransportURI", "<NextURI></NextURI>");
+        assertTrue(soap("Next", "").contains("<errorCode>701</errorCode>"));
+    }
+
+    @Test
+    public void trackNumberSeekAndNextPrevious() {
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/list</CurrentURI>" +
+            "<CurrentURIMetaData>" + XmlWriter.escape(DIDL) + "</CurrentURIMetaData>");
+        assertTrue(soap("Previous", "").contains("<errorCode>701</errorCode>"));
+        assertTrue(soap("Seek", "<Unit>TRACK_NR</Unit><Target>3</Target>").contains("<errorCode>711</errorCode>"));
+
+        assertTrue(soap("Seek", "<Unit>TRACK_NR</Unit><Target>2</Target>").contains("<u:SeekResponse"));
+        assertEquals("http://example.com/2.mp3", transport.getCurrentUri());
+        assertEquals(AvTransport.STOPPED, transport.getTransportState());
+        assertTrue(soap("Next", "").contains("<errorCode>701</errorCode>"));
+
+        // Во время воспроизведения переход продолжает играть
+        soap("Play", "");
+        scheduler.advance(100);
+        int events = hooks.transportEvents.size();
+        assertTrue(soap("Previous", "").contains("<u:PreviousResponse"));
+        assertEquals("http://example.com/1.mp3", engine.getDataSource());
+        assertEquals(AvTransport.TRANSITIONING, transport.getTransportState());
+        assertTrue(hooks.transportEvents.size() > events);
+        assertTrue(lastTransportEvent().contains("CurrentTrack val=&quot;1&quot;"));
+    }
+
+    @Test
+    public void relativeSeekIsCheckedAgainstTheTrack() {
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/a.mp3</CurrentURI>");
+        // До подготовки позиция применяется при старте
+        assertTrue(soap("Seek", "<Unit>REL_TIME</Unit><Target>00:00:02</Target>").contains("<u:SeekResponse"));
+        assertEquals(2000, transport.getPendingSeekMs());
+        soap("Play", "");
+        scheduler.advance(100);
+        assertEquals(2000, transport.getPositionMs());
+
+        assertTrue(soap("Seek", "<Unit>REL_TIME</Unit><Target>00:00:03.5</Target>").contains("<u:SeekResponse"));
+        assertEquals(3000, transport.getPositionMs());
+        assertTrue(soap("Seek", "<Unit>REL_TIME</Unit><Target>00:01:00</Target>").contains("<errorCode>711</errorCode>"));
+        assertTrue(soap("Seek", "<Unit>ABS_COUNT</Unit><Target>1</Target>").contains("<errorCode>710</errorCode>"));
+        assertTrue(soap("Seek", "<Unit>REL_TIME</Unit>").contains("<errorCode>402</errorCode>"));
+    }
+
+    @Test
+    public void volumeAndConnectionInfo() {
+        assertTrue(soap("SetVolume", "<Channel>Master</Channel><DesiredVolume>150</DesiredVolume>")
+            .contains("urn:schemas-upnp-org:service:RenderingControl:1"));
+        assertEquals(100, transport.getVolume());
+        assertEquals(1.0f, engine.getVolume(), 0.0001f);
+        assertTrue(hooks.volumeEvents.get(0).contains("Volume channel=&quot;Master&quot; val=&quot;100&quot;"));
+        assertTrue(soap("SetVolume", "<DesiredVolume>loud</DesiredVolume>").contains("<errorCode>402</errorCode>"));
+        assertTrue(soap("GetVolume", "").contains("<CurrentVolume>100</CurrentVolume>"));
+
+        assertTrue(soap("GetCurrentConnectionInfo", "<ConnectionID>1</ConnectionID>").contains("<errorCode>706</errorCode>"));
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/list</CurrentURI>" +
+            "<CurrentURIMetaData>" + XmlWriter.escape(DIDL.replace("<res>", "<res protocolInfo=\"http-get:*:audio/mpeg:*\">")) +
+            "</CurrentURIMetaData>");
+        assertTrue(soap("GetCurrentConnectionInfo", "<ConnectionID>0</ConnectionID>")
+            .contains("<ProtocolInfo>http-get:*:audio/mpeg:*</ProtocolInfo>"));
+        assertTrue(soap("SetAVTransportURI", "").contains("<errorCode>402</errorCode>"));
+        assertTrue(soap("SetPlayMode", "<NewPlayMode>SHUFFLE</NewPlayMode>").contains("<errorCode>501</errorCode>"));
+    }
+
+    @Test
+    public void finalErrorIsReportedInTransportStatus() {
+        engine.setPrepareError(1);
+        transport.setUri("http://example.com/a.mp3", null);
+        transport.play();
+        scheduler.advance(100);
+        assertEquals(AvTransport.STOPPED, transport.getTransportState());
+        assertEquals(AvTransport.STATUS_ERROR, transport.getTransportStatus());
+        assertTrue(lastTransportEvent().contains("TransportStatus val=&quot;ERROR_OCCURRED&quot;"));
+        assertTrue(soap("GetTransportInfo", "").contains("<CurrentTransportStatus>ERROR_OCCURRED</CurrentTransportStatus>"));
+
+        transport.play();
+        scheduler.advance(100);
+        assertEquals(AvTransport.PLAYING, transport.getTransportState());
+        assertEquals(AvTransport.STATUS_OK, transport.getTransportStatus());
+    }
+
+    @Test
+    public void ownerCanRecoverFromAnError() {
+        hooks.recoverWith = "http://mirror.example.com/a.mp3";
+        engine.setPrepareError(1);
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.play();
+        scheduler.advance(100);
+        assertEquals(AvTransport.TRANSITIONING, transport.getTransportState());
+        scheduler.advance(100);
+        assertEquals(AvTransport.PLAYING, transport.getTransportState());
+        assertEquals("http://mirror.example.com/a.mp3", engine.getDataSource());
+        assertEquals(AvTransport.STATUS_OK, transport.getTransportStatus());
+    }
+
+    @Test
+    public void interceptedPlayLeavesTheTransportToTheOwner() {
+        hooks.interceptPlay = true;
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/a.mp3</CurrentURI>");
+        soap("Play", "");
+        assertEquals(AvTransport.STOPPED, transport.getTransportState());
+        assertEquals("[play]", hooks.calls.toString());
+
+        // Группа сама решает, когда играть
+        transport.play();
+        scheduler.advance(100);
+        assertEquals(AvTransport.PLAYING, transport.getTransportState());
+    }
+
+    @Test
+    public void deferredStartWaitsForTheOwner() {
+        hooks.deferStart = true;
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.play();
+        scheduler.advance(500);
+        assertEquals(AvTransport.TRANSITIONING, transport.getTransportState());
+        assertTrue(transport.isPrepared());
+        assertFalse(engine.isPlaying());
+
+        transport.start();
+        assertEquals(AvTransport.PLAYING, transport.getTransportState());
+        assertTrue(engine.isPlaying());
+        assertEquals("[started]", hooks.calls.toString());
+    }
+
+    @Test
+    public void stopWhilePreparingCancelsPlayback() {
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.play();
+        transport.stop();
+        scheduler.advance(500);
+        assertEquals(AvTransport.STOPPED, transport.getTransportState());
+        assertFalse(engine.isPlaying());
+    }
+
+    @Test
+    public void engineSwitchKeepsVolumeAndIgnoresTheOldEngine() throws IOException {
+        FakePlaybackEngine other = new FakePlaybackEngine(scheduler).setPrepareDelay(50).setTrackDuration(5000);
+        transport.setVolume(30);
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.play();
+        transport.selectEngine(other);
+        other.setDataSource("http://example.com/a.wav");
+        other.prepareAsync();
+        assertEquals(0.3f, other.getVolume(), 0.0001f);
+        scheduler.advance(100);
+        assertEquals(AvTransport.PLAYING, transport.getTransportState());
+        assertSame(other, transport.engine());
+        assertFalse(engine.isPlaying());
+    }
+
+    @Test
+    public void metricsFollowTheTransport() {
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.play();
+        scheduler.advance(100);
+        assertEquals(1, transport.metrics().prepareDuration.count());
+        assertTrue(transport.metrics().isAwaitingFirstAudio());
+    }
+
+    @Test
+    public void cachedQueriesAreReusedUntilTheStateChanges() {
+        transport.setUri("http://example.com/a.mp3", "");
+        byte[] first = transport.cachedQuery("GetTransportInfo");
+        assertSame(first, transport.cachedQuery("GetTransportInfo"));
+        assertNull(transport.cachedQuery("Play"));
+
+        transport.play();
+        scheduler.advance(100);
+        byte[] playing = transport.cachedQuery("GetTransportInfo");
+        assertNotSame(first, playing);
+        assertTrue(new String(playing).contains("<CurrentTransportState>PLAYING</CurrentTransportState>"));
+
+        scheduler.advance(3000);
+        assertTrue(new String(transport.cachedQuery("GetPositionInfo")).contains("<RelTime>00:00:03</RelTime>"));
+        scheduler.advance(1000);
+        assertTrue(new String(transport.cachedQuery("GetPositionInfo")).contains("<AbsTime>00:00:04</AbsTime>"));
+    }
+
+    @Test
+    public void failedOpenStopsWithAnError() {
+        AvTransport failing = new AvTransport(engine, new AvTransport.Hooks() {
+            @Override
+            void openSource(AvTransport t, String uri) throws IOException {
+                throw new IOException("no route");
+            }
+        });
+        failing.setUri("http://example.com/a.mp3", "");
+        failing.play();
+        assertEquals(AvTransport.STOPPED, failing.getTransportState());
+        assertEquals(AvTransport.STATUS_ERROR, failing.getTransportStatus());
+    }
+}
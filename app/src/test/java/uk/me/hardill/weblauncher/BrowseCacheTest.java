@@ -0,0 +1,157 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * DIDL parsing and update-ID driven invalidation of {@link BrowseCache}.
+ */
+public class BrowseCacheTest {
+    private static final String SERVER = "uuid:server-1";
+    private static final String DIDL =
+        "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"" +
+        " xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">" +
+        "<container id=\"10\" parentID=\"0\" childCount=\"12\" restricted=\"1\">" +
+        "<dc:title>Albums</dc:title><upnp:class>object.container.storageFolder</upnp:class></container>" +
+        "<item id=\"11\" parentID=\"0\" restricted=\"1\"><dc:title>Rock &amp; Roll</dc:title>" +
+        "<dc:creator>Band</dc:creator><upnp:album>Live</upnp:album>" +
+        "<upnp:class>object.item.audioItem.musicTrack</upnp:class>" +
+        "<res protocolInfo=\"http-get:*:audio/mpeg:*\" size=\"100\">http://10.0.0.2/a.mp3?x=1&amp;y=2</res></item>" +
+        "<item id=\"12\" parentID=\"0\"><dc:title>Quiet</dc:title><upnp:artist>Solo</upnp:artist>" +
+        "<res protocolInfo=\"http-get:*:audio/flac:*\">http://10.0.0.2/b.flac</res></item>" +
+        "</DIDL-Lite>";
+
+    private BrowseCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new BrowseCache();
+        put(SERVER, "0", 5);
+        put(SERVER, "10", 7);
+    }
+
+    @Test
+    public void parsesContainersAndItemsInOrder() {
+        List<BrowseCache.Entry> entries = BrowseCache.parseDidl(DIDL);
+        assertEquals(3, entries.size());
+        BrowseCache.Entry folder = entries.get(0);
+        assertTrue(folder.container);
+        assertEquals("10", folder.id);
+        assertEquals(12, folder.childCount);
+        assertEquals("Albums", folder.title);
+
+        BrowseCache.Entry track = entries.get(1);
+        assertFalse(track.container);
+        assertEquals("11", track.id);
+        assertEquals("0", track.parentId);
+        assertEquals("Rock & Roll", track.title);
+        assertEquals("Band", track.artist);
+        assertEquals("Live", track.album);
+        assertEquals("http://10.0.0.2/a.mp3?x=1&y=2", track.uri);
+        assertEquals("http-get:*:audio/mpeg:*", track.protocolInfo);
+        assertEquals("Solo", entries.get(2).artist);
+        assertTrue(BrowseCache.parseDidl(null).isEmpty());
+    }
+
+    @Test
+    public void containerUpdateIdsInvalidateOnlyChangedContainers() {
+        assertTrue(cache.applyUpdate(SERVER, 20, "").isEmpty());
+
+        List<String> stale = cache.applyUpdate(SERVER, 21, "10,8,0,5,99,1");
+        assertEquals("[10]", stale.toString());
+        assertTrue(cache.get(SERVER, "10").isStale());
+        assertFalse(cache.get(SERVER, "0").isStale());
+
+        // Свежий ответ заменяет устаревший
+        put(SERVER, "10", 8);
+        assertFalse(cache.get(SERVER, "10").isStale());
+        assertEquals(6, cache.entryCount());
+    }
+
+    @Test
+    public void systemUpdateIdAloneInvalidatesTheWholeServer() {
+        // Первое значение только запоминается
+        assertTrue(cache.applyUpdate(SERVER, 3, null).isEmpty());
+        assertTrue(cache.applyUpdate(SERVER, 3, null).isEmpty());
+        put("uuid:other", "0", 1);
+
+        assertEquals(2, cache.applyUpdate(SERVER, 4, null).size());
+        assertTrue(cache.get(SERVER, "0").isStale());
+        assertTrue(cache.get(SERVER, "10").isStale());
+        assertFalse(cache.get("uuid:other", "0").isStale());
+    }
+
+    @Test
+    public void searchesCachedItemsAndForgetsRemovedServers() {
+        put("uuid:other", "0", 1);
+        assertEquals(3, cache.search(null, "ROCK", 10).size());
+        assertEquals(2, cache.search(SERVER, "rock", 10).size());
+        assertEquals(1, cache.search(SERVER, "solo", 1).size());
+        assertTrue(cache.search(SERVER, "albums", 10).isEmpty());
+
+        cache.removeServer(SERVER);
+        assertNull(cache.get(SERVER, "0"));
+        assertEquals(3, cache.entryCount());
+    }
+
+    @Test
+    public void entriesSerializeToJson() {
+        StringBuilder json = new StringBuilder();
+        BrowseCache.parseDidl(DIDL).get(1).appendJson(json);
+        assertEquals("{\"id\":\"11\",\"parentId\":\"0\",\"container\":false,\"title\":\"Rock & Roll\"," +
+            "\"class\":\"object.item.audioItem.musicTrack\",\"artist\":\"Band\",\"album\":\"Live\"," +
+            "\"uri\":\"http://10.0.0.2/a.mp3?x=1&y=2\",\"protocolInfo\":\"http-get:*:audio/mpeg:*\"}", json.toString());
+    }
+
+    @Test
+    public void largeContainersAreCachedPageByPage() {
+        List<BrowseCache.Entry> page = pageOf(BrowseCache.PAGE_SIZE);
+        BrowseCache.Container container = cache.put(SERVER, "big", 2 * BrowseCache.PAGE_SIZE, page, 5000, 3);
+        assertEquals(5000, container.size());
+        assertTrue(container.isComplete());
+        assertFalse(container.hasPage(0));
+        assertTrue(container.hasPage(2 * BrowseCache.PAGE_SIZE + 7));
+        assertNull(container.get(0));
+        assertEquals("t1", container.get(2 * BrowseCache.PAGE_SIZE + 1).id);
+
+        // Та же версия — страница добавляется к контейнеру
+        assertSame(container, cache.put(SERVER, "big", 0, page, 5000, 3));
+        assertEquals("t0", container.get(0).id);
+        assertEquals(6 + 2 * BrowseCache.PAGE_SIZE, cache.entryCount());
+
+        // Новая версия на сервере — старые страницы отбрасываются
+        BrowseCache.Container fresh = cache.put(SERVER, "big", 0, page.subList(0, 10), 4000, 4);
+        assertNotSame(container, fresh);
+        assertFalse(fresh.hasPage(2 * BrowseCache.PAGE_SIZE));
+        assertEquals(16, cache.entryCount());
+        assertEquals(1, cache.search(SERVER, "track 3", 10).size());
+    }
+
+    @Test
+    public void unknownTotalGrowsWithTheReadPages() {
+        BrowseCache.Container container = cache.put(SERVER, "radio", 0, pageOf(BrowseCache.PAGE_SIZE), -1, 0);
+        assertFalse(container.isComplete());
+        assertEquals(BrowseCache.PAGE_SIZE, container.size());
+        cache.put(SERVER, "radio", BrowseCache.PAGE_SIZE, pageOf(20), BrowseCache.PAGE_SIZE + 20, 0);
+        assertTrue(container.isComplete());
+        assertEquals(BrowseCache.PAGE_SIZE + 20, container.size());
+    }
+
+    private void put(String server, String id, int updateId) {
+        List<BrowseCache.Entry> children = BrowseCache.parseDidl(DIDL);
+        cache.put(server, id, 0, children, children.size(), updateId);
+    }
+
+    private static List<BrowseCache.Entry> pageOf(int size) {
+        StringBuilder didl = new StringBuilder("<DIDL-Lite>");
+        for (int i = 0; i < size; i++) {
+            didl.append("<item id=\"t").append(i).append("\" parentID=\"big\"><dc:title>Track ").append(i)
+                .append("</dc:title></item>");
+        }
+        return BrowseCache.parseDidl(didl.append("</DIDL-Lite>").toString());
+    }
+}
@@ -0,0 +1,41 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Range parsing shared by {@link CachingStreamProxy} and {@link MediaServer}.
+ */
+public class CachingStreamProxyTest {
+
+    @Test
+    public void parsesStartEndAndSuffixRanges() {
+        assertRange(10, -1, CachingStreamProxy.parseRange("bytes=10-"));
+        assertRange(10, 19, CachingStreamProxy.parseRange("bytes=10-19, 30-40"));
+        assertRange(-128, -1, CachingStreamProxy.parseRange("bytes=-128"));
+        assertNull(CachingStreamProxy.parseRange("bytes=-0"));
+        assertNull(CachingStreamProxy.parseRange("bytes=20-10"));
+        assertNull(CachingStreamProxy.parseRange("bytes=x-"));
+        assertNull(CachingStreamProxy.parseRange("items=0-1"));
+        assertNull(CachingStreamProxy.parseRange(null));
+    }
+
+    @Test
+    public void resolvesRangesAgainstTheLength() {
+        assertRange(0, 999, CachingStreamProxy.resolveRange(null, 1000));
+        assertRange(10, 999, CachingStreamProxy.resolveRange(new long[] { 10, -1 }, 1000));
+        assertRange(10, 999, CachingStreamProxy.resolveRange(new long[] { 10, 5000 }, 1000));
+        // Хвост ID3v1 и хвост длиннее файла
+        assertRange(872, 999, CachingStreamProxy.resolveRange(new long[] { -128, -1 }, 1000));
+        assertRange(0, 99, CachingStreamProxy.resolveRange(new long[] { -128, -1 }, 100));
+        assertNull(CachingStreamProxy.resolveRange(new long[] { 1000, -1 }, 1000));
+        assertNull(CachingStreamProxy.resolveRange(new long[] { -1, -1 }, 0));
+    }
+
+    private static void assertRange(long start, long end, long[] range) {
+        assertNotNull(range);
+        assertEquals(start, range[0]);
+        assertEquals(end, range[1]);
+    }
+}
@@ -0,0 +1,131 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the simulated timing of {@link FakePlaybackEngine} on virtual time.
+ */
+public class FakePlaybackEngineTest {
+    private FakePlaybackEngine.ManualScheduler scheduler;
+    private FakePlaybackEngine engine;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new FakePlaybackEngine.ManualScheduler();
+        engine = new FakePlaybackEngine(scheduler).setPrepareDelay(120).setTrackDuration(10000);
+        engine.setListener(new PlaybackEngine.Listener() {
+            @Override
+            public void onPrepared(PlaybackEngine e) {
+                events.add("prepared@" + scheduler.now());
+                e.start();
+            }
+
+            @Override
+            public void onCompletion(PlaybackEngine e) {
+                events.add("completed@" + scheduler.now());
+            }
+
+            @Override
+            public boolean onError(PlaybackEngine e, int what, int extra) {
+                events.add("error:" + what);
+                return true;
+            }
+
+            @Override
+            public void onBufferingStart(PlaybackEngine e) {
+                events.add("bufferingStart@" + scheduler.now());
+            }
+
+            @Override
+            public void onBufferingEnd(PlaybackEngine e) {
+                events.add("bufferingEnd@" + scheduler.now());
+            }
+
+            @Override
+            public void onBufferingUpdate(PlaybackEngine e, int percent) {
+            }
+        });
+    }
+
+    @Test
+    public void playsToCompletionOnVirtualTime() throws Exception {
+        engine.setDataSource("http://nas/track.mp3");
+        engine.prepareAsync();
+        scheduler.advance(120);
+        assertTrue(engine.isPlaying());
+
+        scheduler.advance(4000);
+        assertEquals(4000, engine.getCurrentPosition());
+
+        scheduler.advance(6000);
+        assertFalse(engine.isPlaying());
+        assertEquals(10000, engine.getCurrentPosition());
+        assertEquals("[prepared@120, completed@10120]", events.toString());
+    }
+
+    @Test
+    public void fasterSpeedAdvancesPositionAndCompletesSooner() throws Exception {
+        engine.setDataSource("http://radio/live");
+        engine.prepareAsync();
+        scheduler.advance(2120);
+        assertTrue(engine.setPlaybackSpeed(2.0f));
+        scheduler.advance(1000);
+        assertEquals(4000, engine.getCurrentPosition());
+
+        scheduler.advance(3000);
+        assertEquals("[prepared@120, completed@6120]", events.toString());
+    }
+
+    @Test
+    public void pauseFreezesPositionAndDelaysCompletion() throws Exception {
+        engine.setDataSource("http://nas/track.mp3");
+        engine.prepareAsync();
+        scheduler.advance(1120);
+        engine.pause();
+        scheduler.advance(60000);
+        assertEquals(1000, engine.getCurrentPosition());
+
+        engine.start();
+        scheduler.advance(9000);
+        assertEquals("[prepared@120, completed@70120]", events.toString());
+    }
+
+    @Test
+    public void stallHoldsPositionUntilBufferingEnds() throws Exception {
+        engine.setStall(2000, 500);
+        engine.setDataSource("http://nas/track.mp3");
+        engine.prepareAsync();
+        scheduler.advance(120 + 2000 + 250);
+        assertEquals(2000, engine.getCurrentPosition());
+
+        scheduler.advance(20000);
+        assertEquals("[prepared@120, bufferingStart@2120, bufferingEnd@2620, completed@10620]", events.toString());
+    }
+
+    @Test
+    public void seekMovesCompletion() throws Exception {
+        engine.setDataSource("http://nas/track.mp3");
+        engine.prepareAsync();
+        scheduler.advance(120);
+        engine.seekTo(9000);
+        scheduler.advance(1000);
+        assertEquals("[prepared@120, completed@1120]", events.toString());
+    }
+
+    @Test
+    public void prepareErrorIsReported() throws Exception {
+        engine.setPrepareError(-1004);
+        engine.setDataSource("http://nas/missing.mp3");
+        engine.prepareAsync();
+        scheduler.advance(1000);
+        assertFalse(engine.isPlaying());
+        assertEquals("[error:-1004]", events.toString());
+    }
+}
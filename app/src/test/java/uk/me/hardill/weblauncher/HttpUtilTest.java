@@ -0,0 +1,37 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Query, number and JSON string helpers of {@link HttpUtil}.
+ */
+public class HttpUtilTest {
+
+    @Test
+    public void queriesAreDecodedAndMalformedPairsSkipped() {
+        Map<String, String> params = HttpUtil.parseQuery("id=a%2Fb&q=%D0%81%D0%BB%D0%BA%D0%B0+1&flag&bad=%zz&");
+        assertEquals("a/b", params.get("id"));
+        assertEquals("Ёлка 1", params.get("q"));
+        assertEquals("", params.get("flag"));
+        assertFalse(params.containsKey("bad"));
+        assertTrue(HttpUtil.parseQuery("").isEmpty());
+    }
+
+    @Test
+    public void numbersFallBackWhenMissingOrMalformed() {
+        assertEquals(42, HttpUtil.parseInt(" 42 ", 0));
+        assertEquals(-1, HttpUtil.parseInt(null, -1));
+        assertEquals(7, HttpUtil.parseInt("4x", 7));
+    }
+
+    @Test
+    public void jsonStringsAreEscaped() {
+        StringBuilder json = new StringBuilder();
+        HttpUtil.appendJsonString(json, "a\"b\\c\n\u0001");
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001\"", json.toString());
+    }
+}
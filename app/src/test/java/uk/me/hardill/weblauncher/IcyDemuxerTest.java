@@ -0,0 +1,92 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds {@link IcyDemuxer} interleaved ICY streams in differently sized reads and
+ * checks that the audio comes out intact and titles are reported once per change.
+ */
+public class IcyDemuxerTest {
+    private static final int META_INT = 100;
+
+    private final List<String> titles = new ArrayList<>();
+
+    private static byte[] metadataBlock(byte[] text) {
+        int blocks = (text.length + 15) / 16;
+        byte[] block = new byte[1 + blocks * 16];
+        block[0] = (byte) blocks;
+        System.arraycopy(text, 0, block, 1, text.length);
+        return block;
+    }
+
+    // Аудио — байты 0..n по кругу, между кусками по META_INT — блоки метаданных
+    private static byte[] icyStream(int audioLength, byte[]... blocks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int blockIndex = 0;
+        for (int i = 0; i < audioLength; i++) {
+            out.write(i & 0x7f);
+            if ((i + 1) % META_INT == 0) {
+                byte[] block = blockIndex < blocks.length ? blocks[blockIndex++] : new byte[] { 0 };
+                out.write(block, 0, block.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] demux(byte[] stream, int readSize) throws Exception {
+        IcyDemuxer demuxer = new IcyDemuxer(META_INT, titles::add);
+        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        for (int offset = 0; offset < stream.length; offset += readSize) {
+            demuxer.process(stream, offset, Math.min(readSize, stream.length - offset), audio);
+        }
+        return audio.toByteArray();
+    }
+
+    private static void assertAudio(int length, byte[] audio) {
+        assertEquals(length, audio.length);
+        for (int i = 0; i < length; i++) {
+            assertEquals("byte " + i, i & 0x7f, audio[i]);
+        }
+    }
+
+    @Test
+    public void metadataIsStrippedForAnyReadSize() throws Exception {
+        byte[] stream = icyStream(450,
+            metadataBlock("StreamTitle='Band - Song';StreamUrl='';".getBytes("UTF-8")),
+            metadataBlock("StreamTitle='Band - Song';".getBytes("UTF-8")),
+            new byte[] { 0 },
+            metadataBlock("StreamTitle='Other - Tune';".getBytes("UTF-8")));
+        for (int readSize : new int[] { 1, 7, 100, 101, 4096 }) {
+            titles.clear();
+            assertAudio(450, demux(stream, readSize));
+            assertEquals(2, titles.size());
+            assertEquals("Band - Song", titles.get(0));
+            assertEquals("Other - Tune", titles.get(1));
+        }
+    }
+
+    @Test
+    public void titleMayContainApostrophesAndLatin1() throws Exception {
+        byte[] stream = icyStream(100, metadataBlock("StreamTitle='Guns N' Roses - Caf\u00e9';".getBytes("ISO-8859-1")));
+        assertAudio(100, demux(stream, 64));
+        assertEquals("Guns N' Roses - Caf\u00e9", titles.get(0));
+    }
+
+    @Test
+    public void artistAndTitleAreSplitOnDash() {
+        String[] parts = IcyDemuxer.splitArtistTitle("Band - Song - Live");
+        assertEquals("Band", parts[0]);
+        assertEquals("Song - Live", parts[1]);
+        parts = IcyDemuxer.splitArtistTitle("Station jingle");
+        assertEquals("", parts[0]);
+        assertEquals("Station jingle", parts[1]);
+        assertEquals(0, IcyDemuxer.parseMetaInt("abc"));
+        assertEquals(16000, IcyDemuxer.parseMetaInt(" 16000"));
+    }
+}
@@ -0,0 +1,176 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Indexing, paging and incremental updates of {@link MediaLibrary} on a temporary folder.
+ */
+public class MediaLibraryTest {
+    private File music;
+    private MediaLibrary library;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        music = File.createTempFile("music", "");
+        assertTrue(music.delete());
+        assertTrue(music.mkdir());
+        touch(new File(music, "b.mp3"), 10);
+        touch(new File(music, "A.flac"), 20);
+        touch(new File(music, "cover.jpg"), 5);
+        File album = new File(music, "Album");
+        assertTrue(album.mkdir());
+        touch(new File(album, "01 Intro.m4a"), 30);
+
+        library = new MediaLibrary("Music");
+        library.setListener(new MediaLibrary.Listener() {
+            @Override
+            public void onDirectoryAdded(File directory) {
+                events.add("watch " + directory.getName());
+            }
+
+            @Override
+            public void onDirectoryRemoved(File directory) {
+                events.add("unwatch " + directory.getName());
+            }
+
+            @Override
+            public void onContainerChanged(MediaLibrary.Node container, int systemUpdateId) {
+                events.add("changed " + container.title + " #" + systemUpdateId);
+            }
+        });
+        library.addFolder(music);
+    }
+
+    @After
+    public void tearDown() {
+        delete(music);
+    }
+
+    @Test
+    public void countsPlayableTracksOnly() {
+        assertEquals(3, library.trackCount());
+        assertEquals(0, library.unlistableFolders());
+
+        // Пустая папка — как общая папка без разрешения на чтение: скан ничего не находит
+        MediaLibrary empty = new MediaLibrary("Music");
+        File nothing = new File(music, "Album/Empty");
+        assertTrue(nothing.mkdir());
+        empty.addFolder(nothing);
+        assertEquals(0, empty.trackCount());
+    }
+
+    @Test
+    public void indexesAudioFilesSortedWithFoldersFirst() {
+        MediaLibrary.Page top = library.browse(MediaLibrary.ROOT_ID, 0, 0);
+        assertEquals(1, top.total);
+        MediaLibrary.Node folder = top.items.get(0);
+
+        MediaLibrary.Page page = library.browse(folder.id, 0, 0);
+        assertEquals(3, page.total);
+        assertEquals("Album", page.items.get(0).title);
+        assertTrue(page.items.get(0).isContainer());
+        assertEquals("A", page.items.get(1).title);
+        assertEquals("audio/flac", page.items.get(1).mimeType);
+        assertEquals(20, page.items.get(1).size);
+        assertEquals("b", page.items.get(2).title);
+        assertEquals("[watch " + music.getName() + ", watch Album]", events.toString());
+    }
+
+    @Test
+    public void pagesAreSlicesOfTheSortedChildren() {
+        String folderId = library.browse(MediaLibrary.ROOT_ID, 0, 0).items.get(0).id;
+        MediaLibrary.Page page = library.browse(folderId, 1, 1);
+        assertEquals(3, page.total);
+        assertEquals(1, page.items.size());
+        assertEquals("A", page.items.get(0).title);
+
+        assertEquals(1, library.browse(folderId, 2, 10).items.size());
+        assertEquals(0, library.browse(folderId, 5, 10).items.size());
+        assertNull(library.browse("9999", 0, 0));
+        assertNull(library.browse(page.items.get(0).id, 0, 0));
+    }
+
+    @Test
+    public void fileEventsUpdateTheIndexWithoutRescan() throws IOException {
+        MediaLibrary.Node folder = library.browse(MediaLibrary.ROOT_ID, 0, 0).items.get(0);
+        events.clear();
+
+        File added = new File(music, "c.ogg");
+        touch(added, 7);
+        library.onCreated(added);
+        assertEquals(4, library.browse(folder.id, 0, 0).total);
+        assertEquals(1, library.systemUpdateId());
+        assertEquals(1, folder.updateId());
+
+        // Повторное событие для того же файла ничего не меняет
+        library.onCreated(added);
+        assertEquals(1, library.systemUpdateId());
+
+        File album = new File(music, "Album");
+        library.onDeleted(album);
+        assertEquals(3, library.browse(folder.id, 0, 0).total);
+        assertEquals(2, library.systemUpdateId());
+        assertEquals("[changed " + music.getName() + " #1, unwatch Album, changed " + music.getName() + " #2]",
+            events.toString());
+        assertEquals(4, library.size());
+    }
+
+    @Test
+    public void idsSurviveRescansAndRewrites() throws IOException {
+        String folderId = library.browse(MediaLibrary.ROOT_ID, 0, 0).items.get(0).id;
+        MediaLibrary.Node track = library.browse(folderId, 0, 0).items.get(2);
+        assertEquals(MediaLibrary.idFor(music.getName() + "/b.mp3"), track.id);
+
+        // Новый процесс индексирует ту же папку с теми же id
+        MediaLibrary again = new MediaLibrary("Music");
+        again.addFolder(music);
+        assertEquals(folderId, again.browse(MediaLibrary.ROOT_ID, 0, 0).items.get(0).id);
+        assertEquals("b", again.get(track.id).title);
+
+        File rewritten = new File(music, "b.mp3");
+        touch(rewritten, 99);
+        library.onCreated(rewritten);
+        MediaLibrary.Node replaced = library.get(track.id);
+        assertEquals(99, replaced.size);
+        assertEquals(3, library.browse(folderId, 0, 0).total);
+    }
+
+    @Test
+    public void unknownFilesAndFoldersOutsideTheIndexAreIgnored() throws IOException {
+        File text = new File(music, "notes.txt");
+        touch(text, 1);
+        library.onCreated(text);
+        library.onCreated(new File(music.getParentFile(), "elsewhere.mp3"));
+        library.onDeleted(new File(music, "missing.mp3"));
+        assertEquals(0, library.systemUpdateId());
+        assertNull(MediaLibrary.mimeTypeFor("README"));
+        assertEquals("audio/mpeg", MediaLibrary.mimeTypeFor("X.MP3"));
+    }
+
+    private static void touch(File file, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
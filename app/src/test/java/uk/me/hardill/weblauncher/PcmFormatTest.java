@@ -0,0 +1,91 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks L16 MIME parameters, WAV header parsing and in-place byte swapping in {@link PcmFormat}.
+ */
+public class PcmFormatTest {
+
+    private static void putLe(byte[] data, int offset, long value, int count) {
+        for (int i = 0; i < count; i++) {
+            data[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static void putTag(byte[] data, int offset, String tag) {
+        for (int i = 0; i < 4; i++) data[offset + i] = (byte) tag.charAt(i);
+    }
+
+    // RIFF, WAVE, fmt, затем посторонний чанк LIST с нечётной длиной и data
+    private static byte[] wavHeader(int channels, int rate, int bits) {
+        byte[] header = new byte[12 + 24 + 8 + 4 + 8];
+        putTag(header, 0, "RIFF");
+        putTag(header, 8, "WAVE");
+        putTag(header, 12, "fmt ");
+        putLe(header, 16, 16, 4);
+        putLe(header, 20, 1, 2);
+        putLe(header, 22, channels, 2);
+        putLe(header, 24, rate, 4);
+        putLe(header, 28, rate * channels * bits / 8, 4);
+        putLe(header, 32, channels * bits / 8, 2);
+        putLe(header, 34, bits, 2);
+        putTag(header, 36, "LIST");
+        putLe(header, 40, 3, 4);
+        putTag(header, 48, "data");
+        putLe(header, 52, 0xFFFFFFFFL, 4);
+        return header;
+    }
+
+    @Test
+    public void l16ParametersAndDefaults() {
+        PcmFormat format = PcmFormat.fromL16("audio/L16;rate=48000;channels=2");
+        assertEquals(48000, format.sampleRate);
+        assertEquals(2, format.channels);
+        assertTrue(format.bigEndian);
+        assertEquals(4, format.frameSize());
+        assertEquals(19200, format.msToBytes(100));
+        assertEquals(100, format.bytesToMs(19200));
+
+        PcmFormat mono = PcmFormat.fromL16("audio/l16; rate=\"16000\"");
+        assertEquals(16000, mono.sampleRate);
+        assertEquals(1, mono.channels);
+        assertTrue(PcmPlaybackEngine.handles("audio/L16;rate=8000"));
+        assertTrue(PcmPlaybackEngine.handles("audio/x-wav"));
+        assertFalse(PcmPlaybackEngine.handles("audio/mpeg"));
+    }
+
+    @Test
+    public void wavHeaderIsParsedAcrossChunks() throws IOException {
+        byte[] header = wavHeader(2, 44100, 16);
+        assertNull(PcmFormat.fromWavHeader(header, 40));
+        PcmFormat format = PcmFormat.fromWavHeader(header, header.length);
+        assertEquals(44100, format.sampleRate);
+        assertEquals(2, format.channels);
+        assertEquals(16, format.bitsPerSample);
+        assertFalse(format.bigEndian);
+        assertEquals(header.length, format.headerLength);
+    }
+
+    @Test
+    public void wav24BitIsRejected() {
+        byte[] header = wavHeader(2, 96000, 24);
+        try {
+            PcmFormat.fromWavHeader(header, header.length);
+            fail("24-bit WAV should go to MediaPlayer");
+        } catch (IOException expected) {
+            // PcmPlaybackEngine сообщит об ошибке, и сервис переключится на MediaPlayer
+        }
+    }
+
+    @Test
+    public void swap16LeavesOddTailAlone() {
+        byte[] data = { 1, 2, 3, 4, 5 };
+        PcmFormat.swap16(data, 0, data.length);
+        assertArrayEquals(new byte[] { 2, 1, 4, 3, 5 }, data);
+    }
+}
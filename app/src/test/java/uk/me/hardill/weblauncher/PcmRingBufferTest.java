@@ -0,0 +1,68 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks wrap-around and the producer/consumer hand-off of {@link PcmRingBuffer}.
+ */
+public class PcmRingBufferTest {
+
+    @Test
+    public void writesWrapAroundAndStopWhenFull() {
+        PcmRingBuffer ring = new PcmRingBuffer(10);
+        assertEquals(16, ring.capacity());
+        byte[] data = new byte[20];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+
+        assertEquals(12, ring.write(data, 0, 12));
+        byte[] out = new byte[8];
+        assertEquals(8, ring.read(out, 0, 8));
+        assertEquals(7, out[7]);
+        assertEquals(12, ring.write(data, 8, 12)); // переходит через конец массива
+        assertEquals(0, ring.write(data, 0, 1));
+        assertEquals(4, ring.skip(4));
+        byte[] rest = new byte[16];
+        assertEquals(12, ring.read(rest, 0, 16));
+        for (int i = 0; i < 12; i++) {
+            assertEquals(8 + i, rest[i]);
+        }
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void consumerSeesProducerBytesInOrder() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(256);
+        final int total = 1 << 20;
+        Thread producer = new Thread(() -> {
+            byte[] chunk = new byte[97];
+            int next = 0;
+            while (next < total) {
+                int count = Math.min(chunk.length, total - next);
+                for (int i = 0; i < count; i++) chunk[i] = (byte) (next + i);
+                int offset = 0;
+                while (offset < count) {
+                    int written = ring.write(chunk, offset, count - offset);
+                    if (written == 0) Thread.yield();
+                    offset += written;
+                }
+                next += count;
+            }
+        });
+        producer.start();
+        byte[] chunk = new byte[61];
+        int received = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received < total && System.currentTimeMillis() < deadline) {
+            int read = ring.read(chunk, 0, chunk.length);
+            if (read == 0) Thread.yield();
+            for (int i = 0; i < read; i++) {
+                assertEquals("byte " + (received + i), (byte) (received + i), chunk[i]);
+            }
+            received += read;
+        }
+        producer.join(1000);
+        assertEquals(total, received);
+    }
+}
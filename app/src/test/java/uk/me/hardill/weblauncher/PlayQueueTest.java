@@ -0,0 +1,127 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * DIDL and m3u parsing and Next/Previous/TRACK_NR navigation of {@link PlayQueue}.
+ */
+public class PlayQueueTest {
+    private static final String DIDL =
+        "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"" +
+        " xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">" +
+        "<item id=\"1\" parentID=\"0\"><dc:title>Rock &amp; Roll</dc:title><dc:creator>Band</dc:creator>" +
+        "<upnp:album>Live</upnp:album><upnp:albumArtURI>http://10.0.0.2/art?a=1&amp;b=2</upnp:albumArtURI>" +
+        "<res protocolInfo=\"http-get:*:audio/mpeg:*\" duration=\"0:03:25.500\">http://10.0.0.2/a.mp3</res></item>" +
+        "<itemGroup/>" +
+        "<item id=\"2\" parentID=\"0\"><dc:title>No source</dc:title><res/></item>" +
+        "<item id=\"3\" parentID=\"0\"><dc:title>Quiet</dc:title><upnp:artist>Solo</upnp:artist><dc:creator>Other</dc:creator>" +
+        "<res protocolInfo=\"http-get:*:audio/flac:*\">http://10.0.0.2/b.flac</res></item>" +
+        "</DIDL-Lite>";
+
+    @Test
+    public void didlItemsCarryTheirOwnMetadata() {
+        List<PlayQueue.Item> items = PlayQueue.parseDidlItems(DIDL);
+        assertEquals(2, items.size());
+
+        PlayQueue.Item first = items.get(0);
+        assertEquals("http://10.0.0.2/a.mp3", first.uri);
+        assertEquals("Rock & Roll", first.title);
+        assertEquals("Band", first.artist);
+        assertEquals("Live", first.album);
+        assertEquals(205500, first.durationMs);
+        assertEquals("audio/mpeg", first.contentType);
+        assertEquals("http://10.0.0.2/art?a=1&b=2", first.albumArtUri);
+        assertTrue(first.metaData.startsWith("<DIDL-Lite "));
+        assertTrue(first.metaData.endsWith("</item></DIDL-Lite>"));
+        assertFalse(first.metaData.contains("Quiet"));
+
+        // upnp:artist важнее dc:creator
+        assertEquals("Solo", items.get(1).artist);
+        assertEquals(0, items.get(1).durationMs);
+        assertTrue(PlayQueue.parseDidlItems(null).isEmpty());
+    }
+
+    @Test
+    public void itemsKeepTheNamespacesOfTheSourceDocument() {
+        String didl = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\"\n" +
+            " xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:pv=\"http://www.pv.com/pvns/\">" +
+            "<item id=\"1\"><dc:title>A</dc:title><pv:rating>5</pv:rating><res>http://h/a.mp3</res></item>" +
+            "</DIDL-Lite>";
+        String metaData = PlayQueue.parseDidlItems(didl).get(0).metaData;
+        assertTrue(metaData.startsWith("<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\"\n" +
+            " xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:pv=\"http://www.pv.com/pvns/\""));
+        // Недостающие стандартные объявления дописываются, существующие не дублируются
+        assertTrue(metaData.contains(" xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\""));
+        assertEquals(metaData.indexOf("xmlns:dc="), metaData.lastIndexOf("xmlns:dc="));
+        assertEquals(metaData.indexOf(" xmlns="), metaData.lastIndexOf(" xmlns="));
+        assertTrue(metaData.endsWith("<pv:rating>5</pv:rating><res>http://h/a.mp3</res></item></DIDL-Lite>"));
+    }
+
+    @Test
+    public void m3uEntriesResolveAgainstThePlaylist() {
+        String body = "#EXTM3U\r\n#EXTINF:123,First Song\r\nfirst.mp3\r\n\r\n# comment\n" +
+            "sub dir/second.mp3\nhttp://other.host/third.mp3\n";
+        List<PlayQueue.Item> items = PlayQueue.parseM3u(body, "http://10.0.0.2/lists/all.m3u");
+        assertEquals(3, items.size());
+        assertEquals("http://10.0.0.2/lists/first.mp3", items.get(0).uri);
+        assertEquals("First Song", items.get(0).title);
+        assertEquals("http://10.0.0.2/lists/sub%20dir/second.mp3", items.get(1).uri);
+        assertEquals("", items.get(1).title);
+        assertEquals("http://other.host/third.mp3", items.get(2).uri);
+
+        assertTrue(PlayQueue.isHlsPlaylist("#EXTM3U\n#EXT-X-TARGETDURATION:10\nseg.ts"));
+        assertFalse(PlayQueue.isHlsPlaylist(body));
+    }
+
+    @Test
+    public void navigatesTheQueueAndAppendsTheNextUri() {
+        PlayQueue queue = new PlayQueue();
+        assertNull(queue.current());
+        assertEquals(0, queue.currentTrackNumber());
+
+        queue.replace(Arrays.asList(item("a"), item("b"), item("c")), 5);
+        assertEquals("c", queue.current().uri);
+        assertEquals(3, queue.currentTrackNumber());
+        assertNull(queue.peekNext());
+        assertNull(queue.advance());
+
+        queue.setNext(item("d"));
+        assertEquals("d", queue.peekNext().uri);
+        assertEquals("d", queue.advance().uri);
+        assertEquals(4, queue.size());
+        assertNull(queue.peekNext());
+
+        assertEquals("c", queue.previous().uri);
+        assertEquals("a", queue.jumpTo(1).uri);
+        assertNull(queue.previous());
+        assertNull(queue.jumpTo(0));
+        assertNull(queue.jumpTo(5));
+        assertEquals(1, queue.currentTrackNumber());
+
+        queue.clear();
+        assertNull(queue.current());
+        assertTrue(queue.snapshot().isEmpty());
+    }
+
+    @Test
+    public void streamHeadersFillOnlyMissingFields() {
+        PlayQueue.Item bare = new PlayQueue.Item("http://radio/stream", null);
+        PlayQueue.Item filled = bare.withStreamInfo("audio/aac", " Radio One ");
+        assertEquals("Radio One", filled.title);
+        assertEquals("audio/aac", filled.contentType);
+        assertSame(filled, filled.withStreamInfo("audio/mpeg", "Other"));
+
+        assertEquals(0, PlayQueue.parseDuration("bad"));
+        assertEquals(3723000, PlayQueue.parseDuration("1:02:03"));
+        assertEquals("<a & 'b'>", PlayQueue.unescapeXml("&lt;a &amp; &apos;b&apos;&gt;"));
+    }
+
+    private static PlayQueue.Item item(String uri) {
+        return new PlayQueue.Item(uri, "");
+    }
+}
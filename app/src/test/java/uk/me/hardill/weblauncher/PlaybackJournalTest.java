@@ -0,0 +1,207 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recovery of {@link PlaybackJournal}: wrap-around, CRC and end-marker checks.
+ */
+public class PlaybackJournalTest {
+    private static final String URI = "http://10.0.0.2/a.mp3";
+    private static final String META = "<DIDL-Lite><item><dc:title>Ёлка</dc:title></item></DIDL-Lite>";
+    // magic, длина, номер, тип, crc
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 4;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void emptyJournalHasNothingToResume() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(file);
+        assertNull(open(journal));
+        close(journal);
+        assertEquals(PlaybackJournal.FILE_SIZE, file.length());
+    }
+
+    @Test
+    public void recoversTheLastPositionOfTheLastTrack() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(file);
+        open(journal);
+        journal.recordTrack("http://10.0.0.2/old.mp3", "", "Old", "");
+        journal.recordPosition(9000, "PLAYING");
+        journal.recordTrack(URI, META, "Ёлка", "Band");
+        journal.recordPosition(1000, "PLAYING");
+        journal.recordPosition(2500, "PAUSED_PLAYBACK");
+        close(journal);
+
+        PlaybackJournal.Snapshot snapshot = reopen();
+        assertEquals(URI, snapshot.uri);
+        assertEquals(META, snapshot.metaData);
+        assertEquals("Ёлка", snapshot.title);
+        assertEquals("Band", snapshot.artist);
+        assertEquals(2500, snapshot.positionMs);
+        assertEquals("PAUSED_PLAYBACK", snapshot.transportState);
+    }
+
+    @Test
+    public void wrapRepeatsTheTrackRecordFirst() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(file);
+        open(journal);
+        journal.recordTrack(URI, META, "Ёлка", "Band");
+        // Несколько оборотов кольца
+        for (int i = 1; i <= 5000; i++) {
+            journal.recordPosition(i * 100, "PLAYING");
+        }
+        close(journal);
+
+        PlaybackJournal.Snapshot snapshot = reopen();
+        assertEquals(URI, snapshot.uri);
+        assertEquals(META, snapshot.metaData);
+        assertEquals(500000, snapshot.positionMs);
+
+        // После восстановления запись продолжается с конца, а не поверх новых записей
+        journal = new PlaybackJournal(file);
+        open(journal);
+        journal.recordPosition(600000, "STOPPED");
+        close(journal);
+        snapshot = reopen();
+        assertEquals(600000, snapshot.positionMs);
+        assertEquals("STOPPED", snapshot.transportState);
+    }
+
+    @Test
+    public void oversizedTracksAreShrunkInsteadOfOverflowingTheRing() throws Exception {
+        StringBuilder longText = new StringBuilder();
+        while (longText.length() < PlaybackJournal.FILE_SIZE) {
+            longText.append("0123456789abcdef");
+        }
+        PlaybackJournal journal = new PlaybackJournal(file);
+        open(journal);
+        // Метаданные отбрасываются, URI сохраняется
+        journal.recordTrack(URI + "?sig=" + longText.substring(0, 20000), "", longText.substring(0, 20000), "");
+        journal.recordPosition(1000, "PLAYING");
+        close(journal);
+        PlaybackJournal.Snapshot snapshot = reopen();
+        assertEquals(URI + "?sig=" + longText.substring(0, 20000), snapshot.uri);
+        assertEquals("", snapshot.title);
+        assertEquals(1000, snapshot.positionMs);
+
+        // URI длиннее кольца: предыдущий трек больше не возобновляется, журнал продолжает работать
+        journal = new PlaybackJournal(file);
+        open(journal);
+        journal.recordTrack(URI + "?sig=" + longText, META, "", "");
+        journal.recordPosition(2000, "PLAYING");
+        close(journal);
+        journal = new PlaybackJournal(file);
+        assertNull(open(journal));
+        journal.recordTrack(URI, META, "Ёлка", "Band");
+        journal.recordPosition(3000, "PLAYING");
+        close(journal);
+        assertEquals(3000, reopen().positionMs);
+    }
+
+    @Test
+    public void recordWithBadCrcEndsRecovery() throws Exception {
+        writeTrackAndTwoPositions();
+        // Последний байт третьей записи (строка состояния)
+        corrupt(trackRecordSize() + 2 * positionRecordSize() - 1);
+
+        PlaybackJournal.Snapshot snapshot = reopen();
+        assertEquals(1000, snapshot.positionMs);
+        assertEquals("PLAYING", snapshot.transportState);
+    }
+
+    @Test
+    public void recordWithoutMagicEndsRecovery() throws Exception {
+        writeTrackAndTwoPositions();
+        // Недописанная запись: magic ставится последним
+        corrupt(trackRecordSize() + positionRecordSize());
+
+        assertEquals(1000, reopen().positionMs);
+    }
+
+    @Test
+    public void endMarkerHidesOlderRecordsBehindIt() throws Exception {
+        writeTrackAndTwoPositions();
+        int end = trackRecordSize() + 2 * positionRecordSize();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(end);
+            assertEquals(0, raf.readInt());
+            // Как после оборота кольца: две новые записи, маркер, дальше старая запись
+            raf.seek(end - positionRecordSize());
+            raf.writeInt(0);
+        }
+        assertEquals(1000, reopen().positionMs);
+    }
+
+    private void writeTrackAndTwoPositions() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(file);
+        open(journal);
+        journal.recordTrack(URI, META, "Ёлка", "Band");
+        journal.recordPosition(1000, "PLAYING");
+        journal.recordPosition(2000, "PLAYING");
+        close(journal);
+        assertEquals(2000, reopen().positionMs);
+    }
+
+    private static int trackRecordSize() throws IOException {
+        return HEADER_SIZE + 4 * 4 + URI.getBytes("UTF-8").length + META.getBytes("UTF-8").length +
+            "Ёлка".getBytes("UTF-8").length + "Band".length();
+    }
+
+    private static int positionRecordSize() {
+        return HEADER_SIZE + 8 + 4 + 4 + "PLAYING".length();
+    }
+
+    private void corrupt(int offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0xff);
+        }
+    }
+
+    private PlaybackJournal.Snapshot reopen() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(file);
+        PlaybackJournal.Snapshot snapshot = open(journal);
+        close(journal);
+        assertNotNull(snapshot);
+        return snapshot;
+    }
+
+    private static PlaybackJournal.Snapshot open(PlaybackJournal journal) throws InterruptedException {
+        PlaybackJournal.Snapshot[] result = new PlaybackJournal.Snapshot[1];
+        CountDownLatch recovered = new CountDownLatch(1);
+        journal.open(snapshot -> {
+            result[0] = snapshot;
+            recovered.countDown();
+        });
+        assertTrue(recovered.await(2, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    private static void close(PlaybackJournal journal) throws InterruptedException {
+        journal.close();
+        assertTrue(journal.awaitClosed(2000));
+    }
+}
@@ -0,0 +1,84 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Histogram buckets, rebuffer accounting and bounded per-key stats of {@link PlaybackMetrics}.
+ */
+public class PlaybackMetricsTest {
+
+    @Test
+    public void percentilesAreBucketUpperBoundsCappedByMax() {
+        PlaybackMetrics.Histogram histogram = new PlaybackMetrics.Histogram();
+        assertEquals(0, histogram.percentile(50));
+        for (int i = 0; i < 9; i++) {
+            histogram.record(3); // [2,4)
+        }
+        histogram.record(1000); // [512,1024)
+        histogram.record(-5); // считается как 0
+
+        assertEquals(11, histogram.count());
+        assertEquals(3, histogram.percentile(50));
+        assertEquals(3, histogram.percentile(90));
+        assertEquals(1000, histogram.percentile(99));
+
+        StringBuilder json = new StringBuilder();
+        histogram.appendJson(json);
+        assertTrue(json.toString().startsWith("{\"count\":11,\"mean\":93,\"p50\":3,\"p90\":3,\"p99\":1000,\"max\":1000," +
+            "\"buckets\":[1,0,9,0,0,0,0,0,0,0,1,"));
+    }
+
+    @Test
+    public void bufferingBeforeFirstAudioIsNotARebuffer() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.onTransportUriSet();
+        metrics.onPrepareStarted("http://radio.example:8000/live?x=1", "audio/mpeg");
+        assertTrue(metrics.isAwaitingFirstAudio());
+        metrics.onBufferingStart();
+        metrics.onBufferingEnd();
+        metrics.onPrepared();
+        metrics.onFirstAudio();
+        metrics.onFirstAudio();
+        assertFalse(metrics.isAwaitingFirstAudio());
+        assertEquals(0, metrics.getRebufferCount());
+        assertEquals(1, metrics.uriToPrepared.count());
+        assertEquals(1, metrics.uriToFirstAudio.count());
+
+        metrics.onBufferingStart();
+        metrics.onBufferingStart();
+        metrics.onBufferingEnd();
+        metrics.onBufferingStart();
+        metrics.onPlaybackEnded();
+        assertEquals(2, metrics.getRebufferCount());
+        assertEquals(2, metrics.stallDuration.count());
+    }
+
+    @Test
+    public void errorsAreCountedPerHostAndContentType() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.onPrepareStarted("http://a.example/1.mp3", "audio/mpeg");
+        metrics.onError();
+        metrics.onPrepareStarted("http://a.example/2.mp3", "audio/\"odd\"");
+        metrics.onPrepareStarted("/sdcard/3.flac", null);
+
+        String json = metrics.toJson();
+        assertTrue(json.contains("\"hosts\":{\"a.example\":{\"attempts\":2,\"errors\":1},\"local\":{\"attempts\":1,\"errors\":0}}"));
+        assertTrue(json.contains("\"audio/mpeg\":{\"attempts\":1,\"errors\":1}"));
+        assertTrue(json.contains("\"audio/\\\"odd\\\"\":{\"attempts\":1,\"errors\":0}"));
+        assertTrue(json.contains("\"\":{\"attempts\":1,\"errors\":0}"));
+    }
+
+    @Test
+    public void keysBeyondTheLimitShareOneBucket() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        for (int i = 0; i < 100; i++) {
+            metrics.onPrepareStarted("http://host" + i + ".example/a.mp3", "audio/mpeg");
+        }
+        String json = metrics.toJson();
+        assertTrue(json.contains("\"host63.example\""));
+        assertFalse(json.contains("\"host64.example\""));
+        assertTrue(json.contains("\"other\":{\"attempts\":36,\"errors\":0}"));
+    }
+}
@@ -0,0 +1,90 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how {@link PlaylistResolver} tells stations from track lists, orders
+ * their entries and keeps resolutions in its cache.
+ */
+public class PlaylistResolverTest {
+    private static final String BASE = "http://radio.example/listen/station.pls";
+
+    @Test
+    public void plsWithoutLengthsIsStationWithMirrors() {
+        PlaylistResolver.Resolution resolution = PlaylistResolver.parse(
+            "[playlist]\r\nNumberOfEntries=2\r\nFile2=http://b.example/live\r\nTitle2=Mirror\r\n" +
+            "File1=http://a.example/live\r\nTitle1=Radio One\r\nLength1=-1\r\nVersion=2\r\n", BASE);
+        assertTrue(resolution.station);
+        assertEquals(2, resolution.entries.size());
+        assertEquals("http://a.example/live", resolution.entries.get(0).uri);
+        assertEquals("Radio One", resolution.entries.get(0).title);
+    }
+
+    @Test
+    public void m3uWithDurationsIsTrackList() {
+        PlaylistResolver.Resolution tracks = PlaylistResolver.parse(
+            "#EXTM3U\n#EXTINF:215,Band - One\none.mp3\n#EXTINF:180,Band - Two\ntwo.mp3\n", "http://nas/music/list.m3u");
+        assertFalse(tracks.station);
+        assertEquals("http://nas/music/two.mp3", tracks.entries.get(1).uri);
+
+        PlaylistResolver.Resolution live = PlaylistResolver.parse(
+            "#EXTM3U\n#EXTINF:-1,Radio\nhttp://a/live\n#EXTINF:-1,Radio\nhttp://b/live\n", "http://x/r.m3u");
+        assertTrue(live.station);
+    }
+
+    @Test
+    public void asxRefsAreCollectedInAnyCase() {
+        PlaylistResolver.Resolution resolution = PlaylistResolver.parse(
+            "<ASX version=\"3.0\"><Entry><REF HREF=\"mms://a.example/live\"/></Entry>" +
+            "<entry><ref href='http://b.example/live?x=1&amp;y=2'/></entry></ASX>", BASE);
+        assertTrue(resolution.station);
+        assertEquals("http://a.example/live", resolution.entries.get(0).uri);
+        assertEquals("http://b.example/live?x=1&y=2", resolution.entries.get(1).uri);
+    }
+
+    @Test
+    public void hlsMasterPrefersBestAudioOnlyVariant() {
+        PlaylistResolver.Resolution resolution = PlaylistResolver.parse(
+            "#EXTM3U\n" +
+            "#EXT-X-STREAM-INF:BANDWIDTH=800000,CODECS=\"avc1.4d401e,mp4a.40.2\"\nvideo.m3u8\n" +
+            "#EXT-X-STREAM-INF:AVERAGE-BANDWIDTH=900000,BANDWIDTH=64000,CODECS=\"mp4a.40.5\"\nlow.m3u8\n" +
+            "#EXT-X-STREAM-INF:BANDWIDTH=128000,CODECS=\"mp4a.40.2\"\nhigh.m3u8\n", "http://cdn/radio/master.m3u8");
+        assertTrue(resolution.station);
+        assertEquals("http://cdn/radio/high.m3u8", resolution.entries.get(0).uri);
+        assertEquals("http://cdn/radio/low.m3u8", resolution.entries.get(1).uri);
+        assertEquals("http://cdn/radio/video.m3u8", resolution.entries.get(2).uri);
+
+        assertNull(PlaylistResolver.parse("#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXTINF:10,\nseg1.aac\n", "http://cdn/a.m3u8"));
+    }
+
+    @Test
+    public void cachedResolutionExpiresAndPromotesWorkingEntry() throws Exception {
+        PlaylistResolver resolver = new PlaylistResolver(50);
+        PlaylistResolver.Resolution resolution = PlaylistResolver.parse(
+            "#EXTM3U\n#EXTINF:-1,R\nhttp://a/live\n#EXTINF:-1,R\nhttp://b/live\n", "http://x/r.m3u");
+        resolver.store("http://X/r.m3u", resolution);
+        resolver.promote("http://x/r.m3u", "http://b/live");
+        assertEquals("http://b/live", resolver.cached("http://x:80/r.m3u").entries.get(0).uri);
+
+        Thread.sleep(80);
+        assertNull(resolver.cached("http://x/r.m3u"));
+        resolver.store("http://x/r.m3u", new PlaylistResolver.Resolution(new ArrayList<PlayQueue.Item>(), false));
+        resolver.invalidate("http://x/r.m3u");
+        assertNull(resolver.cached("http://x/r.m3u"));
+        resolver.shutdown();
+    }
+
+    @Test
+    public void playlistsAreDetectedByExtensionAndType() {
+        assertTrue(PlaylistResolver.isPlaylistUri("http://r/Station.PLS?sid=1"));
+        assertTrue(PlaylistResolver.isPlaylistUri("http://r/index.m3u8"));
+        assertFalse(PlaylistResolver.isPlaylistUri("http://r/live.mp3?f=.pls"));
+        assertTrue(PlaylistResolver.isPlaylistContentType("audio/x-scpls"));
+        assertTrue(PlaylistResolver.isPlaylistContentType("application/vnd.apple.mpegURL"));
+        assertFalse(PlaylistResolver.isPlaylistContentType("audio/mpeg"));
+    }
+}
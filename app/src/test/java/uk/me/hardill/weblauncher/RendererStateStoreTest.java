@@ -0,0 +1,122 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batched background writes, round trips and write retries of {@link RendererStateStore}.
+ */
+public class RendererStateStoreTest {
+    private static final long DELAY_MS = 100;
+
+    private File dir;
+    private File file;
+    private RendererStateStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("state", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        file = new File(dir, "renderer_state.bin");
+        store = new RendererStateStore(file, DELAY_MS);
+        store.load(null);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void changesAreBatchedIntoOneDelayedWrite() throws Exception {
+        store.putString("renderer_transport_state", "PLAYING");
+        store.putInt("renderer_volume", 40);
+        store.putInt("renderer_volume", 41);
+        // Ничего не пишется, пока не истекла задержка
+        assertFalse(file.exists());
+
+        waitFor(file);
+        RendererStateStore reloaded = new RendererStateStore(file, DELAY_MS);
+        reloaded.load(null);
+        assertEquals("PLAYING", reloaded.getString("renderer_transport_state", null));
+        assertEquals(41, reloaded.getInt("renderer_volume", 0));
+        reloaded.close();
+
+        // Неизменённое значение не планирует новую запись
+        assertTrue(file.delete());
+        store.putInt("renderer_volume", 41);
+        Thread.sleep(3 * DELAY_MS);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void closeWritesPendingChangesAndLongValuesRoundTrip() {
+        StringBuilder didl = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            didl.append("<Ёлка/>");
+        }
+        store.putString("renderer_current_metadata", didl.toString());
+        store.putString("renderer_current_uri", null);
+        store.close();
+        assertTrue(file.exists());
+
+        RendererStateStore reloaded = new RendererStateStore(file, DELAY_MS);
+        reloaded.load(null);
+        assertEquals(didl.toString(), reloaded.getString("renderer_current_metadata", null));
+        assertEquals("", reloaded.getString("renderer_current_uri", null));
+        assertEquals(7, reloaded.getInt("missing", 7));
+        reloaded.close();
+    }
+
+    @Test
+    public void failedWriteIsRetried() throws Exception {
+        // Непустой каталог на месте временного файла: запись падает, пока его не убрать
+        File blocker = new File(file.getPath() + ".new");
+        assertTrue(blocker.mkdir());
+        File inside = new File(blocker, "x");
+        assertTrue(inside.createNewFile());
+        store.putString("renderer_transport_state", "PAUSED_PLAYBACK");
+        Thread.sleep(3 * DELAY_MS);
+        assertFalse(file.exists());
+
+        assertTrue(inside.delete());
+        assertTrue(blocker.delete());
+        waitFor(file);
+        RendererStateStore reloaded = new RendererStateStore(file, DELAY_MS);
+        reloaded.load(null);
+        assertEquals("PAUSED_PLAYBACK", reloaded.getString("renderer_transport_state", null));
+        reloaded.close();
+    }
+
+    @Test
+    public void unreadableFileStartsEmpty() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 5, 0x7f });
+        }
+        store.load(null);
+        assertNull(store.getString("renderer_current_uri", null));
+    }
+
+    private static void waitFor(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!file.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(file.exists());
+    }
+}
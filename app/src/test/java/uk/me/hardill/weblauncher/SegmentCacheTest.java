@@ -0,0 +1,75 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * LRU eviction of {@link SegmentCache} segments together with their {@code .info} sidecars.
+ */
+public class SegmentCacheTest {
+    private static final String A = "http://10.0.0.2/a.mp3";
+    private static final String B = "http://10.0.0.2/b.mp3";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("segments", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void sidecarsAreCountedAndEvictedWithTheirLastSegment() {
+        SegmentCache cache = new SegmentCache(dir, 2500);
+        cache.load();
+        byte[] data = new byte[1000];
+        cache.writeInfo(A, 2000, "audio/mpeg");
+        long infoSize = new File(dir, SegmentCache.key(A) + ".info").length();
+        assertEquals(infoSize, cache.size());
+        cache.write(A, 0, data, 1000);
+        cache.write(A, 1, data, 1000);
+        // Перезапись сегмента не считается новым сегментом
+        cache.write(A, 1, data, 1000);
+        assertEquals(2000 + infoSize, cache.size());
+
+        cache.write(B, 0, data, 1000);
+        assertFalse(cache.contains(A, 0));
+        assertNotNull(cache.readInfo(A));
+        cache.write(B, 1, data, 1000);
+        assertFalse(cache.contains(A, 1));
+        assertNull(cache.readInfo(A));
+        assertEquals(2000, cache.size());
+    }
+
+    @Test
+    public void loadDropsSidecarsWithoutSegments() {
+        SegmentCache cache = new SegmentCache(dir, 1 << 20);
+        cache.load();
+        cache.writeInfo(A, 2000, "audio/mpeg");
+        cache.writeInfo(B, 1000, "audio/flac");
+        cache.write(B, 0, new byte[1000], 1000);
+
+        SegmentCache reloaded = new SegmentCache(dir, 1 << 20);
+        reloaded.load();
+        assertNull(reloaded.readInfo(A));
+        assertEquals("audio/flac", reloaded.readInfo(B)[1]);
+        assertEquals(1000 + new File(dir, SegmentCache.key(B) + ".info").length(), reloaded.size());
+    }
+}
@@ -0,0 +1,53 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks versioned invalidation and GetPositionInfo splicing in {@link SoapResponseCache}.
+ */
+public class SoapResponseCacheTest {
+
+    @Test
+    public void responseIsDroppedWhenStateChanges() {
+        SoapResponseCache cache = new SoapResponseCache();
+        byte[] response = new byte[] { 1, 2, 3 };
+        cache.put("GetVolume", cache.version(), response);
+        assertSame(response, cache.get("GetVolume"));
+
+        cache.invalidate();
+        assertNull(cache.get("GetVolume"));
+    }
+
+    @Test
+    public void responseBuiltBeforeChangeIsNeverServed() {
+        SoapResponseCache cache = new SoapResponseCache();
+        int version = cache.version();
+        cache.invalidate();
+        cache.put("GetTransportInfo", version, new byte[] { 1 });
+        assertNull(cache.get("GetTransportInfo"));
+    }
+
+    @Test
+    public void spliceWritesBothTimesAndUtf8ContentLength() throws Exception {
+        SoapResponseCache.PositionTemplate template =
+            new SoapResponseCache.PositionTemplate("<TrackMetaData>Ёлка</TrackMetaData><RelTime>", "</AbsTime>");
+        String response = new String(SoapResponseCache.splice(template, 3725), "UTF-8");
+
+        String body = "<TrackMetaData>Ёлка</TrackMetaData><RelTime>01:02:05</RelTime><AbsTime>01:02:05</AbsTime>";
+        assertTrue(response.endsWith("\r\n\r\n" + body));
+        assertTrue(response.contains("Content-Length: " + body.getBytes("UTF-8").length + "\r\n"));
+        // Заголовки те же, что у свежего ответа
+        assertEquals(UpnpSoap.httpResponse(200, UpnpSoap.CONTENT_TYPE, body), response);
+    }
+
+    @Test
+    public void escapedMetaDataIsReusedOnlyForSameInput() {
+        SoapResponseCache cache = new SoapResponseCache();
+        cache.putEscapedMetaData("http://a/1.mp3", "<DIDL-Lite/>", "&lt;DIDL-Lite/&gt;");
+        assertEquals("&lt;DIDL-Lite/&gt;", cache.getEscapedMetaData("http://a/1.mp3", "<DIDL-Lite/>"));
+        assertNull(cache.getEscapedMetaData("http://a/1.mp3", "<DIDL-Lite></DIDL-Lite>"));
+        assertNull(cache.getEscapedMetaData("http://a/2.mp3", "<DIDL-Lite/>"));
+    }
+}
@@ -0,0 +1,175 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Event framing, deduplication and per-client bounds of {@link StatusStream}.
+ */
+public class StatusStreamTest {
+    private String status = "{\"transportState\":\"STOPPED\"}";
+    private StatusStream stream;
+
+    @Before
+    public void setUp() {
+        stream = new StatusStream(() -> status);
+    }
+
+    @After
+    public void tearDown() {
+        stream.shutdown();
+    }
+
+    @Test
+    public void newClientGetsHeadersAndCurrentStatus() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertNotNull(stream.add(out, () -> { }));
+        String written = out.toString("UTF-8");
+        assertTrue(written.startsWith("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream"));
+        assertTrue(written.endsWith("\r\n\r\nevent: status\ndata: {\"transportState\":\"STOPPED\"}\n\n"));
+        assertEquals(1, stream.clientCount());
+    }
+
+    @Test
+    public void identicalSnapshotsAreSentOnce() throws Exception {
+        SyncOutput out = new SyncOutput();
+        stream.add(out, () -> { });
+        int initial = out.size();
+
+        status = "{\"transportState\":\"PLAYING\"}";
+        stream.publish();
+        stream.publish();
+        String event = "event: status\ndata: {\"transportState\":\"PLAYING\"}\n\n";
+        waitFor(out, initial + event.length());
+        Thread.sleep(50);
+        assertEquals(initial + event.length(), out.size());
+    }
+
+    @Test
+    public void slowClientIsBoundedAndDoesNotDelayOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingOutput slow = new BlockingOutput(release);
+        SyncOutput fast = new SyncOutput();
+        StatusStream.Client slowClient = stream.add(slow, () -> { });
+        stream.add(fast, () -> { });
+        slow.armed = true;
+        int initial = fast.size();
+
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 1000; i++) padding.append('x');
+        for (int i = 0; i < 200; i++) {
+            status = "{\"n\":" + i + ",\"pad\":\"" + padding + "\"}";
+            stream.publish();
+        }
+        // Быстрый клиент мог пропустить промежуточные снимки, но последний получает всегда
+        String last = "event: status\ndata: " + status + "\n\n";
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!fast.text().endsWith(last) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(fast.text().endsWith(last));
+        assertTrue(fast.size() > initial);
+        assertTrue(slowClient.pendingBytes() <= StatusStream.MAX_PENDING_BYTES);
+        assertTrue(slowClient.dropped() > 0);
+
+        release.countDown();
+        assertEquals(2, stream.clientCount());
+    }
+
+    @Test
+    public void failedWriteDropsTheClient() throws Exception {
+        CountDownLatch closed = new CountDownLatch(1);
+        OutputStream broken = new OutputStream() {
+            boolean open = true;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (!open) throw new IOException("reset");
+            }
+
+            @Override
+            public void flush() {
+                open = false;
+            }
+        };
+        stream.add(broken, closed::countDown);
+        status = "{\"transportState\":\"PLAYING\"}";
+        stream.publish();
+        assertTrue(closed.await(2, TimeUnit.SECONDS));
+        assertEquals(0, stream.clientCount());
+    }
+
+    @Test
+    public void refusesClientsBeyondTheLimit() throws Exception {
+        Closeable none = () -> { };
+        for (int i = 0; i < StatusStream.MAX_CLIENTS; i++) {
+            assertNotNull(stream.add(new ByteArrayOutputStream(), none));
+        }
+        assertNull(stream.add(new ByteArrayOutputStream(), none));
+    }
+
+    private static void waitFor(SyncOutput out, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (out.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(size, out.size());
+    }
+
+    private static class SyncOutput extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        synchronized int size() {
+            return bytes.size();
+        }
+
+        synchronized String text() throws IOException {
+            return bytes.toString("UTF-8");
+        }
+    }
+
+    // Клиент, который перестал читать: запись висит до release
+    private static class BlockingOutput extends OutputStream {
+        private final CountDownLatch release;
+        volatile boolean armed = false;
+
+        BlockingOutput(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!armed) return;
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
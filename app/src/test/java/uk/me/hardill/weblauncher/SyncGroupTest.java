@@ -0,0 +1,266 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs three {@link SyncGroup} members over loopback with skewed clocks and checks
+ * that they elect one leader, converge on its clock and schedule playback for the
+ * same instant.
+ */
+public class SyncGroupTest {
+    private static final long TICK_MS = 50;
+    private static final long[] SKEWS_MS = { 0, 5000, -3000 };
+    private static final String[] IDS = { "b-member", "a-member", "c-member" };
+
+    private final List<SyncGroup> groups = new ArrayList<>();
+    private final long[] playStartTrueMs = new long[IDS.length];
+    private final String[] playUris = new String[IDS.length];
+    private final long[] pausePositions = new long[IDS.length];
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private ServerSocket server;
+
+    @After
+    public void tearDown() throws Exception {
+        for (SyncGroup group : groups) {
+            group.stop();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void startMembers() throws Exception {
+        startMembers(-1);
+    }
+
+    // Участник late создаётся, но не запускается: всё, что ему шлют, копится в сокете
+    private void startMembers(int late) throws Exception {
+        List<SocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < IDS.length; i++) {
+            DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            sockets.add(socket);
+            addresses.add(socket.getLocalSocketAddress());
+        }
+        for (int i = 0; i < IDS.length; i++) {
+            final long skew = SKEWS_MS[i];
+            final int index = i;
+            SyncGroup group = new SyncGroup("kitchen and hall", IDS[i], sockets.get(i), addresses,
+                    () -> System.nanoTime() / 1000000L + skew, TICK_MS);
+            group.setListener(new SyncGroup.Listener() {
+                @Override
+                public void onPlay(String uri, long positionMs, long startAtLocalMs) {
+                    playStartTrueMs[index] = startAtLocalMs - skew;
+                    playUris[index] = uri;
+                }
+
+                @Override
+                public void onPause(long positionMs) {
+                    pausePositions[index] = positionMs;
+                }
+
+                @Override
+                public void onStop() {
+                }
+            });
+            group.setHttpPort(8000 + i);
+            groups.add(group);
+            if (i != late) {
+                group.start();
+            }
+        }
+    }
+
+    // Поздний участник начинает с пустым сокетом, как если бы команды до него не дошли
+    private void startLate(int index) throws Exception {
+        DatagramSocket socket = sockets.get(index);
+        socket.setSoTimeout(1);
+        byte[] buffer = new byte[SyncGroup.MAX_PACKET];
+        try {
+            while (true) {
+                socket.receive(new DatagramPacket(buffer, buffer.length));
+            }
+        } catch (SocketTimeoutException e) {
+            // пусто
+        }
+        socket.setSoTimeout(0);
+        groups.get(index).start();
+    }
+
+    private boolean allSynced() {
+        for (SyncGroup group : groups) {
+            if (!group.isSynced() || group.memberCount() != IDS.length) return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void membersAgreeOnLeaderAndClock() throws Exception {
+        startMembers();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!allSynced() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("group did not converge", allSynced());
+        for (SyncGroup group : groups) {
+            assertEquals("a-member", group.leaderId());
+        }
+        long leaderTime = groups.get(1).groupTimeMs();
+        for (SyncGroup group : groups) {
+            assertEquals(leaderTime, group.groupTimeMs(), 25);
+        }
+    }
+
+    private void awaitSynced() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!allSynced() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("group did not converge", allSynced());
+    }
+
+    // Вместо HTTP-сервера сервиса: отвечает на GET SESSION_PATH?seq=N от имени участника
+    private void serveSessionUris(SyncGroup owner) throws Exception {
+        server = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket client = server.accept()) {
+                    InputStream in = client.getInputStream();
+                    StringBuilder line = new StringBuilder();
+                    int c;
+                    while ((c = in.read()) != -1 && c != '\n') {
+                        line.append((char) c);
+                    }
+                    String seq = line.toString().split(" ")[1].split("=")[1];
+                    String uri = owner.sessionUriFor(Long.parseLong(seq));
+                    byte[] body = (uri != null ? uri : "").getBytes("UTF-8");
+                    OutputStream out = client.getOutputStream();
+                    out.write(((uri != null ? "HTTP/1.1 200 OK" : "HTTP/1.1 404 Not Found") +
+                        "\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                    out.write(body);
+                } catch (Exception e) {
+                    // сервер закрыт
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        owner.setHttpPort(server.getLocalPort());
+    }
+
+    @Test
+    public void uriTooLongForAPacketIsFetchedOverHttp() throws Exception {
+        startMembers();
+        awaitSynced();
+        SyncGroup owner = groups.get(2);
+        StringBuilder uri = new StringBuilder("http://host/track.mp3?token=");
+        while (uri.length() <= SyncGroup.MAX_PACKET) {
+            uri.append("0123456789abcdef");
+        }
+        // Без порта адрес отдать некому — команда не уходит
+        owner.setHttpPort(0);
+        assertFalse(owner.schedulePlay(uri.toString(), 0, 500));
+        assertNull(owner.sessionUri());
+
+        serveSessionUris(owner);
+        Thread.sleep(TICK_MS * 3); // HELLO с новым портом
+        assertTrue(owner.schedulePlay(uri.toString(), 0, 500));
+        long deadline = System.currentTimeMillis() + 3000;
+        while ((playUris[0] == null || playUris[1] == null) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < IDS.length; i++) {
+            assertEquals(uri.toString(), playUris[i]);
+        }
+        assertEquals(playStartTrueMs[2], playStartTrueMs[0], 25);
+    }
+
+    @Test
+    public void scheduledPlayStartsTogether() throws Exception {
+        startMembers();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!allSynced() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        groups.get(2).schedulePlay("http://host/track.mp3", 1500, 500);
+        deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            if (playStartTrueMs[0] != 0 && playStartTrueMs[1] != 0 && playStartTrueMs[2] != 0) break;
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < IDS.length; i++) {
+            assertTrue("member " + i + " missed the command", playStartTrueMs[i] != 0);
+            assertEquals(playStartTrueMs[2], playStartTrueMs[i], 25);
+            assertEquals("http://host/track.mp3", groups.get(i).sessionUri());
+        }
+        // Остальные могут брать поток у владельца сессии
+        assertEquals("http://127.0.0.1:8002", groups.get(0).sessionOwnerHttpBase());
+        assertNull(groups.get(2).sessionOwnerHttpBase());
+    }
+
+    @Test
+    public void lostOrMissedPlayIsRepeatedUntilEveryMemberHasIt() throws Exception {
+        startMembers(0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(groups.get(1).isSynced() && groups.get(2).isSynced() && groups.get(2).memberCount() == 2) &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        groups.get(2).schedulePlay("http://host/track.mp3", 1500, 500);
+        Thread.sleep(TICK_MS * 2);
+        assertNull(playUris[0]);
+
+        startLate(0);
+        deadline = System.currentTimeMillis() + 3000;
+        while (playUris[0] == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("http://host/track.mp3", playUris[0]);
+        // Старт пересчитан на часы лидера: в тот же момент, что и у остальных
+        assertEquals(playStartTrueMs[2], playStartTrueMs[0], 25);
+
+        // Повтор с тем же номером уже применившие отбрасывают
+        playUris[1] = null;
+        Thread.sleep(TICK_MS * 3);
+        assertNull(playUris[1]);
+    }
+
+    @Test
+    public void pauseReplacesThePlayBeingRepeated() throws Exception {
+        startMembers(0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(groups.get(1).isSynced() && groups.get(2).isSynced() && groups.get(2).memberCount() == 2) &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        groups.get(2).schedulePlay("http://host/track.mp3", 0, 100);
+        groups.get(1).pause(4200);
+        Thread.sleep(TICK_MS * 2);
+        assertEquals(4200, pausePositions[2]);
+
+        startLate(0);
+        deadline = System.currentTimeMillis() + 3000;
+        while (pausePositions[0] == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4200, pausePositions[0]);
+        Thread.sleep(TICK_MS * 4);
+        // Устаревший PLAY владелец больше не повторяет
+        assertNull(playUris[0]);
+    }
+}
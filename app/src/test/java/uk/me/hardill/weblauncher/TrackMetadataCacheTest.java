@@ -0,0 +1,70 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks URI normalization, LRU eviction and metadata resolution in {@link TrackMetadataCache}.
+ */
+public class TrackMetadataCacheTest {
+
+    private static final String DIDL = "<DIDL-Lite><item id=\"1\"><dc:title>Song &amp; Dance</dc:title>" +
+        "<upnp:artist>Band</upnp:artist><upnp:album>Live</upnp:album>" +
+        "<res protocolInfo=\"http-get:*:audio/flac:*\" duration=\"0:03:25.500\">http://host/a.flac</res>" +
+        "</item></DIDL-Lite>";
+
+    @Test
+    public void itemWithoutDidlResolvesToCachedEntry() {
+        TrackMetadataCache cache = new TrackMetadataCache();
+        PlayQueue.Item parsed = cache.remember(new PlayQueue.Item("http://Host/a.flac", DIDL));
+
+        PlayQueue.Item resolved = cache.remember(new PlayQueue.Item("HTTP://host:80/a.flac#t=10", ""));
+        assertSame(parsed, resolved);
+        assertEquals("Song & Dance", resolved.title);
+        assertEquals("Band", resolved.artist);
+        assertEquals("Live", resolved.album);
+        assertEquals(205500, resolved.durationMs);
+        assertEquals("audio/flac", resolved.contentType);
+    }
+
+    @Test
+    public void sameDidlIsNotStoredTwice() {
+        TrackMetadataCache cache = new TrackMetadataCache();
+        PlayQueue.Item first = cache.remember(new PlayQueue.Item("http://host/a.flac", DIDL));
+        assertSame(first, cache.remember(new PlayQueue.Item("http://host/a.flac", DIDL)));
+    }
+
+    @Test
+    public void streamHeadersOnlyFillMissingFields() {
+        TrackMetadataCache cache = new TrackMetadataCache();
+        PlayQueue.Item station = cache.rememberStreamInfo("http://radio/live", "audio/aacp", "Radio One");
+        assertEquals("Radio One", station.title);
+        assertEquals("audio/aacp", station.contentType);
+
+        cache.remember(new PlayQueue.Item("http://host/a.flac", DIDL));
+        PlayQueue.Item track = cache.rememberStreamInfo("http://host/a.flac", "application/octet-stream", "Other");
+        assertEquals("Song & Dance", track.title);
+        assertEquals("audio/flac", track.contentType);
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        TrackMetadataCache cache = new TrackMetadataCache();
+        cache.remember(new PlayQueue.Item("http://host/0", DIDL));
+        for (int i = 1; i <= TrackMetadataCache.MAX_ENTRIES; i++) {
+            cache.get("http://host/0");
+            cache.remember(new PlayQueue.Item("http://host/" + i, DIDL));
+        }
+        assertEquals(TrackMetadataCache.MAX_ENTRIES, cache.size());
+        assertNotNull(cache.get("http://host/0"));
+        assertNull(cache.get("http://host/1"));
+    }
+
+    @Test
+    public void normalizeKeepsPathAndQueryCase() {
+        assertEquals("http://host/Path/A.mp3?Token=X",
+            TrackMetadataCache.normalize(" HTTP://HOST:80/Path/A.mp3?Token=X#frag "));
+        assertEquals("http://host/?q=1", TrackMetadataCache.normalize("http://host?q=1"));
+    }
+}
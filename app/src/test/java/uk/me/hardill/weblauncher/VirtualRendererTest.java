@@ -0,0 +1,245 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * SOAP -> state -> LastChange scenarios, owner hooks and path routing of
+ * {@link VirtualRenderer}, run against {@link FakePlaybackEngine} on virtual time.
+ */
+public class VirtualRendererTest {
+    private FakePlaybackEngine.ManualScheduler scheduler;
+    private FakePlaybackEngine engine;
+    private VirtualRenderer renderer;
+    private AvTransport transport;
+    private final List<String> states = new ArrayList<>();
+    private final List<String> transportEvents = new ArrayList<>();
+    private final List<String> volumeEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new FakePlaybackEngine.ManualScheduler();
+        engine = new FakePlaybackEngine(scheduler).setPrepareDelay(100).setTrackDuration(5000);
+        renderer = new VirtualRenderer(1, "uuid-1", new VirtualRenderer.Config("Kitchen", "bluetooth"), engine);
+        renderer.setListener((r, service, event) -> {
+            if (VirtualRenderer.AV_TRANSPORT.equals(service)) {
+                states.add(r.transport.getTransportState());
+                transportEvents.add(event);
+            } else {
+                volumeEvents.add(event);
+            }
+        });
+        transport = renderer.transport;
+    }
+
+    // Команды выполняются сразу, как если бы handler уже дошёл до них
+    private String soap(String action, String body) {
+        return transport.handleSoap("\"urn:schemas-upnp-org:service:AVTransport:1#" + action + "\"",
+            "<?xml version=\"1.0\"?><s:Envelope><s:Body><u:" + action + ">" + body +
+            "</u:" + action + "></s:Body></s:Envelope>", Runnable::run);
+    }
+
+    private String lastTransportEvent() {
+        return transportEvents.get(transportEvents.size() - 1);
+    }
+
+    @Test
+    public void soapCommandsDriveStateAndLastChange() {
+        String response = soap("SetAVTransportURI", "<InstanceID>0</InstanceID>" +
+            "<CurrentURI>http://example.com/a.mp3?x=1&amp;y=2</CurrentURI>" +
+            "<CurrentURIMetaData>&lt;DIDL-Lite&gt;&lt;/DIDL-Lite&gt;</CurrentURIMetaData>");
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\nContent-Type: " + UpnpSoap.CONTENT_TYPE));
+        assertTrue(response.contains("<u:SetAVTransportURIResponse"));
+        assertEquals("http://example.com/a.mp3?x=1&y=2", transport.getCurrentUri());
+        assertEquals("<DIDL-Lite></DIDL-Lite>", transport.getCurrentMetaData());
+        // В LastChange событие вложено, поэтому экранировано дважды
+        assertTrue(lastTransportEvent().contains("&lt;TransportState val=&quot;STOPPED&quot;/&gt;"));
+        assertTrue(lastTransportEvent().contains("CurrentTrackURI val=&quot;http://example.com/a.mp3?x=1&amp;amp;y=2&quot;"));
+
+        soap("Play", "<InstanceID>0</InstanceID><Speed>1</Speed>");
+        assertEquals("TRANSITIONING", transport.getTransportState());
+        scheduler.advance(100);
+        assertTrue(lastTransportEvent().contains("TransportState val=&quot;PLAYING&quot;"));
+        assertTrue(soap("GetTransportInfo", "<InstanceID>0</InstanceID>")
+            .contains("<CurrentTransportState>PLAYING</CurrentTransportState>"));
+
+        scheduler.advance(2000);
+        String position = soap("GetPositionInfo", "<InstanceID>0</InstanceID>");
+        assertTrue(position.contains("<RelTime>00:00:02</RelTime>"));
+        assertTrue(position.contains("<TrackDuration>00:00:05</TrackDuration>"));
+
+        soap("Pause", "<InstanceID>0</InstanceID>");
+        assertTrue(lastTransportEvent().contains("TransportState val=&quot;PAUSED_PLAYBACK&quot;"));
+        soap("Stop", "<InstanceID>0</InstanceID>");
+        assertTrue(lastTransportEvent().contains("TransportState val=&quot;STOPPED&quot;"));
+        assertEquals("[STOPPED, TRANSITIONING, PLAYING, PAUSED_PLAYBACK, STOPPED]", states.toString());
+        assertTrue(soap("GetMediaInfo", "<InstanceID>0</InstanceID>").contains("<NrTracks>1</NrTracks>"));
+    }
+
+    @Test
+    public void soapSeekAndVolume() {
+        List<String> hooks = new ArrayList<>();
+        renderer.setBeforePlay(() -> hooks.add(transport.getTransportState()));
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/a.mp3</CurrentURI>");
+        soap("Play", "");
+        assertEquals("[STOPPED]", hooks.toString());
+        scheduler.advance(100);
+
+        assertTrue(soap("Seek", "<Unit>REL_TIME</Unit><Target>00:00:03</Target>").contains("<u:SeekResponse"));
+        assertEquals(3000, transport.getPositionMs());
+        assertTrue(soap("Seek", "<Unit>TRACK_NR</Unit><Target>2</Target>").contains("<errorCode>711</errorCode>"));
+        assertTrue(soap("Seek", "<Unit>TRACK_NR</Unit><Target>1</Target>").contains("<u:SeekResponse"));
+
+        assertTrue(soap("SetVolume", "<Channel>Master</Channel><DesiredVolume>30</DesiredVolume>")
+            .contains("urn:schemas-upnp-org:service:RenderingControl:1"));
+        assertEquals(1, volumeEvents.size());
+        assertTrue(volumeEvents.get(0).contains("Volume channel=&quot;Master&quot; val=&quot;30&quot;"));
+        assertTrue(soap("GetVolume", "").contains("<CurrentVolume>30</CurrentVolume>"));
+        assertTrue(soap("SetAVTransportURI", "").contains("<errorCode>402</errorCode>"));
+        assertTrue(soap("SetNextAVTransportURI", "").contains("<u:SetNextAVTransportURIResponse"));
+    }
+
+    @Test
+    public void setNextPlaysAfterTheCurrentTrack() {
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/a.mp3</CurrentURI>");
+        soap("SetNextAVTransportURI", "<NextURI>http://example.com/b.mp3</NextURI><NextURIMetaData></NextURIMetaData>");
+        assertTrue(lastTransportEvent().contains("NextAVTransportURI val=&quot;http://example.com/b.mp3&quot;"));
+        soap("Play", "");
+        scheduler.advance(100 + 5000 + 100);
+        assertEquals("PLAYING", transport.getTransportState());
+        assertEquals("http://example.com/b.mp3", engine.getDataSource());
+        assertTrue(soap("Next", "").contains("<errorCode>701</errorCode>"));
+        assertTrue(soap("Previous", "").contains("<u:PreviousResponse"));
+        assertEquals("http://example.com/a.mp3", transport.getCurrentUri());
+    }
+
+    @Test
+    public void opensTheMappedSourceAndKeepsItsOwnMetrics() {
+        renderer.setSourceMapper(uri -> "http://127.0.0.1:8080/proxy?u=" + uri);
+        FakePlaybackEngine otherEngine = new FakePlaybackEngine(scheduler).setPrepareDelay(100).setTrackDuration(5000);
+        VirtualRenderer other = new VirtualRenderer(2, "uuid-2", new VirtualRenderer.Config("Lobby", ""), otherEngine);
+        soap("SetAVTransportURI", "<CurrentURI>http://example.com/a.mp3</CurrentURI>");
+        soap("Play", "");
+        scheduler.advance(100);
+        assertEquals("http://127.0.0.1:8080/proxy?u=http://example.com/a.mp3", engine.getDataSource());
+        // Адрес для контроллера не меняется
+        assertEquals("http://example.com/a.mp3", transport.getCurrentUri());
+        assertEquals(1, transport.metrics().prepareDuration.count());
+        assertEquals(0, other.transport.metrics().prepareDuration.count());
+        assertEquals("STOPPED", other.transport.getTransportState());
+    }
+
+    @Test
+    public void resumesWhatTheJournalRecorded() {
+        PlaybackJournal.Snapshot snapshot = new PlaybackJournal.Snapshot("http://example.com/a.mp3", "", "A", "",
+            2000, "PLAYING");
+        renderer.resume(snapshot);
+        scheduler.advance(100);
+        assertEquals("PLAYING", transport.getTransportState());
+        assertEquals(2000, transport.getPositionMs());
+
+        // Контроллер успел выбрать другой трек — журнал не вмешивается
+        transport.setUri("http://example.com/b.mp3", "");
+        renderer.resume(snapshot);
+        assertEquals("http://example.com/b.mp3", transport.getCurrentUri());
+    }
+
+    @Test
+    public void playsPausesAndCompletes() {
+        transport.setUri("http://example.com/a.mp3", null);
+        transport.play();
+        assertEquals("TRANSITIONING", transport.getTransportState());
+        assertEquals("http://example.com/a.mp3", engine.getDataSource());
+
+        scheduler.advance(100);
+        assertEquals("PLAYING", transport.getTransportState());
+        scheduler.advance(1000);
+        transport.pause();
+        assertEquals("PAUSED_PLAYBACK", transport.getTransportState());
+        assertEquals(1000, transport.getPositionMs());
+
+        transport.play();
+        scheduler.advance(4000);
+        assertEquals("STOPPED", transport.getTransportState());
+        assertEquals("[STOPPED, TRANSITIONING, PLAYING, PAUSED_PLAYBACK, PLAYING, STOPPED]", states.toString());
+    }
+
+    @Test
+    public void stopWhilePreparingCancelsPlayback() {
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.play();
+        transport.stop();
+        scheduler.advance(500);
+        assertEquals("STOPPED", transport.getTransportState());
+        assertFalse(engine.isPlaying());
+    }
+
+    @Test
+    public void seekBeforePrepareIsAppliedOnStart() {
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.seek(2000);
+        transport.play();
+        scheduler.advance(100);
+        assertEquals(2000, transport.getPositionMs());
+    }
+
+    @Test
+    public void prepareErrorReturnsToStopped() {
+        engine.setPrepareError(1);
+        transport.setUri("http://example.com/a.mp3", "");
+        transport.play();
+        scheduler.advance(100);
+        assertEquals("STOPPED", transport.getTransportState());
+        assertTrue(lastTransportEvent().contains("TransportStatus val=&quot;ERROR_OCCURRED&quot;"));
+
+        transport.play();
+        scheduler.advance(100);
+        assertEquals("PLAYING", transport.getTransportState());
+    }
+
+    @Test
+    public void volumeIsClamped() {
+        transport.setVolume(150);
+        assertEquals(100, transport.getVolume());
+        assertEquals(1.0f, engine.getVolume(), 0.0001f);
+        transport.setVolume(-5);
+        assertEquals(0, transport.getVolume());
+    }
+
+    @Test
+    public void parsesConfig() {
+        List<VirtualRenderer.Config> configs = VirtualRenderer.parseConfig("TV@hdmi; Kitchen @ bluetooth\nLobby\n;@usb");
+        assertEquals(3, configs.size());
+        assertEquals("TV", configs.get(0).name);
+        assertEquals("hdmi", configs.get(0).output);
+        assertEquals("Kitchen", configs.get(1).name);
+        assertEquals("bluetooth", configs.get(1).output);
+        assertEquals("Lobby", configs.get(2).name);
+        assertEquals("", configs.get(2).output);
+        assertTrue(VirtualRenderer.parseConfig("").isEmpty());
+        assertTrue(VirtualRenderer.parseConfig(null).isEmpty());
+    }
+
+    @Test
+    public void routesByPath() {
+        assertEquals(2, VirtualRenderer.indexFromPath("/r/2/AVTransport/control"));
+        assertEquals(-1, VirtualRenderer.indexFromPath("/AVTransport/control"));
+        assertEquals(-1, VirtualRenderer.indexFromPath("/r/x/description.xml"));
+        assertEquals(-1, VirtualRenderer.indexFromPath("/r/2"));
+        assertEquals("/AVTransport/control", VirtualRenderer.localPath("/r/2/AVTransport/control"));
+        assertEquals("/r/3", new VirtualRenderer(3, "u", new VirtualRenderer.Config("A", ""), engine).pathPrefix());
+    }
+
+    @Test
+    public void derivedUuidsAreStableAndDistinct() {
+        String base = "0b5c7b3e-2a4f-4c5e-9b1a-1f2d3c4b5a69";
+        assertEquals(VirtualRenderer.deriveUuid(base, 1), VirtualRenderer.deriveUuid(base, 1));
+        assertFalse(VirtualRenderer.deriveUuid(base, 1).equals(VirtualRenderer.deriveUuid(base, 2)));
+        assertFalse(base.equals(VirtualRenderer.deriveUuid(base, 1)));
+    }
+}
@@ -0,0 +1,133 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmarks for {@link XmlWriter} against the previous approach of
+ * concatenating strings and escaping with chained {@code String.replace()}.
+ * Results are printed; the only assertions are that both produce the same text.
+ * Skipped in the normal test run; run with {@code ./gradlew test -Pbenchmark}.
+ */
+public class XmlWriterBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private static final String URI = "http://192.168.1.10:8200/MediaItems/1234.mp3?format=mp3&bitrate=320";
+    private static final String DIDL = "<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL/\" " +
+        "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">" +
+        "<item id=\"64$1$2\" parentID=\"64$1\" restricted=\"1\"><dc:title>Rock &amp; Roll Ain't Noise Pollution</dc:title>" +
+        "<upnp:artist>AC/DC</upnp:artist><upnp:album>Back in Black</upnp:album>" +
+        "<upnp:albumArtURI>http://192.168.1.10:8200/AlbumArt/12-1234.jpg</upnp:albumArtURI>" +
+        "<res protocolInfo=\"http-get:*:audio/mpeg:*\" duration=\"0:04:15.000\">" +
+        "http://192.168.1.10:8200/MediaItems/1234.mp3?format=mp3&amp;bitrate=320</res>" +
+        "<upnp:class>object.item.audioItem.musicTrack</upnp:class></item></DIDL-Lite>";
+
+    private interface Body {
+        String run();
+    }
+
+    private static String oldEscape(String s) {
+        return s.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;")
+                .replace("'", "&apos;");
+    }
+
+    private static String oldLastChange() {
+        String event = "<Event xmlns=\"urn:schemas-upnp-org:metadata-1-0/AVT/\">" +
+                       "<InstanceID val=\"0\">" +
+                       "<TransportState val=\"PLAYING\"/>" +
+                       "<TransportStatus val=\"OK\"/>" +
+                       "<CurrentTrackURI val=\"" + oldEscape(URI) + "\"/>" +
+                       "<NumberOfTracks val=\"12\"/>" +
+                       "<CurrentTrack val=\"3\"/>" +
+                       "</InstanceID>" +
+                       "</Event>";
+        return "<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">" +
+               "<e:property><LastChange>" + oldEscape(event) + "</LastChange></e:property>" +
+               "</e:propertyset>";
+    }
+
+    private static String newLastChange() {
+        XmlWriter xml = XmlWriter.obtain();
+        xml.start("e:propertyset").attr("xmlns:e", "urn:schemas-upnp-org:event-1-0");
+        xml.start("e:property").start("LastChange").beginNested();
+        xml.start("Event").attr("xmlns", "urn:schemas-upnp-org:metadata-1-0/AVT/");
+        xml.start("InstanceID").attr("val", "0");
+        xml.start("TransportState").attr("val", "PLAYING").end();
+        xml.start("TransportStatus").attr("val", "OK").end();
+        xml.start("CurrentTrackURI").attr("val", URI).end();
+        xml.start("NumberOfTracks").attr("val", "12").end();
+        xml.start("CurrentTrack").attr("val", "3").end();
+        xml.end().end();
+        xml.endNested().end().end().end();
+        return xml.finish();
+    }
+
+    private static String oldPositionInfo() {
+        return "<u:GetPositionInfoResponse xmlns:u=\"urn:schemas-upnp-org:service:AVTransport:1\">" +
+               "<Track>3</Track>" +
+               "<TrackDuration>00:04:15</TrackDuration>" +
+               "<TrackMetaData>" + oldEscape(DIDL) + "</TrackMetaData>" +
+               "<TrackURI>" + oldEscape(URI) + "</TrackURI>" +
+               "<RelTime>00:01:02</RelTime>" +
+               "</u:GetPositionInfoResponse>";
+    }
+
+    private static String newPositionInfo() {
+        XmlWriter xml = XmlWriter.obtain();
+        xml.start("u:GetPositionInfoResponse").attr("xmlns:u", "urn:schemas-upnp-org:service:AVTransport:1")
+           .element("Track", 3)
+           .element("TrackDuration", "00:04:15")
+           .element("TrackMetaData", DIDL)
+           .element("TrackURI", URI)
+           .element("RelTime", "00:01:02")
+           .end();
+        return xml.finish();
+    }
+
+    @Before
+    public void onlyWhenAsked() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    private static long measure(String name, Body body) {
+        for (int i = 0; i < WARMUP; i++) {
+            body.run();
+        }
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += body.run().length();
+        }
+        long nsPerOp = (System.nanoTime() - start) / ITERATIONS;
+        System.out.println(String.format("%-28s %6d ns/op (%d)", name, nsPerOp, sink % 10));
+        return nsPerOp;
+    }
+
+    @Test
+    public void escapeDidl() {
+        assertEquals(oldEscape(DIDL), XmlWriter.escape(DIDL));
+        measure("escape/replace-chain", () -> oldEscape(DIDL));
+        measure("escape/XmlWriter", () -> XmlWriter.escape(DIDL));
+    }
+
+    @Test
+    public void lastChangeEvent() {
+        assertEquals(oldLastChange(), newLastChange());
+        measure("lastChange/concat", XmlWriterBenchmark::oldLastChange);
+        measure("lastChange/XmlWriter", XmlWriterBenchmark::newLastChange);
+    }
+
+    @Test
+    public void positionInfo() {
+        assertEquals(oldPositionInfo(), newPositionInfo());
+        measure("positionInfo/concat", XmlWriterBenchmark::oldPositionInfo);
+        measure("positionInfo/XmlWriter", XmlWriterBenchmark::newPositionInfo);
+    }
+}
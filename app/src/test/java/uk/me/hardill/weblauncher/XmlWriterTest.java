@@ -0,0 +1,64 @@
+package uk.me.hardill.weblauncher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks escaping and nested documents in {@link XmlWriter}.
+ */
+public class XmlWriterTest {
+
+    @Test
+    public void escapeMatchesChainedReplace() {
+        String s = "Tom & Jerry <live> \"quoted\" it's";
+        String expected = s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+            .replace("\"", "&quot;").replace("'", "&apos;");
+        assertEquals(expected, XmlWriter.escape(s));
+    }
+
+    @Test
+    public void escapeReturnsSameInstanceWhenNothingToEscape() {
+        String s = "http://host/track.mp3";
+        assertSame(s, XmlWriter.escape(s));
+    }
+
+    @Test
+    public void emptyElementsAreSelfClosingButElementKeepsEndTag() {
+        XmlWriter xml = new XmlWriter(64);
+        xml.start("a").start("b").attr("val", "1").end().element("c", "").end();
+        assertEquals("<a><b val=\"1\"/><c></c></a>", xml.toString());
+    }
+
+    @Test
+    public void nestedDocumentIsEscapedOncePerLevel() {
+        XmlWriter xml = new XmlWriter(64);
+        xml.start("LastChange").beginNested();
+        xml.start("Event").start("CurrentTrackURI").attr("val", "http://h/?a=1&b=2").end().end();
+        xml.endNested().end();
+
+        // То же, что escape(escape(uri)) внутри escape(event)
+        String inner = "<Event><CurrentTrackURI val=\"" + XmlWriter.escape("http://h/?a=1&b=2") + "\"/></Event>";
+        assertEquals("<LastChange>" + XmlWriter.escape(inner) + "</LastChange>", xml.toString());
+    }
+
+    @Test
+    public void fragmentIsEscapedAtCurrentLevel() {
+        XmlWriter xml = new XmlWriter(64);
+        String didl = "<DIDL-Lite><dc:title>A &amp; B</dc:title></DIDL-Lite>";
+        xml.start("TrackMetaData").beginNested().fragment(didl).endNested().end();
+        assertEquals("<TrackMetaData>" + XmlWriter.escape(didl) + "</TrackMetaData>", xml.toString());
+    }
+
+    @Test
+    public void obtainReturnsFreshWriterWhileInUse() {
+        XmlWriter outer = XmlWriter.obtain();
+        outer.start("outer");
+        XmlWriter inner = XmlWriter.obtain();
+        assertNotSame(outer, inner);
+        inner.element("inner", "x");
+        assertEquals("<inner>x</inner>", inner.finish());
+        assertEquals("<outer/>", outer.end().finish());
+        assertSame(outer, XmlWriter.obtain());
+    }
+}